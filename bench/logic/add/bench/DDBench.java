@@ -0,0 +1,225 @@
+//////////////////////////////////////////////////////////////////
+//          JMH Benchmarks for the Decision Diagram Kernels
+//
+// Build and run with the 'runbench' script in the top directory, e.g.
+//
+//   ./runbench                          (all benchmarks, gc profiler)
+//   ./runbench DDBench.apply -p type=1  (apply for ADDs only)
+//
+// Inputs are built with the same generators as Compare and
+// CompressTest.  For the cached operations, caches are flushed
+// (operands kept) before each invocation so that apply cache hits
+// from the previous invocation are not what is being measured.
+//
+// Besides the score, JMH reports the node counts of the results as
+// 'calls' and 'resultNodes' (see Nodes): both are summed over the
+// measurement iterations, so resultNodes / calls is the mean size of
+// a result.
+//////////////////////////////////////////////////////////////////
+
+package logic.add.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import logic.add.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DDBench {
+
+    // Fixed seed so that the randomized inputs are repeatable
+    public static final long SEED = 1234567L;
+
+    @State(Scope.Thread)
+    public static class Inputs {
+
+	// DD.TYPE_TABLE, TYPE_ADD, TYPE_AADD.  TYPE_LAADD (3) is left out:
+	// its arithmetic gives NaN edges or overflows the stack on every
+	// input below (also when copied from an ADD), so there is nothing
+	// meaningful to measure for it.
+	@Param({"0", "1", "2"})
+	public int type;
+
+	// counting, exp, expprod, random
+	@Param({"counting", "exp", "expprod", "random"})
+	public String input;
+
+	@Param({"10"})
+	public int vars;
+
+	// Precision used by pruneNodes() (REPLACE_AVG)
+	@Param({"0.01"})
+	public double prune;
+
+	public DD _context;
+	public int _dd1;
+	public int _dd2;
+	public int _nMidGID;
+	public ArrayList _alAssign;
+	public HashMap _hmRemap;
+
+	@Setup(Level.Trial)
+	public void build() {
+	    FBR.SetPruneInfo(DD.REPLACE_AVG, prune);
+	    ArrayList order = new ArrayList();
+	    for (int i = 1; i <= vars; i++) {
+		order.add(new Integer(i));
+	    }
+	    _context = new FBR(type, order)._context;
+	    _dd1 = GetDD(_context, input, vars, false);
+	    _dd2 = GetDD(_context, input, vars, true);
+	    _context.addSpecialNode(_dd1);
+	    _context.addSpecialNode(_dd2);
+	    _nMidGID = (vars + 1) / 2;
+
+	    // Alternate true/false assignment for evaluate()
+	    _alAssign = new ArrayList();
+	    for (int i = 0; i < vars; i++) {
+		_alAssign.add((i % 2 == 0) ? Boolean.TRUE : Boolean.FALSE);
+	    }
+
+	    // Remap every gid to itself (order consistent)
+	    _hmRemap = new HashMap();
+	    for (int i = 1; i <= vars; i++) {
+		_hmRemap.put(new Integer(i), new Integer(i));
+	    }
+
+	    System.out.println("\n# " + DDName(type) + " " + input + "(" + vars +
+			       "): nodes " + _context.countExactNodes(_dd1) + "/" +
+			       _context.countExactNodes(_dd2));
+	}
+
+	@TearDown(Level.Trial)
+	public void report() {
+	    System.out.println("\n# " + DDName(type) + " " + input +
+			       ": context nodes " + _context.getNodeCount() +
+			       ", cache " + _context.getCacheSize());
+	}
+    }
+
+    // Flushes the caches of Inputs before each invocation
+    @State(Scope.Thread)
+    public static class Flushed {
+
+	@Setup(Level.Invocation)
+	public void flush(Inputs in) {
+	    in._context.flushCaches(false);
+	}
+    }
+
+    // Node counts of the result(s) of each invocation, counted after
+    // the invocation so that counting is not part of the score
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Nodes {
+
+	public long calls;
+	public long resultNodes;
+
+	int _nResult1 = DD.INVALID;
+	int _nResult2 = DD.INVALID;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+	    calls = 0;
+	    resultNodes = 0;
+	}
+
+	@TearDown(Level.Invocation)
+	public void count(Inputs in) {
+	    calls++;
+	    if (_nResult1 != DD.INVALID) {
+		resultNodes += in._context.countExactNodes(_nResult1);
+	    }
+	    if (_nResult2 != DD.INVALID) {
+		resultNodes += in._context.countExactNodes(_nResult2);
+	    }
+	}
+    }
+
+    @State(Scope.Thread)
+    public static class Op {
+
+	// ARITH_SUM, PROD, MIN, MAX, DIV, MINUS
+	@Param({"0", "1", "2", "3", "4", "5"})
+	public int op;
+    }
+
+    @Benchmark
+    public int apply(Inputs in, Flushed f, Op o, Nodes n) {
+	return n._nResult1 = in._context.applyInt(in._dd1, in._dd2, o.op);
+    }
+
+    @Benchmark
+    public int opOutSum(Inputs in, Flushed f, Nodes n) {
+	return n._nResult1 = in._context.opOut(in._dd1, in._nMidGID,
+					       DD.ARITH_SUM);
+    }
+
+    @Benchmark
+    public int opOutMax(Inputs in, Flushed f, Nodes n) {
+	return n._nResult1 = in._context.opOut(in._dd1, in._nMidGID,
+					       DD.ARITH_MAX);
+    }
+
+    @Benchmark
+    public void restrict(Inputs in, Flushed f, Nodes n, Blackhole bh) {
+	bh.consume(n._nResult1 = in._context.restrict(in._dd1, in._nMidGID,
+						      DD.RESTRICT_HIGH));
+	bh.consume(n._nResult2 = in._context.restrict(in._dd1, in._nMidGID,
+						      DD.RESTRICT_LOW));
+    }
+
+    @Benchmark
+    public int remapGIDs(Inputs in, Flushed f, Nodes n) {
+	return n._nResult1 = in._context.remapGIDsInt(in._dd1, in._hmRemap);
+    }
+
+    @Benchmark
+    public int pruneNodes(Inputs in, Flushed f, Nodes n) {
+	return n._nResult1 = in._context.pruneNodes(in._dd1);
+    }
+
+    @Benchmark
+    public double evaluate(Inputs in) {
+	return in._context.evaluate(in._dd1, in._alAssign);
+    }
+
+    // Builds one of the test DDs over gids 1..vars (alt gives a second,
+    // different DD of the same kind).  All DDs are strictly positive so
+    // that DIV is well defined.
+    public static int GetDD(DD context, String input, int vars, boolean alt) {
+	if (input.equals("counting")) {
+	    return context.applyInt(Compare.GetCountingDD(context, vars, alt),
+				    context.getConstantNode(1d), DD.ARITH_SUM);
+	} else if (input.equals("exp")) {
+	    return context.applyInt(Compare.GetExpDD(context, vars, alt),
+				    context.getConstantNode(1d), DD.ARITH_SUM);
+	} else if (input.equals("expprod")) {
+	    return Compare.GetExpProdDD(context, vars, alt ? 0.9d : 0.95d);
+	} else if (input.equals("random")) {
+	    CompressTest._rand = new Random(alt ? SEED + 1 : SEED);
+	    return CompressTest.GetRandomizedDD(context, vars, 4 * vars);
+	}
+	System.out.println("DDBench: Illegal input '" + input + "'");
+	System.exit(1);
+	return -1;
+    }
+
+    public static String DDName(int type) {
+	switch (type) {
+	case DD.TYPE_TABLE: return "Table";
+	case DD.TYPE_ADD:   return "ADD";
+	case DD.TYPE_AADD:  return "AADD";
+	case DD.TYPE_LAADD: return "LAADD";
+	}
+	return "DD(" + type + ")";
+    }
+}
@@ -27,7 +27,9 @@ package logic.add;
 
 import graph.Graph;
 
+import java.io.*;
 import java.math.*;
+import java.nio.*;
 import java.text.*;
 import java.util.*;
 
@@ -52,21 +54,6 @@ public class AADD extends DD {
 	public static boolean PRINT_APPLY = false;
 	public static boolean DEBUG_PRUNE = false;
 
-	// Internal statistics
-	public static long APPLY_CALLS = 0;
-	public static int TERM_PRUNE_CNT = 0;
-	public static int PROD_PRUNE_CNT = 0;
-	public static int MIN_PRUNE_CNT = 0;
-	public static int MAX_PRUNE_CNT = 0;
-	public static int SUM_CACHE_HITS = 0;
-	public static int MAX_CACHE_HITS = 0;
-	public static int PROD_CACHE_HITS = 0;
-	public static int PRUNE_CACHE_HITS = 0;
-	public static int REDUCE_CACHE_HITS = 0;
-	public static int APPLY_CACHE_HITS = 0;
-	public static int PRECISION_PRUNES = 0;
-	public static int IDENT_PRUNES = 0;
-
 	// Local data for AADD 
 	public AADD _this = this; // For inner classes to access
 	public AADDRNode _pRoot; // local id of root node
@@ -85,9 +72,15 @@ public class AADD extends DD {
 	public HashMap _hmReduceRemap; // maps <id> -> ADDNode (Reduce cache)
 	public HashMap _hmPruneMap; // maps <id> -> ADDNode (Prune cache)
 
-	public HashMap _hmNewNodes = null;
-	public Map _hmNewINodeCache = null;
-	public HashMap _hmNewRNodes = null;
+	// Ids released by flushCaches() for reuse
+	public int[] _anFreeINodeIDs = new int[16];
+	public int _nFreeINodeCnt = 0;
+	public int[] _anFreeRNodeIDs = new int[16];
+	public int _nFreeRNodeCnt = 0;
+
+	// Marks set during flushCaches()
+	public boolean[] _abKeepINodes = null;
+	public boolean[] _abKeepRNodes = null;
 
 	// Temp data
 	public SAINodeIndex _tmpSAINode1 = new SAINodeIndex(INVALID, INVALID,
@@ -179,6 +172,8 @@ public class AADD extends DD {
 			//showCacheSize();
 			ResetTimer();
 		}
+		_metrics.inc(Metrics.FLUSHES);
+		_metrics.recordNodes(getNodeCount());
 
 		// Can always clear these
 		_hmApplyCache = USE_NODE_MERGING ? (Map) new TreeMap()
@@ -187,24 +182,19 @@ public class AADD extends DD {
 		_hmReduceRemap = new HashMap();
 		_hmPruneMap = new HashMap();
 
-		// Set up temporary alternates to these HashMaps
-		_hmNewNodes = new HashMap();
-		_hmNewRNodes = new HashMap();
-		_hmNewINodeCache = USE_NODE_MERGING ? (Map) new TreeMap()
-				: (Map) new HashMap();
-
-		// Copy over 'special' nodes then set new maps
+		// Mark 'special' nodes (and their children) then sweep the rest
+		// out of the node tables in place
+		_abKeepINodes = new boolean[_nINodeIDCnt];
+		_abKeepRNodes = new boolean[_nRNodeIDCnt];
 		Iterator i = _hsSpecialNodes.iterator();
 		while (i.hasNext()) {
 			cacheRNode((ADDRNode) i.next());
 		}
-		_hmNodes = _hmNewNodes;
-		_hmRNodes = _hmNewRNodes;
-		_hmINodeCache = _hmNewINodeCache;
-
-		// Copy over the special zero ADDDNode
-		ADDRNode zero_ref = new ADDRNode(0);
-		_hmNodes.put(zero_ref, _zeroDNode);
+		releaseUnmarkedNodes();
+		_abKeepINodes = null;
+		_abKeepRNodes = null;
+		_lNodesAfterFlush = getNodeCount();
+		checkReorder();
 
 		// Print results
 		if (GC_DURING_FLUSH) {
@@ -221,23 +211,62 @@ public class AADD extends DD {
 		} // Print starting info
 	}
 
-	public void cacheINode(ADDRNode r) {
-		if (r._lid == 0 || _hmNewNodes.containsKey(r)) {
+	public void cacheINode(int lid) {
+		if (lid == 0 || _abKeepINodes[lid]) {
 			return;
 		}
-		AADDINode ni = (AADDINode) _hmNodes.get(r);
-		_hmNewNodes.put(r, ni);
-		_hmNewINodeCache.put(new SAINodeIndex(ni._nGlobalID, ni._nLow,
-				ni._nHigh, ni._dLowOffset, ni._dLowMult, ni._dHighOffset,
-				ni._dHighMult), r);
-		cacheINode(new ADDRNode(ni._nLow));
-		cacheINode(new ADDRNode(ni._nHigh));
+		_abKeepINodes[lid] = true;
+		AADDINode ni = (AADDINode) getNode(lid);
+		cacheINode(ni._nLow);
+		cacheINode(ni._nHigh);
 	}
 
 	public void cacheRNode(ADDRNode r) {
+		_abKeepRNodes[r._lid] = true;
 		AADDRNode n = (AADDRNode) _hmRNodes.get(r);
-		_hmNewRNodes.put(r, n);
-		cacheINode(new ADDRNode(n._nRefID));
+		cacheINode(n._nRefID);
+	}
+
+	// Removes every node not marked during flushCaches() from the node
+	// maps and unique table and recycles its id; live nodes are untouched
+	public void releaseUnmarkedNodes() {
+
+		Iterator i = _hmNodes.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry me = (Map.Entry) i.next();
+			int lid = ((ADDRNode) me.getKey())._lid;
+			if (lid == 0 || _abKeepINodes[lid]) {
+				continue;
+			}
+			AADDINode ni = (AADDINode) me.getValue();
+			_tmpSAINode1.set(ni._nGlobalID, ni._nLow, ni._nHigh,
+					ni._dLowOffset, ni._dLowMult, ni._dHighOffset,
+					ni._dHighMult);
+			ADDRNode ref = (ADDRNode) _hmINodeCache.get(_tmpSAINode1);
+			if (ref != null && ref._lid == lid) {
+				_hmINodeCache.remove(_tmpSAINode1);
+			}
+			i.remove();
+			if (_nFreeINodeCnt == _anFreeINodeIDs.length) {
+				_anFreeINodeIDs = Arrays.copyOf(_anFreeINodeIDs,
+						_nFreeINodeCnt << 1);
+			}
+			_anFreeINodeIDs[_nFreeINodeCnt++] = lid;
+		}
+
+		i = _hmRNodes.keySet().iterator();
+		while (i.hasNext()) {
+			int rid = ((ADDRNode) i.next())._lid;
+			if (_abKeepRNodes[rid]) {
+				continue;
+			}
+			i.remove();
+			if (_nFreeRNodeCnt == _anFreeRNodeIDs.length) {
+				_anFreeRNodeIDs = Arrays.copyOf(_anFreeRNodeIDs,
+						_nFreeRNodeCnt << 1);
+			}
+			_anFreeRNodeIDs[_nFreeRNodeCnt++] = rid;
+		}
 	}
 
 	//////////////////////////////////////////////////////////////////
@@ -258,6 +287,199 @@ public class AADD extends DD {
 				+ _hmINodeCache.size() + _hmRNodes.size();
 	}
 
+	public long getNodeCount() {
+		return _hmNodes.size() + _hmRNodes.size();
+	}
+
+	//////////////////////////////////////////////////////////////////
+	//           Dynamic variable reordering (see DD.reorder())
+	//////////////////////////////////////////////////////////////////
+
+	public boolean canReorder() {
+		return true;
+	}
+
+	// In-place swap of the vars x at level and y at level+1.  Each
+	// x-node f with a y child is rewritten as the y-node
+	// <y, <x, f00, f10>, <x, f01, f11>> under the same id.  f is
+	// normalized and still denotes the same function, so the edges to
+	// the new x-nodes need only the rounding-level renormalization of
+	// getINode().  All ids, rids and cached results stay valid; old y
+	// children may be left unreferenced until the next flushCaches().
+	// While sifting, references and level counts follow each rewrite.
+	public void swapLevels(int level) {
+
+		Integer x = (Integer) _alOrder.get(level);
+		Integer y = (Integer) _alOrder.get(level + 1);
+		int xg = x.intValue();
+		int yg = y.intValue();
+		_hmGVarToLevel.put(y, new Integer(level));
+		_hmGVarToLevel.put(x, new Integer(level + 1));
+		if (_anLevelCnt != null) {
+			int cnt = _anLevelCnt[level];
+			_anLevelCnt[level] = _anLevelCnt[level + 1];
+			_anLevelCnt[level + 1] = cnt;
+		}
+
+		// Collect first since new x-nodes are created below
+		ArrayList xnodes = new ArrayList();
+		Iterator i = _hmNodes.values().iterator();
+		while (i.hasNext()) {
+			Object n = i.next();
+			if (n instanceof AADDINode && ((AADDINode) n)._nGlobalID == xg) {
+				xnodes.add(n);
+			}
+		}
+
+		for (int k = 0; k < xnodes.size(); k++) {
+			AADDINode f = (AADDINode) xnodes.get(k);
+			int f0 = f._nLow;
+			int f1 = f._nHigh;
+			if (!isVarNode(f0, yg) && !isVarNode(f1, yg)) {
+				continue; // f does not depend on y, stays as is
+			}
+
+			// f = <y, <x, f00, f10>, <x, f01, f11>>
+			AADDRNode[] c0 = cofactorY(f0, f._dLowOffset, f._dLowMult, yg);
+			AADDRNode[] c1 = cofactorY(f1, f._dHighOffset, f._dHighMult, yg);
+			AADDRNode low = getINode(xg, c0[0]._nRefID, c1[0]._nRefID,
+					c0[0]._dOffset, c0[0]._dMult, c1[0]._dOffset,
+					c1[0]._dMult, true);
+			AADDRNode high = getINode(xg, c0[1]._nRefID, c1[1]._nRefID,
+					c0[1]._dOffset, c0[1]._dMult, c1[1]._dOffset,
+					c1[1]._dMult, true);
+			double r_min = Math.min(low._dOffset, high._dOffset);
+			double r_range = Math.max(low._dOffset + low._dMult,
+					high._dOffset + high._dMult) - r_min;
+
+			_tmpSAINode1.set(xg, f0, f1, f._dLowOffset, f._dLowMult,
+					f._dHighOffset, f._dHighMult);
+			ADDRNode ref = (ADDRNode) _hmINodeCache.get(_tmpSAINode1);
+			if (ref != null && ref._lid == f._nLocalID) {
+				_hmINodeCache.remove(_tmpSAINode1);
+			}
+			f._nGlobalID = yg;
+			f._nLow = low._nRefID;
+			f._nHigh = high._nRefID;
+			f._dLowOffset = (low._dOffset - r_min) / r_range;
+			f._dLowMult = low._dMult / r_range;
+			f._dHighOffset = (high._dOffset - r_min) / r_range;
+			f._dHighMult = high._dMult / r_range;
+			SAINodeIndex key = new SAINodeIndex(yg, f._nLow, f._nHigh,
+					f._dLowOffset, f._dLowMult, f._dHighOffset, f._dHighMult);
+			if (!_hmINodeCache.containsKey(key)) {
+				_hmINodeCache.put(key, new ADDRNode(f._nLocalID));
+			}
+
+			// A live f moves to level y and drops its old children
+			if (_anLevelCnt != null && refCnt(f._nLocalID) > 0) {
+				_anLevelCnt[level + 1]--;
+				_anLevelCnt[level]++;
+				refNode(f._nLow);
+				refNode(f._nHigh);
+				derefNode(f0);
+				derefNode(f1);
+			}
+		}
+	}
+
+	// Whether id is an inode testing gid
+	public boolean isVarNode(int id, int gid) {
+		return id != 0 && ((AADDINode) getNode(id))._nGlobalID == gid;
+	}
+
+	// Returns the {y=false, y=true} branches of <o, m, id>
+	public AADDRNode[] cofactorY(int id, double o, double m, int y) {
+		AADDRNode[] ret = new AADDRNode[2];
+		AADDINode ni = null;
+		if (id != 0 && (ni = (AADDINode) getNode(id))._nGlobalID == y) {
+			ret[0] = composeSwap(o, m, new AADDRNode(ni._nLow,
+					ni._dLowOffset, ni._dLowMult));
+			ret[1] = composeSwap(o, m, new AADDRNode(ni._nHigh,
+					ni._dHighOffset, ni._dHighMult));
+		} else {
+			ret[0] = ret[1] = new AADDRNode(id, o, m);
+		}
+		return ret;
+	}
+
+	// o + m * (n.offset + n.mult * F)
+	public AADDRNode composeSwap(double o, double m, AADDRNode n) {
+		return new AADDRNode(n._nRefID, o + m * n._dOffset,
+				(n._nRefID == 0) ? 0d : m * n._dMult);
+	}
+
+	public long countLiveNodes(int[] level_cnt) {
+		HashSet cset = new HashSet();
+		Iterator i = _hsSpecialNodes.iterator();
+		while (i.hasNext()) {
+			AADDRNode r = (AADDRNode) _hmRNodes.get(i.next());
+			if (r != null) {
+				countExactNodesInt(cset, r._nRefID);
+			}
+		}
+		cset.remove(new Integer(0));
+		if (level_cnt != null) {
+			Iterator j = cset.iterator();
+			while (j.hasNext()) {
+				AADDINode ni = (AADDINode) getNode(((Integer) j.next()).intValue());
+				level_cnt[((Integer) _hmGVarToLevel.get(new Integer(
+						ni._nGlobalID))).intValue()]++;
+			}
+		}
+		return cset.size();
+	}
+
+	public long initLiveCounts() {
+		_anLevelCnt = new int[_alOrder.size()];
+		_anRefCnt = new int[_nINodeIDCnt];
+		long cnt = 0;
+		Iterator i = _hsSpecialNodes.iterator();
+		while (i.hasNext()) {
+			AADDRNode r = (AADDRNode) _hmRNodes.get(i.next());
+			if (r != null) {
+				cnt += refNode(r._nRefID);
+			}
+		}
+		return cnt;
+	}
+
+	public int refCnt(int id) {
+		return (id < _anRefCnt.length) ? _anRefCnt[id] : 0;
+	}
+
+	// Adds a reference to id, a node that becomes live references its
+	// children and is counted at its level (returns the nodes made live)
+	public long refNode(int id) {
+		if (id == 0) {
+			return 0;
+		}
+		if (id >= _anRefCnt.length) { // Created by a swap
+			_anRefCnt = Arrays.copyOf(_anRefCnt, Math.max(id + 1,
+					_anRefCnt.length << 1));
+		}
+		if (_anRefCnt[id]++ > 0) {
+			return 0;
+		}
+		AADDINode ni = (AADDINode) getNode(id);
+		_anLevelCnt[((Integer) _hmGVarToLevel.get(new Integer(
+				ni._nGlobalID))).intValue()]++;
+		return 1 + refNode(ni._nLow) + refNode(ni._nHigh);
+	}
+
+	// Removes a reference to id, a node left without any is dropped
+	// from its level count and releases its children
+	public void derefNode(int id) {
+		if (id == 0 || --_anRefCnt[id] > 0) {
+			return;
+		}
+		AADDINode ni = (AADDINode) getNode(id);
+		_anLevelCnt[((Integer) _hmGVarToLevel.get(new Integer(
+				ni._nGlobalID))).intValue()]--;
+		derefNode(ni._nLow);
+		derefNode(ni._nHigh);
+	}
+
 	// An exact count for the AADD rooted at _pRoot
 	public long countExactNodesFromINode(int iid) {
 		HashSet cset = new HashSet();
@@ -341,7 +563,8 @@ public class AADD extends DD {
 	// Returns rid for node
 	public int addRNodeRef(AADDRNode r) {
 
-		int rid = _nRNodeIDCnt++;
+		int rid = (_nFreeRNodeCnt > 0) ? _anFreeRNodeIDs[--_nFreeRNodeCnt]
+				: _nRNodeIDCnt++;
 		ADDRNode ref = new ADDRNode(rid);
 		_hmRNodes.put(ref, r);
 
@@ -372,7 +595,8 @@ public class AADD extends DD {
 			double o_h, double m_h) {
 
 		//System.out.println("Create: <" + gid + "," + low + "," + high + ">  ->  " + _nRefIDCnt);
-		int lid = _nINodeIDCnt++;
+		int lid = (_nFreeINodeCnt > 0) ? _anFreeINodeIDs[--_nFreeINodeCnt]
+				: _nINodeIDCnt++;
 		ADDRNode ref = new ADDRNode(lid);
 		AADDINode n = new AADDINode(lid, gid, low, high, o_l, m_l, o_h, m_h);
 
@@ -583,10 +807,10 @@ public class AADD extends DD {
 		if (r._nRefID == 0) {
 			return getDNode(r._dOffset * val, true);
 		} else if (val == 0d) {
-			PROD_PRUNE_CNT++;
+			_metrics.inc(Metrics.PROD_PRUNES);
 			return new AADDRNode(0, 0d, 0d);
 		} else if (val > 0d) {
-			PROD_PRUNE_CNT++;
+			_metrics.inc(Metrics.PROD_PRUNES);
 			return new AADDRNode(r._nRefID, val * r._dOffset, val * r._dMult);
 		}
 
@@ -645,6 +869,84 @@ public class AADD extends DD {
 		return addRNodeRef(ret);
 	}
 
+	public double maxAbsDifference(int a, int b) {
+		AADDRNode ra = getRNode(a);
+		AADDRNode rb = getRNode(b);
+		double[] range = diffRange(ra._dOffset, ra._dMult, ra._nRefID,
+				rb._dOffset, rb._dMult, rb._nRefID, new HashMap());
+		return Math.max(Math.abs(range[0]), Math.abs(range[1]));
+	}
+
+	// Max of a - b is the upper end of diffRange()
+	public double maxDifference(int a, int b) {
+		AADDRNode ra = getRNode(a);
+		AADDRNode rb = getRNode(b);
+		return diffRange(ra._dOffset, ra._dMult, ra._nRefID, rb._dOffset,
+				rb._dMult, rb._nRefID, new HashMap())[1];
+	}
+
+	// The root ranges [o, o + m] decide most converged (or far apart)
+	// value functions without walking the nodes
+	public boolean withinTolerance(int a, int b, double eps) {
+		AADDRNode ra = getRNode(a);
+		AADDRNode rb = getRNode(b);
+		double bound = Math.max(ra._dOffset + ra._dMult - rb._dOffset,
+				rb._dOffset + rb._dMult - ra._dOffset);
+		if (bound < eps) {
+			return true;
+		}
+		// |min a - min b| and |max a - max b| are at most max |a - b|
+		if (Math.abs(ra._dOffset - rb._dOffset) >= eps
+				|| Math.abs(ra._dOffset + ra._dMult - rb._dOffset - rb._dMult) >= eps) {
+			return false;
+		}
+		return maxAbsDifference(a, b) < eps;
+	}
+
+	// [min, max] of (o1 + m1 * f1) - (o2 + m2 * f2) over all assignments
+	// where f1, f2 are the normalized node functions (range [0, 1]) of
+	// local ids n1, n2.  Affine edges make the result for a node pair
+	// depend only on the ratio m2 / m1, so pairs are cached on that.
+	public double[] diffRange(double o1, double m1, int n1, double o2,
+			double m2, int n2, HashMap cache) {
+		double c = o1 - o2;
+		double r1 = (n1 == 0) ? 0d : m1;
+		double r2 = (n2 == 0) ? 0d : m2;
+		if (r1 == 0d || r2 == 0d) {
+			return new double[] { c - r2, c + r1 };
+		}
+		double[] g = diffRange(n1, n2, m2 / m1, cache);
+		return new double[] { c + m1 * g[0], c + m1 * g[1] };
+	}
+
+	// [min, max] of f1 - r * f2 for non-zero local ids n1, n2
+	public double[] diffRange(int n1, int n2, double r, HashMap cache) {
+		SAINodeIndex key = new SAINodeIndex(INVALID, n1, n2, 0d, r, 0d, 0d);
+		double[] ret = (double[]) cache.get(key);
+		if (ret != null) {
+			return ret;
+		}
+
+		AADDINode a = (AADDINode) getNode(n1);
+		AADDINode b = (AADDINode) getNode(n2);
+		int gid = comesBefore(a._nGlobalID, b._nGlobalID) ? a._nGlobalID
+				: b._nGlobalID;
+
+		// Low branch then high branch, n2 side scaled by r
+		double[] low, high;
+		boolean sa = (a._nGlobalID == gid), sb = (b._nGlobalID == gid);
+		low = diffRange(sa ? a._dLowOffset : 0d, sa ? a._dLowMult : 1d,
+				sa ? a._nLow : n1, r * (sb ? b._dLowOffset : 0d), r
+						* (sb ? b._dLowMult : 1d), sb ? b._nLow : n2, cache);
+		high = diffRange(sa ? a._dHighOffset : 0d, sa ? a._dHighMult : 1d,
+				sa ? a._nHigh : n1, r * (sb ? b._dHighOffset : 0d), r
+						* (sb ? b._dHighMult : 1d), sb ? b._nHigh : n2, cache);
+		ret = new double[] { Math.min(low[0], high[0]),
+				Math.max(low[1], high[1]) };
+		cache.put(key, ret);
+		return ret;
+	}
+
 	///////////////////////////////////////////////////////////////////////////
 	//                         Approximation Algorithms
 	///////////////////////////////////////////////////////////////////////////
@@ -1115,15 +1417,15 @@ public class AADD extends DD {
 				}
 					break;
 				case REPLACE_MIN: {
-					PRECISION_PRUNES++;
+					_metrics.inc(Metrics.PRECISION_PRUNES);
 					retp = new PruneResult(getDNode(r._dOffset, true), allow_error - range);
 				} break;
 				case REPLACE_MAX: {
-					PRECISION_PRUNES++;
+					_metrics.inc(Metrics.PRECISION_PRUNES);
 					retp = new PruneResult(getDNode(r._dOffset + r._dMult, true), allow_error - range);
 				} break;
 				case REPLACE_AVG: {
-					PRECISION_PRUNES++;
+					_metrics.inc(Metrics.PRECISION_PRUNES);
 					retp = new PruneResult(getDNode((r._dOffset + r._dMult) / 2d, true), allow_error - range);
 				} break;
 				default: {
@@ -1181,19 +1483,19 @@ public class AADD extends DD {
 						}
 							break;
 						case REPLACE_MIN: {
-							PRECISION_PRUNES++;
+							_metrics.inc(Metrics.PRECISION_PRUNES);
 							retp = new PruneResult(new AADDRNode(low._nRefID, 
 									Math.min(low._dOffset, high._dOffset), 
 									Math.min(low._dMult, high._dMult)), ret._allow_err - approx_err);
 						} break;
 						case REPLACE_MAX: {
-							PRECISION_PRUNES++;
+							_metrics.inc(Metrics.PRECISION_PRUNES);
 							retp = new PruneResult(new AADDRNode(low._nRefID, 
 									Math.max(low._dOffset, high._dOffset), 
 									Math.max(low._dMult, high._dMult)), ret._allow_err - approx_err);
 						} break;
 						case REPLACE_AVG: {
-							PRECISION_PRUNES++;
+							_metrics.inc(Metrics.PRECISION_PRUNES);
 							// Error is 2* here b/c for a fun value, may go +approx_err/2 
 							// on one side and -approx_err/2 on other
 							retp = new PruneResult(new AADDRNode(low._nRefID, 
@@ -1375,7 +1677,7 @@ public class AADD extends DD {
 				//System.out.println("---------------------------------");
 				// ////////////////////////////////////////////
 
-				PRECISION_PRUNES++;
+				_metrics.inc(Metrics.PRECISION_PRUNES);
 
 			} else {
 
@@ -1387,10 +1689,11 @@ public class AADD extends DD {
 			}
 
 			// Cache the node in canonical form
+			_metrics.inc(Metrics.PRUNE_MISSES);
 			_hmPruneMap.put(new ADDRNode(r._nRefID), ret._rnode);
 
 		} else {
-			PRUNE_CACHE_HITS++;
+			_metrics.inc(Metrics.PRUNE_HITS);
 		}
 
 		//PRUNE_PRECISION += ;
@@ -1463,9 +1766,10 @@ public class AADD extends DD {
 					true);
 
 			// Cache the node in canonical form
+			_metrics.inc(Metrics.REDUCE_MISSES);
 			_hmReduceRemap.put(key, ret);
 		} else {
-			REDUCE_CACHE_HITS++;
+			_metrics.inc(Metrics.REDUCE_HITS);
 		}
 
 		// Return cached value modified by offset
@@ -1542,9 +1846,10 @@ public class AADD extends DD {
 			}
 
 			// Cache the node in canonical form
+			_metrics.inc(Metrics.REDUCE_MISSES);
 			_hmReduceMap.put(key, ret);
 		} else {
-			REDUCE_CACHE_HITS++;
+			_metrics.inc(Metrics.REDUCE_HITS);
 		}
 
 		// Return cached value modified by offset
@@ -1591,6 +1896,94 @@ public class AADD extends DD {
 		}
 	}
 
+	// Sum out gids from a1*a2 in one recursion like ADD.applyAndSumOut(),
+	// over <offset, mult, node> as in applyInt(): each operand is divided
+	// by its mult (the product, and so the sum, scales by their product)
+	// and the result is cached under the normalized pair.  Cache op is
+	// APPLY_SUM_OUT + the node id of the cube of summed vars.
+	public int applyAndSumOut(int a1, int a2, Set gids) {
+		int nlevels = _alOrder.size();
+		boolean[] sum_level = new boolean[nlevels];
+		AADDRNode cube = getDNode(1d, true);
+		Iterator i = gids.iterator();
+		while (i.hasNext()) {
+			Integer gid = (Integer) i.next();
+			sum_level[((Integer) _hmGVarToLevel.get(gid)).intValue()] = true;
+			cube = applyInt(cube, getVarNodeInt(gid.intValue(), 0d, 1d),
+					ARITH_PROD);
+		}
+		int[] sum_below = new int[nlevels + 1]; // # summed vars at >= level
+		for (int l = nlevels - 1; l >= 0; l--) {
+			sum_below[l] = sum_below[l + 1] + (sum_level[l] ? 1 : 0);
+		}
+		AADDRNode r1 = getRNode(a1);
+		AADDRNode r2 = getRNode(a2);
+		AADDRNode ret = applyAndSumOut(r1, r2, sum_level, sum_below,
+				APPLY_SUM_OUT + cube._nRefID);
+		ret = scalarMultiply(ret, Math.pow(2d, sum_below[0]
+				- sum_below[topLevel(r1._nRefID, r2._nRefID)]));
+		return addRNodeRef(ret);
+	}
+
+	// Returns the sum over summed vars at or below the top level of a1, a2
+	public AADDRNode applyAndSumOut(AADDRNode a1, AADDRNode a2,
+			boolean[] sum_level, int[] sum_below, int op) {
+
+		// Nothing left to sum out
+		int level = topLevel(a1._nRefID, a2._nRefID);
+		if (sum_below[level] == 0) {
+			return applyInt(a1, a2, ARITH_PROD);
+		}
+
+		// Normalized key: <o1/m1, 1, id1> * <o2/m2, 1, id2> (a terminal
+		// operand has mult 0 and is kept as is)
+		double s1 = (a1._nRefID == 0) ? 1d : a1._dMult;
+		double s2 = (a2._nRefID == 0) ? 1d : a2._dMult;
+		SAINodeIndex key = new SAINodeIndex(op, a1._nRefID, a2._nRefID,
+				a1._dOffset / s1, a1._dMult / s1, a2._dOffset / s2, a2._dMult / s2);
+
+		AADDRNode ret = (AADDRNode) _hmApplyCache.get(key);
+		if (ret != null) {
+			_metrics.inc(Metrics.APPLY_HITS);
+		} else {
+			_metrics.inc(Metrics.APPLY_MISSES);
+
+			// Cofactors of both normalized operands on the top var
+			int gid = ((Integer) _alOrder.get(level)).intValue();
+			AADDRNode[] c1 = cofactorY(a1._nRefID, key._dOffset1, key._dMult1, gid);
+			AADDRNode[] c2 = cofactorY(a2._nRefID, key._dOffset2, key._dMult2, gid);
+			AADDRNode low = applyAndSumOut(c1[0], c2[0], sum_level, sum_below, op);
+			low = scalarMultiply(low, Math.pow(2d, sum_below[level + 1]
+					- sum_below[topLevel(c1[0]._nRefID, c2[0]._nRefID)]));
+			AADDRNode high = applyAndSumOut(c1[1], c2[1], sum_level, sum_below, op);
+			high = scalarMultiply(high, Math.pow(2d, sum_below[level + 1]
+					- sum_below[topLevel(c1[1]._nRefID, c2[1]._nRefID)]));
+			if (sum_level[level]) {
+				ret = applyInt(high, low, ARITH_SUM);
+			} else {
+				ret = getINode(gid, low._nRefID, high._nRefID, low._dOffset,
+						low._dMult, high._dOffset, high._dMult, true);
+			}
+			_hmApplyCache.put(key, ret);
+		}
+
+		return scalarMultiply(ret, s1 * s2);
+	}
+
+	// Level of the top var of ids a1 and a2 (# of levels if both terminal)
+	public int topLevel(int a1, int a2) {
+		int level = _alOrder.size();
+		if (a1 != 0) {
+			level = ((Integer) _hmGVarToLevel.get(new Integer(
+					((AADDINode) getNode(a1))._nGlobalID))).intValue();
+		}
+		if (a2 != 0) {
+			level = Math.min(level, ((Integer) _hmGVarToLevel.get(new Integer(
+					((AADDINode) getNode(a2))._nGlobalID))).intValue());
+		}
+		return level;
+	}
+
 	public int remapGIDsInt(int rid, HashMap gid_map) {
 		AADDRNode r = getRNode(rid);
 		AADDRNode ret = new AADDRNode(remapGIDs(r._nRefID, gid_map),
@@ -1615,10 +2008,143 @@ public class AADD extends DD {
 			if (new_id == null) {
 				new_id = old_id;
 			}
-			return getINode(new_id.intValue(), remapGIDs(ni._nLow, gid_map),
-					remapGIDs(ni._nHigh, gid_map), ni._dLowOffset,
-					ni._dLowMult, ni._dHighOffset, ni._dHighMult, true)._nRefID;
+			AADDRNode low = new AADDRNode(remapGIDs(ni._nLow, gid_map),
+					ni._dLowOffset, ni._dLowMult);
+			AADDRNode high = new AADDRNode(remapGIDs(ni._nHigh, gid_map),
+					ni._dHighOffset, ni._dHighMult);
+			return getOrderedINode(new_id.intValue(), low, high)._nRefID;
+		}
+	}
+
+	// Like getINode() but gid need not come before the top vars of low
+	// and high (e.g., after reordering) in which case if-then-else(gid,
+	// high, low) is built by apply
+	public AADDRNode getOrderedINode(int gid, AADDRNode low, AADDRNode high) {
+		if (isAbove(gid, low._nRefID) && isAbove(gid, high._nRefID)) {
+			return getINode(gid, low._nRefID, high._nRefID, low._dOffset,
+					low._dMult, high._dOffset, high._dMult, true);
+		}
+		AADDRNode high_br = applyInt(getVarNodeInt(gid, 0d, 1d), high,
+				ARITH_PROD);
+		AADDRNode low_br = applyInt(getVarNodeInt(gid, 1d, 0d), low,
+				ARITH_PROD);
+		return applyInt(high_br, low_br, ARITH_SUM);
+	}
+
+	// Can a gid node be placed directly above id in the current order?
+	public boolean isAbove(int gid, int id) {
+		if (id == 0) {
+			return true;
+		}
+		int child_gid = ((AADDINode) getNode(id))._nGlobalID;
+		return gid != child_gid && comesBefore(gid, child_gid);
+	}
+
+	// Copy a node from another context, src order may differ
+	public int copy(DD src, int rid, HashMap cache) {
+		if (!(src instanceof AADD)) {
+			return super.copy(src, rid, cache);
+		}
+		AADDRNode r = ((AADD) src).getRNode(rid);
+		AADDRNode n = copyINode((AADD) src, r._nRefID, cache);
+		return addRNodeRef(new AADDRNode(n._nRefID, r._dOffset + r._dMult
+				* n._dOffset, r._dMult * n._dMult));
+	}
+
+	// Returns <o,m,id> such that src node local_id == o + m * id
+	public AADDRNode copyINode(AADD src, int local_id, HashMap cache) {
+		if (local_id == 0) {
+			return new AADDRNode(0, 0d, 1d);
+		}
+		Integer key = new Integer(local_id);
+		AADDRNode ret = (AADDRNode) cache.get(key);
+		if (ret != null) {
+			return ret;
+		}
+		AADDINode ni = (AADDINode) src.getNode(local_id);
+		AADDRNode l = copyINode(src, ni._nLow, cache);
+		AADDRNode h = copyINode(src, ni._nHigh, cache);
+		ret = getOrderedINode(ni._nGlobalID, new AADDRNode(l._nRefID,
+				ni._dLowOffset + ni._dLowMult * l._dOffset, ni._dLowMult
+						* l._dMult), new AADDRNode(h._nRefID, ni._dHighOffset
+				+ ni._dHighMult * h._dOffset, ni._dHighMult * h._dMult));
+		cache.put(key, ret);
+		return ret;
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Binary save and load (see DD.saveBinary())
+	// ////////////////////////////////////////////////////////////////
+
+	// Node records: int #inodes, then per inode (children first) int
+	// gid, int low, double o_l, double m_l, int high, double o_h,
+	// double m_h where children are record indices (0 is the zero
+	// node, inodes are 1..#inodes), then the root edge double offset,
+	// double mult, int index
+	public int getBinaryFormat() {
+		return TYPE_AADD;
+	}
+
+	public void writeBinaryNodes(int rid, DataOutputStream os)
+			throws IOException {
+		AADDRNode r = getRNode(rid);
+		HashMap index = new HashMap();
+		ArrayList nodes = new ArrayList();
+		index.put(new Integer(0), new Integer(0));
+		collectPostOrder(r._nRefID, index, nodes);
+
+		os.writeInt(nodes.size());
+		for (int i = 0; i < nodes.size(); i++) {
+			AADDINode ni = (AADDINode) nodes.get(i);
+			os.writeInt(ni._nGlobalID);
+			os.writeInt(((Integer) index.get(new Integer(ni._nLow))).intValue());
+			os.writeDouble(ni._dLowOffset);
+			os.writeDouble(ni._dLowMult);
+			os.writeInt(((Integer) index.get(new Integer(ni._nHigh))).intValue());
+			os.writeDouble(ni._dHighOffset);
+			os.writeDouble(ni._dHighMult);
+		}
+		os.writeDouble(r._dOffset);
+		os.writeDouble(r._dMult);
+		os.writeInt(((Integer) index.get(new Integer(r._nRefID))).intValue());
+	}
+
+	// Numbers inodes below local_id from 1 in post-order
+	public void collectPostOrder(int local_id, HashMap index, ArrayList nodes) {
+		Integer key = new Integer(local_id);
+		if (index.containsKey(key)) {
+			return;
+		}
+		AADDINode ni = (AADDINode) getNode(local_id);
+		collectPostOrder(ni._nLow, index, nodes);
+		collectPostOrder(ni._nHigh, index, nodes);
+		nodes.add(ni);
+		index.put(key, new Integer(nodes.size()));
+	}
+
+	public int readBinaryNodes(ByteBuffer buf, HashMap gid_map) {
+		// As in copyINode(), node i of the file == o + m * local id
+		int cnt = buf.getInt();
+		AADDRNode[] nodes = new AADDRNode[cnt + 1];
+		nodes[0] = new AADDRNode(0, 0d, 1d);
+		for (int i = 1; i <= cnt; i++) {
+			Integer gid = (Integer) gid_map.get(new Integer(buf.getInt()));
+			AADDRNode l = nodes[buf.getInt()];
+			double o_l = buf.getDouble();
+			double m_l = buf.getDouble();
+			AADDRNode h = nodes[buf.getInt()];
+			double o_h = buf.getDouble();
+			double m_h = buf.getDouble();
+			nodes[i] = getOrderedINode(gid.intValue(), new AADDRNode(
+					l._nRefID, o_l + m_l * l._dOffset, m_l * l._dMult),
+					new AADDRNode(h._nRefID, o_h + m_h * h._dOffset, m_h
+							* h._dMult));
 		}
+		double offset = buf.getDouble();
+		double mult = buf.getDouble();
+		AADDRNode n = nodes[buf.getInt()];
+		return addRNodeRef(new AADDRNode(n._nRefID, offset + mult
+				* n._dOffset, mult * n._dMult));
 	}
 
 	public boolean verifyOrder(int id) {
@@ -1754,24 +2280,10 @@ public class AADD extends DD {
 		if ((ret = (AADDRNode) _hmApplyCache.get(key)) != null) {
 
 			// Just keep track of cache statistics
-			switch (op) {
-			case ARITH_SUM:
-			case ARITH_MINUS:
-				SUM_CACHE_HITS++;
-				break;
-			case ARITH_PROD:
-				PROD_CACHE_HITS++;
-				break;
-			case ARITH_MAX:
-			case ARITH_MIN:
-				MAX_CACHE_HITS++;
-				break;
-			default:
-				APPLY_CACHE_HITS++;
-				break;
-			}
+			_metrics.applyHit(op);
 
 		} else { // ret is null, must recurse
+			_metrics.applyMiss(op);
 
 			// Not in cache and at least one node must be internal.
 			int rvar, id_v1_low, id_v1_high;
@@ -1936,11 +2448,11 @@ public class AADD extends DD {
 				if ((a1._dOffset + a1._dMult) <= a2._dOffset) {
 					// max of a1 is less than min of a2
 					ret = a1;
-					MIN_PRUNE_CNT++;
+					_metrics.inc(Metrics.MIN_PRUNES);
 				} else if ((a2._dOffset + a2._dMult) <= a1._dOffset) {
 					// max of a2 is less than min of a1
 					ret = a2;
-					MIN_PRUNE_CNT++;
+					_metrics.inc(Metrics.MIN_PRUNES);
 				}
 
 			} else if (op == ARITH_MAX) {
@@ -1948,11 +2460,11 @@ public class AADD extends DD {
 				if ((a1._dOffset + a1._dMult) <= a2._dOffset) {
 					// max of a1 is less than min of a2
 					ret = a2;
-					MAX_PRUNE_CNT++;
+					_metrics.inc(Metrics.MAX_PRUNES);
 				} else if ((a2._dOffset + a2._dMult) <= a1._dOffset) {
 					// max of a2 is less than min of a1
 					ret = a1;
-					MAX_PRUNE_CNT++;
+					_metrics.inc(Metrics.MAX_PRUNES);
 				}
 
 			}
@@ -1979,7 +2491,7 @@ public class AADD extends DD {
 					ret = new AADDRNode(other._nRefID, tnode._dOffset
 							+ other._dOffset, other._dMult);
 
-					TERM_PRUNE_CNT++;
+					_metrics.inc(Metrics.TERM_PRUNES);
 				}
 					break;
 				case ARITH_PROD: {
@@ -1994,8 +2506,8 @@ public class AADD extends DD {
 						ret = scalarMultiply(other, tnode._dOffset);
 					}
 						
-					PROD_PRUNE_CNT++;
-					TERM_PRUNE_CNT++;
+					_metrics.inc(Metrics.PROD_PRUNES);
+					_metrics.inc(Metrics.TERM_PRUNES);
 					//if (PRINTING_ON) System.out.println("CTerm 1");
 				}
 					break;
@@ -2012,7 +2524,7 @@ public class AADD extends DD {
 						ret = new AADDRNode(other._nRefID, other._dOffset
 								- tnode._dOffset, other._dMult);
 					}
-					TERM_PRUNE_CNT++;
+					_metrics.inc(Metrics.TERM_PRUNES);
 				}
 					break;
 				}
@@ -2067,7 +2579,7 @@ public class AADD extends DD {
 			}
 
 			if (ret != null) {
-				IDENT_PRUNES++;
+				_metrics.inc(Metrics.IDENT_PRUNES);
 			}
 
 		}
@@ -2223,9 +2735,9 @@ public class AADD extends DD {
 			AADDRNode high = buildNode((ArrayList) l.get(1), var2ID);
 			AADDRNode low = buildNode((ArrayList) l.get(2), var2ID);
 
-			// Return the RNode ref to the normalized INode
-			return getINode(gid, low._nRefID, high._nRefID, low._dOffset,
-					low._dMult, high._dOffset, high._dMult, true);
+			// Return the RNode ref to the normalized INode (the tree
+			// order may differ from ours after reordering)
+			return getOrderedINode(gid, low, high);
 		}
 	}
 
@@ -2339,18 +2851,19 @@ public class AADD extends DD {
 
 	public void pruneReport() {
 		System.out.println("Prune Report:\n-------------");
-		System.out.println("TERM: " + TERM_PRUNE_CNT++);
-		System.out.println("PROD: " + PROD_PRUNE_CNT++);
-		System.out.println("MIN:  " + MIN_PRUNE_CNT++);
-		System.out.println("MAX:  " + MAX_PRUNE_CNT++ + "\n");
-		System.out.println("IDENT PRUNES:      " + IDENT_PRUNES++);
-		System.out.println("PRECISION PRUNES:  " + PRECISION_PRUNES++);
-		System.out.println("REDUCE CACHE HITS: " + REDUCE_CACHE_HITS++);
-		System.out.println("APPLY CACHE HITS:  " + APPLY_CACHE_HITS++ + "\n");
-		System.out.println("PRUNE CACHE HITS:  " + PRUNE_CACHE_HITS++);
-		System.out.println("SUM CACHE HITS:    " + SUM_CACHE_HITS++);
-		System.out.println("PROD CACHE HITS:   " + PROD_CACHE_HITS++);
-		System.out.println("MAX CACHE HITS:    " + MAX_CACHE_HITS++);
+		long[] op_hits = _metrics._alOpHits;
+		System.out.println("TERM: " + _metrics.get(Metrics.TERM_PRUNES));
+		System.out.println("PROD: " + _metrics.get(Metrics.PROD_PRUNES));
+		System.out.println("MIN:  " + _metrics.get(Metrics.MIN_PRUNES));
+		System.out.println("MAX:  " + _metrics.get(Metrics.MAX_PRUNES) + "\n");
+		System.out.println("IDENT PRUNES:      " + _metrics.get(Metrics.IDENT_PRUNES));
+		System.out.println("PRECISION PRUNES:  " + _metrics.get(Metrics.PRECISION_PRUNES));
+		System.out.println("REDUCE CACHE HITS: " + _metrics.get(Metrics.REDUCE_HITS));
+		System.out.println("APPLY CACHE HITS:  " + _metrics.get(Metrics.APPLY_HITS) + "\n");
+		System.out.println("PRUNE CACHE HITS:  " + _metrics.get(Metrics.PRUNE_HITS));
+		System.out.println("SUM CACHE HITS:    " + (op_hits[ARITH_SUM] + op_hits[ARITH_MINUS]));
+		System.out.println("PROD CACHE HITS:   " + op_hits[ARITH_PROD]);
+		System.out.println("MAX CACHE HITS:    " + (op_hits[ARITH_MAX] + op_hits[ARITH_MIN]));
 	}
 
 	// Helper class for comparing IDs
@@ -7,7 +7,8 @@
 //
 // TODO:
 // -----
-// - Also - an information directed reordering routine!
+// - Also - an information directed reordering routine!  (Rudell
+//   sifting is now available through DD.reorder(), see swapLevels())
 //
 // - Outer shell for managing FOL/FOADD - think about this
 //   1) Need formula representation, NNF, quantifier push-down
@@ -34,6 +35,7 @@ import util.MapList;
 
 import java.io.*;
 import java.math.*;
+import java.nio.*;
 import java.text.*;
 import java.util.*;
 
@@ -42,31 +44,58 @@ import java.util.*;
  **/
 public class ADD extends DD {
 
-	// Internal statistics
-	public static long APPLY_CALLS = 0;
-	public static int OR_PRUNE_CNT = 0;
-	public static int AND_PRUNE_CNT = 0;
-	public static int PROD_PRUNE_CNT = 0;
-	public static int MIN_PRUNE_CNT = 0;
-	public static int MAX_PRUNE_CNT = 0;
-	public static int PRECISION_PRUNES = 0;
-	public static int PRUNE_CACHE_HITS = 0;
+	// Max apply cache entries is 2^APPLY_CACHE_BITS; the cache starts at
+	// INIT_CAPACITY and doubles with the node store up to this size
+	public static int APPLY_CACHE_BITS = 18;
+
+	// Node kinds stored in _anGID in place of a var gid (gids are >= 0)
+	public static final int DNODE = -2;
+	public static final int BNODE = -3;
+	public static final int FREE  = -4;
+
+	// Initial size of the node store and unique tables (power of 2)
+	public static final int INIT_CAPACITY = 1 << 10;
 
 	// Local data for ADD
-	public int _nLocalIDCnt; // counter for local ids
+	public int _nLocalIDCnt; // counter for local ids (high water mark)
 	public int _nRoot; // local id of root node
-	public HashMap _hmADDNodes; // array index gives localID for node
-	public HashMap _hmPairs; // <ADD-v1-id, ADD-v2-id> -> ADDNode (for ADD-3)
-	// (Apply cache)
+	// Apply cache: direct-mapped and lossy, a colliding entry simply
+	// overwrites the old one.  Slot is free if _anApplyRes is INVALID.
+	public int[] _anApplyA1; // <ADD-v1-id, ADD-v2-id, op> -> result id
+	public int[] _anApplyA2;
+	public int[] _anApplyOp;
+	public int[] _anApplyRes;
+	public int _nApplyCacheCnt; // occupied slots
 	public HashMap _hmReduceMap; // <id-of-node-to-reduce> -> ADDNode (reduced)
 	public HashMap _hmPruneMap; // map of node prunes
-	public HashMap _hmINodeCache; // <global-id, low, high> -> ADDINode
-	public HashMap _hmDNodeCache; // <min-val, max-val> -> ADDDNode
 	public int[] _aBNodeCache; // <bin-val> -> ADDBNode
 
-	public HashMap _hmNewADDNodes = null;
-	public HashMap _hmNewINodeCache = null;
-	public HashMap _hmNewDNodeCache = null;
+	// Node store in struct-of-arrays form, array index is the local id.
+	// For an internal node _anGID is the var gid and the doubles are its
+	// min/max bounds; for a terminal _anGID is DNODE/BNODE and the value
+	// (lower, upper) is stored in both the min and max slots.
+	public int[] _anGID;
+	public int[] _anLow;
+	public int[] _anHigh;
+	public double[] _adMinLower, _adMinUpper;
+	public double[] _adMaxLower, _adMaxUpper;
+	public String[] _asLowerLabel; // optional terminal labels (lazy)
+	public String[] _asUpperLabel;
+	public ADDNode[] _aNodeViews; // objects handed out by getNode() (lazy)
+
+	// Local ids released by flushCaches() for reuse
+	public int[] _anFreeIDs;
+	public int _nFreeCnt;
+	public boolean[] _abKeepNodes = null; // marks set during flushCaches()
+
+	// Open-addressing (linear probe) unique tables holding local ids
+	public int[] _anINodeTable; // <global-id, low, high> -> INode id
+	public int[] _anDNodeTable; // <min-val, max-val> -> DNode id
+	public int _nINodeCnt;
+	public int _nDNodeCnt;
+
+	// Array version of _hmGVarToLevel (gid -> level)
+	public int[] _anGVarToLevel;
 
 	public ADDRNode _tmpADDRNode = new ADDRNode(INVALID);
 
@@ -80,15 +109,12 @@ public class ADD extends DD {
 		_nRoot = 0;
 		_alOrder = (ArrayList) order.clone();
 
-		_hmADDNodes = new HashMap();
 		_hmGVarToLevel = new HashMap();
-		_hmPairs = new HashMap();
 		_hmReduceMap = new HashMap();
 		_hmPruneMap = new HashMap();
-		_hmINodeCache = new HashMap();
-		_hmDNodeCache = new HashMap();
 		_aBNodeCache = new int[2];
 		_aBNodeCache[0] = _aBNodeCache[1] = INVALID;
+		initNodeStore();
 		// _nWhich = 0;
 
 		// Build map from global var to order level
@@ -96,25 +122,24 @@ public class ADD extends DD {
 		for (int i = 0; i < _alOrder.size(); i++) {
 			_hmGVarToLevel.put((Integer) _alOrder.get(i), new Integer(i));
 		}
+		buildLevelArray();
 	}
 
 	public ADD(ADD src) {
 
 		_nLocalIDCnt = 0;
 
-		_hmADDNodes = new HashMap();
-		_hmPairs = new HashMap();
 		_hmReduceMap = new HashMap();
 		_hmPruneMap = new HashMap();
-		_hmINodeCache = new HashMap();
-		_hmDNodeCache = new HashMap();
 		_aBNodeCache = new int[2];
 		_aBNodeCache[0] = _aBNodeCache[1] = INVALID;
+		initNodeStore();
 		// _nWhich = 0;
 
 		// Takes care of root, order, gvar_map, nodeLevel
 		_alOrder = (ArrayList) src._alOrder.clone();
 		_hmGVarToLevel = (HashMap) src._hmGVarToLevel.clone();
+		buildLevelArray();
 
 		// Copy over the node structure and load the caches
 		setRoot(reduceRestrict(src._nRoot, src, -1, -1 /* No op! */));
@@ -124,6 +149,56 @@ public class ADD extends DD {
 		return new ADD(this);
 	}
 
+	// Allocate empty node arrays and unique tables
+	public void initNodeStore() {
+		_anGID = new int[INIT_CAPACITY];
+		_anLow = new int[INIT_CAPACITY];
+		_anHigh = new int[INIT_CAPACITY];
+		_adMinLower = new double[INIT_CAPACITY];
+		_adMinUpper = new double[INIT_CAPACITY];
+		_adMaxLower = new double[INIT_CAPACITY];
+		_adMaxUpper = new double[INIT_CAPACITY];
+		_asLowerLabel = null;
+		_asUpperLabel = null;
+		_aNodeViews = null;
+		_anFreeIDs = new int[16];
+		_nFreeCnt = 0;
+		_anINodeTable = new int[INIT_CAPACITY << 1];
+		_anDNodeTable = new int[INIT_CAPACITY];
+		Arrays.fill(_anINodeTable, INVALID);
+		Arrays.fill(_anDNodeTable, INVALID);
+		_nINodeCnt = 0;
+		_nDNodeCnt = 0;
+		initApplyCache(INIT_CAPACITY);
+	}
+
+	public void initApplyCache(int sz) {
+		_anApplyA1 = new int[sz];
+		_anApplyA2 = new int[sz];
+		_anApplyOp = new int[sz];
+		_anApplyRes = new int[sz];
+		Arrays.fill(_anApplyRes, INVALID);
+		_nApplyCacheCnt = 0;
+	}
+
+	public void clearApplyCache() {
+		Arrays.fill(_anApplyRes, INVALID);
+		_nApplyCacheCnt = 0;
+	}
+
+	// Rebuild _anGVarToLevel from _alOrder
+	public void buildLevelArray() {
+		int max_gid = 0;
+		for (int i = 0; i < _alOrder.size(); i++) {
+			max_gid = Math.max(max_gid, ((Integer) _alOrder.get(i)).intValue());
+		}
+		_anGVarToLevel = new int[max_gid + 1];
+		Arrays.fill(_anGVarToLevel, INVALID);
+		for (int i = 0; i < _alOrder.size(); i++) {
+			_anGVarToLevel[((Integer) _alOrder.get(i)).intValue()] = i;
+		}
+	}
+
 	// ////////////////////////////////////////////////////////////////
 	// Flushing and special node maintenance
 	// ////////////////////////////////////////////////////////////////
@@ -150,25 +225,25 @@ public class ADD extends DD {
 			// showCacheSize();
 			ResetTimer();
 		}
+		_metrics.inc(Metrics.FLUSHES);
+		_metrics.recordNodes(getNodeCount());
 
-		// Can always clear these
-		_hmPairs = new HashMap();
+		// Can always clear these (apply cache must be cleared since ids
+		// of released nodes get reused)
+		clearApplyCache();
 		_hmReduceMap = new HashMap();
 		_hmPruneMap = new HashMap();
 
-		// Set up temporary alternates to these HashMaps
-		_hmNewADDNodes = new HashMap();
-		_hmNewINodeCache = new HashMap();
-		_hmNewDNodeCache = new HashMap();
-
-		// Copy over 'special' nodes then set new maps
+		// Mark 'special' nodes (and their children) then release the rest
+		_abKeepNodes = new boolean[_nLocalIDCnt];
 		Iterator i = _hsSpecialNodes.iterator();
 		while (i.hasNext()) {
-			cacheNode((ADDRNode) i.next());
+			cacheNode(((ADDRNode) i.next())._lid);
 		}
-		_hmADDNodes = _hmNewADDNodes;
-		_hmINodeCache = _hmNewINodeCache;
-		_hmDNodeCache = _hmNewDNodeCache;
+		releaseUnmarkedNodes(_abKeepNodes);
+		_abKeepNodes = null;
+		_lNodesAfterFlush = getNodeCount();
+		checkReorder();
 
 		// Print results
 		if (GC_DURING_FLUSH) {
@@ -185,21 +260,93 @@ public class ADD extends DD {
 		}
 	}
 
-	public void cacheNode(ADDRNode r) {
-		if (_hmNewADDNodes.containsKey(r)) {
+	public void cacheNode(int id) {
+		if (_abKeepNodes[id]) {
 			return;
 		}
-		ADDNode n = (ADDNode) _hmADDNodes.get(r);
-		_hmNewADDNodes.put(r, n);
-		if (n instanceof ADDINode) {
-			ADDINode ni = (ADDINode) n;
-			_hmNewINodeCache.put(new SINodeIndex(ni._nGlobalID, ni._nLow,
-					ni._nHigh), r);
-			cacheNode(new ADDRNode(ni._nLow));
-			cacheNode(new ADDRNode(ni._nHigh));
-		} else if (n instanceof ADDDNode) {
-			ADDDNode d = (ADDDNode) n;
-			_hmNewDNodeCache.put(new SDNodeIndex(d._dLower, d._dUpper), r);
+		_abKeepNodes[id] = true;
+		if (_anGID[id] >= 0) {
+			cacheNode(_anLow[id]);
+			cacheNode(_anHigh[id]);
+		}
+	}
+
+	// In-place sweep: drops every node not marked in keep[] from the
+	// unique tables and puts its id on the free list.  Live nodes keep
+	// their ids and table slots (up to a backward shift in their probe run).
+	public void releaseUnmarkedNodes(boolean[] keep) {
+
+		sweepTable(_anINodeTable, keep, true);
+		sweepTable(_anDNodeTable, keep, false);
+
+		if (_anFreeIDs.length < _nLocalIDCnt) {
+			_anFreeIDs = Arrays.copyOf(_anFreeIDs, _nLocalIDCnt);
+		}
+
+		// Go high to low so that low ids are handed out first
+		for (int id = _nLocalIDCnt - 1; id >= 0; id--) {
+			if (keep[id] || _anGID[id] == FREE) {
+				continue;
+			}
+			if (_anGID[id] == BNODE) {
+				_aBNodeCache[_anLow[id]] = INVALID;
+			}
+			_anGID[id] = FREE;
+			if (_asLowerLabel != null) {
+				_asLowerLabel[id] = _asUpperLabel[id] = null;
+			}
+			if (_aNodeViews != null) {
+				_aNodeViews[id] = null;
+			}
+			_anFreeIDs[_nFreeCnt++] = id;
+		}
+	}
+
+	// Removes unmarked ids from a linear-probe unique table without
+	// reallocating it
+	public void sweepTable(int[] table, boolean[] keep, boolean inodes) {
+
+		int removed = 0;
+		int start = INVALID;
+		for (int i = 0; i < table.length; i++) {
+			int id = table[i];
+			if (id == INVALID) {
+				if (start == INVALID) {
+					start = i;
+				}
+			} else if (!keep[id]) {
+				table[i] = INVALID;
+				removed++;
+			}
+		}
+		if (inodes) {
+			_nINodeCnt -= removed;
+		} else {
+			_nDNodeCnt -= removed;
+		}
+		if (removed == 0) {
+			return;
+		}
+
+		// Starting from a slot that was empty before the sweep (load is at
+		// most 1/2 so one exists; a hole left by a removed node will not
+		// do since a probe run may continue past it), move each survivor
+		// to the first free slot in its probe sequence so lookups do not
+		// stop early at a hole
+		int mask = table.length - 1;
+		for (int k = 1; k <= table.length; k++) {
+			int i = (start + k) & mask;
+			int id = table[i];
+			if (id == INVALID) {
+				continue;
+			}
+			table[i] = INVALID;
+			int slot = (inodes ? HashINode(_anGID[id], _anLow[id], _anHigh[id])
+					: HashDNode(_adMinLower[id], _adMinUpper[id])) & mask;
+			while (table[slot] != INVALID) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id;
 		}
 	}
 
@@ -209,14 +356,22 @@ public class ADD extends DD {
 
 	// Quick cache snapshot
 	public void showCacheSize() {
-		System.out.println("APPLY CACHE:  " + _hmPairs.size());
+		System.out.println("APPLY CACHE:  " + _nApplyCacheCnt + " / "
+				+ _anApplyRes.length + "  (hits: "
+				+ _metrics.get(Metrics.APPLY_HITS) + ", misses: "
+				+ _metrics.get(Metrics.APPLY_MISSES) + ", collisions: "
+				+ _metrics.get(Metrics.APPLY_COLLISIONS) + ")");
 		System.out.println("REDUCE CACHE: " + _hmReduceMap.size());
-		System.out.println("INODE CACHE:  " + _hmINodeCache.size() + "\n");
+		System.out.println("INODE CACHE:  " + _nINodeCnt + "\n");
 	}
 
 	// Total cache snapshot
 	public long getCacheSize() {
-		return _hmPairs.size() + _hmReduceMap.size() + _hmINodeCache.size();
+		return _nApplyCacheCnt + _hmReduceMap.size() + _nINodeCnt;
+	}
+
+	public long getNodeCount() {
+		return _nLocalIDCnt - _nFreeCnt;
 	}
 
 	// An exact count for the ADD rooted at _nRoot
@@ -236,15 +391,14 @@ public class ADD extends DD {
 		if (cset.contains(new Integer(id))) {
 			return;
 		}
-		ADDNode n = getNode(id);
 		// Uncomment the following to get internal-only count
-		// if (n instanceof ADDDNode) {
+		// if (_anGID[id] == DNODE) {
 		// return;
 		// }
 		cset.add(new Integer(id));
-		if (n instanceof ADDINode) {
-			countExactNodesInt(cset, ((ADDINode) n)._nLow);
-			countExactNodesInt(cset, ((ADDINode) n)._nHigh);
+		if (_anGID[id] >= 0) {
+			countExactNodesInt(cset, _anLow[id]);
+			countExactNodesInt(cset, _anHigh[id]);
 		}
 	}
 
@@ -260,11 +414,10 @@ public class ADD extends DD {
 			return;
 		}
 		cset.add(new Integer(id));
-		ADDNode n = getNode(id);
-		if (n instanceof ADDINode) {
-			gset.add(new Integer(((ADDINode) n)._nGlobalID));
-			collectGIDsInt(cset, gset, ((ADDINode) n)._nLow);
-			collectGIDsInt(cset, gset, ((ADDINode) n)._nHigh);
+		if (_anGID[id] >= 0) {
+			gset.add(new Integer(_anGID[id]));
+			collectGIDsInt(cset, gset, _anLow[id]);
+			collectGIDsInt(cset, gset, _anHigh[id]);
 		}
 	}
 
@@ -272,39 +425,158 @@ public class ADD extends DD {
 	// Node maintenance
 	// ////////////////////////////////////////////////////////////////
 
-	// The only way to retrieve an actual ADDNode!!!
+	// The only way to retrieve an actual ADDNode!!!  Internal code reads
+	// the node arrays directly, the ADDNode is a (cached) view of them.
+	// Is local_id an allocated node?
+	public boolean isValidID(int local_id) {
+		return local_id >= 0 && local_id < _nLocalIDCnt
+				&& _anGID[local_id] != FREE;
+	}
+
 	public ADDNode getNode(int local_id) {
-		if (local_id >= 0 && local_id < _nLocalIDCnt) {
-			return (ADDNode) _hmADDNodes.get(new ADDRNode(local_id));
+		if (isValidID(local_id)) {
+			if (_aNodeViews == null) {
+				_aNodeViews = new ADDNode[_anGID.length];
+			}
+			ADDNode n = _aNodeViews[local_id];
+			if (n == null) {
+				n = _aNodeViews[local_id] = createView(local_id);
+			}
+			return n;
 		} else {
 			return null;
 		}
 	}
 
+	public ADDNode createView(int id) {
+		int gid = _anGID[id];
+		if (gid == BNODE) {
+			return new ADDBNode(id, _anLow[id] == 1);
+		} else if (gid == DNODE) {
+			return new ADDDNode(id, _adMinLower[id], _adMinUpper[id],
+					getLowerLabel(id), getUpperLabel(id));
+		} else {
+			ADDINode ni = new ADDINode(id, gid, _anLow[id], _anHigh[id]);
+			ni._dMinLower = _adMinLower[id];
+			ni._dMinUpper = _adMinUpper[id];
+			ni._dMaxLower = _adMaxLower[id];
+			ni._dMaxUpper = _adMaxUpper[id];
+			return ni;
+		}
+	}
+
+	// Drop the view for a node whose fields have changed
+	public void invalidateView(int id) {
+		if (_aNodeViews != null) {
+			_aNodeViews[id] = null;
+		}
+	}
+
+	public String getLowerLabel(int id) {
+		return (_asLowerLabel == null) ? null : _asLowerLabel[id];
+	}
+
+	public String getUpperLabel(int id) {
+		return (_asUpperLabel == null) ? null : _asUpperLabel[id];
+	}
+
+	public void setLabels(int id, String lower_label, String upper_label) {
+		if (_asLowerLabel == null) {
+			if (lower_label == null && upper_label == null) {
+				return;
+			}
+			_asLowerLabel = new String[_anGID.length];
+			_asUpperLabel = new String[_anGID.length];
+		}
+		_asLowerLabel[id] = lower_label;
+		_asUpperLabel[id] = upper_label;
+		invalidateView(id);
+	}
+
 	// Set the root node and update ref counts
 	public void setRoot(int n) {
 
 		_nRoot = n;
 	}
 
+	// Get a fresh local id, reusing those released by flushCaches()
+	public int allocNode() {
+		if (_nFreeCnt > 0) {
+			return _anFreeIDs[--_nFreeCnt];
+		}
+		if (_nLocalIDCnt == _anGID.length) {
+			growNodeStore();
+		}
+		return _nLocalIDCnt++;
+	}
+
+	public void growNodeStore() {
+		int sz = _anGID.length << 1;
+		_anGID = Arrays.copyOf(_anGID, sz);
+		_anLow = Arrays.copyOf(_anLow, sz);
+		_anHigh = Arrays.copyOf(_anHigh, sz);
+		_adMinLower = Arrays.copyOf(_adMinLower, sz);
+		_adMinUpper = Arrays.copyOf(_adMinUpper, sz);
+		_adMaxLower = Arrays.copyOf(_adMaxLower, sz);
+		_adMaxUpper = Arrays.copyOf(_adMaxUpper, sz);
+		if (_asLowerLabel != null) {
+			_asLowerLabel = Arrays.copyOf(_asLowerLabel, sz);
+			_asUpperLabel = Arrays.copyOf(_asUpperLabel, sz);
+		}
+		if (_aNodeViews != null) {
+			_aNodeViews = Arrays.copyOf(_aNodeViews, sz);
+		}
+		if (_anApplyRes.length < sz && _anApplyRes.length < (1 << APPLY_CACHE_BITS)) {
+			growApplyCache();
+		}
+	}
+
+	// Double the apply cache, keeping entries that still fit (reinserted
+	// directly rather than by putPair(), so rehash clashes are not
+	// counted as APPLY_COLLISIONS)
+	public void growApplyCache() {
+		int[] a1 = _anApplyA1, a2 = _anApplyA2, op = _anApplyOp, res = _anApplyRes;
+		initApplyCache(res.length << 1);
+		int mask = _anApplyRes.length - 1;
+		for (int i = 0; i < res.length; i++) {
+			if (res[i] == INVALID) {
+				continue;
+			}
+			int slot = HashApply(a1[i], a2[i], op[i]) & mask;
+			if (_anApplyRes[slot] == INVALID) {
+				_nApplyCacheCnt++;
+			}
+			_anApplyA1[slot] = a1[i];
+			_anApplyA2[slot] = a2[i];
+			_anApplyOp[slot] = op[i];
+			_anApplyRes[slot] = res[i];
+		}
+	}
+
 	public int createINode(int gid, int low, int high) {
 
 		// System.out.println("Create: <" + gid + "," + low + "," + high +
 		// ">  ->  " + _nLocalIDCnt);
 
-		int lid = _nLocalIDCnt++;
-		ADDRNode ref = new ADDRNode(lid);
-		ADDINode n = new ADDINode(lid, gid, low, high);
-		_hmADDNodes.put(ref, n);
-		_hmINodeCache.put(new SINodeIndex(gid, low, high), ref);
+		int lid = allocNode();
+		_anGID[lid] = gid;
+		_anLow[lid] = low;
+		_anHigh[lid] = high;
+		_adMinLower[lid] = _adMinUpper[lid] = Double.NaN;
+		_adMaxLower[lid] = _adMaxUpper[lid] = Double.NaN;
+		invalidateView(lid);
+		insertINode(lid);
 
 		return lid;
 	}
 
 	public int createBNode(boolean bval) {
-		int lid = _nLocalIDCnt++;
-		ADDBNode n = new ADDBNode(lid, bval);
-		_hmADDNodes.put(new ADDRNode(lid), n);
+		int lid = allocNode();
+		_anGID[lid] = BNODE;
+		_anLow[lid] = _anHigh[lid] = (bval ? 1 : 0);
+		_adMinLower[lid] = _adMinUpper[lid] = Double.NaN;
+		_adMaxLower[lid] = _adMaxUpper[lid] = Double.NaN;
+		invalidateView(lid);
 		if (bval) {
 			_aBNodeCache[1] = lid;
 		} else {
@@ -322,15 +594,103 @@ public class ADD extends DD {
 	public int createDNode(double min_val, double max_val, String lower_label,
 			String upper_label) {
 
-		int lid = _nLocalIDCnt++;
-		ADDDNode n = new ADDDNode(lid, min_val, max_val, lower_label,
-				upper_label);
-		_hmADDNodes.put(new ADDRNode(lid), n);
-		_hmDNodeCache.put(new SDNodeIndex(min_val, max_val), new ADDRNode(lid));
+		int lid = allocNode();
+		_anGID[lid] = DNODE;
+		_anLow[lid] = _anHigh[lid] = INVALID;
+		_adMinLower[lid] = _adMaxLower[lid] = min_val;
+		_adMinUpper[lid] = _adMaxUpper[lid] = max_val;
+		invalidateView(lid);
+		setLabels(lid, lower_label, upper_label);
+		insertDNode(lid);
 
 		return lid;
 	}
 
+	// Unique table hash functions
+	public static int HashINode(int gid, int low, int high) {
+		int h = (gid * 0x9E3779B9) ^ (low * 0x85EBCA6B) ^ (high * 0xC2B2AE35);
+		return h ^ (h >>> 15);
+	}
+
+	public static int HashDNode(double min_val, double max_val) {
+		// Same bucketing as SDNodeIndex: values are only matched within
+		// a tolerance so ignore the low order bits of the mantissa
+		int h = (int) ((Double.doubleToLongBits(min_val) >>> 25) + 1
+				+ (Double.doubleToLongBits(max_val) >>> 25) + 1);
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 15);
+	}
+
+	public void insertINode(int id) {
+		if ((_nINodeCnt + 1) << 1 > _anINodeTable.length) {
+			_anINodeTable = rehash(_anINodeTable, true);
+		}
+		int mask = _anINodeTable.length - 1;
+		int slot = HashINode(_anGID[id], _anLow[id], _anHigh[id]) & mask;
+		while (_anINodeTable[slot] != INVALID) {
+			slot = (slot + 1) & mask;
+		}
+		_anINodeTable[slot] = id;
+		_nINodeCnt++;
+	}
+
+	public void insertDNode(int id) {
+		if ((_nDNodeCnt + 1) << 1 > _anDNodeTable.length) {
+			_anDNodeTable = rehash(_anDNodeTable, false);
+		}
+		int mask = _anDNodeTable.length - 1;
+		int slot = HashDNode(_adMinLower[id], _adMinUpper[id]) & mask;
+		while (_anDNodeTable[slot] != INVALID) {
+			slot = (slot + 1) & mask;
+		}
+		_anDNodeTable[slot] = id;
+		_nDNodeCnt++;
+	}
+
+	// Double the size of a unique table
+	public int[] rehash(int[] table, boolean inodes) {
+		int[] new_table = new int[table.length << 1];
+		Arrays.fill(new_table, INVALID);
+		int mask = new_table.length - 1;
+		for (int i = 0; i < table.length; i++) {
+			int id = table[i];
+			if (id == INVALID) {
+				continue;
+			}
+			int slot = (inodes ? HashINode(_anGID[id], _anLow[id], _anHigh[id])
+					: HashDNode(_adMinLower[id], _adMinUpper[id])) & mask;
+			while (new_table[slot] != INVALID) {
+				slot = (slot + 1) & mask;
+			}
+			new_table[slot] = id;
+		}
+		return new_table;
+	}
+
+	// Removes a single INode id from the unique table, shifting back
+	// later entries of its probe run so no lookup stops early
+	public void deleteINode(int id) {
+		int mask = _anINodeTable.length - 1;
+		int slot = HashINode(_anGID[id], _anLow[id], _anHigh[id]) & mask;
+		while (_anINodeTable[slot] != id) {
+			slot = (slot + 1) & mask;
+		}
+		_anINodeTable[slot] = INVALID;
+		for (int j = (slot + 1) & mask; _anINodeTable[j] != INVALID; j = (j + 1) & mask) {
+			int k = _anINodeTable[j];
+			int home = HashINode(_anGID[k], _anLow[k], _anHigh[k]) & mask;
+			// Move k back unless its home lies cyclically in (slot, j]
+			boolean stays = (slot <= j) ? (home > slot && home <= j)
+					: (home > slot || home <= j);
+			if (!stays) {
+				_anINodeTable[slot] = k;
+				_anINodeTable[j] = INVALID;
+				slot = j;
+			}
+		}
+		_nINodeCnt--;
+	}
+
 	// This actually does low==high simplification in place... very
 	// important to ensure ref counts ok since double linking screws
 	// things up. WARNING: May not return INode if low==high.
@@ -342,11 +702,16 @@ public class ADD extends DD {
 			return low;
 		}
 
-		ADDRNode iret = (ADDRNode) _hmINodeCache.get(new SINodeIndex(gid, low,
-				high));
-		if (iret != null) {
-			return iret._lid;
-		} else if (create) {
+		int mask = _anINodeTable.length - 1;
+		int slot = HashINode(gid, low, high) & mask;
+		int id;
+		while ((id = _anINodeTable[slot]) != INVALID) {
+			if (_anGID[id] == gid && _anLow[id] == low && _anHigh[id] == high) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (create) {
 			return createINode(gid, low, high);
 		} else {
 			return INVALID;
@@ -370,88 +735,228 @@ public class ADD extends DD {
 
 	public int getDNode(double min_val, double max_val, boolean create,
 			String lower_label, String upper_label) {
-		ADDRNode iret = (ADDRNode) _hmDNodeCache.get(new SDNodeIndex(min_val,
-				max_val));
-		if (iret != null) {
-			if (lower_label != null || upper_label != null) {
-				ADDDNode d = (ADDDNode) getNode(iret._lid);
-				d._sLowerLabel = lower_label;
-				d._sUpperLabel = upper_label;
-			}
-			return iret._lid;
-		} else if (create) {
+		int mask = _anDNodeTable.length - 1;
+		int hash = HashDNode(min_val, max_val);
+		int slot = hash & mask;
+		int id;
+		while ((id = _anDNodeTable[slot]) != INVALID) {
+			// Like SDNodeIndex in a HashMap, only merge within a bucket
+			if (HashDNode(_adMinLower[id], _adMinUpper[id]) == hash
+					&& Math.abs(_adMinLower[id] - min_val) <= 1e-10d
+					&& Math.abs(_adMinUpper[id] - max_val) <= 1e-10d) {
+				if (lower_label != null || upper_label != null) {
+					setLabels(id, lower_label, upper_label);
+				}
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (create) {
 			return createDNode(min_val, max_val, lower_label, upper_label);
 		} else {
 			return INVALID;
 		}
 	}
 
+	public static int HashApply(int id1, int id2, int op) {
+		int h = (id1 * 0x9E3779B9) ^ (id2 * 0x85EBCA6B) ^ (op * 0xC2B2AE35);
+		return h ^ (h >>> 16);
+	}
+
 	public void putPair(int id1, int id2, int op, int to_id) {
-		_hmPairs.put(new SNodePair(id1, id2, op), new ADDRNode(to_id));
+		int slot = HashApply(id1, id2, op) & (_anApplyRes.length - 1);
+		if (_anApplyRes[slot] == INVALID) {
+			_nApplyCacheCnt++;
+		} else if (_anApplyA1[slot] != id1 || _anApplyA2[slot] != id2
+				|| _anApplyOp[slot] != op) {
+			_metrics.inc(Metrics.APPLY_COLLISIONS);
+		}
+		_anApplyA1[slot] = id1;
+		_anApplyA2[slot] = id2;
+		_anApplyOp[slot] = op;
+		_anApplyRes[slot] = to_id;
 	}
 
 	public int getPair(int id1, int id2, int op) {
-		ADDRNode iret = (ADDRNode) _hmPairs.get(new SNodePair(id1, id2, op));
-		if (iret == null) {
-			return INVALID;
-		} else {
-			return iret._lid;
+		int slot = HashApply(id1, id2, op) & (_anApplyRes.length - 1);
+		if (_anApplyRes[slot] != INVALID && _anApplyA1[slot] == id1
+				&& _anApplyA2[slot] == id2 && _anApplyOp[slot] == op) {
+			_metrics.applyHit(op);
+			return _anApplyRes[slot];
 		}
+		_metrics.applyMiss(op);
+		return INVALID;
 	}
 
 	// For terminal node labelling - not involved in computation
 	public void setAllDNodeLabels(String lower, String upper) {
-		Iterator i = ((Set) _hmDNodeCache.entrySet()).iterator();
-		while (i.hasNext()) {
-			Map.Entry me = (Map.Entry) i.next();
-			ADDRNode id = (ADDRNode) me.getValue();
-			ADDDNode d = (ADDDNode) getNode(id._lid);
-			d._sLowerLabel = lower;
-			d._sUpperLabel = upper;
+		for (int id = 0; id < _nLocalIDCnt; id++) {
+			if (_anGID[id] == DNODE) {
+				setLabels(id, lower, upper);
+			}
 		}
 	}
 
 	// Set the min/max values for node given by id
 	public void setMinMax(int id) {
 
-		ADDINode ni = (ADDINode) getNode(id);
-		ADDNode l = getNode(ni._nLow);
-		ADDNode h = getNode(ni._nHigh);
-
-		double ldmin_lower, ldmin_upper, ldmax_lower, ldmax_upper;
-		double hdmin_lower, hdmin_upper, hdmax_lower, hdmax_upper;
-
-		// Determine values for low node
-		if (l instanceof ADDINode) {
-			ldmin_lower = ((ADDINode) l)._dMinLower;
-			ldmin_upper = ((ADDINode) l)._dMinUpper;
-			ldmax_lower = ((ADDINode) l)._dMaxLower;
-			ldmax_upper = ((ADDINode) l)._dMaxUpper;
-		} else if (l instanceof ADDDNode) {
-			ldmin_lower = ldmax_lower = ((ADDDNode) l)._dLower;
-			ldmin_upper = ldmax_upper = ((ADDDNode) l)._dUpper;
-		} else {
-			ldmin_lower = ldmin_upper = ldmax_lower = ldmax_upper = Double.NaN;
-		}
-
-		// Determine values for high node
-		if (h instanceof ADDINode) {
-			hdmin_lower = ((ADDINode) h)._dMinLower;
-			hdmin_upper = ((ADDINode) h)._dMinUpper;
-			hdmax_lower = ((ADDINode) h)._dMaxLower;
-			hdmax_upper = ((ADDINode) h)._dMaxUpper;
-		} else if (h instanceof ADDDNode) {
-			hdmin_lower = hdmax_lower = ((ADDDNode) h)._dLower;
-			hdmin_upper = hdmax_upper = ((ADDDNode) h)._dUpper;
-		} else {
-			hdmin_lower = hdmin_upper = hdmax_lower = hdmax_upper = Double.NaN;
+		int l = _anLow[id];
+		int h = _anHigh[id];
+
+		// BNodes have NaN bounds, DNodes store their value in all four
+		// slots, so children can be read the same way in every case.
+		// Set min/max values for id (first is fn, second is lower,upper)
+		_adMinLower[id] = Math.min(_adMinLower[l], _adMinLower[h]);
+		_adMinUpper[id] = Math.min(_adMinUpper[l], _adMinUpper[h]);
+		_adMaxLower[id] = Math.max(_adMaxLower[l], _adMaxLower[h]);
+		_adMaxUpper[id] = Math.max(_adMaxUpper[l], _adMaxUpper[h]);
+		invalidateView(id);
+	}
+
+	// ///////////////////////////////////////////////////////////////
+	// Dynamic variable reordering (see DD.reorder())
+	// ///////////////////////////////////////////////////////////////
+
+	public boolean canReorder() {
+		return true;
+	}
+
+	// In-place swap of the vars x at level and y at level+1.  Each
+	// x-node f with a y child is rewritten as the y-node
+	// <y, <x, f00, f10>, <x, f01, f11>> under the same id so that all
+	// ids (and cached results) still denote the same function.  Old y
+	// children may be left unreferenced until the next flushCaches().
+	// While sifting, references and level counts follow each rewrite.
+	public void swapLevels(int level) {
+
+		int x = ((Integer) _alOrder.get(level)).intValue();
+		int y = ((Integer) _alOrder.get(level + 1)).intValue();
+		_anGVarToLevel[y] = level;
+		_anGVarToLevel[x] = level + 1;
+		if (_anLevelCnt != null) {
+			int cnt = _anLevelCnt[level];
+			_anLevelCnt[level] = _anLevelCnt[level + 1];
+			_anLevelCnt[level + 1] = cnt;
+		}
+
+		// Collect first since new x-nodes are created below
+		int[] xnodes = new int[16];
+		int xcnt = 0;
+		for (int id = 0; id < _nLocalIDCnt; id++) {
+			if (_anGID[id] == x) {
+				if (xcnt == xnodes.length) {
+					xnodes = Arrays.copyOf(xnodes, xcnt << 1);
+				}
+				xnodes[xcnt++] = id;
+			}
 		}
 
-		// Set min/max values for ni (first is fn, second is lower,upper)
-		ni._dMinLower = Math.min(ldmin_lower, hdmin_lower);
-		ni._dMinUpper = Math.min(ldmin_upper, hdmin_upper);
-		ni._dMaxLower = Math.max(ldmax_lower, hdmax_lower);
-		ni._dMaxUpper = Math.max(ldmax_upper, hdmax_upper);
+		for (int k = 0; k < xcnt; k++) {
+			int f = xnodes[k];
+			int f0 = _anLow[f];
+			int f1 = _anHigh[f];
+			if (_anGID[f0] != y && _anGID[f1] != y) {
+				continue; // f does not depend on y, stays as is
+			}
+			int f00 = (_anGID[f0] == y) ? _anLow[f0] : f0;
+			int f01 = (_anGID[f0] == y) ? _anHigh[f0] : f0;
+			int f10 = (_anGID[f1] == y) ? _anLow[f1] : f1;
+			int f11 = (_anGID[f1] == y) ? _anHigh[f1] : f1;
+
+			deleteINode(f);
+			int low = getSwapNode(x, f00, f10);
+			int high = getSwapNode(x, f01, f11);
+			_anGID[f] = y;
+			_anLow[f] = low;
+			_anHigh[f] = high;
+			insertINode(f);
+			invalidateView(f);
+
+			// A live f moves to level y and drops its old children
+			if (_anLevelCnt != null && refCnt(f) > 0) {
+				_anLevelCnt[level + 1]--;
+				_anLevelCnt[level]++;
+				refNode(low);
+				refNode(high);
+				derefNode(f0);
+				derefNode(f1);
+			}
+		}
+	}
+
+	// getINode() that also sets bounds on a newly created node
+	public int getSwapNode(int gid, int low, int high) {
+		int prev_cnt = _nINodeCnt;
+		int id = getINode(gid, low, high, true);
+		if (_nINodeCnt > prev_cnt) {
+			setMinMax(id);
+		}
+		return id;
+	}
+
+	public long countLiveNodes(int[] level_cnt) {
+		boolean[] mark = new boolean[_nLocalIDCnt];
+		long cnt = 0;
+		Iterator i = _hsSpecialNodes.iterator();
+		while (i.hasNext()) {
+			cnt += countLiveNodes(((ADDRNode) i.next())._lid, mark, level_cnt);
+		}
+		return cnt;
+	}
+
+	public long initLiveCounts() {
+		_anLevelCnt = new int[_alOrder.size()];
+		_anRefCnt = new int[_nLocalIDCnt];
+		long cnt = 0;
+		Iterator i = _hsSpecialNodes.iterator();
+		while (i.hasNext()) {
+			cnt += refNode(((ADDRNode) i.next())._lid);
+		}
+		return cnt;
+	}
+
+	public int refCnt(int id) {
+		return (id < _anRefCnt.length) ? _anRefCnt[id] : 0;
+	}
+
+	// Adds a reference to id, a node that becomes live references its
+	// children and is counted at its level (returns the nodes made live)
+	public long refNode(int id) {
+		if (_anGID[id] < 0) {
+			return 0;
+		}
+		if (id >= _anRefCnt.length) { // Created by a swap
+			_anRefCnt = Arrays.copyOf(_anRefCnt, Math.max(id + 1,
+					_anRefCnt.length << 1));
+		}
+		if (_anRefCnt[id]++ > 0) {
+			return 0;
+		}
+		_anLevelCnt[_anGVarToLevel[_anGID[id]]]++;
+		return 1 + refNode(_anLow[id]) + refNode(_anHigh[id]);
+	}
+
+	// Removes a reference to id, a node left without any is dropped
+	// from its level count and releases its children
+	public void derefNode(int id) {
+		if (_anGID[id] < 0 || --_anRefCnt[id] > 0) {
+			return;
+		}
+		_anLevelCnt[_anGVarToLevel[_anGID[id]]]--;
+		derefNode(_anLow[id]);
+		derefNode(_anHigh[id]);
+	}
+
+	public long countLiveNodes(int id, boolean[] mark, int[] level_cnt) {
+		if (mark[id] || _anGID[id] < 0) {
+			return 0;
+		}
+		mark[id] = true;
+		if (level_cnt != null) {
+			level_cnt[_anGVarToLevel[_anGID[id]]]++;
+		}
+		return 1 + countLiveNodes(_anLow[id], mark, level_cnt)
+				+ countLiveNodes(_anHigh[id], mark, level_cnt);
 	}
 
 	// ///////////////////////////////////////////////////////////////
@@ -506,29 +1011,19 @@ public class ADD extends DD {
 
 	// Get min for a generic node
 	public double getMin(int id) {
-		ADDNode n = getNode(id);
-		if (n instanceof ADDINode) {
-			ADDINode in = (ADDINode) n;
-			return in._dMinLower;
-		} else if (n instanceof ADDDNode) {
-			ADDDNode dn = (ADDDNode) n;
-			return dn._dLower;
-		} else {
+		if (_anGID[id] == BNODE) {
 			return Double.NEGATIVE_INFINITY;
+		} else {
+			return _adMinLower[id];
 		}
 	}
 
 	// Get max for a generic node
 	public double getMax(int id) {
-		ADDNode n = getNode(id);
-		if (n instanceof ADDINode) {
-			ADDINode in = (ADDINode) n;
-			return in._dMaxUpper;
-		} else if (n instanceof ADDDNode) {
-			ADDDNode dn = (ADDDNode) n;
-			return dn._dUpper;
-		} else {
+		if (_anGID[id] == BNODE) {
 			return Double.POSITIVE_INFINITY;
+		} else {
+			return _adMaxUpper[id];
 		}
 	}
 
@@ -540,16 +1035,16 @@ public class ADD extends DD {
 
 		double max_diff = Double.NEGATIVE_INFINITY;
 
-		// Get all DNodes, negate, make a new cache and replace old cache
-		HashMap new_dnode_cache = new HashMap();
-		Iterator i = _hmDNodeCache.keySet().iterator();
-		while (i.hasNext()) {
-			SDNodeIndex dni = (SDNodeIndex) i.next();
+		// Go through all DNodes
+		for (int id = 0; id < _nLocalIDCnt; id++) {
+			if (_anGID[id] != DNODE) {
+				continue;
+			}
 
-			double upper = (dni._dUpperVal < 0) ? -dni._dUpperVal
-					: dni._dUpperVal;
-			double lower = (dni._dLowerVal < 0) ? -dni._dLowerVal
-					: dni._dLowerVal;
+			double upper = (_adMinUpper[id] < 0) ? -_adMinUpper[id]
+					: _adMinUpper[id];
+			double lower = (_adMinLower[id] < 0) ? -_adMinLower[id]
+					: _adMinLower[id];
 
 			if (max_diff < upper) {
 				max_diff = upper;
@@ -572,12 +1067,8 @@ public class ADD extends DD {
 	// Find the minimum value in an ADD (must be on the lower val)
 	public double getMaxValue(int id) {
 
-		ADDNode root = getNode(id);
-		if (root instanceof ADDDNode) {
-			return ((ADDDNode) root)._dUpper;
-		} else {
-			return ((ADDINode) root)._dMaxUpper;
-		}
+		// DNodes store their upper value in the max slot
+		return _adMaxUpper[id];
 	}
 
 	// Find the minimum value in an ADD (must be on the lower val)
@@ -588,12 +1079,8 @@ public class ADD extends DD {
 	// Find the minimum value in an ADD (must be on the lower val)
 	public double getMinValue(int id) {
 
-		ADDNode root = getNode(id);
-		if (root instanceof ADDDNode) {
-			return ((ADDDNode) root)._dLower;
-		} else {
-			return ((ADDINode) root)._dMinLower;
-		}
+		// DNodes store their lower value in the min slot
+		return _adMinLower[id];
 	}
 
 	// Complements the terminal BNodes in an ADD
@@ -604,10 +1091,12 @@ public class ADD extends DD {
 		int prevFalse = _aBNodeCache[0];
 
 		if (prevTrue > INVALID) {
-			((ADDBNode) getNode(prevTrue))._bVal = false;
+			_anLow[prevTrue] = _anHigh[prevTrue] = 0;
+			invalidateView(prevTrue);
 		}
 		if (prevFalse > INVALID) {
-			((ADDBNode) getNode(prevFalse))._bVal = true;
+			_anLow[prevFalse] = _anHigh[prevFalse] = 1;
+			invalidateView(prevFalse);
 		}
 
 		_aBNodeCache[1] = prevFalse;
@@ -674,6 +1163,104 @@ public class ADD extends DD {
 		return applyInt(d, id, ARITH_DIV);
 	}
 
+	public double maxAbsDifference(int a, int b) {
+		double[] best = new double[1];
+		maxAbsDifference(a, b, 0d, Double.POSITIVE_INFINITY, best,
+				new HashSet());
+		return best[0];
+	}
+
+	public boolean withinTolerance(int a, int b, double eps) {
+		double[] best = new double[1];
+		maxAbsDifference(a, b, eps, eps, best, new HashSet());
+		return best[0] < eps;
+	}
+
+	// Branch and bound over node pairs of a and b (as visited by apply):
+	// a pair is skipped if its min/max bound on |a - b| cannot exceed
+	// best[0] or reach floor, and the search stops once best[0] >= stop.
+	// Leaf pairs differ as the DNode computed for ARITH_MINUS.
+	public void maxAbsDifference(int a, int b, double floor, double stop,
+			double[] best, HashSet visited) {
+		double bound = Math.max(_adMaxUpper[a] - _adMinLower[b],
+				_adMaxUpper[b] - _adMinLower[a]);
+		if (bound <= best[0] || bound < floor || best[0] >= stop
+				|| !visited.add(new SNodePair(a, b))) {
+			return;
+		}
+
+		int ga = _anGID[a], gb = _anGID[b];
+		if (ga < 0 && gb < 0) {
+			best[0] = Math.max(best[0], Math.max(Math.abs(_adMinLower[a]
+					- _adMinLower[b]), Math.abs(_adMinUpper[a]
+					- _adMinUpper[b])));
+			return;
+		}
+
+		int gid = (ga >= 0 && (gb < 0 || comesBefore(ga, gb))) ? ga : gb;
+		int alow = a, ahigh = a, blow = b, bhigh = b;
+		if (ga == gid) {
+			alow = _anLow[a];
+			ahigh = _anHigh[a];
+		}
+		if (gb == gid) {
+			blow = _anLow[b];
+			bhigh = _anHigh[b];
+		}
+
+		// Try the branch with the larger max first to raise best[0] early
+		if (Math.max(_adMaxUpper[ahigh], _adMaxUpper[bhigh]) > Math.max(
+				_adMaxUpper[alow], _adMaxUpper[blow])) {
+			maxAbsDifference(ahigh, bhigh, floor, stop, best, visited);
+			maxAbsDifference(alow, blow, floor, stop, best, visited);
+		} else {
+			maxAbsDifference(alow, blow, floor, stop, best, visited);
+			maxAbsDifference(ahigh, bhigh, floor, stop, best, visited);
+		}
+	}
+
+	public double maxDifference(int a, int b) {
+		double[] best = new double[] { Double.NEGATIVE_INFINITY };
+		maxDifference(a, b, best, new HashSet());
+		return best[0];
+	}
+
+	// Same search as maxAbsDifference() with the one-sided bound
+	// max a - min b on a pair
+	public void maxDifference(int a, int b, double[] best, HashSet visited) {
+		if (_adMaxUpper[a] - _adMinLower[b] <= best[0]
+				|| !visited.add(new SNodePair(a, b))) {
+			return;
+		}
+
+		int ga = _anGID[a], gb = _anGID[b];
+		if (ga < 0 && gb < 0) {
+			best[0] = Math.max(best[0], Math.max(_adMinLower[a]
+					- _adMinLower[b], _adMinUpper[a] - _adMinUpper[b]));
+			return;
+		}
+
+		int gid = (ga >= 0 && (gb < 0 || comesBefore(ga, gb))) ? ga : gb;
+		int alow = a, ahigh = a, blow = b, bhigh = b;
+		if (ga == gid) {
+			alow = _anLow[a];
+			ahigh = _anHigh[a];
+		}
+		if (gb == gid) {
+			blow = _anLow[b];
+			bhigh = _anHigh[b];
+		}
+
+		if (_adMaxUpper[ahigh] - _adMinLower[bhigh] > _adMaxUpper[alow]
+				- _adMinLower[blow]) {
+			maxDifference(ahigh, bhigh, best, visited);
+			maxDifference(alow, blow, best, visited);
+		} else {
+			maxDifference(alow, blow, best, visited);
+			maxDifference(ahigh, bhigh, best, visited);
+		}
+	}
+
 	// /////////////////////////////////////////////////////////////////////////
 	// Approximation Algorithms
 	// /////////////////////////////////////////////////////////////////////////
@@ -718,25 +1305,23 @@ public class ADD extends DD {
 		// System.out.println("Not in cache");
 		int ret = INVALID;
 		boolean recurse = true;
-		ADDNode n = getNode(id);
+		int gid = _anGID[id];
 
 		// Update caches and reduce if needed
-		if (n instanceof ADDBNode) {
-			ret = getBNode(((ADDBNode) n)._bVal, true);
-		} else if (n instanceof ADDDNode) {
-			ADDDNode dn = (ADDDNode) n;
-			ADDDNode remap_dnode = (ADDDNode) remap.get(dn);
+		if (gid == BNODE) {
+			ret = getBNode(_anLow[id] == 1, true);
+		} else if (gid == DNODE) {
+			Integer remap_dnode = (Integer) remap.get(new Integer(id));
 			if (remap_dnode != null)
-				ret = remap_dnode._nLocalID;
+				ret = remap_dnode.intValue();
 			else
-				ret = getDNode(dn._dLower, dn._dUpper, true, dn._sLowerLabel,
-						dn._sUpperLabel);
-		} else { // n instanceof ADDINode so recurse and update caches
-			ADDINode ni = (ADDINode) n;
+				ret = getDNode(_adMinLower[id], _adMinUpper[id], true,
+						getLowerLabel(id), getUpperLabel(id));
+		} else { // INode so recurse and update caches
 
 			// Get new low and high branches
-			int low = reduceRemapLeaves2(ni._nLow, remap);
-			int high = reduceRemapLeaves2(ni._nHigh, remap);
+			int low = reduceRemapLeaves2(_anLow[id], remap);
+			int high = reduceRemapLeaves2(_anHigh[id], remap);
 
 			// Don't recursively delete if low==high since low
 			// will be reused although it may not be linked yet.
@@ -746,14 +1331,14 @@ public class ADD extends DD {
 			}
 
 			// Decide which node to return (takes care of 'low==high' case)
-			// System.out.println("Get:    <" + ni._nGlobalID + "," + low +
+			// System.out.println("Get:    <" + gid + "," + low +
 			// "," + high + ">");
-			ret = getINode(ni._nGlobalID, low, high, true);
-			// System.out.println("Result: <" + ni._nGlobalID + "," + low +
+			ret = getINode(gid, low, high, true);
+			// System.out.println("Result: <" + gid + "," + low +
 			// "," + high + ">  ->  " + ret);
 
 			// getINode may return a DNode or BNode if low==high
-			if (getNode(ret) instanceof ADDINode) {
+			if (_anGID[ret] >= 0) {
 				setMinMax(ret);
 			}
 		}
@@ -763,14 +1348,13 @@ public class ADD extends DD {
 		return ret;
 	}
 
+	// Collects the local ids of all DNodes reachable from id
 	public void collectLeaves(int id, HashSet nodes) {
-		ADDNode n = getNode(id);
-		if (n instanceof ADDDNode) {
-			nodes.add(n);
-		} else {
-			ADDINode ni = (ADDINode) n;
-			collectLeaves(ni._nLow, nodes);
-			collectLeaves(ni._nHigh, nodes);
+		if (_anGID[id] == DNODE) {
+			nodes.add(new Integer(id));
+		} else if (_anGID[id] >= 0) {
+			collectLeaves(_anLow[id], nodes);
+			collectLeaves(_anHigh[id], nodes);
 		}
 	}
 
@@ -784,12 +1368,13 @@ public class ADD extends DD {
 		// 'collect' then make note in map, otherwise add it to 'collect'
 		Iterator i = leaves.iterator();
 		collect.clear();
-		collect.add((ADDDNode) i.next());
+		collect.add((Integer) i.next());
 		while (i.hasNext()) {
-			ADDDNode d1 = (ADDDNode) i.next();
+			Integer d1 = (Integer) i.next();
 			for (Iterator j = collect.iterator(); d1 != null && j.hasNext();) {
-				ADDDNode d2 = (ADDDNode) j.next();
-				if (Math.abs(d1._dLower - d2._dLower) <= MERGE_PRECISION) {
+				Integer d2 = (Integer) j.next();
+				if (Math.abs(_adMinLower[d1.intValue()]
+						- _adMinLower[d2.intValue()]) <= MERGE_PRECISION) {
 					remap.putValue(d2, d1); // common node -> mapped node
 					d1 = null;
 				}
@@ -802,15 +1387,15 @@ public class ADD extends DD {
 		i = collect.iterator();
 		HashMap ret_map = new HashMap();
 		while (i.hasNext()) {
-			ADDDNode common = (ADDDNode) i.next();
+			Integer common = (Integer) i.next();
 			ArrayList remapped = remap.getValues(common);
-			double replace_val = common._dLower;
-			double minmax = common._dLower;
+			double replace_val = _adMinLower[common.intValue()];
+			double minmax = _adMinLower[common.intValue()];
 			for (Iterator j = remapped.iterator(); j.hasNext();) {
-				ADDDNode d = (ADDDNode) j.next();
-				replace_val += d._dLower;
+				double d = _adMinLower[((Integer) j.next()).intValue()];
+				replace_val += d;
 				minmax = (PRUNE_TYPE == REPLACE_MAX) ? Math.max(minmax,
-						d._dLower) : Math.min(minmax, d._dLower);
+						d) : Math.min(minmax, d);
 			}
 			if (PRUNE_TYPE == REPLACE_AVG)
 				replace_val /= (double) (1 + remapped.size());
@@ -821,11 +1406,11 @@ public class ADD extends DD {
 				System.exit(1);
 			}
 
-			ADDDNode new_dnode = (ADDDNode) this.getNode(this.getDNode(
+			Integer new_dnode = new Integer(this.getDNode(
 					replace_val, replace_val, true));
 			ret_map.put(common, new_dnode);
 			for (Iterator j = remapped.iterator(); j.hasNext();)
-				ret_map.put(((ADDDNode) j.next()), new_dnode);
+				ret_map.put(((Integer) j.next()), new_dnode);
 		}
 
 		return ret_map;
@@ -837,13 +1422,14 @@ public class ADD extends DD {
 	public int pruneNodes(int id, boolean recurse) {
 
 		// Can immediately check for local ID of 0
-		ADDNode n = getNode(id);
-		if (n instanceof ADDDNode) {
+		if (_anGID[id] == DNODE) {
 			return id;
 		}
 
-		ADDINode ni = (ADDINode) n;
-		double range = ni._dMaxUpper - ni._dMinLower;
+		int gid = _anGID[id];
+		double min_lower = _adMinLower[id];
+		double max_upper = _adMaxUpper[id];
+		double range = max_upper - min_lower;
 
 		// Check for a range below precision
 		if (range <= PRUNE_PRECISION) {
@@ -859,13 +1445,13 @@ public class ADD extends DD {
 			}
 				break;
 			case REPLACE_MIN: {
-				return getDNode(ni._dMinLower, ni._dMinLower, true);
+				return getDNode(min_lower, min_lower, true);
 			}
 			case REPLACE_MAX: {
-				return getDNode(ni._dMaxUpper, ni._dMaxUpper, true);
+				return getDNode(max_upper, max_upper, true);
 			}
 			case REPLACE_AVG: {
-				double avg = (ni._dMaxUpper + ni._dMinLower) / 2d;
+				double avg = (max_upper + min_lower) / 2d;
 				return getDNode(avg, avg, true);
 			}
 			default: {
@@ -891,8 +1477,8 @@ public class ADD extends DD {
 		if ((retc = (ADDRNode) _hmPruneMap.get(_tmpADDRNode)) == null) {
 
 			// Get high and low branches for this INode
-			int low = ni._nLow;
-			int high = ni._nHigh;
+			int low = _anLow[id];
+			int high = _anHigh[id];
 
 			// Recurse
 			if (recurse) {
@@ -902,13 +1488,12 @@ public class ADD extends DD {
 
 			// Now compute diff at this level
 			double max_abs_diff = Double.POSITIVE_INFINITY;
-			ADDNode adiff = getNode(applyInt(low, high, ARITH_MINUS));
-			if (adiff instanceof ADDINode) {
-				ADDINode adi = (ADDINode) adiff;
-				max_abs_diff = Math.max(Math.abs(adi._dMinLower), Math
-						.abs(adi._dMaxUpper));
+			int adiff = applyInt(low, high, ARITH_MINUS);
+			if (_anGID[adiff] >= 0) {
+				max_abs_diff = Math.max(Math.abs(_adMinLower[adiff]), Math
+						.abs(_adMaxUpper[adiff]));
 			} else {
-				max_abs_diff = Math.abs(((ADDDNode) adiff)._dLower);
+				max_abs_diff = Math.abs(_adMinLower[adiff]);
 			}
 
 			// ///////////////// DEBUG ////////////////////
@@ -951,7 +1536,7 @@ public class ADD extends DD {
 
 				switch (PRUNE_TYPE) {
 				case NO_REPLACE: {
-					ret = getINode(ni._nGlobalID, low, high, true);
+					ret = getINode(gid, low, high, true);
 				}
 					break;
 				case REPLACE_LOW: {
@@ -990,25 +1575,26 @@ public class ADD extends DD {
 				}
 				}
 
-				PRECISION_PRUNES++;
+				_metrics.inc(Metrics.PRECISION_PRUNES);
 
 			} else {
 
 				// Retrieve the inode
-				ret = getINode(ni._nGlobalID, low, high, true);
+				ret = getINode(gid, low, high, true);
 
 			}
 
 			// getINode may return a DNode or BNode if low==high
-			if (getNode(ret) instanceof ADDINode) {
+			if (_anGID[ret] >= 0) {
 				setMinMax(ret);
 			}
 
 			// Cache the node in canonical form
+			_metrics.inc(Metrics.PRUNE_MISSES);
 			_hmPruneMap.put(new ADDRNode(id), new ADDRNode(ret));
 
 		} else {
-			PRUNE_CACHE_HITS++;
+			_metrics.inc(Metrics.PRUNE_HITS);
 			ret = retc._lid;
 		}
 
@@ -1049,6 +1635,7 @@ public class ADD extends DD {
 		ReduceCacheKey key = new ReduceCacheKey(src, gid, op, id);
 		if ((qret = (ADDRNode) _hmReduceMap.get(key)) != null) {
 			// System.out.println("In cache, returning: " + qret);
+			_metrics.inc(Metrics.REDUCE_HITS);
 			return qret._lid;
 		}
 
@@ -1056,23 +1643,22 @@ public class ADD extends DD {
 		// System.out.println("Not in cache");
 		int ret = INVALID;
 		boolean recurse = true;
-		ADDNode n = src.getNode(id);
+		int ngid = src._anGID[id];
 
 		// Update caches and reduce if needed
-		if (n instanceof ADDBNode) {
-			ret = getBNode(((ADDBNode) n)._bVal, true);
-		} else if (n instanceof ADDDNode) {
-			ADDDNode dn = (ADDDNode) n;
-			ret = getDNode(dn._dLower, dn._dUpper, true, dn._sLowerLabel,
-					dn._sUpperLabel);
-		} else { // n instanceof ADDINode so recurse and update caches
-			ADDINode ni = (ADDINode) n;
+		if (ngid == BNODE) {
+			ret = getBNode(src._anLow[id] == 1, true);
+		} else if (ngid == DNODE) {
+			ret = getDNode(src._adMinLower[id], src._adMinUpper[id], true,
+					src.getLowerLabel(id), src.getUpperLabel(id));
+		} else { // INode so recurse and update caches
 
-			if (ni._nGlobalID == gid) {
+			if (ngid == gid) {
 
 				if (op == RESTRICT_HIGH || op == RESTRICT_LOW) {
-					ret = ((op == RESTRICT_LOW) ? reduceRestrict(ni._nLow, src,
-							gid, op) : reduceRestrict(ni._nHigh, src, gid, op));
+					ret = ((op == RESTRICT_LOW) ? reduceRestrict(src._anLow[id],
+							src, gid, op) : reduceRestrict(src._anHigh[id], src,
+							gid, op));
 				} else {
 					System.out.println("ERROR: op not a RESTRICT!");
 					Object o = null;
@@ -1083,8 +1669,8 @@ public class ADD extends DD {
 			} else {
 
 				// Get new low and high branches
-				int low = reduceRestrict(ni._nLow, src, gid, op);
-				int high = reduceRestrict(ni._nHigh, src, gid, op);
+				int low = reduceRestrict(src._anLow[id], src, gid, op);
+				int high = reduceRestrict(src._anHigh[id], src, gid, op);
 
 				// Don't recursively delete if low==high since low
 				// will be reused although it may not be linked yet.
@@ -1094,14 +1680,14 @@ public class ADD extends DD {
 				}
 
 				// Decide which node to return (takes care of 'low==high' case)
-				// System.out.println("Get:    <" + ni._nGlobalID + "," + low +
+				// System.out.println("Get:    <" + ngid + "," + low +
 				// "," + high + ">");
-				ret = getINode(ni._nGlobalID, low, high, true);
-				// System.out.println("Result: <" + ni._nGlobalID + "," + low +
+				ret = getINode(ngid, low, high, true);
+				// System.out.println("Result: <" + ngid + "," + low +
 				// "," + high + ">  ->  " + ret);
 
 				// getINode may return a DNode or BNode if low==high
-				if (getNode(ret) instanceof ADDINode) {
+				if (_anGID[ret] >= 0) {
 					setMinMax(ret);
 				}
 			}
@@ -1112,6 +1698,7 @@ public class ADD extends DD {
 		// every other time we come into i, we will return j so we can
 		// completely kill off j. (Only do this if 'src' is 'this' -
 		// otherwise we can't compare the node IDs!)
+		_metrics.inc(Metrics.REDUCE_MISSES);
 		_hmReduceMap.put(key, new ADDRNode(ret));
 
 		// Note: For both ADD and AADD, reduce() may not completely dec all
@@ -1146,24 +1733,295 @@ public class ADD extends DD {
 		return applyInt(high_br, low_br, op);
 	}
 
+	// Marginalize out a cube of gids in one pass over rid.  Cube vars
+	// skipped by a path are handled analytically: doubling for sum,
+	// squaring for prod, identity for max/min.
+	public int opOut(int rid, Set gids, int op) {
+
+		if (op != ARITH_SUM && op != ARITH_PROD && op != ARITH_MAX
+				&& op != ARITH_MIN) {
+			System.out.println("ERROR: opOut called without SUM/PROD/MIN/MAX");
+			Object o = null;
+			o.toString();
+		}
+
+		int nlevels = _alOrder.size();
+		boolean[] op_level = new boolean[nlevels];
+		Iterator i = gids.iterator();
+		while (i.hasNext()) {
+			op_level[_anGVarToLevel[((Integer) i.next()).intValue()]] = true;
+		}
+		int[] op_below = new int[nlevels + 1]; // # cube vars at >= level
+		for (int l = nlevels - 1; l >= 0; l--) {
+			op_below[l] = op_below[l + 1] + (op_level[l] ? 1 : 0);
+		}
+		int ret = opOut(rid, op, op_level, op_below, new HashMap());
+		return opSkipped(ret, op, op_below[0] - op_below[topLevel(rid, rid)]);
+	}
+
+	// Returns rid with the cube vars at or below its top level opped out
+	public int opOut(int rid, int op, boolean[] op_level, int[] op_below,
+			HashMap cache) {
+
+		if (_anGID[rid] < 0) {
+			return rid;
+		}
+		Integer key = new Integer(rid);
+		Integer cached = (Integer) cache.get(key);
+		if (cached != null) {
+			return cached.intValue();
+		}
+
+		int gid = _anGID[rid];
+		int level = _anGVarToLevel[gid];
+		int low = opSkipped(opOut(_anLow[rid], op, op_level, op_below, cache),
+				op, op_below[level + 1] - op_below[topLevel(_anLow[rid], _anLow[rid])]);
+		int high = opSkipped(opOut(_anHigh[rid], op, op_level, op_below, cache),
+				op, op_below[level + 1] - op_below[topLevel(_anHigh[rid], _anHigh[rid])]);
+		int ret;
+		if (op_level[level]) {
+			ret = applyInt(high, low, op);
+		} else {
+			ret = getINode(gid, low, high, true);
+			if (_anGID[ret] >= 0) {
+				setMinMax(ret);
+			}
+		}
+
+		cache.put(key, new Integer(ret));
+		return ret;
+	}
+
+	// Apply op over 2^skipped copies of id (id is constant in the vars)
+	public int opSkipped(int id, int op, int skipped) {
+		if (skipped == 0 || op == ARITH_MAX || op == ARITH_MIN) {
+			return id;
+		} else if (op == ARITH_SUM) {
+			return scaleSkipped(id, skipped);
+		}
+		for (int k = 0; k < skipped; k++) {
+			id = applyInt(id, id, ARITH_PROD);
+		}
+		return id;
+	}
+
+	// Sum out gids from a1*a2 in one recursion (like AND-EXISTS for
+	// BDDs): below a summed var the two cofactor products are added
+	// instead of being joined by an INode.  Summed vars skipped by a
+	// path contribute a factor of 2 each.  As in AND-EXISTS the summed
+	// vars form a cube (the product of their var nodes) whose id makes
+	// up the computed table op, see APPLY_SUM_OUT.
+	public int applyAndSumOut(int a1, int a2, Set gids) {
+		int nlevels = _alOrder.size();
+		boolean[] sum_level = new boolean[nlevels];
+		int cube = getConstantNode(1d);
+		Iterator i = gids.iterator();
+		while (i.hasNext()) {
+			int gid = ((Integer) i.next()).intValue();
+			sum_level[_anGVarToLevel[gid]] = true;
+			cube = applyInt(cube, getVarNode(gid, 0d, 1d), ARITH_PROD);
+		}
+		int[] sum_below = new int[nlevels + 1]; // # summed vars at >= level
+		for (int l = nlevels - 1; l >= 0; l--) {
+			sum_below[l] = sum_below[l + 1] + (sum_level[l] ? 1 : 0);
+		}
+		int ret = applyAndSumOut(a1, a2, sum_level, sum_below,
+				APPLY_SUM_OUT + cube);
+		return scaleSkipped(ret, sum_below[0]
+				- sum_below[topLevel(a1, a2)]);
+	}
+
+	// Returns the sum over summed vars at or below topLevel(a1, a2)
+	public int applyAndSumOut(int a1, int a2, boolean[] sum_level,
+			int[] sum_below, int op) {
+
+		// Nothing left to sum out
+		int level = topLevel(a1, a2);
+		if (sum_below[level] == 0) {
+			return applyInt(a1, a2, ARITH_PROD);
+		}
+
+		int ret = getPair(a1, a2, op);
+		if (ret > INVALID) {
+			return ret;
+		}
+
+		int gid = ((Integer) _alOrder.get(level)).intValue();
+		int v1low = a1, v1high = a1, v2low = a2, v2high = a2;
+		if (_anGID[a1] == gid) {
+			v1low = _anLow[a1];
+			v1high = _anHigh[a1];
+		}
+		if (_anGID[a2] == gid) {
+			v2low = _anLow[a2];
+			v2high = _anHigh[a2];
+		}
+		int low = scaleSkipped(applyAndSumOut(v1low, v2low, sum_level,
+				sum_below, op), sum_below[level + 1]
+				- sum_below[topLevel(v1low, v2low)]);
+		int high = scaleSkipped(applyAndSumOut(v1high, v2high,
+				sum_level, sum_below, op), sum_below[level + 1]
+				- sum_below[topLevel(v1high, v2high)]);
+		if (sum_level[level]) {
+			ret = applyInt(high, low, ARITH_SUM);
+		} else {
+			ret = getINode(gid, low, high, true);
+			if (_anGID[ret] >= 0) {
+				setMinMax(ret);
+			}
+		}
+
+		putPair(a1, a2, op, ret);
+		return ret;
+	}
+
+	// Level of the top var of a1 and a2 (# of levels if both terminal)
+	public int topLevel(int a1, int a2) {
+		int level = _alOrder.size();
+		if (_anGID[a1] >= 0) {
+			level = _anGVarToLevel[_anGID[a1]];
+		}
+		if (_anGID[a2] >= 0) {
+			level = Math.min(level, _anGVarToLevel[_anGID[a2]]);
+		}
+		return level;
+	}
+
+	// Pointwise argmax of dds: returns {max, index} where the leaves of
+	// index are the position in dds of the first maximizing DD (ties
+	// keep the lower index)
+	public int[] argMax(ArrayList dds) {
+		int max = ((Integer) dds.get(0)).intValue();
+		int index = getConstantNode(0d);
+		HashMap cache = new HashMap();
+		for (int a = 1; a < dds.size(); a++) {
+			int dd = ((Integer) dds.get(a)).intValue();
+			int diff = applyInt(dd, max, ARITH_MINUS);
+			index = select(diff, index, getConstantNode((double) a), cache);
+			max = applyInt(max, dd, ARITH_MAX);
+		}
+		return new int[] { max, index };
+	}
+
+	// if (cond > 0) then high else low, pointwise
+	public int select(int cond, int low, int high, HashMap cache) {
+		if (_anGID[cond] < 0) {
+			return (getMaxValue(cond) > 0d) ? high : low;
+		}
+		if (low == high) {
+			return low;
+		}
+
+		SINodeIndex key = new SINodeIndex(cond, low, high);
+		Integer cached = (Integer) cache.get(key);
+		if (cached != null) {
+			return cached.intValue();
+		}
+
+		int level = Math.min(topLevel(cond, low), topLevel(low, high));
+		int gid = ((Integer) _alOrder.get(level)).intValue();
+		int ret = getINode(gid,
+				select(cofactor(cond, gid, false), cofactor(low, gid, false),
+						cofactor(high, gid, false), cache),
+				select(cofactor(cond, gid, true), cofactor(low, gid, true),
+						cofactor(high, gid, true), cache), true);
+		if (_anGID[ret] >= 0) {
+			setMinMax(ret);
+		}
+
+		cache.put(key, new Integer(ret));
+		return ret;
+	}
+
+	// Branch of id for gid = val (id itself if gid is not its top var)
+	public int cofactor(int id, int gid, boolean val) {
+		if (_anGID[id] != gid) {
+			return id;
+		}
+		return val ? _anHigh[id] : _anLow[id];
+	}
+
+	// Multiply by 2^skipped
+	public int scaleSkipped(int id, int skipped) {
+		return (skipped == 0) ? id : scalarMultiply(id, (double) (1L << skipped));
+	}
+
 	// Remap gids... gid_map = old_id -> new_id (assuming order consistent)
 	public int remapGIDsInt(int lid, HashMap gid_map) {
-		ADDNode n = getNode(lid);
-		//System.out.println(lid + ": " + n);
-		if (n instanceof ADDBNode || n instanceof ADDDNode) {
+		//System.out.println(lid + ": " + getNode(lid));
+		if (_anGID[lid] < 0) {
 			return lid;
-		} else { // n instanceof ADDINode so recurse and update caches
-			ADDINode ni = (ADDINode) n;
-			Integer old_id = new Integer(ni._nGlobalID);
+		} else { // INode so recurse and update caches
+			Integer old_id = new Integer(_anGID[lid]);
 			Integer new_id = (Integer) gid_map.get(old_id);
 			if (new_id == null) {
 				new_id = old_id;
 			}
-			return getINode(new_id.intValue(), remapGIDsInt(ni._nLow, gid_map),
-					remapGIDsInt(ni._nHigh, gid_map), true);
+			return getOrderedINode(new_id.intValue(), remapGIDsInt(
+					_anLow[lid], gid_map), remapGIDsInt(_anHigh[lid], gid_map));
 		}
 	}
 
+	// Like getINode() but gid need not come before the top vars of low
+	// and high (e.g., after reordering) in which case if-then-else(gid,
+	// high, low) is built by apply
+	public int getOrderedINode(int gid, int low, int high) {
+		if (isAbove(gid, low) && isAbove(gid, high)) {
+			return getSwapNode(gid, low, high);
+		} else if (isBoolean(low)) {
+			int var = getINode(gid, getBNode(false, true), getBNode(true,
+					true), true);
+			int not_var = getINode(gid, getBNode(true, true), getBNode(false,
+					true), true);
+			return applyInt(applyInt(var, high, LOG_AND), applyInt(not_var,
+					low, LOG_AND), LOG_OR);
+		} else {
+			return applyInt(applyInt(getVarNode(gid, 0d, 1d), high,
+					ARITH_PROD), applyInt(getVarNode(gid, 1d, 0d), low,
+					ARITH_PROD), ARITH_SUM);
+		}
+	}
+
+	// Can a gid node be placed directly above id in the current order?
+	public boolean isAbove(int gid, int id) {
+		return _anGID[id] < 0
+				|| (gid != _anGID[id] && comesBefore(gid, _anGID[id]));
+	}
+
+	// Does the diagram have BNode leaves?
+	public boolean isBoolean(int id) {
+		while (_anGID[id] >= 0) {
+			id = _anLow[id];
+		}
+		return _anGID[id] == BNODE;
+	}
+
+	// Copy a node from another context, src order may differ
+	public int copy(DD src, int id, HashMap cache) {
+		if (!(src instanceof ADD)) {
+			return super.copy(src, id, cache);
+		}
+		ADD a = (ADD) src;
+		Integer key = new Integer(id);
+		Integer ret = (Integer) cache.get(key);
+		if (ret != null) {
+			return ret.intValue();
+		}
+		int new_id;
+		int gid = a._anGID[id];
+		if (gid == DNODE) {
+			new_id = getDNode(a._adMinLower[id], a._adMinUpper[id], true,
+					a.getLowerLabel(id), a.getUpperLabel(id));
+		} else if (gid == BNODE) {
+			new_id = getBNode(a._anLow[id] == 1, true);
+		} else {
+			new_id = getOrderedINode(gid, copy(src, a._anLow[id], cache),
+					copy(src, a._anHigh[id], cache));
+		}
+		cache.put(key, new Integer(new_id));
+		return new_id;
+	}
+
 	// Assume a1 and a2 are ordered and reduced, op is boolean or +,*,max
 	public static ADD Apply(ADD a1, ADD a2, int op) {
 		if (op == RESTRICT_LOW || op == RESTRICT_HIGH) {
@@ -1209,45 +2067,42 @@ public class ADD extends DD {
 		}
 
 		// Can we create a terminal node here?
-		ADDNode n1 = getNode(a1), n2 = getNode(a2);
-		int t = computeTermNode(n1, n2, op);
+		int t = computeTermNode(a1, a2, op);
 		if (t > INVALID) {
 			ret = t;
 		} else { // At least one non-terminal so must recurse
 
 			int v1low, v1high, v2low, v2high, gid;
+			int g1 = _anGID[a1], g2 = _anGID[a2];
 
 			// Find node with min id (or only internal node)
-			if (n1 instanceof ADDINode) {
-				if (n2 instanceof ADDINode) {
-					if (comesBefore(((ADDINode) n1)._nGlobalID,
-							((ADDINode) n2)._nGlobalID)) {
-						gid = ((ADDINode) n1)._nGlobalID;
+			if (g1 >= 0) {
+				if (g2 >= 0) {
+					if (comesBefore(g1, g2)) {
+						gid = g1;
 					} else {
-						gid = ((ADDINode) n2)._nGlobalID;
+						gid = g2;
 					}
 				} else {
-					gid = ((ADDINode) n1)._nGlobalID;
+					gid = g1;
 				}
 			} else {
-				gid = ((ADDINode) n2)._nGlobalID;
+				gid = g2;
 			}
 
 			// Determine next recursion for n1
-			if ((n1 instanceof ADDINode) && (((ADDINode) n1)._nGlobalID == gid)) {
-				ADDINode n1i = (ADDINode) n1;
-				v1low = n1i._nLow;
-				v1high = n1i._nHigh;
+			if (g1 == gid) {
+				v1low = _anLow[a1];
+				v1high = _anHigh[a1];
 			} else {
 				v1low = a1;
 				v1high = a1;
 			}
 
 			// Determine next recursion for n2
-			if ((n2 instanceof ADDINode) && (((ADDINode) n2)._nGlobalID == gid)) {
-				ADDINode n2i = (ADDINode) n2;
-				v2low = n2i._nLow;
-				v2high = n2i._nHigh;
+			if (g2 == gid) {
+				v2low = _anLow[a2];
+				v2high = _anHigh[a2];
 			} else {
 				v2low = a2;
 				v2high = a2;
@@ -1261,7 +2116,7 @@ public class ADD extends DD {
 			ret = getINode(gid, low, high, true);
 
 			// getINode may return a DNode or BNode if low==high
-			if (getNode(ret) instanceof ADDINode) {
+			if (_anGID[ret] >= 0) {
 				setMinMax(ret);
 			}
 		}
@@ -1272,43 +2127,44 @@ public class ADD extends DD {
 
 	// Computes a terminal node value if possible, assume
 	// terms of same type (otherwise incompatible!)
-	public int computeTermNode(ADDNode a1, ADDNode a2, int op) {
+	public int computeTermNode(int a1, int a2, int op) {
 		int ret = INVALID;
+		int g1 = _anGID[a1], g2 = _anGID[a2];
 
 		switch (op) {
 
 		case LOG_AND: {
-			if (((a1 instanceof ADDBNode) && (((ADDBNode) a1)._bVal == false))
-					|| ((a2 instanceof ADDBNode) && (((ADDBNode) a2)._bVal == false))) {
+			if (((g1 == BNODE) && (_anLow[a1] == 0))
+					|| ((g2 == BNODE) && (_anLow[a2] == 0))) {
 				ret = getBNode(false, true /* create if not found! */);
 				// System.out.println("AND PRUNE!!!"); // TODO: Remove!!!
-				AND_PRUNE_CNT++;
+				_metrics.inc(Metrics.AND_PRUNES);
 
-			} else if ((a1 instanceof ADDBNode) && (a2 instanceof ADDBNode)) {
-				boolean res = ((ADDBNode) a1)._bVal && ((ADDBNode) a2)._bVal;
+			} else if ((g1 == BNODE) && (g2 == BNODE)) {
+				boolean res = (_anLow[a1] == 1) && (_anLow[a2] == 1);
 				ret = getBNode(res, true /* create if not found! */);
 			}
 		}
 			break;
 
 		case LOG_OR: {
-			if (((a1 instanceof ADDBNode) && (((ADDBNode) a1)._bVal == true))
-					|| ((a2 instanceof ADDBNode) && (((ADDBNode) a2)._bVal == true))) {
+			if (((g1 == BNODE) && (_anLow[a1] == 1))
+					|| ((g2 == BNODE) && (_anLow[a2] == 1))) {
 				ret = getBNode(true, true /* create if not found! */);
 				// System.out.println("OR PRUNE!!!"); // TODO: Remove!!!
-				OR_PRUNE_CNT++;
+				_metrics.inc(Metrics.OR_PRUNES);
 
-			} else if ((a1 instanceof ADDBNode) && (a2 instanceof ADDBNode)) {
-				boolean res = ((ADDBNode) a1)._bVal || ((ADDBNode) a2)._bVal;
+			} else if ((g1 == BNODE) && (g2 == BNODE)) {
+				boolean res = (_anLow[a1] == 1) || (_anLow[a2] == 1);
 				ret = getBNode(res, true /* create if not found! */);
 			}
 		}
 			break;
 
 		case ARITH_SUM: {
-			if ((a1 instanceof ADDDNode) && (a2 instanceof ADDDNode)) {
-				double min = ((ADDDNode) a1)._dLower + ((ADDDNode) a2)._dLower;
-				double max = ((ADDDNode) a1)._dUpper + ((ADDDNode) a2)._dUpper;
+			if ((g1 == DNODE) && (g2 == DNODE)) {
+				double min = _adMinLower[a1] + _adMinLower[a2];
+				double max = _adMinUpper[a1] + _adMinUpper[a2];
 				ret = getDNode(min, max, true);
 			}
 
@@ -1316,9 +2172,9 @@ public class ADD extends DD {
 			break;
 
 		case ARITH_MINUS: {
-			if ((a1 instanceof ADDDNode) && (a2 instanceof ADDDNode)) {
-				double min = ((ADDDNode) a1)._dLower - ((ADDDNode) a2)._dLower;
-				double max = ((ADDDNode) a1)._dUpper - ((ADDDNode) a2)._dUpper;
+			if ((g1 == DNODE) && (g2 == DNODE)) {
+				double min = _adMinLower[a1] - _adMinLower[a2];
+				double max = _adMinUpper[a1] - _adMinUpper[a2];
 				if (min > max) {
 					double temp = min;
 					min = max;
@@ -1331,9 +2187,9 @@ public class ADD extends DD {
 			break;
 
 		case ARITH_DIV: {
-			if ((a1 instanceof ADDDNode) && (a2 instanceof ADDDNode)) {
-				double min = ((ADDDNode) a1)._dLower / ((ADDDNode) a2)._dLower;
-				double max = ((ADDDNode) a1)._dUpper / ((ADDDNode) a2)._dUpper;
+			if ((g1 == DNODE) && (g2 == DNODE)) {
+				double min = _adMinLower[a1] / _adMinLower[a2];
+				double max = _adMinUpper[a1] / _adMinUpper[a2];
 				if (min > max) {
 					double temp = min;
 					min = max;
@@ -1346,92 +2202,84 @@ public class ADD extends DD {
 			break;
 
 		case ARITH_PROD: {
-			if ((a1 instanceof ADDDNode) && (a2 instanceof ADDDNode)) {
-				double min = ((ADDDNode) a1)._dLower * ((ADDDNode) a2)._dLower;
-				double max = ((ADDDNode) a1)._dUpper * ((ADDDNode) a2)._dUpper;
+			if ((g1 == DNODE) && (g2 == DNODE)) {
+				double min = _adMinLower[a1] * _adMinLower[a2];
+				double max = _adMinUpper[a1] * _adMinUpper[a2];
 				ret = getDNode(min, max, true);
-			} else if ((a1 instanceof ADDDNode)
-					&& (((ADDDNode) a1)._dLower == (double) 0.0)
-					&& (((ADDDNode) a1)._dUpper == (double) 0.0)) {
+			} else if ((g1 == DNODE)
+					&& (_adMinLower[a1] == (double) 0.0)
+					&& (_adMinUpper[a1] == (double) 0.0)) {
 				// System.out.println("PROD PRUNE!!!"); // TODO: Remove!!!
-				PROD_PRUNE_CNT++;
+				_metrics.inc(Metrics.PROD_PRUNES);
 				ret = getDNode((double) 0.0, (double) 0.0, true);
-			} else if ((a2 instanceof ADDDNode)
-					&& (((ADDDNode) a2)._dLower == (double) 0.0)
-					&& (((ADDDNode) a2)._dUpper == (double) 0.0)) {
+			} else if ((g2 == DNODE)
+					&& (_adMinLower[a2] == (double) 0.0)
+					&& (_adMinUpper[a2] == (double) 0.0)) {
 				// System.out.println("PROD PRUNE!!!"); // TODO: Remove!!!
-				PROD_PRUNE_CNT++;
+				_metrics.inc(Metrics.PROD_PRUNES);
 				ret = getDNode((double) 0.0, (double) 0.0, true);
 			}
 		}
 			break;
 
 		case ARITH_MIN: { // Can assume an ADD for arithmetic operations
-			if ((a1 instanceof ADDDNode) && (a2 instanceof ADDDNode)) {
-				ADDDNode a1d = (ADDDNode) a1;
-				ADDDNode a2d = (ADDDNode) a2;
-				double lower = Math.min(a1d._dLower, a2d._dLower);
-				double upper = Math.min(a1d._dUpper, a2d._dUpper);
+			if ((g1 == DNODE) && (g2 == DNODE)) {
+				double lower = Math.min(_adMinLower[a1], _adMinLower[a2]);
+				double upper = Math.min(_adMinUpper[a1], _adMinUpper[a2]);
 				ret = getDNode(lower, upper, true,
-						(lower == a1d._dLower) ? a1d._sLowerLabel
-								: a2d._sLowerLabel,
-						(upper == a1d._dUpper) ? a1d._sUpperLabel
-								: a2d._sUpperLabel);
-			} else if ((a1 instanceof ADDDNode) && (a2 instanceof ADDINode)
-					&& (((ADDDNode) a1)._dLower <= ((ADDINode) a2)._dMinLower)
-					&& (((ADDDNode) a1)._dUpper <= ((ADDINode) a2)._dMinUpper)) {
+						(lower == _adMinLower[a1]) ? getLowerLabel(a1)
+								: getLowerLabel(a2),
+						(upper == _adMinUpper[a1]) ? getUpperLabel(a1)
+								: getUpperLabel(a2));
+			} else if ((g1 == DNODE) && (g2 >= 0)
+					&& (_adMinLower[a1] <= _adMinLower[a2])
+					&& (_adMinUpper[a1] <= _adMinUpper[a2])) {
 				// If a1.lower < a2.min.lower && a1.upper < a2.min.upper
 				// then can set node to a1
-				ADDDNode a1d = (ADDDNode) a1;
-				ret = getDNode(a1d._dLower, a1d._dUpper, true,
-						a1d._sLowerLabel, a1d._sUpperLabel);
+				ret = getDNode(_adMinLower[a1], _adMinUpper[a1], true,
+						getLowerLabel(a1), getUpperLabel(a1));
 				// System.out.println("MIN PRUNE!!!"); // TODO: Remove!!!
-				MIN_PRUNE_CNT++;
-			} else if ((a2 instanceof ADDDNode)
-					&& (((ADDDNode) a2)._dLower <= ((ADDINode) a1)._dMinLower)
-					&& (((ADDDNode) a2)._dUpper <= ((ADDINode) a1)._dMinUpper)) {
+				_metrics.inc(Metrics.MIN_PRUNES);
+			} else if ((g2 == DNODE) && (g1 >= 0)
+					&& (_adMinLower[a2] <= _adMinLower[a1])
+					&& (_adMinUpper[a2] <= _adMinUpper[a1])) {
 				// If a2.lower < a1.min.lower && a2.upper < a1.min.upper
 				// then can set node to a2
-				ADDDNode a2d = (ADDDNode) a2;
-				ret = getDNode(a2d._dLower, a2d._dUpper, true,
-						a2d._sLowerLabel, a2d._sUpperLabel);
+				ret = getDNode(_adMinLower[a2], _adMinUpper[a2], true,
+						getLowerLabel(a2), getUpperLabel(a2));
 				// System.out.println("MIN PRUNE!!!"); // TODO: Remove!!!
-				MIN_PRUNE_CNT++;
+				_metrics.inc(Metrics.MIN_PRUNES);
 			}
 		}
 			break;
 
 		case ARITH_MAX: { // Can assume an ADD for arithmetic operations
-			if ((a1 instanceof ADDDNode) && (a2 instanceof ADDDNode)) {
-				ADDDNode a1d = (ADDDNode) a1;
-				ADDDNode a2d = (ADDDNode) a2;
-				double lower = Math.max(a1d._dLower, a2d._dLower);
-				double upper = Math.max(a1d._dUpper, a2d._dUpper);
+			if ((g1 == DNODE) && (g2 == DNODE)) {
+				double lower = Math.max(_adMaxLower[a1], _adMaxLower[a2]);
+				double upper = Math.max(_adMaxUpper[a1], _adMaxUpper[a2]);
 				ret = getDNode(lower, upper, true,
-						(lower == a1d._dLower) ? a1d._sLowerLabel
-								: a2d._sLowerLabel,
-						(upper == a1d._dUpper) ? a1d._sUpperLabel
-								: a2d._sUpperLabel);
-			} else if ((a1 instanceof ADDDNode) && (a2 instanceof ADDINode)
-					&& (((ADDDNode) a1)._dLower >= ((ADDINode) a2)._dMaxLower)
-					&& (((ADDDNode) a1)._dUpper >= ((ADDINode) a2)._dMaxUpper)) {
+						(lower == _adMaxLower[a1]) ? getLowerLabel(a1)
+								: getLowerLabel(a2),
+						(upper == _adMaxUpper[a1]) ? getUpperLabel(a1)
+								: getUpperLabel(a2));
+			} else if ((g1 == DNODE) && (g2 >= 0)
+					&& (_adMaxLower[a1] >= _adMaxLower[a2])
+					&& (_adMaxUpper[a1] >= _adMaxUpper[a2])) {
 				// If a1.lower > a2.max.lower && a1.upper > a2.max.upper
 				// then can set node to a1
-				ADDDNode a1d = (ADDDNode) a1;
-				ret = getDNode(a1d._dLower, a1d._dUpper, true,
-						a1d._sLowerLabel, a1d._sUpperLabel);
+				ret = getDNode(_adMaxLower[a1], _adMaxUpper[a1], true,
+						getLowerLabel(a1), getUpperLabel(a1));
 				// System.out.println("MAX PRUNE!!!"); // TODO: Remove!!!
-				MAX_PRUNE_CNT++;
-			} else if ((a2 instanceof ADDDNode)
-					&& (((ADDDNode) a2)._dLower >= ((ADDINode) a1)._dMaxLower)
-					&& (((ADDDNode) a2)._dUpper >= ((ADDINode) a1)._dMaxUpper)) {
+				_metrics.inc(Metrics.MAX_PRUNES);
+			} else if ((g2 == DNODE) && (g1 >= 0)
+					&& (_adMaxLower[a2] >= _adMaxLower[a1])
+					&& (_adMaxUpper[a2] >= _adMaxUpper[a1])) {
 				// If a2.lower > a1.max.lower && a2.upper > a1.max.upper
 				// then can set node to a2
-				ADDDNode a2d = (ADDDNode) a2;
-				ret = getDNode(a2d._dLower, a2d._dUpper, true,
-						a2d._sLowerLabel, a2d._sUpperLabel);
+				ret = getDNode(_adMaxLower[a2], _adMaxUpper[a2], true,
+						getLowerLabel(a2), getUpperLabel(a2));
 				// System.out.println("MAX PRUNE!!!"); // TODO: Remove!!!
-				MAX_PRUNE_CNT++;
+				_metrics.inc(Metrics.MAX_PRUNES);
 			}
 		}
 			break;
@@ -1445,28 +2293,29 @@ public class ADD extends DD {
 	public double evaluate(int id, ArrayList assign) {
 
 		Boolean b;
-		ADDNode cur = getNode(id);
+		if (!isValidID(id)) {
+			return Double.NaN;
+		}
+		int cur = id;
+		int gid;
 
-		while (cur instanceof ADDINode) {
-			int level = ((Integer) _hmGVarToLevel.get(new Integer(
-					((ADDINode) cur)._nGlobalID))).intValue();
+		while ((gid = _anGID[cur]) >= 0) {
+			int level = _anGVarToLevel[gid];
 
 			// If we need a var this is unassigned, return null
 			if ((level < assign.size())
 					&& ((b = (Boolean) assign.get(level)) != null)) {
-				ADDINode ni = (ADDINode) cur;
-				cur = (b.booleanValue()) ? getNode(ni._nHigh)
-						: getNode(ni._nLow);
+				cur = (b.booleanValue()) ? _anHigh[cur] : _anLow[cur];
 			} else {
 				return Double.NaN;
 			}
 		}
 
-		// If get here, cur will be an ADDDNode, ADDBNode
-		if (cur instanceof ADDDNode) {
-			return ((ADDDNode) cur)._dLower;
-		} else if (cur instanceof ADDBNode) {
-			return ((ADDBNode) cur)._bVal ? 1.0d : 0.0d;
+		// If get here, cur will be a DNode or BNode
+		if (gid == DNODE) {
+			return _adMinLower[cur];
+		} else if (gid == BNODE) {
+			return (_anLow[cur] == 1) ? 1.0d : 0.0d;
 		} else {
 			return Double.NaN;
 		}
@@ -1481,12 +2330,8 @@ public class ADD extends DD {
 
 	// Order check - both must occur in list!
 	public boolean comesBefore(int gid1, int gid2) {
-		// Get level for gid1 and gid2
-		int l1 = ((Integer) _hmGVarToLevel.get(new Integer(gid1))).intValue();
-		int l2 = ((Integer) _hmGVarToLevel.get(new Integer(gid2))).intValue();
-
 		// Determine which comes first (i.e. earlier level)
-		return (l1 <= l2);
+		return (_anGVarToLevel[gid1] <= _anGVarToLevel[gid2]);
 	}
 
 	// //////////////////////////////////////////////////////////////
@@ -1547,10 +2392,11 @@ public class ADD extends DD {
 			String var = (String) o;
 			int gid = ((Integer) var2ID.get(var)).intValue();
 
-			// Get the var ADD
+			// Get the var ADD (the tree order may differ from ours after
+			// reordering)
 			int high = buildNode((ArrayList) l.get(1), var2ID);
 			int low = buildNode((ArrayList) l.get(2), var2ID);
-			return getINode(gid, low, high, true);
+			return getOrderedINode(gid, low, high);
 		}
 	}
 
@@ -1620,6 +2466,90 @@ public class ADD extends DD {
 		return sb.toString();
 	}
 
+	// ////////////////////////////////////////////////////////////////
+	// Binary save and load (see DD.saveBinary())
+	// ////////////////////////////////////////////////////////////////
+
+	// Node records: int #nodes, then per node (root last) one of
+	// byte 0, double lower, double upper (DNode); byte 1, byte val
+	// (BNode); byte 2, int gid, int low, int high (INode, children
+	// given as earlier record indices)
+	public int getBinaryFormat() {
+		return TYPE_ADD;
+	}
+
+	public void writeBinaryNodes(int id, DataOutputStream os)
+			throws IOException {
+		int[] index = new int[_anGID.length];
+		Arrays.fill(index, INVALID);
+		int[] nodes = new int[16];
+		int cnt = 0;
+
+		// Iterative post-order so children are numbered first
+		int[] stack = new int[16];
+		int sp = 0;
+		stack[sp++] = id;
+		while (sp > 0) {
+			int cur = stack[sp - 1];
+			if (index[cur] != INVALID) {
+				sp--;
+				continue;
+			}
+			if (_anGID[cur] >= 0
+					&& (index[_anLow[cur]] == INVALID || index[_anHigh[cur]] == INVALID)) {
+				if (sp + 2 > stack.length) {
+					stack = Arrays.copyOf(stack, stack.length << 1);
+				}
+				stack[sp++] = _anLow[cur];
+				stack[sp++] = _anHigh[cur];
+				continue;
+			}
+			sp--;
+			if (cnt == nodes.length) {
+				nodes = Arrays.copyOf(nodes, cnt << 1);
+			}
+			index[cur] = cnt;
+			nodes[cnt++] = cur;
+		}
+
+		os.writeInt(cnt);
+		for (int i = 0; i < cnt; i++) {
+			int n = nodes[i];
+			if (_anGID[n] == DNODE) {
+				os.writeByte(0);
+				os.writeDouble(_adMinLower[n]);
+				os.writeDouble(_adMinUpper[n]);
+			} else if (_anGID[n] == BNODE) {
+				os.writeByte(1);
+				os.writeByte(_anLow[n]);
+			} else {
+				os.writeByte(2);
+				os.writeInt(_anGID[n]);
+				os.writeInt(index[_anLow[n]]);
+				os.writeInt(index[_anHigh[n]]);
+			}
+		}
+	}
+
+	public int readBinaryNodes(ByteBuffer buf, HashMap gid_map) {
+		int cnt = buf.getInt();
+		int[] ids = new int[cnt];
+		for (int i = 0; i < cnt; i++) {
+			byte kind = buf.get();
+			if (kind == 0) {
+				double lower = buf.getDouble();
+				ids[i] = getDNode(lower, buf.getDouble(), true);
+			} else if (kind == 1) {
+				ids[i] = getBNode(buf.get() == 1, true);
+			} else {
+				Integer gid = (Integer) gid_map.get(new Integer(buf.getInt()));
+				int low = ids[buf.getInt()];
+				ids[i] = getOrderedINode(gid.intValue(), low, ids[buf.getInt()]);
+			}
+		}
+		return ids[cnt - 1];
+	}
+
 	// //////////////////////////////////////////////////////////////
 	// Miscellaneous methods
 	// //////////////////////////////////////////////////////////////
@@ -1683,11 +2613,15 @@ public class ADD extends DD {
 
 	public void pruneReport() {
 		System.out.println("\nPrune Report:\n-------------");
-		System.out.println("OR:   " + OR_PRUNE_CNT++);
-		System.out.println("AND:  " + AND_PRUNE_CNT++);
-		System.out.println("PROD: " + PROD_PRUNE_CNT++);
-		System.out.println("MIN:  " + MIN_PRUNE_CNT++);
-		System.out.println("MAX:  " + MAX_PRUNE_CNT++ + "\n");
+		System.out.println("OR:   " + _metrics.get(Metrics.OR_PRUNES));
+		System.out.println("AND:  " + _metrics.get(Metrics.AND_PRUNES));
+		System.out.println("PROD: " + _metrics.get(Metrics.PROD_PRUNES));
+		System.out.println("MIN:  " + _metrics.get(Metrics.MIN_PRUNES));
+		System.out.println("MAX:  " + _metrics.get(Metrics.MAX_PRUNES) + "\n");
+		System.out.println("PRECISION PRUNES:  " + _metrics.get(Metrics.PRECISION_PRUNES));
+		System.out.println("PRUNE CACHE HITS:  " + _metrics.get(Metrics.PRUNE_HITS));
+		System.out.println("REDUCE CACHE HITS: " + _metrics.get(Metrics.REDUCE_HITS));
+		System.out.println("APPLY CACHE HITS:  " + _metrics.get(Metrics.APPLY_HITS) + "\n");
 	}
 
 }
@@ -57,8 +57,6 @@ public class Compare {
 	// Perform squared counting test
 	CompareCountSq(14, 14, "count_square.txt");
 
-	new ADD(new ArrayList()).pruneReport();
-	new AADD(new ArrayList()).pruneReport();
     }
 
     // Reset the timer
@@ -135,6 +133,7 @@ public class Compare {
 
 	System.out.println("#vars: Table time/nodes ADD time/nodes AADD time/nodes - max diff");
 	
+	DD[] dd = null;
 	for (int mvars = 6; mvars <= aadd_cutoff; mvars += 1) {
 
 	    ArrayList order = new ArrayList();
@@ -142,7 +141,7 @@ public class Compare {
 		order.add(new Integer(i));
 	    }
 
-	    DD[] dd = new DD[3];
+	    dd = new DD[3];
 	    dd[0] = new Table(order);
 	    dd[1] = new ADD(order);
 	    dd[2] = new AADD(order);
@@ -248,6 +247,12 @@ public class Compare {
 	    } catch (Exception ioe) { }
 	}
 	System.out.println();
+
+	// Statistics for the largest problem
+	if (dd != null) {
+	    dd[1].pruneReport();
+	    dd[2].pruneReport();
+	}
     }
 
     // This tests the binary operations
@@ -264,6 +269,7 @@ public class Compare {
 
 	System.out.println("#vars: Table time/nodes ADD time/nodes AADD time/nodes - max diff");
 	
+	DD[] dd = null;
 	for (int mvars = 6; mvars <= aadd_cutoff; mvars += 1) {
 
 	    ArrayList order = new ArrayList();
@@ -271,7 +277,7 @@ public class Compare {
 		order.add(new Integer(i));
 	    }
 
-	    DD[] dd = new DD[3];
+	    dd = new DD[3];
 	    dd[0] = new Table(order);
 	    dd[1] = new ADD(order);
 	    dd[2] = new AADD(order);
@@ -337,6 +343,12 @@ public class Compare {
 	    } catch (Exception ioe) { }
 	}
 	System.out.println();
+
+	// Statistics for the largest problem
+	if (dd != null) {
+	    dd[1].pruneReport();
+	    dd[2].pruneReport();
+	}
     }
 
     
@@ -0,0 +1,222 @@
+//////////////////////////////////////////////////////////////////
+//                 Compiled (read-only) DD evaluator
+//
+// Freezes a DD into flat arrays for fast repeated evaluation.
+// States are bitsets indexed by gid: gid is true iff bit
+// (state[gid >>> 6] >>> gid) & 1 is set, so every variable is
+// assigned (no NaN for unassigned vars as in DD.evaluate()).
+//
+// Internal node i is _anProg[3i] = gid, _anProg[3i+1] = low,
+// _anProg[3i+2] = high where a child c >= 0 is an internal node
+// and c < 0 is terminal ~c with value _adValue[~c].  For the
+// affine form (AADD) the edges of node i carry
+// _adEdge[4i..4i+3] = <o_l, m_l, o_h, m_h> and the value of
+// <o, m, c> is o + m * value(c).
+//////////////////////////////////////////////////////////////////
+
+package logic.add;
+
+import java.util.*;
+
+public class CompiledDD {
+
+    public int[]    _anProg;
+    public double[] _adValue;
+    public double[] _adEdge;     // null unless affine
+    public int      _nRoot;
+    public double   _dRootOffset = 0d;
+    public double   _dRootMult   = 1d;
+    public int      _nMaxGID     = 0;
+
+    // Compile id of context: ADD and AADD directly, other types are
+    // first copied into an ADD
+    public static CompiledDD Compile(DD context, int id) {
+	if (context instanceof ADD) {
+	    return new CompiledDD((ADD)context, id);
+	} else if (context instanceof AADD) {
+	    return new CompiledDD((AADD)context, id);
+	} else {
+	    ADD add = new ADD(context._alOrder);
+	    return new CompiledDD(add, add.copy(context, id));
+	}
+    }
+
+    public static CompiledDD Compile(FBR context, Object id) {
+	return Compile(context._context, ((Integer)id).intValue());
+    }
+
+    // Node ids are numbered in DFS preorder so a path is mostly
+    // increasing in memory
+    public CompiledDD(ADD context, int id) {
+	HashMap index = new HashMap();
+	ArrayList inodes = new ArrayList();
+	ArrayList values = new ArrayList();
+	_nRoot = number(context, id, index, inodes, values);
+
+	_anProg = new int[3 * inodes.size()];
+	for (int i = 0; i < inodes.size(); i++) {
+	    int n = ((Integer)inodes.get(i)).intValue();
+	    _anProg[3 * i]     = context._anGID[n];
+	    _anProg[3 * i + 1] = ((Integer)index.get(new Integer(context._anLow[n]))).intValue();
+	    _anProg[3 * i + 2] = ((Integer)index.get(new Integer(context._anHigh[n]))).intValue();
+	    _nMaxGID = Math.max(_nMaxGID, context._anGID[n]);
+	}
+	_adValue = new double[values.size()];
+	for (int i = 0; i < values.size(); i++) {
+	    _adValue[i] = ((Double)values.get(i)).doubleValue();
+	}
+    }
+
+    // Returns the program index of ADD node id (terminals < 0)
+    public int number(ADD context, int id, HashMap index,
+		      ArrayList inodes, ArrayList values) {
+	Integer key = new Integer(id);
+	Integer ret = (Integer)index.get(key);
+	if (ret != null) {
+	    return ret.intValue();
+	}
+	int n;
+	if (context._anGID[id] >= 0) {
+	    n = inodes.size();
+	    inodes.add(key);
+	    index.put(key, new Integer(n));
+	    number(context, context._anLow[id], index, inodes, values);
+	    number(context, context._anHigh[id], index, inodes, values);
+	} else {
+	    n = ~values.size();
+	    values.add(new Double(context.evaluate(id, new ArrayList())));
+	    index.put(key, new Integer(n));
+	}
+	return n;
+    }
+
+    public CompiledDD(AADD context, int rid) {
+	AADDRNode r = context.getRNode(rid);
+	_dRootOffset = r._dOffset;
+	_dRootMult   = r._dMult;
+
+	HashMap index = new HashMap();
+	index.put(new Integer(0), new Integer(~0)); // zero node
+	ArrayList inodes = new ArrayList();
+	_nRoot = number(context, r._nRefID, index, inodes);
+
+	_anProg  = new int[3 * inodes.size()];
+	_adEdge  = new double[4 * inodes.size()];
+	_adValue = new double[] { 0d };
+	for (int i = 0; i < inodes.size(); i++) {
+	    AADDINode ni = (AADDINode)inodes.get(i);
+	    _anProg[3 * i]     = ni._nGlobalID;
+	    _anProg[3 * i + 1] = ((Integer)index.get(new Integer(ni._nLow))).intValue();
+	    _anProg[3 * i + 2] = ((Integer)index.get(new Integer(ni._nHigh))).intValue();
+	    _adEdge[4 * i]     = ni._dLowOffset;
+	    _adEdge[4 * i + 1] = ni._dLowMult;
+	    _adEdge[4 * i + 2] = ni._dHighOffset;
+	    _adEdge[4 * i + 3] = ni._dHighMult;
+	    _nMaxGID = Math.max(_nMaxGID, ni._nGlobalID);
+	}
+    }
+
+    public int number(AADD context, int local_id, HashMap index, ArrayList inodes) {
+	Integer key = new Integer(local_id);
+	Integer ret = (Integer)index.get(key);
+	if (ret != null) {
+	    return ret.intValue();
+	}
+	AADDINode ni = (AADDINode)context.getNode(local_id);
+	int n = inodes.size();
+	inodes.add(ni);
+	index.put(key, new Integer(n));
+	number(context, ni._nLow, index, inodes);
+	number(context, ni._nHigh, index, inodes);
+	return n;
+    }
+
+    public boolean isAffine() {
+	return _adEdge != null;
+    }
+
+    // Number of internal nodes
+    public int size() {
+	return _anProg.length / 3;
+    }
+
+    //////////////////////////////////////////////////////////////////
+    //                          Evaluation
+    //////////////////////////////////////////////////////////////////
+
+    public double evaluate(long[] state) {
+	return evaluate(state, 0);
+    }
+
+    // Evaluate the state stored at state[off...]
+    public double evaluate(long[] state, int off) {
+	int[] prog = _anProg;
+	int cur = _nRoot;
+	if (_adEdge == null) {
+	    while (cur >= 0) {
+		int p = 3 * cur;
+		int gid = prog[p];
+		cur = (((state[off + (gid >>> 6)] >>> gid) & 1L) != 0L) ? prog[p + 2] : prog[p + 1];
+	    }
+	    return _adValue[~cur];
+	}
+
+	double[] edge = _adEdge;
+	double offset = _dRootOffset;
+	double mult = _dRootMult;
+	while (cur >= 0) {
+	    int p = 3 * cur;
+	    int gid = prog[p];
+	    int e = cur << 2;
+	    if (((state[off + (gid >>> 6)] >>> gid) & 1L) != 0L) {
+		offset += mult * edge[e + 2];
+		mult *= edge[e + 3];
+		cur = prog[p + 2];
+	    } else {
+		offset += mult * edge[e];
+		mult *= edge[e + 1];
+		cur = prog[p + 1];
+	    }
+	}
+	return offset + mult * _adValue[~cur];
+    }
+
+    // Batch mode: states holds num consecutive states of words longs
+    // each (see Words()), results go in out[0..num-1]
+    public void evaluate(long[] states, int words, int num, double[] out) {
+	for (int s = 0, off = 0; s < num; s++, off += words) {
+	    out[s] = evaluate(states, off);
+	}
+    }
+
+    public void evaluate(long[][] states, double[] out) {
+	for (int s = 0; s < states.length; s++) {
+	    out[s] = evaluate(states[s], 0);
+	}
+    }
+
+    //////////////////////////////////////////////////////////////////
+    //                       Bitset states
+    //////////////////////////////////////////////////////////////////
+
+    // Number of longs for a state over gids 0..max_gid
+    public static int Words(int max_gid) {
+	return (max_gid >>> 6) + 1;
+    }
+
+    public static long[] NewState(int max_gid) {
+	return new long[Words(max_gid)];
+    }
+
+    public static void SetVar(long[] state, int gid, boolean val) {
+	if (val) {
+	    state[gid >>> 6] |= (1L << gid);
+	} else {
+	    state[gid >>> 6] &= ~(1L << gid);
+	}
+    }
+
+    public static boolean GetVar(long[] state, int gid) {
+	return ((state[gid >>> 6] >>> gid) & 1L) != 0L;
+    }
+}
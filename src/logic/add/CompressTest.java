@@ -144,8 +144,7 @@ public class CompressTest {
 		//g4.launchViewer(1300, 770);
 
 		if (SHOW_CACHE) {
-		    new ADD(new ArrayList()).pruneReport();
-			new AADD(new ArrayList()).pruneReport();
+		    context.pruneReport();
 		}
 	}
 	
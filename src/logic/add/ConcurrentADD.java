@@ -0,0 +1,458 @@
+//////////////////////////////////////////////////////////////////////
+//
+// Algebraic Decision Diagram Package (Thread-safe ADD)
+//
+// Notes:
+// ------
+// - Any number of threads may call applyInt(), opOut(), restrict(),
+//   remapGIDsInt(), evaluate() and the scalar ops on one context.
+//   Node ids stay canonical across threads: the unique tables are
+//   open-addressing int tables updated by CAS, a node is fully built
+//   before its id is published in a slot.
+// - The apply/reduce cache is direct-mapped and lossy, entries are
+//   immutable objects so a reader sees either the whole entry or none.
+// - The node store has a fixed capacity (no reallocation while other
+//   threads read it).  Ids are only recycled by flushCaches(), which
+//   (like pruneNodes() and reordering) must be called while no other
+//   thread is using the context.  needsFlush() asks for a flush once
+//   FLUSH_FILL of the store is used; if it still fills up, allocNode()
+//   throws CapacityException and the caller can flush and retry the
+//   operation (unpublished nodes are released by the flush).
+// - applyInt() for SUM/PROD/MAX forks the low/high recursion onto a
+//   ForkJoinPool down to APPLY_FORK_DEPTH levels, below that (or when
+//   few var levels remain) it runs the serial ADD.applyInt().  Both
+//   share the tables above so results are the same as serial apply.
+//
+//////////////////////////////////////////////////////////////////////
+
+package logic.add;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * ADD whose construction and apply operations are thread-safe
+ **/
+public class ConcurrentADD extends ADD {
+
+	// Default max number of nodes, and the fraction of it in use at
+	// which needsFlush() returns true
+	public static int DEFAULT_CAPACITY = 1 << 20;
+	public static double FLUSH_FILL = 0.75d;
+
+	// Parallel apply settings: max depth of forked recursion (0 = always
+	// serial) and min number of var levels below a node to fork it
+	public static int APPLY_FORK_DEPTH = 4;
+	public static int APPLY_FORK_MIN_LEVELS = 6;
+	public static ForkJoinPool FORK_POOL = ForkJoinPool.commonPool();
+
+	// Lock-free mirrors of the inherited unique tables (which are only
+	// used during flushCaches())
+	public AtomicIntegerArray _aiINodeTable;
+	public AtomicIntegerArray _aiDNodeTable;
+
+	// Lossy computed table: <id1, id2, op> -> ApplyEntry
+	public AtomicReferenceArray _aApplyCache;
+
+	// Next unused id and number of ids on the free list
+	public AtomicInteger _aiNextID;
+	public AtomicInteger _aiFreeCnt;
+
+	// Thrown by allocNode() when the node store is full
+	public static class CapacityException extends RuntimeException {
+		public CapacityException(int capacity) {
+			super("ConcurrentADD: node capacity of " + capacity + " exceeded");
+		}
+	}
+
+	// Immutable computed table entry
+	public static class ApplyEntry {
+		public final int _nA1, _nA2, _nOp, _nRes;
+
+		public ApplyEntry(int a1, int a2, int op, int res) {
+			_nA1 = a1;
+			_nA2 = a2;
+			_nOp = op;
+			_nRes = res;
+		}
+	}
+
+	public ConcurrentADD(ArrayList order) {
+		this(order, DEFAULT_CAPACITY);
+	}
+
+	public ConcurrentADD(ArrayList order, int capacity) {
+		super(order);
+
+		// Node store never grows
+		_anGID = new int[capacity];
+		_anLow = new int[capacity];
+		_anHigh = new int[capacity];
+		_adMinLower = new double[capacity];
+		_adMinUpper = new double[capacity];
+		_adMaxLower = new double[capacity];
+		_adMaxUpper = new double[capacity];
+		_anFreeIDs = new int[capacity];
+
+		// Unique tables at most half full
+		int sz = INIT_CAPACITY;
+		while (sz < (capacity << 1)) {
+			sz <<= 1;
+		}
+		_anINodeTable = new int[sz];
+		_anDNodeTable = new int[sz];
+		Arrays.fill(_anINodeTable, INVALID);
+		Arrays.fill(_anDNodeTable, INVALID);
+		_aiINodeTable = new AtomicIntegerArray(sz);
+		_aiDNodeTable = new AtomicIntegerArray(sz);
+		for (int i = 0; i < sz; i++) {
+			_aiINodeTable.set(i, INVALID);
+			_aiDNodeTable.set(i, INVALID);
+		}
+		_aApplyCache = new AtomicReferenceArray(1 << APPLY_CACHE_BITS);
+		_aiNextID = new AtomicInteger(0);
+		_aiFreeCnt = new AtomicInteger(0);
+
+		// BNodes are created up front (and recreated after a flush) so
+		// getBNode() never has to create one
+		createBNodes();
+	}
+
+	public void createBNodes() {
+		if (_aBNodeCache[0] == INVALID) {
+			createBNode(false);
+		}
+		if (_aBNodeCache[1] == INVALID) {
+			createBNode(true);
+		}
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Flushing (single-threaded)
+	// ////////////////////////////////////////////////////////////////
+
+	// Must not run concurrently with any other call on this context
+	public synchronized void flushCaches(boolean print_info) {
+
+		// Bring the inherited tables and counters up to date
+		_nLocalIDCnt = Math.min(_aiNextID.get(), _anGID.length);
+		_nFreeCnt = Math.max(_aiFreeCnt.get(), 0);
+		_nINodeCnt = copyTable(_aiINodeTable, _anINodeTable);
+		_nDNodeCnt = copyTable(_aiDNodeTable, _anDNodeTable);
+
+		super.flushCaches(print_info);
+
+		for (int i = 0; i < _anINodeTable.length; i++) {
+			_aiINodeTable.set(i, _anINodeTable[i]);
+			_aiDNodeTable.set(i, _anDNodeTable[i]);
+		}
+		_aiNextID.set(_nLocalIDCnt);
+		_aiFreeCnt.set(_nFreeCnt);
+		createBNodes();
+		_lNodesAfterFlush = getNodeCount();
+	}
+
+	// Copy src into dest, returns number of occupied slots
+	public int copyTable(AtomicIntegerArray src, int[] dest) {
+		int cnt = 0;
+		for (int i = 0; i < dest.length; i++) {
+			dest[i] = src.get(i);
+			if (dest[i] != INVALID) {
+				cnt++;
+			}
+		}
+		return cnt;
+	}
+
+	public void clearApplyCache() {
+		super.clearApplyCache();
+		if (_aApplyCache != null) {
+			for (int i = 0; i < _aApplyCache.length(); i++) {
+				_aApplyCache.set(i, null);
+			}
+		}
+	}
+
+	public void growApplyCache() {
+		// Fixed size
+	}
+
+	public boolean canReorder() {
+		return false;
+	}
+
+	public void showCacheSize() {
+		System.out.println("APPLY CACHE:  " + _aApplyCache.length()
+				+ " slots  (hits: " + _metrics.get(Metrics.APPLY_HITS)
+				+ ", misses: " + _metrics.get(Metrics.APPLY_MISSES) + ")");
+		System.out.println("NODES:        " + getNodeCount() + " / "
+				+ _anGID.length + "\n");
+	}
+
+	public long getCacheSize() {
+		return getNodeCount();
+	}
+
+	public long getNodeCount() {
+		return Math.min(_aiNextID.get(), _anGID.length) - _aiFreeCnt.get();
+	}
+
+	// Also flush before the fixed node store fills up
+	public boolean needsFlush(double min_free_mem) {
+		return getNodeCount() >= FLUSH_FILL * _anGID.length
+				|| super.needsFlush(min_free_mem);
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Node allocation and unique tables
+	// ////////////////////////////////////////////////////////////////
+
+	public boolean isValidID(int local_id) {
+		return local_id >= 0 && local_id < _aiNextID.get()
+				&& local_id < _anGID.length && _anGID[local_id] != FREE;
+	}
+
+	public synchronized ADDNode getNode(int local_id) {
+		return super.getNode(local_id);
+	}
+
+	public synchronized void setLabels(int id, String lower_label,
+			String upper_label) {
+		super.setLabels(id, lower_label, upper_label);
+	}
+
+	// Pop the free list, else take the next unused id
+	public int allocNode() {
+		int n;
+		while ((n = _aiFreeCnt.get()) > 0) {
+			if (_aiFreeCnt.compareAndSet(n, n - 1)) {
+				return _anFreeIDs[n - 1];
+			}
+		}
+		int id = _aiNextID.getAndIncrement();
+		if (id >= _anGID.length) {
+			throw new CapacityException(_anGID.length); // flushCaches() resets _aiNextID
+		}
+		return id;
+	}
+
+	// Min/max bounds are set here, before the node is published
+	public void setMinMax(int id) {
+	}
+
+	public int getINode(int gid, int low, int high, boolean create) {
+
+		if (low == high) {
+			return low;
+		}
+
+		int mask = _aiINodeTable.length() - 1;
+		int slot = HashINode(gid, low, high) & mask;
+		int new_id = INVALID;
+		while (true) {
+			int id = _aiINodeTable.get(slot);
+			if (id == INVALID) {
+				if (!create) {
+					return INVALID;
+				}
+				if (new_id == INVALID) {
+					new_id = allocNode();
+					_anGID[new_id] = gid;
+					_anLow[new_id] = low;
+					_anHigh[new_id] = high;
+					super.setMinMax(new_id);
+				}
+				if (_aiINodeTable.compareAndSet(slot, INVALID, new_id)) {
+					return new_id;
+				}
+				continue; // Lost the slot, check who took it
+			}
+			if (_anGID[id] == gid && _anLow[id] == low && _anHigh[id] == high) {
+				return id; // An unpublished new_id is released by the next flush
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public int getDNode(double min_val, double max_val, boolean create,
+			String lower_label, String upper_label) {
+
+		int mask = _aiDNodeTable.length() - 1;
+		int hash = HashDNode(min_val, max_val);
+		int slot = hash & mask;
+		int new_id = INVALID;
+		while (true) {
+			int id = _aiDNodeTable.get(slot);
+			if (id == INVALID) {
+				if (!create) {
+					return INVALID;
+				}
+				if (new_id == INVALID) {
+					new_id = allocNode();
+					_anGID[new_id] = DNODE;
+					_anLow[new_id] = _anHigh[new_id] = INVALID;
+					_adMinLower[new_id] = _adMaxLower[new_id] = min_val;
+					_adMinUpper[new_id] = _adMaxUpper[new_id] = max_val;
+					invalidateView(new_id);
+					if (lower_label != null || upper_label != null) {
+						setLabels(new_id, lower_label, upper_label);
+					}
+				}
+				if (_aiDNodeTable.compareAndSet(slot, INVALID, new_id)) {
+					return new_id;
+				}
+				continue;
+			}
+			if (HashDNode(_adMinLower[id], _adMinUpper[id]) == hash
+					&& Math.abs(_adMinLower[id] - min_val) <= 1e-10d
+					&& Math.abs(_adMinUpper[id] - max_val) <= 1e-10d) {
+				if (lower_label != null || upper_label != null) {
+					setLabels(id, lower_label, upper_label);
+				}
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Computed table
+	// ////////////////////////////////////////////////////////////////
+
+	public void putPair(int id1, int id2, int op, int to_id) {
+		int slot = HashApply(id1, id2, op) & (_aApplyCache.length() - 1);
+		_aApplyCache.lazySet(slot, new ApplyEntry(id1, id2, op, to_id));
+	}
+
+	public int getPair(int id1, int id2, int op) {
+		int slot = HashApply(id1, id2, op) & (_aApplyCache.length() - 1);
+		ApplyEntry e = (ApplyEntry) _aApplyCache.get(slot);
+		if (e != null && e._nA1 == id1 && e._nA2 == id2 && e._nOp == op) {
+			if (op >= 0 && op < RESTRICT_LOW) {
+				_metrics.applyHit(op);
+			} else { // reduceRestrict() key
+				_metrics.inc(Metrics.REDUCE_HITS);
+			}
+			return e._nRes;
+		}
+		if (op >= 0 && op < RESTRICT_LOW) {
+			_metrics.applyMiss(op);
+		} else {
+			_metrics.inc(Metrics.REDUCE_MISSES);
+		}
+		return INVALID;
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Parallel apply
+	// ////////////////////////////////////////////////////////////////
+
+	public int applyInt(int a1, int a2, int op) {
+		if (APPLY_FORK_DEPTH <= 0 || ForkJoinTask.inForkJoinPool()
+				|| (op != ARITH_SUM && op != ARITH_PROD && op != ARITH_MAX)) {
+			return super.applyInt(a1, a2, op);
+		}
+		return ((Integer) FORK_POOL.invoke(new ApplyTask(a1, a2, op, 0)))
+				.intValue();
+	}
+
+	// Levels between gid and the bottom of the order
+	public int levelsBelow(int gid) {
+		return _alOrder.size() - _anGVarToLevel[gid];
+	}
+
+	// One apply recursion step, forks the low branch and computes the
+	// high branch itself
+	public class ApplyTask extends RecursiveTask {
+		public int _nA1, _nA2, _nOp, _nDepth;
+
+		public ApplyTask(int a1, int a2, int op, int depth) {
+			_nA1 = a1;
+			_nA2 = a2;
+			_nOp = op;
+			_nDepth = depth;
+		}
+
+		public Object compute() {
+			int a1 = _nA1, a2 = _nA2, op = _nOp;
+			int ret = getPair(a1, a2, op);
+			if (ret > INVALID) {
+				return new Integer(ret);
+			}
+			if (computeTermNode(a1, a2, op) > INVALID) {
+				return new Integer(ConcurrentADD.super.applyInt(a1, a2, op));
+			}
+
+			// Same top var selection as ADD.applyInt()
+			int g1 = _anGID[a1], g2 = _anGID[a2];
+			int gid = (g1 >= 0 && (g2 < 0 || comesBefore(g1, g2))) ? g1 : g2;
+			if (_nDepth >= APPLY_FORK_DEPTH
+					|| levelsBelow(gid) < APPLY_FORK_MIN_LEVELS) {
+				return new Integer(ConcurrentADD.super.applyInt(a1, a2, op));
+			}
+
+			int v1low = (g1 == gid) ? _anLow[a1] : a1;
+			int v1high = (g1 == gid) ? _anHigh[a1] : a1;
+			int v2low = (g2 == gid) ? _anLow[a2] : a2;
+			int v2high = (g2 == gid) ? _anHigh[a2] : a2;
+
+			ApplyTask low_task = new ApplyTask(v1low, v2low, op, _nDepth + 1);
+			low_task.fork();
+			int high = ((Integer) new ApplyTask(v1high, v2high, op,
+					_nDepth + 1).compute()).intValue();
+			int low = ((Integer) low_task.join()).intValue();
+
+			ret = getINode(gid, low, high, true);
+			putPair(a1, a2, op, ret);
+			return new Integer(ret);
+		}
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Reduce / restrict
+	// ////////////////////////////////////////////////////////////////
+
+	// Within this context results go in the computed table (keyed by
+	// <id, gid, op>, op is RESTRICT_LOW/HIGH or -1 which apply never
+	// uses); copying from another ADD uses the inherited HashMap cache
+	// under a lock
+	public int reduceRestrict(int id, ADD src, int gid, int op) {
+
+		if (src != this) {
+			synchronized (this) {
+				return super.reduceRestrict(id, src, gid, op);
+			}
+		}
+
+		int ret = getPair(id, gid, op);
+		if (ret > INVALID) {
+			return ret;
+		}
+
+		int ngid = _anGID[id];
+		if (ngid < 0) {
+			ret = id;
+		} else if (ngid == gid) {
+			if (op == RESTRICT_HIGH || op == RESTRICT_LOW) {
+				ret = reduceRestrict((op == RESTRICT_LOW) ? _anLow[id]
+						: _anHigh[id], this, gid, op);
+			} else {
+				System.out.println("ERROR: op not a RESTRICT!");
+				System.exit(1);
+			}
+		} else {
+			int low = reduceRestrict(_anLow[id], this, gid, op);
+			int high = reduceRestrict(_anHigh[id], this, gid, op);
+			ret = getINode(ngid, low, high, true);
+		}
+
+		putPair(id, gid, op, ret);
+		return ret;
+	}
+
+	// Uses the inherited prune caches
+	public synchronized int pruneNodes(int id) {
+		return super.pruneNodes(id);
+	}
+}
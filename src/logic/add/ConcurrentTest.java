@@ -0,0 +1,70 @@
+//////////////////////////////////////////////////////////////////
+//                Testing Methods for ConcurrentADD
+//////////////////////////////////////////////////////////////////
+
+package logic.add;
+
+import java.util.*;
+
+public class ConcurrentTest {
+
+	public static final int NUM_VARS   = 16;
+	public static final int NUM_SUMS   = 200;
+	public static final int NUM_ROUNDS = 20;
+	public static final int[] OPS = { DD.ARITH_SUM, DD.ARITH_PROD, DD.ARITH_MAX };
+
+	// Checks that the forked applyInt() returns exactly the node id of
+	// the serial applyInt() on random ADDs (node ids are canonical, so
+	// the serial apply must find the nodes the parallel one built)
+	public static void main(String[] args) {
+
+		ArrayList order = new ArrayList();
+		for (int i = 1; i <= NUM_VARS; i++) {
+			order.add(new Integer(i));
+		}
+		int fork_depth = ConcurrentADD.APPLY_FORK_DEPTH;
+		CompressTest._rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 1L);
+
+		int checked = 0;
+		for (int r = 0; r < NUM_ROUNDS; r++) {
+			ConcurrentADD context = new ConcurrentADD(order);
+
+			// Build the operands serially
+			ConcurrentADD.APPLY_FORK_DEPTH = 0;
+			int dd1 = CompressTest.GetRandomizedDD(context, NUM_VARS, NUM_SUMS);
+			int dd2 = CompressTest.GetRandomizedDD(context, NUM_VARS, NUM_SUMS);
+
+			for (int k = 0; k < OPS.length; k++) {
+				int op = OPS[k];
+
+				// Parallel apply from an empty apply cache
+				context.clearSpecialNodes();
+				context.addSpecialNode(dd1);
+				context.addSpecialNode(dd2);
+				context.flushCaches(false);
+				ConcurrentADD.APPLY_FORK_DEPTH = fork_depth;
+				int par = context.applyInt(dd1, dd2, op);
+
+				// Serial apply, again from an empty apply cache
+				context.addSpecialNode(par);
+				context.flushCaches(false);
+				ConcurrentADD.APPLY_FORK_DEPTH = 0;
+				int ser = context.applyInt(dd1, dd2, op);
+
+				if (par != ser) {
+					System.out.println("ERROR: round " + r + ", op " + op
+							+ ": parallel apply gave node " + par + " ("
+							+ context.countExactNodes(par) + " nodes), serial gave "
+							+ ser + " (" + context.countExactNodes(ser) + " nodes)");
+					System.exit(1);
+				}
+				checked++;
+			}
+			System.out.println("Round " + r + ": " + context.countExactNodes(dd1)
+					+ " x " + context.countExactNodes(dd2) + " nodes, ids match");
+		}
+		ConcurrentADD.APPLY_FORK_DEPTH = fork_depth;
+		System.out.println("\n" + checked + " applies checked (fork depth "
+				+ fork_depth + "), parallel and serial ids identical");
+	}
+}
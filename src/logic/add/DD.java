@@ -22,6 +22,8 @@ import graph.Graph;
 
 import java.io.*;
 import java.math.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.text.*;
 import java.util.*;
 
@@ -43,6 +45,7 @@ public abstract class DD {
     public final static int TYPE_ADD   = 1;
     public final static int TYPE_AADD  = 2;
     public final static int TYPE_LAADD  = 3;
+    public final static int TYPE_CADD   = 4; // Thread-safe ADD
 
 
     // Boolean/Arithmetic operation codes
@@ -57,6 +60,11 @@ public abstract class DD {
     public static final int RESTRICT_LOW  = 6;
     public static final int RESTRICT_HIGH = 7;
 
+    // Apply cache op of applyAndSumOut() entries is APPLY_SUM_OUT + the
+    // id of the cube of summed vars (above every code here, so calls
+    // summing out the same vars share entries until the next flush)
+    public static final int APPLY_SUM_OUT = 16;
+
     // Pruning replacement types
     public static final int NO_REPLACE    = 0;
     public static final int REPLACE_LOW   = 1;
@@ -80,6 +88,19 @@ public abstract class DD {
     public static int    PRUNE_TYPE       = NO_REPLACE;
     public static double PRUNE_PRECISION  = 1e-10;
 
+    // Node GC trigger settings (see needsFlush()), a negative
+    // GC_DEAD_RATIO means only flush on low memory
+    public static double GC_DEAD_RATIO = -1d;
+    public static long   GC_MIN_NODES  = 100000;
+
+    // Dynamic reordering settings (see reorder()): flushCaches() sifts
+    // the order once the node count exceeds REORDER_THRESHOLD (negative
+    // means only on an explicit reorder() call), and again each time the
+    // count doubles.  A sift direction is abandoned once the size grows
+    // past REORDER_MAX_GROWTH times the best size seen.
+    public static long   REORDER_THRESHOLD  = -1;
+    public static double REORDER_MAX_GROWTH = 1.2d;
+
     // For Comparison verification (see Compare.java)
     public static int MAX_ITER = 50;
         
@@ -109,6 +130,22 @@ public abstract class DD {
     // Nodes (and children) to keep when flushing caches
     public HashSet _hsSpecialNodes = new HashSet();
 
+    // Node count after the last flush (see needsFlush())
+    public long _lNodesAfterFlush = 0;
+
+    // Reordering state (see checkReorder())
+    public long    _lNextReorder = -1;
+    public boolean _bReordering  = false;
+
+    // While sifting: live internal nodes per level and references (live
+    // parents + special nodes) per node id, set up by initLiveCounts()
+    // and kept current by swapLevels() (null otherwise)
+    public int[] _anLevelCnt = null;
+    public int[] _anRefCnt   = null;
+
+    // Cache/prune counters and latencies of this context
+    public Metrics _metrics = new Metrics();
+
     //////////////////////////////////////////////////////////////////
     //                  Node Maintenance and Flushing
     //////////////////////////////////////////////////////////////////
@@ -129,6 +166,164 @@ public abstract class DD {
     // Flush caches but save special nodes.  
     public abstract void flushCaches(boolean print_info);
 
+    // Number of nodes currently held by this context (-1 if unknown)
+    public long getNodeCount() {
+	return -1;
+    }
+
+    // Node GC trigger policy: collect if free heap is below min_free_mem
+    // of total, or if the fraction of nodes created since the last
+    // flush exceeds GC_DEAD_RATIO (an upper estimate of the dead ratio)
+    // and the context holds at least GC_MIN_NODES nodes.
+    public boolean needsFlush(double min_free_mem) {
+
+	if (((double)RUNTIME.freeMemory() / 
+	     (double)RUNTIME.totalMemory()) <= min_free_mem) {
+	    return true;
+	}
+	long nodes = getNodeCount();
+	if (GC_DEAD_RATIO < 0d || nodes < GC_MIN_NODES) {
+	    return false;
+	}
+	return ((double)(nodes - _lNodesAfterFlush) / (double)nodes) > GC_DEAD_RATIO;
+    }
+
+    //////////////////////////////////////////////////////////////////
+    //                    Dynamic Variable Reordering
+    //////////////////////////////////////////////////////////////////
+
+    // Whether this implementation provides swapLevels()
+    public boolean canReorder() {
+	return false;
+    }
+
+    // Swaps the vars at level and level+1 in the node store, every
+    // node id must represent the same function afterwards.  Called by
+    // swapAdjacentLevels() before _alOrder/_hmGVarToLevel are updated.
+    public void swapLevels(int level) {
+    }
+
+    // Counts internal nodes reachable from the special nodes, adding
+    // the count per level to level_cnt if non-null
+    public long countLiveNodes(int[] level_cnt) {
+	return -1;
+    }
+
+    // Sets up _anLevelCnt and _anRefCnt from the special nodes, returns
+    // the number of live internal nodes
+    public long initLiveCounts() {
+	return -1;
+    }
+
+    public void swapAdjacentLevels(int level) {
+	swapLevels(level);
+	Integer x = (Integer)_alOrder.get(level);
+	Integer y = (Integer)_alOrder.get(level + 1);
+	_alOrder.set(level, y);
+	_alOrder.set(level + 1, x);
+	_hmGVarToLevel.put(y, new Integer(level));
+	_hmGVarToLevel.put(x, new Integer(level + 1));
+    }
+
+    // Called at the end of flushCaches(), reorders if the node count
+    // has grown past the REORDER_THRESHOLD policy
+    public void checkReorder() {
+	if (REORDER_THRESHOLD < 0 || _bReordering || !canReorder()) {
+	    return;
+	}
+	if (getNodeCount() > Math.max(REORDER_THRESHOLD, _lNextReorder)) {
+	    reorder();
+	    _lNextReorder = 2 * getNodeCount();
+	}
+    }
+
+    // Rudell's sifting: each var in turn (largest level first) is moved
+    // through the order by adjacent swaps and left at the position of
+    // smallest total size.  Only the special nodes (and their children)
+    // are kept, as in flushCaches(), but their ids remain valid.
+    public void reorder() {
+
+	if (!canReorder()) {
+	    System.out.println("DD.reorder: not supported by " + getClass().getName());
+	    return;
+	}
+
+	_bReordering = true;
+	flushCaches(false);
+
+	int nvars = _alOrder.size();
+	int[] level_cnt = new int[nvars];
+	countLiveNodes(level_cnt);
+
+	// Sift vars in decreasing order of their level sizes
+	ArrayList vars = new ArrayList();
+	for (int i = 0; i < nvars; i++) {
+	    if (level_cnt[i] > 0) {
+		vars.add(_alOrder.get(i));
+	    }
+	}
+	final HashMap var2cnt = new HashMap();
+	for (int i = 0; i < nvars; i++) {
+	    var2cnt.put(_alOrder.get(i), new Integer(level_cnt[i]));
+	}
+	Collections.sort(vars, new Comparator() {
+		public int compare(Object o1, Object o2) {
+		    return ((Integer)var2cnt.get(o2)).compareTo((Integer)var2cnt.get(o1));
+		}
+	    });
+
+	for (int v = 0; v < vars.size(); v++) {
+	    siftVar(((Integer)_hmGVarToLevel.get(vars.get(v))).intValue());
+	    flushCaches(false); // Clear out nodes left dead by the swaps
+	}
+	_bReordering = false;
+    }
+
+    // Sift the var at level to the best position in the order
+    public void siftVar(int level) {
+
+	int nvars    = _alOrder.size();
+	int pos      = level;
+	long size    = initLiveCounts();
+	long best    = size;
+	int best_pos = pos;
+
+	// Go to the closer end first
+	boolean down_first = (level >= nvars / 2);
+	for (int pass = 0; pass < 2; pass++) {
+	    boolean down = (pass == 0) ? down_first : !down_first;
+	    while (down ? pos < nvars - 1 : pos > 0) {
+		if (down) {
+		    swapAdjacentLevels(pos++);
+		} else {
+		    swapAdjacentLevels(--pos);
+		}
+		// Size from the level counts swapLevels() kept current (in an
+		// AADD a swap can change the counts of lower levels too)
+		size = 0;
+		for (int l = 0; l < nvars; l++) {
+		    size += _anLevelCnt[l];
+		}
+		if (size < best) {
+		    best = size;
+		    best_pos = pos;
+		} else if (size > REORDER_MAX_GROWTH * best) {
+		    break;
+		}
+	    }
+	}
+
+	// Move back to the best position
+	while (pos < best_pos) {
+	    swapAdjacentLevels(pos++);
+	}
+	while (pos > best_pos) {
+	    swapAdjacentLevels(--pos);
+	}
+	_anLevelCnt = null;
+	_anRefCnt   = null;
+    }
+
     //////////////////////////////////////////////////////////////////
     //                         Construction
     //////////////////////////////////////////////////////////////////
@@ -157,15 +352,223 @@ public abstract class DD {
     // For marginalizing out a node via sum, prod, max, or min.
     public abstract int opOut(int rid, int gid, int op);
 
+    // For marginalizing out a set of gids (a cube) via sum, prod, max,
+    // or min.  Generic version: one opOut() per gid in the current order.
+    public int opOut(int rid, Set gids, int op) {
+	Iterator i = sortByLevel(gids).iterator();
+	while (i.hasNext()) {
+	    rid = opOut(rid, ((Integer)i.next()).intValue(), op);
+	}
+	return rid;
+    }
+
     // For restricting a variable
     public abstract int restrict(int rid, int gid, int op);
 
+    // Sum out gid(s) from a1*a2, i.e. opOut(applyInt(a1, a2, ARITH_PROD),
+    // gids, ARITH_SUM).  Generic version does exactly that; ADD and Table
+    // override it to sum out without building the full product.
+    public int applyAndSumOut(int a1, int a2, int gid) {
+	HashSet gids = new HashSet();
+	gids.add(new Integer(gid));
+	return applyAndSumOut(a1, a2, gids);
+    }
+
+    public int applyAndSumOut(int a1, int a2, Set gids) {
+	return opOut(applyInt(a1, a2, ARITH_PROD), gids, ARITH_SUM);
+    }
+
+    // Returns gids as a list in the current order
+    public ArrayList sortByLevel(Set gids) {
+	ArrayList l = new ArrayList(gids);
+	Collections.sort(l, new Comparator() {
+		public int compare(Object o1, Object o2) {
+		    return ((Integer)_hmGVarToLevel.get(o1)).compareTo((Integer)_hmGVarToLevel.get(o2));
+		}
+	    });
+	return l;
+    }
+
     // Evaluate a DD: gid == val[assign_index] -> true/false
     public abstract double evaluate(int id, ArrayList assign);
 
     // Remap gids... gid_map = old_id -> new_id (assuming order consistent)
     public abstract int remapGIDsInt(int rid, HashMap gid_map);
 
+    // Copy node id of another context (of any type) into this one.
+    // Generic version expands on the top var of src via restrict();
+    // implementations override with a direct structural copy.
+    public int copy(DD src, int id) {
+	return copy(src, id, new HashMap());
+    }
+
+    public int copy(DD src, int id, HashMap cache) {
+
+	Integer key = new Integer(id);
+	Integer ret = (Integer)cache.get(key);
+	if (ret != null) {
+	    return ret.intValue();
+	}
+
+	// Find the top var of id in the src order
+	int top_gid = -1;
+	int top_level = Integer.MAX_VALUE;
+	Iterator i = src.getGIDs(id).iterator();
+	while (i.hasNext()) {
+	    Integer gid = (Integer)i.next();
+	    int level = ((Integer)src._hmGVarToLevel.get(gid)).intValue();
+	    if (level < top_level) {
+		top_level = level;
+		top_gid = gid.intValue();
+	    }
+	}
+
+	int new_id;
+	if (top_gid < 0) {
+	    new_id = getConstantNode(src.getMinValue(id));
+	} else {
+	    int high = copy(src, src.restrict(id, top_gid, RESTRICT_HIGH), cache);
+	    int low  = copy(src, src.restrict(id, top_gid, RESTRICT_LOW), cache);
+	    new_id = applyInt(applyInt(getVarNode(top_gid, 0d, 1d), high, ARITH_PROD),
+			      applyInt(getVarNode(top_gid, 1d, 0d), low, ARITH_PROD),
+			      ARITH_SUM);
+	}
+	cache.put(key, new Integer(new_id));
+	return new_id;
+    }
+
+    //////////////////////////////////////////////////////////////////
+    //                    Binary Save and Load
+    //////////////////////////////////////////////////////////////////
+
+    // Binary DD file (big endian, see saveBinary()): header, variable
+    // order and the DAG stored once with node records in topological
+    // order (children first) so loading needs no parsing or apply.
+    public static final int    BIN_MAGIC   = 0x44444246; // "DDBF"
+    public static final int    BIN_VERSION = 1;
+    public static final String BIN_EXT     = ".ddb";
+
+    // Node record format written by this DD type (-1 if unsupported)
+    public int getBinaryFormat() {
+	return -1;
+    }
+
+    // Write the node records of id (including the root), see the
+    // implementations for the record layout
+    public void writeBinaryNodes(int id, DataOutputStream os) throws IOException {
+	System.out.println("Binary save not supported for " + getClass().getName());
+	System.exit(1);
+    }
+
+    // Read node records from buf and return the root id; gid_map maps
+    // file gids to gids in this context
+    public int readBinaryNodes(ByteBuffer buf, HashMap gid_map) {
+	System.out.println("Binary load not supported for " + getClass().getName());
+	System.exit(1);
+	return -1;
+    }
+
+    // Layout: int magic, int version, int format, int #vars, then
+    // per var in order (int gid, UTF name or "" if id2var == null),
+    // then the node records.
+    public void saveBinary(int id, String filename, Map id2var) {
+	try {
+	    DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+		    new FileOutputStream(filename), 1 << 16));
+	    writeBinary(id, os, id2var);
+	    os.close();
+	} catch (IOException e) {
+	    System.out.println("Error writing DD file '" + filename + "': " + e);
+	    System.exit(1);
+	}
+    }
+
+    // Writes the saveBinary() layout of id to os (files containing
+    // several DDs, e.g. prob.mdp.Policy, embed one per DD)
+    public void writeBinary(int id, DataOutputStream os, Map id2var)
+	throws IOException {
+	os.writeInt(BIN_MAGIC);
+	os.writeInt(BIN_VERSION);
+	os.writeInt(getBinaryFormat());
+	os.writeInt(_alOrder.size());
+	Iterator i = _alOrder.iterator();
+	while (i.hasNext()) {
+	    Integer gid = (Integer)i.next();
+	    String name = (id2var == null) ? null : (String)id2var.get(gid);
+	    os.writeInt(gid.intValue());
+	    os.writeUTF(name == null ? "" : name);
+	}
+	writeBinaryNodes(id, os);
+    }
+
+    // Memory maps filename and loads its DD into this context.  If
+    // var2id is given, vars are matched by name, otherwise by gid.
+    public int loadBinary(String filename, Map var2id) {
+	return readBinary(MapFile(filename), var2id, filename);
+    }
+
+    public static MappedByteBuffer MapFile(String filename) {
+	MappedByteBuffer buf = null;
+	try {
+	    FileChannel fc = new RandomAccessFile(filename, "r").getChannel();
+	    buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+	    fc.close(); // Mapping remains valid
+	} catch (IOException e) {
+	    System.out.println("Error reading DD file '" + filename + "': " + e);
+	    System.exit(1);
+	}
+	return buf;
+    }
+
+    // Reads one DD written by writeBinary() starting at the position
+    // of buf (left just after it); filename is for error messages
+    public int readBinary(ByteBuffer buf, Map var2id, String filename) {
+	int magic   = buf.getInt();
+	int version = buf.getInt();
+	int format  = buf.getInt();
+	if (magic != BIN_MAGIC || version < 1 || version > BIN_VERSION) {
+	    System.out.println("'" + filename + "' is not a version " +
+			       BIN_VERSION + " DD file");
+	    System.exit(1);
+	}
+	if (format != getBinaryFormat()) {
+	    System.out.println("DD file '" + filename + "' has node format " +
+			       format + ", expected " + getBinaryFormat());
+	    System.exit(1);
+	}
+
+	// Map file gids to gids here
+	HashMap gid_map = new HashMap();
+	int nvars = buf.getInt();
+	for (int v = 0; v < nvars; v++) {
+	    Integer gid = new Integer(buf.getInt());
+	    String name = GetUTF(buf);
+	    Integer new_gid = gid;
+	    if (var2id != null && name.length() > 0) {
+		new_gid = (Integer)var2id.get(name);
+	    }
+	    if (new_gid == null || !_hmGVarToLevel.containsKey(new_gid)) {
+		System.out.println("DD file '" + filename + "': variable " +
+				   gid + " '" + name + "' not in order");
+		System.exit(1);
+	    }
+	    gid_map.put(gid, new_gid);
+	}
+	return readBinaryNodes(buf, gid_map);
+    }
+
+    // Reads a string written by DataOutput.writeUTF() (names are plain
+    // UTF-8 in practice)
+    public static String GetUTF(ByteBuffer buf) {
+	byte[] b = new byte[buf.getShort() & 0xffff];
+	buf.get(b);
+	try {
+	    return new String(b, "UTF-8");
+	} catch (UnsupportedEncodingException e) {
+	    return new String(b);
+	}
+    }
+
     //////////////////////////////////////////////////////////////////
     //                    Arithmetic Operations
     //////////////////////////////////////////////////////////////////
@@ -178,6 +581,18 @@ public abstract class DD {
     public abstract int    invert(int id); // -ADD
     public abstract int    negate(int id); // 1/ADD
 
+    // Max-norm distance max_x |a(x) - b(x)|, computed by walking a and
+    // b together without building a - b
+    public abstract double maxAbsDifference(int a, int b);
+
+    // One-sided max_x a(x) - b(x), also without building a - b (e.g.,
+    // to check that value iteration moves in one direction)
+    public abstract double maxDifference(int a, int b);
+
+    // maxAbsDifference(a, b) < eps, may stop at the first pair of
+    // leaves that differ by eps or more
+    public abstract boolean withinTolerance(int a, int b, double eps);
+
     //////////////////////////////////////////////////////////////////
     //                        Approximation
     //////////////////////////////////////////////////////////////////
@@ -210,6 +625,11 @@ public abstract class DD {
     // Show pruning information
     public abstract void pruneReport();
 
+    // Passes a snapshot of _metrics (plus fields) to its reporter, if set
+    public void reportMetrics(String event, Map fields) {
+	_metrics.report(this, event, fields);
+    }
+
     // Get graph of representation (for ADD, AADD)
     public abstract Graph getGraph(int id);
     public abstract Graph getGraph(int id, Map id2var);
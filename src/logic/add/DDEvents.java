@@ -0,0 +1,149 @@
+//////////////////////////////////////////////////////////////////////
+//
+// Decision Diagram Package (Java Flight Recorder events)
+//
+// Notes:
+// ------
+// - FBR emits these around its top-level operations, so any solver
+//   using FBR (MDP, BN) shows its DD work on the JMC timeline.
+// - Events cost little when no recording is running: the expensive
+//   fields (result node counts) are only computed once shouldCommit()
+//   says the event passed its enabled/duration settings.
+// - Apply events are also dropped if they created fewer than
+//   APPLY_MIN_NODES nodes (the many tiny applies are noise).  This is
+//   decided from the O(1) node counts FBR takes around the call, the
+//   result is only walked for events that pass (or for Table, which
+//   keeps no node count).
+//
+//////////////////////////////////////////////////////////////////////
+
+package logic.add;
+
+import jdk.jfr.*;
+
+public class DDEvents {
+
+	// Min number of nodes created for an Apply event to be committed
+	public static int APPLY_MIN_NODES = 1000;
+
+	public static String OpName(int op) {
+		switch (op) {
+		case DD.ARITH_SUM:     return "sum";
+		case DD.ARITH_PROD:    return "prod";
+		case DD.ARITH_MIN:     return "min";
+		case DD.ARITH_MAX:     return "max";
+		case DD.ARITH_DIV:     return "div";
+		case DD.ARITH_MINUS:   return "minus";
+		case DD.RESTRICT_LOW:  return "restrict_low";
+		case DD.RESTRICT_HIGH: return "restrict_high";
+		default:               return "op" + op;
+		}
+	}
+
+	@Name("logic.add.Apply")
+	@Label("DD Apply")
+	@Category({ "Decision Diagrams", "Operations" })
+	@Description("Top-level applyInt() or applyAndSumOut() that created many nodes")
+	@StackTrace(false)
+	public static class Apply extends Event {
+		@Label("DD Type") public String type;
+		@Label("Operation") public String op;
+		@Label("Result Nodes") public long resultNodes;
+		@Label("Nodes Created") public long nodesCreated;
+
+		// Call after end() with the node count taken before the apply
+		public void commit(DD context, String op_name, int result,
+				long nodes_before) {
+			if (!shouldCommit()) {
+				return;
+			}
+			long nodes = context.getNodeCount();
+			if (nodes >= 0) {
+				nodesCreated = Math.max(0, nodes - nodes_before);
+				if (nodesCreated < APPLY_MIN_NODES) {
+					return;
+				}
+				resultNodes = context.countExactNodes(result);
+			} else { // No node count (Table), filter on the result
+				resultNodes = context.countExactNodes(result);
+				if (resultNodes < APPLY_MIN_NODES) {
+					return;
+				}
+			}
+			type = context.getClass().getSimpleName();
+			op = op_name;
+			commit();
+		}
+	}
+
+	@Name("logic.add.OpOut")
+	@Label("DD OpOut")
+	@Category({ "Decision Diagrams", "Operations" })
+	@Description("Marginalizing variables out of a DD")
+	@StackTrace(false)
+	public static class OpOut extends Event {
+		@Label("DD Type") public String type;
+		@Label("Operation") public String op;
+		@Label("Variables") public int vars;
+		@Label("Result Nodes") public long resultNodes;
+
+		public void commit(DD context, int op_code, int vars_out, int result) {
+			if (!shouldCommit()) {
+				return;
+			}
+			type = context.getClass().getSimpleName();
+			op = OpName(op_code);
+			vars = vars_out;
+			resultNodes = context.countExactNodes(result);
+			commit();
+		}
+	}
+
+	@Name("logic.add.Flush")
+	@Label("DD Flush Caches")
+	@Category({ "Decision Diagrams", "Memory" })
+	@Description("Cache flush and node collection")
+	@StackTrace(false)
+	public static class Flush extends Event {
+		@Label("DD Type") public String type;
+		@Label("Special Nodes") public int specialNodes;
+		@Label("Nodes Kept") public long nodesKept;
+		@Label("Nodes Dropped") public long nodesDropped;
+
+		public void commit(DD context, long nodes_before) {
+			if (!shouldCommit()) {
+				return;
+			}
+			type = context.getClass().getSimpleName();
+			specialNodes = context._hsSpecialNodes.size();
+			nodesKept = context.getNodeCount();
+			nodesDropped = Math.max(0, nodes_before - nodesKept);
+			commit();
+		}
+	}
+
+	@Name("logic.add.Prune")
+	@Label("DD Prune")
+	@Category({ "Decision Diagrams", "Operations" })
+	@Description("Approximation by pruneNodes()")
+	@StackTrace(false)
+	public static class Prune extends Event {
+		@Label("DD Type") public String type;
+		@Label("Prune Type") public int pruneType;
+		@Label("Prune Precision") public double precision;
+		@Label("Nodes Before") public long nodesBefore;
+		@Label("Nodes After") public long nodesAfter;
+
+		public void commit(DD context, int id, int result) {
+			if (!shouldCommit()) {
+				return;
+			}
+			type = context.getClass().getSimpleName();
+			pruneType = DD.PRUNE_TYPE;
+			precision = DD.PRUNE_PRECISION;
+			nodesBefore = context.countExactNodes(id);
+			nodesAfter = context.countExactNodes(result);
+			commit();
+		}
+	}
+}
@@ -52,6 +52,9 @@ public class FBR {
 	case DD.TYPE_LAADD: {
 	    _context = new LAADD(order);
 	} break;
+	case DD.TYPE_CADD: {
+	    _context = new ConcurrentADD(order);
+	} break;
 	default: {
 	    System.out.println("FBR.Initialize: Illegal TYPE");
 	    System.exit(1);
@@ -113,7 +116,20 @@ public class FBR {
     // Flush caches but save special nodes.  
     public void flushCaches(boolean print_info) {
 
+	DDEvents.Flush e = new DDEvents.Flush();
+	long nodes = _context.getNodeCount();
+	e.begin();
+	long start = System.nanoTime();
 	_context.flushCaches(print_info);
+	_context._metrics.recordLatency(Metrics.FLUSH, start);
+	e.end();
+	e.commit(_context, nodes);
+    }
+
+    // Whether the GC trigger policy says a flush is due
+    public boolean needsFlush(double min_free_mem) {
+
+	return _context.needsFlush(min_free_mem);
     }
 
     //////////////////////////////////////////////////////////////////
@@ -148,6 +164,31 @@ public class FBR {
 
     }
 
+    // Save/load a DD in the binary format (see DD.saveBinary())
+    public void saveBinary(Object id, String filename, Map id2var) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    _context.saveBinary(((Integer)id).intValue(), filename, id2var);
+
+	} else {
+	    // Handle Pair
+	    // TODO
+	}
+    }
+
+    public Object loadBinary(String filename, Map var2id) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    return new Integer(_context.loadBinary(filename, var2id));
+
+	} else {
+	    // Handle Pair
+	    return null; // TODO
+	}
+    }
+
     // Build an ADD from a list (node is a list, high comes first for
     // internal nodes)
     public Object buildDDFromUnorderedTree(ArrayList l, Map var2ID) {
@@ -189,7 +230,15 @@ public class FBR {
 	    // Handle Integer
 	    Integer i1 = (Integer)a1;
 	    Integer i2 = (Integer)a2;
-	    return new Integer(_context.applyInt(i1.intValue(), i2.intValue(), op));
+	    DDEvents.Apply e = new DDEvents.Apply();
+	    long nodes = _context.getNodeCount();
+	    e.begin();
+	    long start = System.nanoTime();
+	    int ret = _context.applyInt(i1.intValue(), i2.intValue(), op);
+	    _context._metrics.recordLatency(Metrics.APPLY, start);
+	    e.end();
+	    e.commit(_context, DDEvents.OpName(op), ret, nodes);
+	    return new Integer(ret);
 
 	} else {
 	    // Handle Pair
@@ -206,7 +255,14 @@ public class FBR {
 	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
 	    // Handle Integer
 	    Integer i = (Integer)id;
-	    return new Integer(_context.opOut(i.intValue(), gid, op));
+	    DDEvents.OpOut e = new DDEvents.OpOut();
+	    e.begin();
+	    long start = System.nanoTime();
+	    int ret = _context.opOut(i.intValue(), gid, op);
+	    _context._metrics.recordLatency(Metrics.OP_OUT, start);
+	    e.end();
+	    e.commit(_context, op, 1, ret);
+	    return new Integer(ret);
 
 	} else {
 	    // Handle Pair
@@ -216,6 +272,28 @@ public class FBR {
 
     }
 
+    // For marginalizing out a set of gids via sum, prod, max, or min.
+    public Object opOut(Object id, Set gids, int op) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    Integer i = (Integer)id;
+	    DDEvents.OpOut e = new DDEvents.OpOut();
+	    e.begin();
+	    long start = System.nanoTime();
+	    int ret = _context.opOut(i.intValue(), gids, op);
+	    _context._metrics.recordLatency(Metrics.OP_OUT, start);
+	    e.end();
+	    e.commit(_context, op, gids.size(), ret);
+	    return new Integer(ret);
+
+	} else {
+	    // Handle Pair
+	    Pair p = (Pair)id;
+	    return null; // TODO
+	}
+    }
+
     // For restricting a variable
     public Object restrict(Object id, int gid, int op) {
 
@@ -232,6 +310,50 @@ public class FBR {
 
     }
 
+    // Sum out gid from a1*a2 (see DD.applyAndSumOut())
+    public Object applyAndSumOut(Object a1, Object a2, int gid) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    Integer i1 = (Integer)a1;
+	    Integer i2 = (Integer)a2;
+	    DDEvents.Apply e = new DDEvents.Apply();
+	    long nodes = _context.getNodeCount();
+	    e.begin();
+	    int ret = _context.applyAndSumOut(i1.intValue(), i2.intValue(), gid);
+	    e.end();
+	    e.commit(_context, "prod+sum", ret, nodes);
+	    return new Integer(ret);
+
+	} else {
+	    // Handle Pair
+	    return null; // TODO
+	}
+
+    }
+
+    // Sum out a set of gids (Integer) from a1*a2
+    public Object applyAndSumOut(Object a1, Object a2, Set gids) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    Integer i1 = (Integer)a1;
+	    Integer i2 = (Integer)a2;
+	    DDEvents.Apply e = new DDEvents.Apply();
+	    long nodes = _context.getNodeCount();
+	    e.begin();
+	    int ret = _context.applyAndSumOut(i1.intValue(), i2.intValue(), gids);
+	    e.end();
+	    e.commit(_context, "prod+sum", ret, nodes);
+	    return new Integer(ret);
+
+	} else {
+	    // Handle Pair
+	    return null; // TODO
+	}
+
+    }
+
     // Evaluate a DD: gid == val[assign_index] -> true/false
     public double evaluate(Object id, ArrayList assign) {
 
@@ -264,6 +386,22 @@ public class FBR {
 
     }
 
+    // Copy id from the src context into this one
+    public Object copy(FBR src, Object id) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    Integer i = (Integer)id;
+	    return new Integer(_context.copy(src._context, i.intValue()));
+
+	} else {
+	    // Handle Pair
+	    Pair p = (Pair)id;
+	    return null; // TODO
+	}
+
+    }
+
     //////////////////////////////////////////////////////////////////
     //                    Arithmetic Operations
     //////////////////////////////////////////////////////////////////
@@ -298,6 +436,48 @@ public class FBR {
 
     }
 
+    public double maxAbsDifference(Object a, Object b) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    return _context.maxAbsDifference(((Integer)a).intValue(),
+					     ((Integer)b).intValue());
+
+	} else {
+	    // Handle Pair
+	    return Double.NaN; // TODO
+	}
+
+    }
+
+    public double maxDifference(Object a, Object b) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    return _context.maxDifference(((Integer)a).intValue(),
+					  ((Integer)b).intValue());
+
+	} else {
+	    // Handle Pair
+	    return Double.NaN; // TODO
+	}
+
+    }
+
+    public boolean withinTolerance(Object a, Object b, double eps) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    return _context.withinTolerance(((Integer)a).intValue(),
+					    ((Integer)b).intValue(), eps);
+
+	} else {
+	    // Handle Pair
+	    return false; // TODO
+	}
+
+    }
+
     public Object scalarMultiply(Object id, double val) {
 
 	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
@@ -445,6 +625,11 @@ public class FBR {
 	_context.pruneReport();
     }
 
+    // See DD.reportMetrics()
+    public void reportMetrics(String event, Map fields) {
+	_context.reportMetrics(event, fields);
+    }
+
     // Print out a node
     public String printNode(Object id) {
 
@@ -547,7 +732,12 @@ public class FBR {
 
 	    // Not currently implemented in DD
 	    Integer i = (Integer)id;
-	    return new Integer(_context.pruneNodes(i.intValue()));
+	    DDEvents.Prune e = new DDEvents.Prune();
+	    e.begin();
+	    int ret = _context.pruneNodes(i.intValue());
+	    e.end();
+	    e.commit(_context, i.intValue(), ret);
+	    return new Integer(ret);
 
 	} else {
 	    // Handle Pair
@@ -27,7 +27,9 @@ package logic.add;
 
 import graph.Graph;
 
+import java.io.*;
 import java.math.*;
+import java.nio.*;
 import java.text.*;
 import java.util.*;
 
@@ -52,21 +54,6 @@ public class LAADD extends DD {
 	public static boolean PRINT_APPLY = false;
 	public static boolean DEBUG_PRUNE = false;
 
-	// Internal statistics
-	public static long APPLY_CALLS = 0;
-	public static int TERM_PRUNE_CNT = 0;
-	public static int PROD_PRUNE_CNT = 0;
-	public static int MIN_PRUNE_CNT = 0;
-	public static int MAX_PRUNE_CNT = 0;
-	public static int SUM_CACHE_HITS = 0;
-	public static int MAX_CACHE_HITS = 0;
-	public static int PROD_CACHE_HITS = 0;
-	public static int PRUNE_CACHE_HITS = 0;
-	public static int REDUCE_CACHE_HITS = 0;
-	public static int APPLY_CACHE_HITS = 0;
-	public static int PRECISION_PRUNES = 0;
-	public static int IDENT_PRUNES = 0;
-
 	// Local data for LAADD 
 	public LAADD _this = this; // For inner classes to access
 	public AADDRNode _pRoot; // local id of root node
@@ -85,9 +72,15 @@ public class LAADD extends DD {
 	public HashMap _hmReduceRemap; // maps <id> -> ADDNode (Reduce cache)
 	public HashMap _hmPruneMap; // maps <id> -> ADDNode (Prune cache)
 
-	public HashMap _hmNewNodes = null;
-	public Map _hmNewINodeCache = null;
-	public HashMap _hmNewRNodes = null;
+	// Ids released by flushCaches() for reuse
+	public int[] _anFreeINodeIDs = new int[16];
+	public int _nFreeINodeCnt = 0;
+	public int[] _anFreeRNodeIDs = new int[16];
+	public int _nFreeRNodeCnt = 0;
+
+	// Marks set during flushCaches()
+	public boolean[] _abKeepINodes = null;
+	public boolean[] _abKeepRNodes = null;
 
 	// Temp data
 	public SAINodeIndex _tmpSAINode1 = new SAINodeIndex(INVALID, INVALID,
@@ -179,6 +172,8 @@ public class LAADD extends DD {
 			//showCacheSize();
 			ResetTimer();
 		}
+		_metrics.inc(Metrics.FLUSHES);
+		_metrics.recordNodes(getNodeCount());
 
 		// Can always clear these
 		_hmApplyCache = USE_NODE_MERGING ? (Map) new TreeMap()
@@ -187,24 +182,18 @@ public class LAADD extends DD {
 		_hmReduceRemap = new HashMap();
 		_hmPruneMap = new HashMap();
 
-		// Set up temporary alternates to these HashMaps
-		_hmNewNodes = new HashMap();
-		_hmNewRNodes = new HashMap();
-		_hmNewINodeCache = USE_NODE_MERGING ? (Map) new TreeMap()
-				: (Map) new HashMap();
-
-		// Copy over 'special' nodes then set new maps
+		// Mark 'special' nodes (and their children) then sweep the rest
+		// out of the node tables in place
+		_abKeepINodes = new boolean[_nINodeIDCnt];
+		_abKeepRNodes = new boolean[_nRNodeIDCnt];
 		Iterator i = _hsSpecialNodes.iterator();
 		while (i.hasNext()) {
 			cacheRNode((ADDRNode) i.next());
 		}
-		_hmNodes = _hmNewNodes;
-		_hmRNodes = _hmNewRNodes;
-		_hmINodeCache = _hmNewINodeCache;
-
-		// Copy over the special zero ADDDNode
-		ADDRNode zero_ref = new ADDRNode(0);
-		_hmNodes.put(zero_ref, _zeroDNode);
+		releaseUnmarkedNodes();
+		_abKeepINodes = null;
+		_abKeepRNodes = null;
+		_lNodesAfterFlush = getNodeCount();
 
 		// Print results
 		if (GC_DURING_FLUSH) {
@@ -221,23 +210,62 @@ public class LAADD extends DD {
 		} // Print starting info
 	}
 
-	public void cacheINode(ADDRNode r) {
-		if (r._lid == 0 || _hmNewNodes.containsKey(r)) {
+	public void cacheINode(int lid) {
+		if (lid == 0 || _abKeepINodes[lid]) {
 			return;
 		}
-		AADDINode ni = (AADDINode) _hmNodes.get(r);
-		_hmNewNodes.put(r, ni);
-		_hmNewINodeCache.put(new SAINodeIndex(ni._nGlobalID, ni._nLow,
-				ni._nHigh, ni._dLowOffset, ni._dLowMult, ni._dHighOffset,
-				ni._dHighMult), r);
-		cacheINode(new ADDRNode(ni._nLow));
-		cacheINode(new ADDRNode(ni._nHigh));
+		_abKeepINodes[lid] = true;
+		AADDINode ni = (AADDINode) getNode(lid);
+		cacheINode(ni._nLow);
+		cacheINode(ni._nHigh);
 	}
 
 	public void cacheRNode(ADDRNode r) {
+		_abKeepRNodes[r._lid] = true;
 		AADDRNode n = (AADDRNode) _hmRNodes.get(r);
-		_hmNewRNodes.put(r, n);
-		cacheINode(new ADDRNode(n._nRefID));
+		cacheINode(n._nRefID);
+	}
+
+	// Removes every node not marked during flushCaches() from the node
+	// maps and unique table and recycles its id; live nodes are untouched
+	public void releaseUnmarkedNodes() {
+
+		Iterator i = _hmNodes.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry me = (Map.Entry) i.next();
+			int lid = ((ADDRNode) me.getKey())._lid;
+			if (lid == 0 || _abKeepINodes[lid]) {
+				continue;
+			}
+			AADDINode ni = (AADDINode) me.getValue();
+			_tmpSAINode1.set(ni._nGlobalID, ni._nLow, ni._nHigh,
+					ni._dLowOffset, ni._dLowMult, ni._dHighOffset,
+					ni._dHighMult);
+			ADDRNode ref = (ADDRNode) _hmINodeCache.get(_tmpSAINode1);
+			if (ref != null && ref._lid == lid) {
+				_hmINodeCache.remove(_tmpSAINode1);
+			}
+			i.remove();
+			if (_nFreeINodeCnt == _anFreeINodeIDs.length) {
+				_anFreeINodeIDs = Arrays.copyOf(_anFreeINodeIDs,
+						_nFreeINodeCnt << 1);
+			}
+			_anFreeINodeIDs[_nFreeINodeCnt++] = lid;
+		}
+
+		i = _hmRNodes.keySet().iterator();
+		while (i.hasNext()) {
+			int rid = ((ADDRNode) i.next())._lid;
+			if (_abKeepRNodes[rid]) {
+				continue;
+			}
+			i.remove();
+			if (_nFreeRNodeCnt == _anFreeRNodeIDs.length) {
+				_anFreeRNodeIDs = Arrays.copyOf(_anFreeRNodeIDs,
+						_nFreeRNodeCnt << 1);
+			}
+			_anFreeRNodeIDs[_nFreeRNodeCnt++] = rid;
+		}
 	}
 
 	//////////////////////////////////////////////////////////////////
@@ -258,6 +286,10 @@ public class LAADD extends DD {
 				+ _hmINodeCache.size() + _hmRNodes.size();
 	}
 
+	public long getNodeCount() {
+		return _hmNodes.size() + _hmRNodes.size();
+	}
+
 	// An exact count for the LAADD rooted at _pRoot
 	public long countExactNodesFromINode(int iid) {
 		HashSet cset = new HashSet();
@@ -341,7 +373,8 @@ public class LAADD extends DD {
 	// Returns rid for node
 	public int addRNodeRef(AADDRNode r) {
 
-		int rid = _nRNodeIDCnt++;
+		int rid = (_nFreeRNodeCnt > 0) ? _anFreeRNodeIDs[--_nFreeRNodeCnt]
+				: _nRNodeIDCnt++;
 		ADDRNode ref = new ADDRNode(rid);
 		_hmRNodes.put(ref, r);
 
@@ -372,7 +405,8 @@ public class LAADD extends DD {
 			double o_h, double m_h) {
 
 		//System.out.println("Create: <" + gid + "," + low + "," + high + ">  ->  " + _nRefIDCnt);
-		int lid = _nINodeIDCnt++;
+		int lid = (_nFreeINodeCnt > 0) ? _anFreeINodeIDs[--_nFreeINodeCnt]
+				: _nINodeIDCnt++;
 		ADDRNode ref = new ADDRNode(lid);
 		AADDINode n = new AADDINode(lid, gid, low, high, o_l, m_l, o_h, m_h);
 
@@ -584,10 +618,10 @@ public class LAADD extends DD {
 		if (r._nRefID == 0) {
 			return getDNode(r._dOffset * val, true);
 		} else if (val == 0d) {
-			PROD_PRUNE_CNT++;
+			_metrics.inc(Metrics.PROD_PRUNES);
 			return new AADDRNode(0, 0d, 0d);
 		} else if (val > 0d) {
-			PROD_PRUNE_CNT++;
+			_metrics.inc(Metrics.PROD_PRUNES);
 			return new AADDRNode(r._nRefID, val * r._dOffset, val * r._dMult);
 		}
 
@@ -646,6 +680,70 @@ public class LAADD extends DD {
 		return addRNodeRef(ret);
 	}
 
+	public double maxAbsDifference(int a, int b) {
+		AADDRNode ra = getRNode(a);
+		AADDRNode rb = getRNode(b);
+		double[] range = diffRange(ra._dOffset, ra._dMult, ra._nRefID,
+				rb._dOffset, rb._dMult, rb._nRefID, new HashMap());
+		return Math.max(Math.abs(range[0]), Math.abs(range[1]));
+	}
+
+	// Max of a - b is the upper end of diffRange()
+	public double maxDifference(int a, int b) {
+		AADDRNode ra = getRNode(a);
+		AADDRNode rb = getRNode(b);
+		return diffRange(ra._dOffset, ra._dMult, ra._nRefID, rb._dOffset,
+				rb._dMult, rb._nRefID, new HashMap())[1];
+	}
+
+	public boolean withinTolerance(int a, int b, double eps) {
+		return maxAbsDifference(a, b) < eps;
+	}
+
+	// [min, max] of a - b where a is reached by edge <o1, m1> to local
+	// id n1 (likewise b).  Edges combine as in evaluate(), so a value
+	// below n1 is log(e^o1 + e^m1 * g1) for a path term g1, that is
+	// m1 + log(e^(o1 - m1) + g1).  A node pair's result then depends
+	// only on o1 - m1 and o2 - m2, so pairs are cached on those.
+	public double[] diffRange(double o1, double m1, int n1, double o2,
+			double m2, int n2, HashMap cache) {
+		double[] g = diffRange(n1, n2, o1 - m1, o2 - m2, cache);
+		return new double[] { m1 - m2 + g[0], m1 - m2 + g[1] };
+	}
+
+	// [min, max] of a - b below local ids n1, n2 reached by edges
+	// <q1, 0> and <q2, 0>
+	public double[] diffRange(int n1, int n2, double q1, double q2,
+			HashMap cache) {
+		if (n1 == 0 && n2 == 0) {
+			return new double[] { q1 - q2, q1 - q2 };
+		}
+		SAINodeIndex key = new SAINodeIndex(INVALID, n1, n2, q1, q2, 0d, 0d);
+		double[] ret = (double[]) cache.get(key);
+		if (ret != null) {
+			return ret;
+		}
+
+		AADDINode a = (n1 == 0) ? null : (AADDINode) getNode(n1);
+		AADDINode b = (n2 == 0) ? null : (AADDINode) getNode(n2);
+		int gid = (a != null && (b == null || comesBefore(a._nGlobalID,
+				b._nGlobalID))) ? a._nGlobalID : b._nGlobalID;
+		boolean sa = (a != null && a._nGlobalID == gid);
+		boolean sb = (b != null && b._nGlobalID == gid);
+		double[] low = diffRange(sa ? logsum(q1, a._dLowOffset) : q1,
+				sa ? a._dLowMult : 0d, sa ? a._nLow : n1,
+				sb ? logsum(q2, b._dLowOffset) : q2,
+				sb ? b._dLowMult : 0d, sb ? b._nLow : n2, cache);
+		double[] high = diffRange(sa ? logsum(q1, a._dHighOffset) : q1,
+				sa ? a._dHighMult : 0d, sa ? a._nHigh : n1,
+				sb ? logsum(q2, b._dHighOffset) : q2,
+				sb ? b._dHighMult : 0d, sb ? b._nHigh : n2, cache);
+		ret = new double[] { Math.min(low[0], high[0]),
+				Math.max(low[1], high[1]) };
+		cache.put(key, ret);
+		return ret;
+	}
+
 	///////////////////////////////////////////////////////////////////////////
 	//                         Approximation Algorithms
 	///////////////////////////////////////////////////////////////////////////
@@ -1116,15 +1214,15 @@ public class LAADD extends DD {
 				}
 					break;
 				case REPLACE_MIN: {
-					PRECISION_PRUNES++;
+					_metrics.inc(Metrics.PRECISION_PRUNES);
 					retp = new PruneResult(getDNode(r._dOffset, true), allow_error - range);
 				} break;
 				case REPLACE_MAX: {
-					PRECISION_PRUNES++;
+					_metrics.inc(Metrics.PRECISION_PRUNES);
 					retp = new PruneResult(getDNode(r._dOffset + r._dMult, true), allow_error - range);
 				} break;
 				case REPLACE_AVG: {
-					PRECISION_PRUNES++;
+					_metrics.inc(Metrics.PRECISION_PRUNES);
 					retp = new PruneResult(getDNode((r._dOffset + r._dMult) / 2d, true), allow_error - range);
 				} break;
 				default: {
@@ -1182,19 +1280,19 @@ public class LAADD extends DD {
 						}
 							break;
 						case REPLACE_MIN: {
-							PRECISION_PRUNES++;
+							_metrics.inc(Metrics.PRECISION_PRUNES);
 							retp = new PruneResult(new AADDRNode(low._nRefID, 
 									Math.min(low._dOffset, high._dOffset), 
 									Math.min(low._dMult, high._dMult)), ret._allow_err - approx_err);
 						} break;
 						case REPLACE_MAX: {
-							PRECISION_PRUNES++;
+							_metrics.inc(Metrics.PRECISION_PRUNES);
 							retp = new PruneResult(new AADDRNode(low._nRefID, 
 									Math.max(low._dOffset, high._dOffset), 
 									Math.max(low._dMult, high._dMult)), ret._allow_err - approx_err);
 						} break;
 						case REPLACE_AVG: {
-							PRECISION_PRUNES++;
+							_metrics.inc(Metrics.PRECISION_PRUNES);
 							// Error is 2* here b/c for a fun value, may go +approx_err/2 
 							// on one side and -approx_err/2 on other
 							retp = new PruneResult(new AADDRNode(low._nRefID, 
@@ -1376,7 +1474,7 @@ public class LAADD extends DD {
 				//System.out.println("---------------------------------");
 				// ////////////////////////////////////////////
 
-				PRECISION_PRUNES++;
+				_metrics.inc(Metrics.PRECISION_PRUNES);
 
 			} else {
 
@@ -1388,10 +1486,11 @@ public class LAADD extends DD {
 			}
 
 			// Cache the node in canonical form
+			_metrics.inc(Metrics.PRUNE_MISSES);
 			_hmPruneMap.put(new ADDRNode(r._nRefID), ret._rnode);
 
 		} else {
-			PRUNE_CACHE_HITS++;
+			_metrics.inc(Metrics.PRUNE_HITS);
 		}
 
 		//PRUNE_PRECISION += ;
@@ -1464,9 +1563,10 @@ public class LAADD extends DD {
 					true);
 
 			// Cache the node in canonical form
+			_metrics.inc(Metrics.REDUCE_MISSES);
 			_hmReduceRemap.put(key, ret);
 		} else {
-			REDUCE_CACHE_HITS++;
+			_metrics.inc(Metrics.REDUCE_HITS);
 		}
 
 		// Return cached value modified by offset
@@ -1541,9 +1641,10 @@ public class LAADD extends DD {
 			}
 
 			// Cache the node in canonical form
+			_metrics.inc(Metrics.REDUCE_MISSES);
 			_hmReduceMap.put(key, ret);
 		} else {
-			REDUCE_CACHE_HITS++;
+			_metrics.inc(Metrics.REDUCE_HITS);
 		}
 
 		// Return cached value modified by offset
@@ -1620,6 +1721,105 @@ public class LAADD extends DD {
 		}
 	}
 
+	// Like getINode() but gid need not come before the top vars of low
+	// and high in which case if-then-else(gid, high, low) is built by
+	// apply
+	public AADDRNode getOrderedINode(int gid, AADDRNode low, AADDRNode high) {
+		if (isAbove(gid, low._nRefID) && isAbove(gid, high._nRefID)) {
+			return getINode(gid, low._nRefID, high._nRefID, low._dOffset,
+					low._dMult, high._dOffset, high._dMult, true);
+		}
+		AADDRNode high_br = applyInt(getVarNodeInt(gid, 0d, 1d), high,
+				ARITH_PROD);
+		AADDRNode low_br = applyInt(getVarNodeInt(gid, 1d, 0d), low,
+				ARITH_PROD);
+		return applyInt(high_br, low_br, ARITH_SUM);
+	}
+
+	// Can a gid node be placed directly above id in the current order?
+	public boolean isAbove(int gid, int id) {
+		if (id == 0) {
+			return true;
+		}
+		int child_gid = ((AADDINode) getNode(id))._nGlobalID;
+		return gid != child_gid && comesBefore(gid, child_gid);
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Binary save and load (see DD.saveBinary())
+	// ////////////////////////////////////////////////////////////////
+
+	// Node records: int #inodes, then per inode (children first) int
+	// gid, int low, double o_l, double m_l, int high, double o_h,
+	// double m_h where children are record indices (0 is the zero
+	// node, inodes are 1..#inodes), then the root edge double offset,
+	// double mult, int index
+	public int getBinaryFormat() {
+		return TYPE_LAADD;
+	}
+
+	public void writeBinaryNodes(int rid, DataOutputStream os)
+			throws IOException {
+		AADDRNode r = getRNode(rid);
+		HashMap index = new HashMap();
+		ArrayList nodes = new ArrayList();
+		index.put(new Integer(0), new Integer(0));
+		collectPostOrder(r._nRefID, index, nodes);
+
+		os.writeInt(nodes.size());
+		for (int i = 0; i < nodes.size(); i++) {
+			AADDINode ni = (AADDINode) nodes.get(i);
+			os.writeInt(ni._nGlobalID);
+			os.writeInt(((Integer) index.get(new Integer(ni._nLow))).intValue());
+			os.writeDouble(ni._dLowOffset);
+			os.writeDouble(ni._dLowMult);
+			os.writeInt(((Integer) index.get(new Integer(ni._nHigh))).intValue());
+			os.writeDouble(ni._dHighOffset);
+			os.writeDouble(ni._dHighMult);
+		}
+		os.writeDouble(r._dOffset);
+		os.writeDouble(r._dMult);
+		os.writeInt(((Integer) index.get(new Integer(r._nRefID))).intValue());
+	}
+
+	// Numbers inodes below local_id from 1 in post-order
+	public void collectPostOrder(int local_id, HashMap index, ArrayList nodes) {
+		Integer key = new Integer(local_id);
+		if (index.containsKey(key)) {
+			return;
+		}
+		AADDINode ni = (AADDINode) getNode(local_id);
+		collectPostOrder(ni._nLow, index, nodes);
+		collectPostOrder(ni._nHigh, index, nodes);
+		nodes.add(ni);
+		index.put(key, new Integer(nodes.size()));
+	}
+
+	public int readBinaryNodes(ByteBuffer buf, HashMap gid_map) {
+		// As in copyINode(), node i of the file == o + m * local id
+		int cnt = buf.getInt();
+		AADDRNode[] nodes = new AADDRNode[cnt + 1];
+		nodes[0] = new AADDRNode(0, 0d, 1d);
+		for (int i = 1; i <= cnt; i++) {
+			Integer gid = (Integer) gid_map.get(new Integer(buf.getInt()));
+			AADDRNode l = nodes[buf.getInt()];
+			double o_l = buf.getDouble();
+			double m_l = buf.getDouble();
+			AADDRNode h = nodes[buf.getInt()];
+			double o_h = buf.getDouble();
+			double m_h = buf.getDouble();
+			nodes[i] = getOrderedINode(gid.intValue(), new AADDRNode(
+					l._nRefID, o_l + m_l * l._dOffset, m_l * l._dMult),
+					new AADDRNode(h._nRefID, o_h + m_h * h._dOffset, m_h
+							* h._dMult));
+		}
+		double offset = buf.getDouble();
+		double mult = buf.getDouble();
+		AADDRNode n = nodes[buf.getInt()];
+		return addRNodeRef(new AADDRNode(n._nRefID, offset + mult
+				* n._dOffset, mult * n._dMult));
+	}
+
 	public boolean verifyOrder(int id) {
 		return verifyOrder(getRNode(id)._nRefID, -1);
 	}
@@ -1753,24 +1953,10 @@ public class LAADD extends DD {
 		if ((ret = (AADDRNode) _hmApplyCache.get(key)) != null) {
 
 			// Just keep track of cache statistics
-			switch (op) {
-			case ARITH_SUM:
-			case ARITH_MINUS:
-				SUM_CACHE_HITS++;
-				break;
-			case ARITH_PROD:
-				PROD_CACHE_HITS++;
-				break;
-			case ARITH_MAX:
-			case ARITH_MIN:
-				MAX_CACHE_HITS++;
-				break;
-			default:
-				APPLY_CACHE_HITS++;
-				break;
-			}
+			_metrics.applyHit(op);
 
 		} else { // ret is null, must recurse
+			_metrics.applyMiss(op);
 
 			// Not in cache and at least one node must be internal.
 			int rvar, id_v1_low, id_v1_high;
@@ -1936,11 +2122,11 @@ public class LAADD extends DD {
 				if ((a1._dOffset + a1._dMult) <= a2._dOffset) {
 					// max of a1 is less than min of a2
 					ret = a1;
-					MIN_PRUNE_CNT++;
+					_metrics.inc(Metrics.MIN_PRUNES);
 				} else if ((a2._dOffset + a2._dMult) <= a1._dOffset) {
 					// max of a2 is less than min of a1
 					ret = a2;
-					MIN_PRUNE_CNT++;
+					_metrics.inc(Metrics.MIN_PRUNES);
 				}
 
 			} else if (op == ARITH_MAX) {
@@ -1948,11 +2134,11 @@ public class LAADD extends DD {
 				if ((a1._dOffset + a1._dMult) <= a2._dOffset) {
 					// max of a1 is less than min of a2
 					ret = a2;
-					MAX_PRUNE_CNT++;
+					_metrics.inc(Metrics.MAX_PRUNES);
 				} else if ((a2._dOffset + a2._dMult) <= a1._dOffset) {
 					// max of a2 is less than min of a1
 					ret = a1;
-					MAX_PRUNE_CNT++;
+					_metrics.inc(Metrics.MAX_PRUNES);
 				}
 
 			}
@@ -1979,7 +2165,7 @@ public class LAADD extends DD {
 					ret = new AADDRNode(other._nRefID, tnode._dOffset
 							+ other._dOffset, other._dMult);
 
-					TERM_PRUNE_CNT++;
+					_metrics.inc(Metrics.TERM_PRUNES);
 				}
 					break;
 				case ARITH_PROD: {
@@ -1994,8 +2180,8 @@ public class LAADD extends DD {
 						ret = scalarMultiply(other, tnode._dOffset);
 					}
 						
-					PROD_PRUNE_CNT++;
-					TERM_PRUNE_CNT++;
+					_metrics.inc(Metrics.PROD_PRUNES);
+					_metrics.inc(Metrics.TERM_PRUNES);
 					//if (PRINTING_ON) System.out.println("CTerm 1");
 				}
 					break;
@@ -2012,7 +2198,7 @@ public class LAADD extends DD {
 						ret = new AADDRNode(other._nRefID, other._dOffset
 								- tnode._dOffset, other._dMult);
 					}
-					TERM_PRUNE_CNT++;
+					_metrics.inc(Metrics.TERM_PRUNES);
 				}
 					break;
 				}
@@ -2067,7 +2253,7 @@ public class LAADD extends DD {
 			}
 
 			if (ret != null) {
-				IDENT_PRUNES++;
+				_metrics.inc(Metrics.IDENT_PRUNES);
 			}
 
 		}
@@ -2364,18 +2550,19 @@ public class LAADD extends DD {
 
 	public void pruneReport() {
 		System.out.println("Prune Report:\n-------------");
-		System.out.println("TERM: " + TERM_PRUNE_CNT++);
-		System.out.println("PROD: " + PROD_PRUNE_CNT++);
-		System.out.println("MIN:  " + MIN_PRUNE_CNT++);
-		System.out.println("MAX:  " + MAX_PRUNE_CNT++ + "\n");
-		System.out.println("IDENT PRUNES:      " + IDENT_PRUNES++);
-		System.out.println("PRECISION PRUNES:  " + PRECISION_PRUNES++);
-		System.out.println("REDUCE CACHE HITS: " + REDUCE_CACHE_HITS++);
-		System.out.println("APPLY CACHE HITS:  " + APPLY_CACHE_HITS++ + "\n");
-		System.out.println("PRUNE CACHE HITS:  " + PRUNE_CACHE_HITS++);
-		System.out.println("SUM CACHE HITS:    " + SUM_CACHE_HITS++);
-		System.out.println("PROD CACHE HITS:   " + PROD_CACHE_HITS++);
-		System.out.println("MAX CACHE HITS:    " + MAX_CACHE_HITS++);
+		long[] op_hits = _metrics._alOpHits;
+		System.out.println("TERM: " + _metrics.get(Metrics.TERM_PRUNES));
+		System.out.println("PROD: " + _metrics.get(Metrics.PROD_PRUNES));
+		System.out.println("MIN:  " + _metrics.get(Metrics.MIN_PRUNES));
+		System.out.println("MAX:  " + _metrics.get(Metrics.MAX_PRUNES) + "\n");
+		System.out.println("IDENT PRUNES:      " + _metrics.get(Metrics.IDENT_PRUNES));
+		System.out.println("PRECISION PRUNES:  " + _metrics.get(Metrics.PRECISION_PRUNES));
+		System.out.println("REDUCE CACHE HITS: " + _metrics.get(Metrics.REDUCE_HITS));
+		System.out.println("APPLY CACHE HITS:  " + _metrics.get(Metrics.APPLY_HITS) + "\n");
+		System.out.println("PRUNE CACHE HITS:  " + _metrics.get(Metrics.PRUNE_HITS));
+		System.out.println("SUM CACHE HITS:    " + (op_hits[ARITH_SUM] + op_hits[ARITH_MINUS]));
+		System.out.println("PROD CACHE HITS:   " + op_hits[ARITH_PROD]);
+		System.out.println("MAX CACHE HITS:    " + (op_hits[ARITH_MAX] + op_hits[ARITH_MIN]));
 	}
 
 	// Helper class for comparing IDs
@@ -0,0 +1,322 @@
+//////////////////////////////////////////////////////////////////////
+//
+// Decision Diagram Package (Per-context statistics)
+//
+// Notes:
+// ------
+// - Every DD context owns one Metrics (DD._metrics).  Counters are
+//   plain longs updated inline by the implementations, so the counts
+//   of a ConcurrentADD (updated by several worker threads without
+//   synchronization) are approximate.
+// - FBR records the latency of each top-level applyInt(), opOut() and
+//   flushCaches() in a histogram with log2(ns) buckets.
+// - Solvers call DD.reportMetrics() at points of interest; if a
+//   Reporter is set it receives a snapshot map (String -> Number,
+//   String or Map).  JSONLinesReporter writes one JSON object per line.
+//
+//////////////////////////////////////////////////////////////////////
+
+package logic.add;
+
+import java.io.*;
+import java.util.*;
+
+public class Metrics {
+
+	// Counter indices into _alCount
+	public static final int APPLY_HITS       = 0;
+	public static final int APPLY_MISSES     = 1;
+	public static final int APPLY_COLLISIONS = 2;
+	public static final int REDUCE_HITS      = 3;
+	public static final int REDUCE_MISSES    = 4;
+	public static final int PRUNE_HITS       = 5;
+	public static final int PRUNE_MISSES     = 6;
+	public static final int PRECISION_PRUNES = 7;
+	public static final int IDENT_PRUNES     = 8;
+	public static final int TERM_PRUNES      = 9;
+	public static final int AND_PRUNES       = 10;
+	public static final int OR_PRUNES        = 11;
+	public static final int PROD_PRUNES      = 12;
+	public static final int MIN_PRUNES       = 13;
+	public static final int MAX_PRUNES       = 14;
+	public static final int FLUSHES          = 15;
+
+	public static final String[] COUNTER_NAMES = { "apply_hits",
+			"apply_misses", "apply_collisions", "reduce_hits",
+			"reduce_misses", "prune_hits", "prune_misses",
+			"precision_prunes", "ident_prunes", "term_prunes", "and_prunes",
+			"or_prunes", "prod_prunes", "min_prunes", "max_prunes", "flushes" };
+
+	// Apply cache hits/misses are also kept per DD.ARITH_* op
+	public static final String[] OP_NAMES = { "sum", "prod", "min", "max",
+			"div", "minus" };
+
+	// Latency histograms
+	public static final int APPLY     = 0;
+	public static final int OP_OUT    = 1;
+	public static final int FLUSH     = 2;
+
+	public static final String[] LATENCY_NAMES = { "applyInt", "opOut",
+			"flushCaches" };
+
+	public static int NEXT_ID = 0;
+
+	public int _nID; // Distinguishes contexts in one JVM
+	public long[] _alCount = new long[COUNTER_NAMES.length];
+	public long[] _alOpHits = new long[OP_NAMES.length];
+	public long[] _alOpMisses = new long[OP_NAMES.length];
+	public Histogram[] _aLatency = new Histogram[LATENCY_NAMES.length];
+	public long _lPeakNodes = 0;  // Max node count seen before a flush
+	public long _lLastNodes = 0;  // Node count at the last snapshot
+	public long _lStartTime = System.currentTimeMillis();
+	public Reporter _reporter = null;
+
+	public Metrics() {
+		synchronized (Metrics.class) {
+			_nID = NEXT_ID++;
+		}
+		for (int i = 0; i < _aLatency.length; i++) {
+			_aLatency[i] = new Histogram();
+		}
+	}
+
+	public void reset() {
+		Arrays.fill(_alCount, 0);
+		Arrays.fill(_alOpHits, 0);
+		Arrays.fill(_alOpMisses, 0);
+		for (int i = 0; i < _aLatency.length; i++) {
+			_aLatency[i] = new Histogram();
+		}
+		_lPeakNodes = _lLastNodes = 0;
+		_lStartTime = System.currentTimeMillis();
+	}
+
+	public void inc(int counter) {
+		_alCount[counter]++;
+	}
+
+	public long get(int counter) {
+		return _alCount[counter];
+	}
+
+	public void applyHit(int op) {
+		_alCount[APPLY_HITS]++;
+		if (op >= 0 && op < OP_NAMES.length) {
+			_alOpHits[op]++;
+		}
+	}
+
+	public void applyMiss(int op) {
+		_alCount[APPLY_MISSES]++;
+		if (op >= 0 && op < OP_NAMES.length) {
+			_alOpMisses[op]++;
+		}
+	}
+
+	public void recordLatency(int which, long start_ns) {
+		_aLatency[which].record(System.nanoTime() - start_ns);
+	}
+
+	// Called before a flush, when the node table is at its largest
+	public void recordNodes(long nodes) {
+		if (nodes > _lPeakNodes) {
+			_lPeakNodes = nodes;
+		}
+	}
+
+	public static double HitRate(long hits, long misses) {
+		return (hits + misses == 0) ? 0d : (double) hits
+				/ (double) (hits + misses);
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Snapshots and reporting
+	// ////////////////////////////////////////////////////////////////
+
+	// All statistics of context (which owns this Metrics) plus the
+	// caller's fields
+	public LinkedHashMap snapshot(DD context, String event, Map fields) {
+
+		LinkedHashMap m = new LinkedHashMap();
+		m.put("event", event);
+		m.put("context", new Integer(_nID));
+		m.put("type", context.getClass().getSimpleName());
+		m.put("elapsed_ms", new Long(System.currentTimeMillis() - _lStartTime));
+		if (fields != null) {
+			m.putAll(fields);
+		}
+
+		// Node table size and growth since the last snapshot (if the
+		// context keeps a node table)
+		long nodes = context.getNodeCount();
+		if (nodes >= 0) {
+			recordNodes(nodes);
+			m.put("nodes", new Long(nodes));
+			m.put("nodes_growth", new Long(nodes - _lLastNodes));
+			m.put("nodes_since_flush", new Long(nodes
+					- context._lNodesAfterFlush));
+			m.put("nodes_peak", new Long(_lPeakNodes));
+			_lLastNodes = nodes;
+		}
+		m.put("cache_size", new Long(context.getCacheSize()));
+
+		LinkedHashMap counts = new LinkedHashMap();
+		for (int i = 0; i < COUNTER_NAMES.length; i++) {
+			counts.put(COUNTER_NAMES[i], new Long(_alCount[i]));
+		}
+		m.put("counters", counts);
+
+		LinkedHashMap rates = new LinkedHashMap();
+		rates.put("apply", new Double(HitRate(_alCount[APPLY_HITS],
+				_alCount[APPLY_MISSES])));
+		rates.put("reduce", new Double(HitRate(_alCount[REDUCE_HITS],
+				_alCount[REDUCE_MISSES])));
+		rates.put("prune", new Double(HitRate(_alCount[PRUNE_HITS],
+				_alCount[PRUNE_MISSES])));
+		for (int op = 0; op < OP_NAMES.length; op++) {
+			if (_alOpHits[op] + _alOpMisses[op] > 0) {
+				rates.put("apply_" + OP_NAMES[op], new Double(HitRate(
+						_alOpHits[op], _alOpMisses[op])));
+			}
+		}
+		m.put("hit_rates", rates);
+
+		LinkedHashMap lat = new LinkedHashMap();
+		for (int i = 0; i < LATENCY_NAMES.length; i++) {
+			lat.put(LATENCY_NAMES[i], _aLatency[i].toMap());
+		}
+		m.put("latency_us", lat);
+		return m;
+	}
+
+	public void report(DD context, String event, Map fields) {
+		if (_reporter != null) {
+			_reporter.report(snapshot(context, event, fields));
+		}
+	}
+
+	// Receives snapshots from report()
+	public interface Reporter {
+		public void report(Map snapshot);
+	}
+
+	// Writes each snapshot as a line of JSON
+	public static class JSONLinesReporter implements Reporter {
+
+		public PrintStream _os;
+
+		public JSONLinesReporter(PrintStream os) {
+			_os = os;
+		}
+
+		// Appends to filename
+		public JSONLinesReporter(String filename) {
+			try {
+				_os = new PrintStream(new FileOutputStream(filename, true));
+			} catch (IOException e) {
+				System.out.println("Could not open metrics file '"
+						+ filename + "': " + e);
+				System.exit(1);
+			}
+		}
+
+		public synchronized void report(Map snapshot) {
+			StringBuilder sb = new StringBuilder();
+			ToJSON(snapshot, sb);
+			_os.println(sb);
+			_os.flush();
+		}
+	}
+
+	// Maps, Numbers, Booleans and Strings (anything else as its
+	// toString())
+	public static void ToJSON(Object o, StringBuilder sb) {
+		if (o == null) {
+			sb.append("null");
+		} else if (o instanceof Map) {
+			sb.append('{');
+			Iterator i = ((Map) o).entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry e = (Map.Entry) i.next();
+				ToJSON(e.getKey().toString(), sb);
+				sb.append(':');
+				ToJSON(e.getValue(), sb);
+				if (i.hasNext()) {
+					sb.append(',');
+				}
+			}
+			sb.append('}');
+		} else if (o instanceof Double || o instanceof Float) {
+			double d = ((Number) o).doubleValue();
+			sb.append((Double.isNaN(d) || Double.isInfinite(d)) ? "null" : o
+					.toString());
+		} else if (o instanceof Number || o instanceof Boolean) {
+			sb.append(o);
+		} else {
+			String s = o.toString();
+			sb.append('"');
+			for (int j = 0; j < s.length(); j++) {
+				char c = s.charAt(j);
+				if (c == '"' || c == '\\') {
+					sb.append('\\').append(c);
+				} else if (c < 0x20) {
+					sb.append(String.format("\\u%04x", new Integer(c)));
+				} else {
+					sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+	}
+
+	// ////////////////////////////////////////////////////////////////
+	// Latency histogram
+	// ////////////////////////////////////////////////////////////////
+
+	// Bucket i counts latencies in [2^i, 2^(i+1)) ns
+	public static class Histogram {
+
+		public long[] _alBucket = new long[64];
+		public long _lCount = 0;
+		public long _lTotalNs = 0;
+		public long _lMaxNs = 0;
+
+		public void record(long ns) {
+			if (ns < 1) {
+				ns = 1;
+			}
+			_alBucket[63 - Long.numberOfLeadingZeros(ns)]++;
+			_lCount++;
+			_lTotalNs += ns;
+			if (ns > _lMaxNs) {
+				_lMaxNs = ns;
+			}
+		}
+
+		// Upper bound of the bucket holding the q-quantile
+		public long quantileNs(double q) {
+			long rank = (long) Math.ceil(q * _lCount);
+			long seen = 0;
+			for (int i = 0; i < _alBucket.length; i++) {
+				seen += _alBucket[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min((i == 63) ? Long.MAX_VALUE
+							: (1L << (i + 1)) - 1, _lMaxNs);
+				}
+			}
+			return 0;
+		}
+
+		public LinkedHashMap toMap() {
+			LinkedHashMap m = new LinkedHashMap();
+			m.put("count", new Long(_lCount));
+			m.put("mean", new Double((_lCount == 0) ? 0d : _lTotalNs
+					/ (1000d * _lCount)));
+			m.put("p50", new Double(quantileNs(0.5d) / 1000d));
+			m.put("p90", new Double(quantileNs(0.9d) / 1000d));
+			m.put("p99", new Double(quantileNs(0.99d) / 1000d));
+			m.put("max", new Double(_lMaxNs / 1000d));
+			return m;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+//////////////////////////////////////////////////////////////////
+//                Testing Methods for DD.reorder()
+//////////////////////////////////////////////////////////////////
+
+package logic.add;
+
+import java.util.*;
+
+public class ReorderTest {
+
+	public static final int    NUM_VARS  = 10;
+	public static final int    NUM_SUMS  = 40;
+	public static final int    NUM_DDS   = 4;
+	public static final double TOLERANCE = 1e-9d;
+
+	// Checks that every special root evaluates the same on all
+	// assignments before and after reorder(), for ADD and AADD
+	public static void main(String[] args) {
+
+		CompressTest._rand = new Random(args.length > 0 ? Long.parseLong(args[0]) : 1L);
+		TestReorder(DD.TYPE_ADD);
+		TestReorder(DD.TYPE_AADD);
+	}
+
+	public static void TestReorder(int type) {
+
+		ArrayList order = new ArrayList();
+		for (int i = 1; i <= NUM_VARS; i++) {
+			order.add(new Integer(i));
+		}
+		DD context = (type == DD.TYPE_ADD) ? (DD) new ADD(order) : (DD) new AADD(order);
+		String name = (type == DD.TYPE_ADD) ? "ADD" : "AADD";
+
+		// Random DDs and one that the given order makes large (pairs of
+		// vars that belong together are NUM_VARS/2 levels apart)
+		int[] dds = new int[NUM_DDS + 1];
+		for (int k = 0; k < NUM_DDS; k++) {
+			dds[k] = CompressTest.GetRandomizedDD(context, NUM_VARS, NUM_SUMS);
+		}
+		int pairs = context.getConstantNode(0d);
+		for (int i = 1; i <= NUM_VARS / 2; i++) {
+			int prod = context.applyInt(context.getVarNode(i, 0d, i),
+					context.getVarNode(i + NUM_VARS / 2, 0d, 1d), DD.ARITH_PROD);
+			pairs = context.applyInt(pairs, prod, DD.ARITH_SUM);
+		}
+		dds[NUM_DDS] = pairs;
+		for (int k = 0; k < dds.length; k++) {
+			context.addSpecialNode(dds[k]);
+		}
+		context.flushCaches(false);
+
+		double[][] before = EvalAll(context, dds);
+		long nodes_before = context.countLiveNodes(null);
+		context.reorder();
+		long nodes_after = context.countLiveNodes(null);
+		double[][] after = EvalAll(context, dds);
+
+		double max_diff = 0d;
+		for (int k = 0; k < dds.length; k++) {
+			for (int a = 0; a < before[k].length; a++) {
+				double diff = Math.abs(before[k][a] - after[k][a]);
+				if (Double.isNaN(diff) || diff > TOLERANCE) {
+					System.out.println("ERROR: " + name + " root " + dds[k] + " at assignment "
+							+ a + ": " + before[k][a] + " before reorder, " + after[k][a] + " after");
+					System.exit(1);
+				}
+				max_diff = Math.max(max_diff, diff);
+			}
+		}
+		System.out.println(name + ": " + nodes_before + " -> " + nodes_after
+				+ " live nodes, order " + context._alOrder + ", max diff " + max_diff);
+	}
+
+	// Values of each dd on all assignments (bit i-1 of a is var i)
+	public static double[][] EvalAll(DD context, int[] dds) {
+		double[][] vals = new double[dds.length][1 << NUM_VARS];
+		ArrayList assign = new ArrayList();
+		for (int a = 0; a < (1 << NUM_VARS); a++) {
+
+			// evaluate() takes the assignment by level
+			assign.clear();
+			for (int l = 0; l < NUM_VARS; l++) {
+				int gid = ((Integer) context._alOrder.get(l)).intValue();
+				assign.add(new Boolean(((a >> (gid - 1)) & 1) == 1));
+			}
+			for (int k = 0; k < dds.length; k++) {
+				vals[k][a] = context.evaluate(dds[k], assign);
+			}
+		}
+		return vals;
+	}
+}
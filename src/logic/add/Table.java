@@ -87,6 +87,14 @@ public class Table extends DD {
 		return new_id;
 	}
 
+	// Copy a node from another context (tables index vars by level)
+	public int copy(DD src, int id, HashMap cache) {
+		if (!(src instanceof Table) || !src._alOrder.equals(_alOrder)) {
+			return super.copy(src, id, cache);
+		}
+		return copy((Table) src, id);
+	}
+
 	public void setRoot(int id) {
 		_nRoot = id;
 	}
@@ -460,6 +468,56 @@ public class Table extends DD {
 		return id;
 	}
 
+	// Sum out gids from a1*a2: each product entry is added straight
+	// into the result table so the product table is never built
+	public int applyAndSumOut(int a1, int a2, Set gids) {
+
+		T t1 = (T) _hmTableMap.get(new ADDRNode(a1));
+		T t2 = (T) _hmTableMap.get(new ADDRNode(a2));
+		ArrayList all_vars = MergeSortedLists(t1._alVars, t2._alVars);
+
+		// Vars are level indices, summed vars not in either table
+		// contribute a factor of 2 each
+		HashSet sum_levels = new HashSet();
+		Iterator i = gids.iterator();
+		while (i.hasNext()) {
+			sum_levels.add(_hmGVarToLevel.get(i.next()));
+		}
+		ArrayList new_vars = new ArrayList();
+		for (int j = 0; j < all_vars.size(); j++) {
+			if (!sum_levels.contains(all_vars.get(j))) {
+				new_vars.add(all_vars.get(j));
+			}
+		}
+		double scale = (double) (1L << (sum_levels.size()
+				- (all_vars.size() - new_vars.size())));
+
+		T tr = new T(new_vars);
+		int id = _nLocalIDCnt++;
+		_hmTableMap.put(new ADDRNode(id), tr);
+		ArrayList settings = new ArrayList();
+		int nvars = all_vars.size();
+		for (int j = 0; j < nvars; j++) {
+			settings.add(FALSE);
+		}
+		int entries = 1 << nvars;
+		for (int e = 0; e < entries; e++) {
+			for (int j = 0; j < nvars; j++) {
+				settings.set(j, (((e >> (nvars - j - 1)) & 1) == 1) ? TRUE
+						: FALSE);
+			}
+			tr._darray[tr.projectIndex(all_vars, settings)] += t1
+					.projectAndEval(all_vars, settings)
+					* t2.projectAndEval(all_vars, settings);
+		}
+		if (scale != 1d) {
+			for (int e = 0; e < tr._entries; e++) {
+				tr._darray[e] *= scale;
+			}
+		}
+		return id;
+	}
+
 	// For marginalizing out a node via sum, prod, max, or min.
 	public int opOut(int rid, int gid, int op) {
 
@@ -524,6 +582,60 @@ public class Table extends DD {
 		return max;
 	}
 
+	public double maxAbsDifference(int a, int b) {
+		return maxAbsDifference(a, b, Double.POSITIVE_INFINITY);
+	}
+
+	public double maxDifference(int a, int b) {
+		T t1 = (T) _hmTableMap.get(new ADDRNode(a));
+		T t2 = (T) _hmTableMap.get(new ADDRNode(b));
+		ArrayList vars = MergeSortedLists(t1._alVars, t2._alVars);
+		int nvars = vars.size();
+		ArrayList settings = new ArrayList();
+		for (int j = 0; j < nvars; j++) {
+			settings.add(FALSE);
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		int entries = 1 << nvars;
+		for (int i = 0; i < entries; i++) {
+			for (int j = 0; j < nvars; j++) {
+				settings.set(j, (((i >> (nvars - j - 1)) & 1) == 1) ? TRUE
+						: FALSE);
+			}
+			max = Math.max(max, t1.projectAndEval(vars, settings)
+					- t2.projectAndEval(vars, settings));
+		}
+		return max;
+	}
+
+	public boolean withinTolerance(int a, int b, double eps) {
+		return maxAbsDifference(a, b, eps) < eps;
+	}
+
+	// Max |a - b| over the joint entries of a and b (as ARITH_MINUS) or
+	// a value >= stop as soon as one is found
+	public double maxAbsDifference(int a, int b, double stop) {
+		T t1 = (T) _hmTableMap.get(new ADDRNode(a));
+		T t2 = (T) _hmTableMap.get(new ADDRNode(b));
+		ArrayList vars = MergeSortedLists(t1._alVars, t2._alVars);
+		int nvars = vars.size();
+		ArrayList settings = new ArrayList();
+		for (int j = 0; j < nvars; j++) {
+			settings.add(FALSE);
+		}
+		double max = 0d;
+		int entries = 1 << nvars;
+		for (int i = 0; i < entries && max < stop; i++) {
+			for (int j = 0; j < nvars; j++) {
+				settings.set(j, (((i >> (nvars - j - 1)) & 1) == 1) ? TRUE
+						: FALSE);
+			}
+			max = Math.max(max, Math.abs(t1.projectAndEval(vars, settings)
+					- t2.projectAndEval(vars, settings)));
+		}
+		return max;
+	}
+
 	public int scalarMultiply(int id, double val) {
 
 		int new_id = _nLocalIDCnt++;
@@ -765,6 +877,12 @@ public class Table extends DD {
 		// Eval based on setting of variable superset
 		public double projectAndEval(ArrayList supset_vars,
 				ArrayList supset_setting) {
+			return _darray[projectIndex(supset_vars, supset_setting)];
+		}
+
+		// Index of the entry for a setting of a variable superset
+		public int projectIndex(ArrayList supset_vars,
+				ArrayList supset_setting) {
 
 			int index = 0;
 			int supset_sz = supset_vars.size();
@@ -790,8 +908,7 @@ public class Table extends DD {
 					j++;
 				}
 			}
-			return _darray[index];
-
+			return index;
 		}
 
 		// Eval based on setting of exact variable set
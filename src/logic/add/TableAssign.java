@@ -675,6 +675,60 @@ public class TableAssign extends DD {
 		return max;
 	}
 
+	public double maxAbsDifference(int a, int b) {
+		return maxAbsDifference(a, b, Double.POSITIVE_INFINITY);
+	}
+
+	public double maxDifference(int a, int b) {
+		T t1 = (T) _hmTableMap.get(new ADDRNode(a));
+		T t2 = (T) _hmTableMap.get(new ADDRNode(b));
+		ArrayList vars = MergeSortedLists(t1._alVars, t2._alVars);
+		int nvars = vars.size();
+		ArrayList settings = new ArrayList();
+		for (int j = 0; j < nvars; j++) {
+			settings.add(FALSE);
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		int entries = 1 << nvars;
+		for (int i = 0; i < entries; i++) {
+			for (int j = 0; j < nvars; j++) {
+				settings.set(j, (((i >> (nvars - j - 1)) & 1) == 1) ? TRUE
+						: FALSE);
+			}
+			max = Math.max(max, t1.projectAndEval(vars, settings)
+					- t2.projectAndEval(vars, settings));
+		}
+		return max;
+	}
+
+	public boolean withinTolerance(int a, int b, double eps) {
+		return maxAbsDifference(a, b, eps) < eps;
+	}
+
+	// Max |a - b| over the joint entries of a and b (as ARITH_MINUS) or
+	// a value >= stop as soon as one is found
+	public double maxAbsDifference(int a, int b, double stop) {
+		T t1 = (T) _hmTableMap.get(new ADDRNode(a));
+		T t2 = (T) _hmTableMap.get(new ADDRNode(b));
+		ArrayList vars = MergeSortedLists(t1._alVars, t2._alVars);
+		int nvars = vars.size();
+		ArrayList settings = new ArrayList();
+		for (int j = 0; j < nvars; j++) {
+			settings.add(FALSE);
+		}
+		double max = 0d;
+		int entries = 1 << nvars;
+		for (int i = 0; i < entries && max < stop; i++) {
+			for (int j = 0; j < nvars; j++) {
+				settings.set(j, (((i >> (nvars - j - 1)) & 1) == 1) ? TRUE
+						: FALSE);
+			}
+			max = Math.max(max, Math.abs(t1.projectAndEval(vars, settings)
+					- t2.projectAndEval(vars, settings)));
+		}
+		return max;
+	}
+
 	public int scalarMultiply(int id, double val) {
 		int mult = getConstantNode(val);
 		return applyInt(mult, id, ARITH_PROD);
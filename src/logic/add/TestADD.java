@@ -16,7 +16,6 @@ public class TestADD {
 	testADD2();
 	//testSwap();
 	testADD3();
-	new ADD(new ArrayList()).pruneReport();
     }
 
     // This tests the binary operations
@@ -82,6 +81,7 @@ public class TestADD {
 			     a3, ADD.ARITH_PROD);
 	System.out.println("\nADD_10 = PROD ADD_{1,2,3}:\n" + a.getNode(a10).toString(a,0));
 	//PrintEnum(a10);
+	a.pruneReport();
     }
     
 
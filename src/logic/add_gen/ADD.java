@@ -674,6 +674,69 @@ public class ADD extends DD {
 		return applyInt(d, id, ARITH_DIV);
 	}
 
+	public double maxAbsDifference(int a, int b) {
+		double[] best = new double[1];
+		maxAbsDifference(a, b, 0d, Double.POSITIVE_INFINITY, best,
+				new HashSet());
+		return best[0];
+	}
+
+	public boolean withinTolerance(int a, int b, double eps) {
+		double[] best = new double[1];
+		maxAbsDifference(a, b, eps, eps, best, new HashSet());
+		return best[0] < eps;
+	}
+
+	// Branch and bound over node pairs of a and b (as visited by apply):
+	// a pair is skipped if its min/max bound on |a - b| cannot exceed
+	// best[0] or reach floor, and the search stops once best[0] >= stop.
+	// Leaf pairs differ as the DNode computed for ARITH_MINUS.
+	public void maxAbsDifference(int a, int b, double floor, double stop,
+			double[] best, HashSet visited) {
+		double bound = Math.max(getMaxValue(a) - getMinValue(b),
+				getMaxValue(b) - getMinValue(a));
+		if (bound <= best[0] || bound < floor || best[0] >= stop
+				|| !visited.add(new SNodePair(a, b))) {
+			return;
+		}
+
+		ADDNode n1 = getNode(a), n2 = getNode(b);
+		if (n1 instanceof ADDDNode && n2 instanceof ADDDNode) {
+			ADDDNode d1 = (ADDDNode) n1, d2 = (ADDDNode) n2;
+			best[0] = Math.max(best[0], Math.max(Math.abs(d1._dLower
+					- d2._dLower), Math.abs(d1._dUpper - d2._dUpper)));
+			return;
+		}
+
+		int gid;
+		if (n1 instanceof ADDINode
+				&& (!(n2 instanceof ADDINode) || comesBefore(
+						((ADDINode) n1)._nGlobalID, ((ADDINode) n2)._nGlobalID))) {
+			gid = ((ADDINode) n1)._nGlobalID;
+		} else {
+			gid = ((ADDINode) n2)._nGlobalID;
+		}
+		int alow = a, ahigh = a, blow = b, bhigh = b;
+		if ((n1 instanceof ADDINode) && (((ADDINode) n1)._nGlobalID == gid)) {
+			alow = ((ADDINode) n1)._nLow;
+			ahigh = ((ADDINode) n1)._nHigh;
+		}
+		if ((n2 instanceof ADDINode) && (((ADDINode) n2)._nGlobalID == gid)) {
+			blow = ((ADDINode) n2)._nLow;
+			bhigh = ((ADDINode) n2)._nHigh;
+		}
+
+		// Try the branch with the larger max first to raise best[0] early
+		if (Math.max(getMaxValue(ahigh), getMaxValue(bhigh)) > Math.max(
+				getMaxValue(alow), getMaxValue(blow))) {
+			maxAbsDifference(ahigh, bhigh, floor, stop, best, visited);
+			maxAbsDifference(alow, blow, floor, stop, best, visited);
+		} else {
+			maxAbsDifference(alow, blow, floor, stop, best, visited);
+			maxAbsDifference(ahigh, bhigh, floor, stop, best, visited);
+		}
+	}
+
 	// /////////////////////////////////////////////////////////////////////////
 	// Approximation Algorithms
 	// /////////////////////////////////////////////////////////////////////////
@@ -187,6 +187,19 @@ public abstract class DD {
     public abstract int    invert(int id); // -ADD
     public abstract int    negate(int id); // 1/ADD
 
+    // Max-norm distance max_x |a(x) - b(x)|; this default builds a - b,
+    // ADD walks a and b together instead
+    public double maxAbsDifference(int a, int b) {
+	int diff = applyInt(a, b, ARITH_MINUS);
+	return Math.max(Math.abs(getMaxValue(diff)), Math.abs(getMinValue(diff)));
+    }
+
+    // maxAbsDifference(a, b) < eps, may stop at the first pair of
+    // leaves that differ by eps or more
+    public boolean withinTolerance(int a, int b, double eps) {
+	return maxAbsDifference(a, b) < eps;
+    }
+
     //////////////////////////////////////////////////////////////////
     //                        Approximation
     //////////////////////////////////////////////////////////////////
@@ -304,6 +304,34 @@ public class FBR {
 
     }
 
+    public double maxAbsDifference(Object a, Object b) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    return _context.maxAbsDifference(((Integer)a).intValue(),
+					     ((Integer)b).intValue());
+
+	} else {
+	    // Handle Pair
+	    return Double.NaN; // TODO
+	}
+
+    }
+
+    public boolean withinTolerance(Object a, Object b, double eps) {
+
+	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
+	    // Handle Integer
+	    return _context.withinTolerance(((Integer)a).intValue(),
+					    ((Integer)b).intValue(), eps);
+
+	} else {
+	    // Handle Pair
+	    return false; // TODO
+	}
+
+    }
+
     public Object scalarMultiply(Object id, double val) {
 
 	if (DD.PRUNE_TYPE != DD.REPLACE_RANGE) {
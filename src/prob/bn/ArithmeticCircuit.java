@@ -0,0 +1,634 @@
+//////////////////////////////////////////////////////////////////////
+//
+// File:     ArithmeticCircuit.java (Compiled BN for repeated queries)
+//
+// Description:
+// ------------
+//   Compiles a BN into an arithmetic circuit computing its network
+//   polynomial: leaves are CPT parameters and evidence indicators
+//   (lambda_X=x), inner nodes are sums and products.  Compilation is
+//   a symbolic variable elimination in the global order (_alPropOrder)
+//   over tables of circuit nodes, with the parameters read from the
+//   CPT DDs.  Afterwards the BN is no longer needed:
+//
+//   - An upward pass with the indicators set from the evidence gives
+//     P(e) at the root.
+//   - A downward pass (partial derivatives) gives P(x,e) for every
+//     value x of every var at its indicator, i.e. all marginals.
+//
+//   Both passes are linear in the circuit size.  The circuit is kept
+//   in flat arrays (nodes in topological order, children in CSR form)
+//   and can be saved once and loaded by any number of query servers.
+//
+// Notes:
+// ------
+// - Products/sums with constant children are folded during
+//   compilation and zero parameters are dropped, so deterministic
+//   CPTs shrink the circuit.
+// - Evaluation allocates its own work arrays, so one circuit can be
+//   queried from several threads.
+//
+//////////////////////////////////////////////////////////////////////
+
+package prob.bn;
+
+import java.io.*;
+import java.util.*;
+
+public class ArithmeticCircuit
+{
+    /* Node types */
+    public static final byte PARAM = 0;
+    public static final byte IND   = 1;
+    public static final byte SUM   = 2;
+    public static final byte PROD  = 3;
+
+    /* File header for save()/load() */
+    public static final int MAGIC = 0x41433031; // "AC01"
+
+    /* Vars, their values and the index of the indicator of their
+     * first value (indicator of var i = value j is _anIndOffset[i] + j) */
+    public String[]   _asVars;
+    public String[][] _asValues;
+    public int[]      _anIndOffset;
+    public HashMap    _hmVar2Index = new HashMap();
+
+    /* Nodes (children before parents), node i has children
+     * _anEdges[_anFirst[i] .. _anFirst[i+1]-1] */
+    public int      _nNodes;
+    public byte[]   _abType;
+    public int[]    _anArg;     // Indicator index (IND)
+    public double[] _adParam;   // Value (PARAM)
+    public int[]    _anFirst;
+    public int[]    _anEdges;
+    public int      _nRoot;
+
+    /* Indicator index -> its node (-1 if the indicator was dropped) */
+    public int[]    _anIndNode;
+
+    /** Compiles bn
+     **/
+    public ArithmeticCircuit(BN bn) {
+	long start = System.currentTimeMillis();
+	initVars(bn._alPropOrder, bn);
+	compile(bn);
+	System.out.println("Compiled arithmetic circuit: " + _nNodes + " nodes, " +
+			   _anEdges.length + " edges in " +
+			   (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /** Loads a circuit written by save()
+     **/
+    public ArithmeticCircuit(String filename) {
+	try {
+	    DataInputStream is = new DataInputStream(new BufferedInputStream(
+	        new FileInputStream(filename)));
+	    if (is.readInt() != MAGIC) {
+		System.out.println("'" + filename + "' is not an arithmetic circuit");
+		System.exit(1);
+	    }
+	    int nvars = is.readInt();
+	    _asVars      = new String[nvars];
+	    _asValues    = new String[nvars][];
+	    _anIndOffset = new int[nvars + 1];
+	    for (int i = 0; i < nvars; i++) {
+		_asVars[i] = is.readUTF();
+		_hmVar2Index.put(_asVars[i], new Integer(i));
+		_asValues[i] = new String[is.readInt()];
+		for (int j = 0; j < _asValues[i].length; j++) {
+		    _asValues[i][j] = is.readUTF();
+		}
+		_anIndOffset[i + 1] = _anIndOffset[i] + _asValues[i].length;
+	    }
+	    _nNodes  = is.readInt();
+	    _nRoot   = is.readInt();
+	    _abType  = new byte[_nNodes];
+	    _anArg   = new int[_nNodes];
+	    _adParam = new double[_nNodes];
+	    _anFirst = new int[_nNodes + 1];
+	    is.readFully(_abType);
+	    for (int i = 0; i < _nNodes; i++) {
+		_anArg[i] = is.readInt();
+	    }
+	    for (int i = 0; i < _nNodes; i++) {
+		_adParam[i] = is.readDouble();
+	    }
+	    for (int i = 0; i <= _nNodes; i++) {
+		_anFirst[i] = is.readInt();
+	    }
+	    _anEdges = new int[_anFirst[_nNodes]];
+	    for (int i = 0; i < _anEdges.length; i++) {
+		_anEdges[i] = is.readInt();
+	    }
+	    is.close();
+	} catch (IOException e) {
+	    System.out.println("Could not load circuit '" + filename + "': " + e);
+	    System.exit(1);
+	}
+	indexIndicators();
+    }
+
+    public void save(String filename) {
+	try {
+	    DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+	        new FileOutputStream(filename)));
+	    os.writeInt(MAGIC);
+	    os.writeInt(_asVars.length);
+	    for (int i = 0; i < _asVars.length; i++) {
+		os.writeUTF(_asVars[i]);
+		os.writeInt(_asValues[i].length);
+		for (int j = 0; j < _asValues[i].length; j++) {
+		    os.writeUTF(_asValues[i][j]);
+		}
+	    }
+	    os.writeInt(_nNodes);
+	    os.writeInt(_nRoot);
+	    os.write(_abType, 0, _nNodes);
+	    for (int i = 0; i < _nNodes; i++) {
+		os.writeInt(_anArg[i]);
+	    }
+	    for (int i = 0; i < _nNodes; i++) {
+		os.writeDouble(_adParam[i]);
+	    }
+	    for (int i = 0; i <= _nNodes; i++) {
+		os.writeInt(_anFirst[i]);
+	    }
+	    for (int i = 0; i < _anEdges.length; i++) {
+		os.writeInt(_anEdges[i]);
+	    }
+	    os.close();
+	} catch (IOException e) {
+	    System.out.println("Could not save circuit '" + filename + "': " + e);
+	    System.exit(1);
+	}
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    //                               Queries
+    /////////////////////////////////////////////////////////////////////////////
+
+    /** P(evidence), evidence is var -> value
+     **/
+    public double probability(Map assign_vars) {
+	return upward(indicators(assign_vars))[_nRoot];
+    }
+
+    /** Posterior P(X|evidence) of every non-evidence var X, as a map
+     *  var -> double[] indexed like the var's values (all 0 if the
+     *  evidence has probability 0)
+     **/
+    public HashMap marginals(Map assign_vars) {
+	double[] val = upward(indicators(assign_vars));
+	double[] der = downward(val);
+	double pe = val[_nRoot];
+
+	HashMap marginals = new HashMap();
+	for (int i = 0; i < _asVars.length; i++) {
+	    if (assign_vars.containsKey(_asVars[i])) {
+		continue;
+	    }
+	    double[] m = new double[_asValues[i].length];
+	    for (int j = 0; j < m.length; j++) {
+		int node = _anIndNode[_anIndOffset[i] + j];
+		m[j] = (node < 0 || pe == 0d) ? 0d : der[node] / pe;
+	    }
+	    marginals.put(_asVars[i], m);
+	}
+	return marginals;
+    }
+
+    /** Indicator settings for the evidence: 1 unless contradicted
+     **/
+    public double[] indicators(Map assign_vars) {
+	double[] lambda = new double[_anIndOffset[_asVars.length]];
+	Arrays.fill(lambda, 1d);
+	Iterator i = assign_vars.entrySet().iterator();
+	while (i.hasNext()) {
+	    Map.Entry me = (Map.Entry)i.next();
+	    Integer var = (Integer)_hmVar2Index.get(me.getKey());
+	    int value = (var == null) ? -1 :
+		Arrays.asList(_asValues[var.intValue()]).indexOf(me.getValue());
+	    if (value < 0) {
+		System.out.println("Invalid var assignment: " + me.getKey() + "=" + me.getValue());
+		System.exit(1);
+	    }
+	    int v = var.intValue();
+	    for (int j = 0; j < _asValues[v].length; j++) {
+		lambda[_anIndOffset[v] + j] = (j == value) ? 1d : 0d;
+	    }
+	}
+	return lambda;
+    }
+
+    /** Value of every node
+     **/
+    public double[] upward(double[] lambda) {
+	double[] val = new double[_nNodes];
+	for (int i = 0; i < _nNodes; i++) {
+	    switch (_abType[i]) {
+	    case PARAM:
+		val[i] = _adParam[i];
+		break;
+	    case IND:
+		val[i] = lambda[_anArg[i]];
+		break;
+	    case SUM: {
+		double v = 0d;
+		for (int e = _anFirst[i]; e < _anFirst[i + 1]; e++) {
+		    v += val[_anEdges[e]];
+		}
+		val[i] = v;
+		break;
+	    }
+	    case PROD: {
+		double v = 1d;
+		for (int e = _anFirst[i]; e < _anFirst[i + 1]; e++) {
+		    v *= val[_anEdges[e]];
+		}
+		val[i] = v;
+		break;
+	    }
+	    }
+	}
+	return val;
+    }
+
+    /** Partial derivative of the root w.r.t. every node (products use
+     *  prefix/suffix products rather than division, so zeros are fine)
+     **/
+    public double[] downward(double[] val) {
+	double[] der = new double[_nNodes];
+	double[] prefix = new double[8];
+	der[_nRoot] = 1d;
+	for (int i = _nRoot; i >= 0; i--) {
+	    double d = der[i];
+	    if (d == 0d) {
+		continue;
+	    }
+	    int first = _anFirst[i], last = _anFirst[i + 1];
+	    if (_abType[i] == SUM) {
+		for (int e = first; e < last; e++) {
+		    der[_anEdges[e]] += d;
+		}
+	    } else if (_abType[i] == PROD) {
+		int k = last - first;
+		if (prefix.length < k + 1) {
+		    prefix = new double[2 * k];
+		}
+		prefix[0] = 1d;
+		for (int e = 0; e < k; e++) {
+		    prefix[e + 1] = prefix[e] * val[_anEdges[first + e]];
+		}
+		double suffix = 1d;
+		for (int e = k - 1; e >= 0; e--) {
+		    der[_anEdges[first + e]] += d * prefix[e] * suffix;
+		    suffix *= val[_anEdges[first + e]];
+		}
+	    }
+	}
+	return der;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////
+    //                              Compilation
+    /////////////////////////////////////////////////////////////////////////////
+
+    /* Growable node arrays used while compiling */
+    protected int _nEdges;
+    protected HashMap _hmParam2Node;
+    protected int ZERO, ONE;
+
+    /** A table of circuit nodes over vars (indices, ascending), with the
+     *  first var varying slowest
+     **/
+    protected static class NodeTable {
+	public int[] _anVars;
+	public int[] _anNodes;
+
+	public NodeTable(int[] vars, int size) {
+	    _anVars  = vars;
+	    _anNodes = new int[size];
+	}
+    }
+
+    protected void initVars(List order, BN bn) {
+	int nvars = order.size();
+	_asVars      = new String[nvars];
+	_asValues    = new String[nvars][];
+	_anIndOffset = new int[nvars + 1];
+	for (int i = 0; i < nvars; i++) {
+	    _asVars[i] = (String)order.get(i);
+	    _hmVar2Index.put(_asVars[i], new Integer(i));
+	    ArrayList values = bn.getValues(_asVars[i]);
+	    _asValues[i] = (String[])values.toArray(new String[values.size()]);
+	    _anIndOffset[i + 1] = _anIndOffset[i] + _asValues[i].length;
+	}
+    }
+
+    protected void compile(BN bn) {
+
+	_nNodes  = 0;
+	_nEdges  = 0;
+	_abType  = new byte[1024];
+	_anArg   = new int[1024];
+	_adParam = new double[1024];
+	_anFirst = new int[1025];
+	_anEdges = new int[4096];
+	_hmParam2Node = new HashMap();
+	ZERO = makeParam(0d);
+	ONE  = makeParam(1d);
+
+	// One table per CPT: theta(x|pa) * lambda_x
+	ArrayList tables = new ArrayList();
+	for (int v = 0; v < _asVars.length; v++) {
+	    BN.CPT cpt = (BN.CPT)bn._hmVar2CPT.get(_asVars[v]);
+	    ArrayList fam = new ArrayList(cpt._alParents);
+	    fam.add(cpt._sHead);
+	    NodeTable t = newTable(fam);
+
+	    int[] assign = new int[t._anVars.length];
+	    HashMap setting = new HashMap();
+	    for (int r = 0; r < t._anNodes.length; r++) {
+		setting.clear();
+		int head_val = -1;
+		for (int k = 0; k < assign.length; k++) {
+		    int var = t._anVars[k];
+		    setting.put(_asVars[var], _asValues[var][assign[k]]);
+		    if (var == v) {
+			head_val = assign[k];
+		    }
+		}
+		double theta = bn._context.evaluate(cpt._dd, bn.assign2EvalSetting(setting));
+		t._anNodes[r] = makeProd(makeParam(theta),
+					 makeInd(_anIndOffset[v] + head_val));
+		next(assign, t._anVars);
+	    }
+	    tables.add(t);
+	}
+
+	// Symbolic variable elimination (vars are indexed in elimination
+	// order)
+	for (int v = 0; v < _asVars.length; v++) {
+	    NodeTable prod = null;
+	    for (int j = tables.size() - 1; j >= 0; j--) {
+		NodeTable t = (NodeTable)tables.get(j);
+		if (Arrays.binarySearch(t._anVars, v) >= 0) {
+		    prod = (prod == null) ? t : multiply(prod, t);
+		    tables.remove(j);
+		}
+	    }
+	    if (prod != null) {
+		tables.add(sumOut(prod, v));
+	    }
+	}
+
+	// Only constant tables are left
+	_nRoot = ONE;
+	for (int j = 0; j < tables.size(); j++) {
+	    _nRoot = makeProd(_nRoot, ((NodeTable)tables.get(j))._anNodes[0]);
+	}
+	_hmParam2Node = null;
+	compact();
+    }
+
+    /** Empty table over the named vars
+     **/
+    protected NodeTable newTable(Collection var_names) {
+	int[] vars = new int[var_names.size()];
+	int k = 0, size = 1;
+	Iterator i = var_names.iterator();
+	while (i.hasNext()) {
+	    vars[k] = ((Integer)_hmVar2Index.get(i.next())).intValue();
+	    size *= _asValues[vars[k++]].length;
+	}
+	Arrays.sort(vars);
+	return new NodeTable(vars, size);
+    }
+
+    /** Advance a mixed radix assignment (last var fastest)
+     **/
+    protected void next(int[] assign, int[] vars) {
+	for (int k = assign.length - 1; k >= 0; k--) {
+	    if (++assign[k] < _asValues[vars[k]].length) {
+		return;
+	    }
+	    assign[k] = 0;
+	}
+    }
+
+    /** Strides in t of the given vars (0 for vars not in t)
+     **/
+    protected int[] strides(NodeTable t, int[] vars) {
+	int[] strides = new int[vars.length];
+	int stride = 1;
+	for (int k = t._anVars.length - 1; k >= 0; k--) {
+	    int pos = Arrays.binarySearch(vars, t._anVars[k]);
+	    strides[pos] = stride;
+	    stride *= _asValues[t._anVars[k]].length;
+	}
+	return strides;
+    }
+
+    protected NodeTable multiply(NodeTable a, NodeTable b) {
+	TreeSet union = new TreeSet();
+	for (int k = 0; k < a._anVars.length; k++) {
+	    union.add(new Integer(a._anVars[k]));
+	}
+	for (int k = 0; k < b._anVars.length; k++) {
+	    union.add(new Integer(b._anVars[k]));
+	}
+	int[] vars = new int[union.size()];
+	int k = 0, size = 1;
+	Iterator i = union.iterator();
+	while (i.hasNext()) {
+	    vars[k] = ((Integer)i.next()).intValue();
+	    size *= _asValues[vars[k++]].length;
+	}
+	NodeTable r = new NodeTable(vars, size);
+	int[] sa = strides(a, vars);
+	int[] sb = strides(b, vars);
+	int[] assign = new int[vars.length];
+	int ia = 0, ib = 0;
+	for (int n = 0; n < size; n++) {
+	    r._anNodes[n] = makeProd(a._anNodes[ia], b._anNodes[ib]);
+
+	    // Next assignment, updating the offsets into a and b
+	    for (k = vars.length - 1; k >= 0; k--) {
+		ia += sa[k];
+		ib += sb[k];
+		if (++assign[k] < _asValues[vars[k]].length) {
+		    break;
+		}
+		ia -= sa[k] * assign[k];
+		ib -= sb[k] * assign[k];
+		assign[k] = 0;
+	    }
+	}
+	return r;
+    }
+
+    protected NodeTable sumOut(NodeTable t, int var) {
+	int pos = Arrays.binarySearch(t._anVars, var);
+	int card = _asValues[var].length;
+	int[] vars = new int[t._anVars.length - 1];
+	int size = 1, inner = 1;
+	for (int k = 0, j = 0; k < t._anVars.length; k++) {
+	    if (k != pos) {
+		vars[j++] = t._anVars[k];
+		size *= _asValues[t._anVars[k]].length;
+	    }
+	    if (k > pos) {
+		inner *= _asValues[t._anVars[k]].length;
+	    }
+	}
+
+	// Entry n of t = (outer, value, inner), inner = vars after var
+	NodeTable r = new NodeTable(vars, size);
+	int[] kids = new int[card];
+	for (int n = 0; n < size; n++) {
+	    int outer = n / inner, in = n % inner;
+	    for (int x = 0; x < card; x++) {
+		kids[x] = t._anNodes[(outer * card + x) * inner + in];
+	    }
+	    r._anNodes[n] = makeSum(kids);
+	}
+	return r;
+    }
+
+    protected int makeParam(double value) {
+	Double key = new Double(value);
+	Integer node = (Integer)_hmParam2Node.get(key);
+	if (node != null) {
+	    return node.intValue();
+	}
+	int id = newNode(PARAM, 0);
+	_adParam[id] = value;
+	_hmParam2Node.put(key, new Integer(id));
+	return id;
+    }
+
+    protected int makeInd(int index) {
+	if (_anIndNode == null) {
+	    _anIndNode = new int[_anIndOffset[_asVars.length]];
+	    Arrays.fill(_anIndNode, -1);
+	}
+	if (_anIndNode[index] < 0) {
+	    _anIndNode[index] = newNode(IND, 0);
+	    _anArg[_anIndNode[index]] = index;
+	}
+	return _anIndNode[index];
+    }
+
+    protected int makeProd(int a, int b) {
+	if (a == ZERO || b == ZERO) {
+	    return ZERO;
+	} else if (a == ONE) {
+	    return b;
+	} else if (b == ONE) {
+	    return a;
+	} else if (_abType[a] == PARAM && _abType[b] == PARAM) {
+	    return makeParam(_adParam[a] * _adParam[b]);
+	}
+	int id = newNode(PROD, 2);
+	_anEdges[_nEdges++] = a;
+	_anEdges[_nEdges++] = b;
+	return id;
+    }
+
+    protected int makeSum(int[] kids) {
+	int cnt = 0, last = ZERO;
+	boolean all_params = true;
+	double total = 0d;
+	for (int k = 0; k < kids.length; k++) {
+	    if (kids[k] != ZERO) {
+		cnt++;
+		last = kids[k];
+		all_params = all_params && _abType[kids[k]] == PARAM;
+		total += _adParam[kids[k]];
+	    }
+	}
+	if (cnt <= 1) {
+	    return last;
+	} else if (all_params) {
+	    return makeParam(total);
+	}
+	int id = newNode(SUM, cnt);
+	for (int k = 0; k < kids.length; k++) {
+	    if (kids[k] != ZERO) {
+		_anEdges[_nEdges++] = kids[k];
+	    }
+	}
+	return id;
+    }
+
+    /** Adds a node whose num_kids children are appended to _anEdges
+     *  by the caller
+     **/
+    protected int newNode(byte type, int num_kids) {
+	if (_nNodes + 1 >= _abType.length) {
+	    int len = 2 * _abType.length;
+	    _abType  = Arrays.copyOf(_abType, len);
+	    _anArg   = Arrays.copyOf(_anArg, len);
+	    _adParam = Arrays.copyOf(_adParam, len);
+	    _anFirst = Arrays.copyOf(_anFirst, len + 1);
+	}
+	if (_nEdges + num_kids > _anEdges.length) {
+	    _anEdges = Arrays.copyOf(_anEdges, 2 * (_nEdges + num_kids));
+	}
+	int id = _nNodes++;
+	_abType[id] = type;
+	_anFirst[id] = _nEdges;
+	_anFirst[id + 1] = _nEdges + num_kids;
+	return id;
+    }
+
+    /** Drops nodes not reachable from the root and trims the arrays
+     **/
+    protected void compact() {
+	boolean[] keep = new boolean[_nNodes];
+	keep[_nRoot] = true;
+	for (int i = _nRoot; i >= 0; i--) {
+	    if (keep[i]) {
+		for (int e = _anFirst[i]; e < _anFirst[i + 1]; e++) {
+		    keep[_anEdges[e]] = true;
+		}
+	    }
+	}
+	int[] map = new int[_nNodes];
+	int n = 0, m = 0;
+	for (int i = 0; i <= _nRoot; i++) {
+	    if (!keep[i]) {
+		continue;
+	    }
+	    map[i] = n;
+	    int first = _anFirst[i], last = _anFirst[i + 1];
+	    _abType[n]  = _abType[i];
+	    _anArg[n]   = _anArg[i];
+	    _adParam[n] = _adParam[i];
+	    _anFirst[n] = m;
+	    for (int e = first; e < last; e++) {
+		_anEdges[m++] = map[_anEdges[e]];
+	    }
+	    n++;
+	}
+	_anFirst[n] = m;
+	_nNodes  = n;
+	_nRoot   = map[_nRoot];
+	_abType  = Arrays.copyOf(_abType, n);
+	_anArg   = Arrays.copyOf(_anArg, n);
+	_adParam = Arrays.copyOf(_adParam, n);
+	_anFirst = Arrays.copyOf(_anFirst, n + 1);
+	_anEdges = Arrays.copyOf(_anEdges, m);
+	indexIndicators();
+    }
+
+    protected void indexIndicators() {
+	_anIndNode = new int[_anIndOffset[_asVars.length]];
+	Arrays.fill(_anIndNode, -1);
+	for (int i = 0; i < _nNodes; i++) {
+	    if (_abType[i] == IND) {
+		_anIndNode[_anArg[i]] = i;
+	    }
+	}
+    }
+}
@@ -8,13 +8,11 @@
 // Description:
 // ------------
 //   An BN inference package using ADDs/AADDs in place of CPTs and
-//   the variable elimination algorithm.  (More complex algorithms
-//   such as junction trees could be implemented but this has not
-//   been done yet.)
+//   the variable elimination algorithm.  (See JunctionTree for
+//   computing all marginals at once.)
 //
 // TODO:
 // -----
-// - Use D-Separation
 // - Make a more usable interface for Bayes net queries (see PShell)
 // - Explain how to make an IR.CPT class so that anyone can
 //   build another parser/BN constructor without needing to
@@ -63,7 +61,29 @@ public class BN
 
     /* For cache flushing */
     public final static boolean ALWAYS_FLUSH         = false;
-    public final static double FLUSH_PERCENT_MINIMUM = 0.1d;
+    public static double FLUSH_PERCENT_MINIMUM = 0.1d;
+
+    /* Restrict queries to the requisite CPTs/evidence (see bayesBall()) */
+    public static boolean RELEVANCE_PRUNING = true;
+
+    /* Restrict CPTs on the evidence before elimination (see query()),
+     * keeping up to RESTRICT_CACHE_SIZE restricted CPTs between queries */
+    public static boolean EARLY_EVIDENCE = true;
+    public static int RESTRICT_CACHE_SIZE = 10000;
+
+    /* Max eliminated buckets pinned for reuse by queryBatch() */
+    public static int BUCKET_CACHE_SIZE = 10000;
+
+    /* Elimination order used by varElim(): the global _alPropOrder or
+     * a greedy per-query choice from the live factors (see elimCost()) */
+    public static final int ORDER_GLOBAL            = 0;
+    public static final int ORDER_MIN_FILL          = 1;
+    public static final int ORDER_MIN_DEGREE        = 2;
+    public static final int ORDER_WEIGHTED_MIN_FILL = 3;
+    public static final int ORDER_DD_SIZE           = 4;
+    public static final String[] ORDER_NAMES =
+        { "global", "min-fill", "min-degree", "weighted-min-fill", "dd-size" };
+    public static int ELIM_ORDER = ORDER_GLOBAL;
 
     /* Static final variables */
     public static final String SUM_OUT        = "SUM_OUT";
@@ -129,6 +149,25 @@ public class BN
     /* Nodes to keep from flushing */
     public ArrayList _alSaveNodes = new ArrayList();
 
+    /* CPT var + evidence (var -> value) -> CPT dd restricted on evidence */
+    public HashMap _hmRestrictCache = new HashMap();
+    public long _nRestrictCacheHits = 0;
+
+    /* During queryBatch(): bucket (var, ops, input factors) -> factor
+     * left after eliminating var, null otherwise */
+    public HashMap _hmBucketCache = null;
+    public long _nBucketCacheHits = 0;
+
+    /* Factors and evidence vars of the ancestral set dropped by the
+     * last query() as barren or d-separated from the query */
+    public int _nPrunedFactors  = 0;
+    public int _nPrunedEvidence = 0;
+
+    /* Elimination order (prop var names) and peak factor width (prop
+     * vars) of the last varElim() */
+    public ArrayList _alElimOrder = new ArrayList();
+    public int _nPeakFactorWidth = -1;
+
     /////////////////////////////////////////////////////////////////////////////
     //                               Constructors
     /////////////////////////////////////////////////////////////////////////////
@@ -395,9 +434,10 @@ public class BN
 	    for (int j = 0; j < cnt; j++) {
 		Var bvar = getVar(var, j);
 
-		// Get the index of bvar in _alOrder
+		// Get the level of bvar (the context order, which reorder()
+		// may have changed since _alOrder was built)
 		if (getBVarSetting(j, assign_val)) {
-		    eval_setting.set( _alOrder.indexOf(new Integer(bvar._nID)),
+		    eval_setting.set( _context._context._alOrder.indexOf(new Integer(bvar._nID)),
 				      TRUE );
 		}
 	    }	  
@@ -443,10 +483,8 @@ public class BN
 
     public void flushCaches(ArrayList factor_list_1, 
 			    ArrayList factor_list_2) {
-	if (!ALWAYS_FLUSH &&
-	    ((double)RUNTIME.freeMemory() / 
-	     (double)RUNTIME.totalMemory()) > FLUSH_PERCENT_MINIMUM) {
-	    return; // Still enough free mem to exceed minimum requirements
+	if (!ALWAYS_FLUSH && !_context.needsFlush(FLUSH_PERCENT_MINIMUM)) {
+	    return; // Enough free mem and not enough dead nodes to collect
 	}
 	_context.clearSpecialNodes();
 	if (factor_list_1 != null && factor_list_2 != null) {
@@ -465,6 +503,22 @@ public class BN
 	while (j.hasNext()) {
 	    _context.addSpecialNode(j.next());
 	}
+
+	// CPTs and restricted CPTs must outlive the current query
+	j = _hmVar2CPT.values().iterator();
+	while (j.hasNext()) {
+	    _context.addSpecialNode(((CPT)j.next())._dd);
+	}
+	j = _hmRestrictCache.values().iterator();
+	while (j.hasNext()) {
+	    _context.addSpecialNode(j.next());
+	}
+	if (_hmBucketCache != null) {
+	    j = _hmBucketCache.values().iterator();
+	    while (j.hasNext()) {
+		_context.addSpecialNode(((Factor)j.next())._dd);
+	    }
+	}
 	_context.flushCaches(false);
     }
 
@@ -486,25 +540,81 @@ public class BN
 	HashMap   operations         = new HashMap();
 	HashSet   pruned_assign_vars = new HashSet();
 
-	// Prune the assign var set based on d-separation
-	Iterator i = assign_vars.entrySet().iterator();
+	// The ancestral set of the query and evidence (everything else is
+	// barren, i.e. sums to 1)
+	HashSet rel_vars = new HashSet();
+	MarkUpwardAll(rel_vars, query_vars);
+	MarkUpwardAll(rel_vars, assign_vars.keySet());
+	int ancestral_cnt = rel_vars.size();
+
+	// Bayes-ball keeps only the CPTs and evidence that can affect the
+	// query given the evidence (an observed query var leaves nothing
+	// requisite, so its query keeps the ancestral set and yields P(evidence))
+	HashSet visited = null;
+	if (RELEVANCE_PRUNING && Collections.disjoint(query_vars, assign_vars.keySet())) {
+	    HashSet top = new HashSet();
+	    visited = new HashSet();
+	    bayesBall(query_vars, assign_vars.keySet(), top, new HashSet(), visited);
+	    rel_vars.retainAll(top);
+	}
+	Iterator i = assign_vars.keySet().iterator();
 	while (i.hasNext()) {
-	    Map.Entry me = (Map.Entry)i.next();
-	    String avar   = (String)me.getKey();
-
-	    // TODO: Get dsep analysis to work!
-	    // Check dsep of this evidence var against all query vars
-	    if (false && isDSeparated(avar, new HashSet(query_vars), assign_vars.keySet())) {
-		System.out.println(avar + " d-sep from " + query_vars + ", discarding " + avar + "...");
+	    String avar = (String)i.next();
+	    if (visited != null && !visited.contains(avar)) {
+		if (VERBOSE > 0) {
+		    System.out.println(avar + " d-sep from " + query_vars + ", discarding " + avar + "...");
+		}
 		continue;
 	    }
 	    pruned_assign_vars.add(avar);
 	}
+	_nPrunedFactors  = ancestral_cnt - rel_vars.size();
+	_nPrunedEvidence = assign_vars.size() - pruned_assign_vars.size();
+	System.out.println("Relevance pruning: " + rel_vars.size() + " factors (" + 
+			   _nPrunedFactors + " pruned), " + pruned_assign_vars.size() + 
+			   " evidence vars (" + _nPrunedEvidence + " pruned)");
 
-	// Build the appropriate factors
-	HashSet rel_vars = new HashSet();
-	MarkUpwardAll(rel_vars, query_vars);
-	MarkUpwardAll(rel_vars, pruned_assign_vars);
+	// Set up query vars
+	i = query_vars.iterator();
+	while (i.hasNext()) {
+
+	    // Get assignment and add all bvars to list
+	    String qvar   = (String)i.next();
+	    int cnt = getVarCount(qvar);
+	    for (int j = 0; j < cnt; j++) {
+		Var bvar = getVar(qvar, j);
+		operations.put(bvar, QUERY);
+	    }
+	}	
+
+	// Set up restriction operations
+	addRestrictOps(operations, pruned_assign_vars, assign_vars);
+
+	// Set up sum out operations
+	HashSet sum_vars = new HashSet(rel_vars);
+	sum_vars.removeAll(query_vars);
+	sum_vars.removeAll(pruned_assign_vars);
+	i = sum_vars.iterator();
+	while (i.hasNext()) {
+	    String svar = (String)i.next();
+
+	    // Error check
+	    if (assign_vars.get(svar) != null) {
+		System.out.println("Summing out an assigned var... ERROR!");
+		Object o = null; o.toString();
+	    }
+
+	    int cnt = getVarCount(svar);
+	    for (int j = 0; j < cnt; j++) {
+		Var bvar = getVar(svar, j);
+		operations.put(bvar, SUM_OUT);
+	    }
+	}
+
+	// Build the appropriate factors, restricting each CPT on its
+	// evidence up front so evidence vars never enter a product
+	int restricted = 0;
+	long hits = _nRestrictCacheHits;
 	i = rel_vars.iterator();
 	while (i.hasNext()) {
 	    String rvar = (String)i.next();
@@ -518,24 +628,147 @@ public class BN
 	    ArrayList allvars = new ArrayList();	    
 	    allvars.add(cpt._sHead);
 	    allvars.addAll(cpt._alParents);
-	    factors.add(new Factor(cpt._dd, allvars));
+	    Object dd = cpt._dd;
+	    if (EARLY_EVIDENCE) {
+		TreeMap evidence = new TreeMap();
+		Iterator vi = allvars.iterator();
+		while (vi.hasNext()) {
+		    String var = (String)vi.next();
+		    if (pruned_assign_vars.contains(var)) {
+			evidence.put(var, assign_vars.get(var));
+		    }
+		}
+		if (!evidence.isEmpty()) {
+		    allvars.removeAll(evidence.keySet());
+		    restricted++;
+		    if (do_calc) {
+			dd = getRestrictedCPT(rvar, evidence, operations);
+		    }
+		}
+	    }
+	    factors.add(new Factor(dd, allvars));
+	}
+	if (EARLY_EVIDENCE) {
+	    System.out.println("Early evidence: " + restricted + " factors restricted (" + 
+			       (_nRestrictCacheHits - hits) + " cached)");
 	}
 
-	// Set up query vars
-	i = query_vars.iterator();
+	// TODO: Approximation
+	// TODO: Translate the resulting CPT
+
+	// Call the varElim algorithm and return
+	return varElim(factors, operations, do_calc);
+    }
+
+    /** A query for queryBatch(): P(query vars | evidence (var -> value))
+     **/
+    public static class Query {
+	public Set    _hsQueryVars;
+	public Map    _hmEvidence;
+	public Object _result;
+
+	public Query(Set query_vars, Map evidence) {
+	    _hsQueryVars = query_vars;
+	    _hmEvidence  = evidence;
+	}
+
+	public String toString() {
+	    return _hsQueryVars + " | " + _hmEvidence;
+	}
+    }
+
+    /** Runs a list of Query, returning their results in order (also set
+     *  in Query._result).  Queries are grouped by evidence and every
+     *  eliminated bucket is kept (pinned through flushes), so later queries
+     *  eliminating the same var from the same factors (e.g. the buckets
+     *  before their query var) reuse it.  As with query(), the results
+     *  are only protected until the next flush after the batch.
+     **/
+    public List queryBatch(List queries) {
+
+	// Group by evidence, and within a group start with the query vars
+	// eliminated last (their queries compute the longest shared prefix)
+	LinkedHashMap groups = new LinkedHashMap();
+	Iterator i = queries.iterator();
 	while (i.hasNext()) {
+	    Query q = (Query)i.next();
+	    String key = new TreeMap(q._hmEvidence).toString();
+	    ArrayList group = (ArrayList)groups.get(key);
+	    if (group == null) {
+		group = new ArrayList();
+		groups.put(key, group);
+	    }
+	    group.add(q);
+	}
+	Comparator by_order = new Comparator() {
+	    public int compare(Object o1, Object o2) {
+		return firstElimPos((Query)o2) - firstElimPos((Query)o1);
+	    }
+	};
 
-	    // Get assignment and add all bvars to list
-	    String qvar   = (String)i.next();
-	    int cnt = getVarCount(qvar);
-	    for (int j = 0; j < cnt; j++) {
-		Var bvar = getVar(qvar, j);
-		operations.put(bvar, QUERY);
+	int save_mark = _alSaveNodes.size();
+	long hits = _nBucketCacheHits;
+	_hmBucketCache = new HashMap();
+	i = groups.values().iterator();
+	while (i.hasNext()) {
+	    ArrayList group = (ArrayList)i.next();
+	    Collections.sort(group, by_order);
+	    Iterator j = group.iterator();
+	    while (j.hasNext()) {
+		Query q = (Query)j.next();
+		q._result = query(q._hsQueryVars, q._hmEvidence);
+		addSaveNode(q._result);
 	    }
-	}	
+	}
+	System.out.println("Batch: " + queries.size() + " queries, " + groups.size() + 
+			   " evidence groups, " + (_nBucketCacheHits - hits) + " buckets reused");
+	_hmBucketCache = null;
+	_alSaveNodes.subList(save_mark, _alSaveNodes.size()).clear();
 
-	// Set up restriction operations
-	i = pruned_assign_vars.iterator();
+	ArrayList results = new ArrayList();
+	i = queries.iterator();
+	while (i.hasNext()) {
+	    results.add(((Query)i.next())._result);
+	}
+	return results;
+    }
+
+    /** Position in _alPropOrder of the first query var of q
+     **/
+    protected int firstElimPos(Query q) {
+	int pos = Integer.MAX_VALUE;
+	Iterator i = q._hsQueryVars.iterator();
+	while (i.hasNext()) {
+	    pos = Math.min(pos, _alPropOrder.indexOf(i.next()));
+	}
+	return pos;
+    }
+
+    /** Identifies eliminating var (with its bin var operations) from
+     *  the given factors
+     **/
+    public String bucketKey(String var, ArrayList factors, Map operations) {
+	StringBuffer sb = new StringBuffer(var);
+	int cnt = getVarCount(var);
+	for (int k = 0; k < cnt; k++) {
+	    sb.append(" " + operations.get(getVar(var, k)));
+	}
+	ArrayList keys = new ArrayList();
+	Iterator i = factors.iterator();
+	while (i.hasNext()) {
+	    Factor f = (Factor)i.next();
+	    keys.add(f._dd + ":" + new TreeSet(f._hsVars));
+	}
+	Collections.sort(keys);
+	sb.append(" " + keys);
+	return sb.toString();
+    }
+
+    /** Adds the RESTRICT_TRUE/RESTRICT_FALSE operations for the bin vars of
+     *  each evidence var given its assignment (var -> value)
+     **/
+    public void addRestrictOps(HashMap operations, Collection evidence, Map assign_vars) {
+	Iterator i = evidence.iterator();
 	while (i.hasNext()) {
 
 	    // Get assignment and add all bvars to list
@@ -554,33 +787,47 @@ public class BN
 			       getBVarSetting(j, assign_val) ? RESTRICT_TRUE : RESTRICT_FALSE);
 	    }	    
 	}	
+    }
 
-	// Set up sum out operations
-	HashSet sum_vars = new HashSet(rel_vars);
-	sum_vars.removeAll(query_vars);
-	sum_vars.removeAll(pruned_assign_vars);
-	i = sum_vars.iterator();
-	while (i.hasNext()) {
-	    String svar = (String)i.next();
+    /** The CPT of var restricted on evidence (var -> value for evidence
+     *  vars in the CPT), cached in _hmRestrictCache
+     **/
+    public Object getRestrictedCPT(String var, TreeMap evidence, Map operations) {
+	String key = var + "|" + evidence;
+	Object dd = _hmRestrictCache.get(key);
+	if (dd != null) {
+	    _nRestrictCacheHits++;
+	    return dd;
+	}
+	dd = restrictEvidence(((CPT)_hmVar2CPT.get(var))._dd, evidence.keySet(), operations);
+	if (_hmRestrictCache.size() >= RESTRICT_CACHE_SIZE) {
+	    _hmRestrictCache.clear();
 
-	    // Error check
-	    if (assign_vars.get(svar) != null) {
-		System.out.println("Summing out an assigned var... ERROR!");
-		Object o = null; o.toString();
+	    // Bucket keys may name the released DDs
+	    if (_hmBucketCache != null) {
+		_hmBucketCache.clear();
 	    }
+	}
+	_hmRestrictCache.put(key, dd);
+	return dd;
+    }
 
-	    int cnt = getVarCount(svar);
+    /** Restricts dd on every bin var of the evidence vars according to
+     *  their RESTRICT_TRUE/RESTRICT_FALSE entries in operations
+     **/
+    public Object restrictEvidence(Object dd, Collection evidence, Map operations) {
+	Iterator i = evidence.iterator();
+	while (i.hasNext()) {
+	    String avar = (String)i.next();
+	    int cnt = getVarCount(avar);
 	    for (int j = 0; j < cnt; j++) {
-		Var bvar = getVar(svar, j);
-		operations.put(bvar, SUM_OUT);
+		Var bvar = getVar(avar, j);
+		dd = _context.restrict(dd, bvar._nID, 
+				       operations.get(bvar) == RESTRICT_TRUE ? 
+				       DD.RESTRICT_HIGH : DD.RESTRICT_LOW);
 	    }
 	}
-
-	// TODO: Approximation
-	// TODO: Translate the resulting CPT
-
-	// Call the varElim algorithm and return
-	return varElim(factors, operations, do_calc);
+	return dd;
     }
 
     /** Internal inference method - variable references are binary
@@ -604,11 +851,20 @@ public class BN
 	ArrayList query_vars = new ArrayList();
 	ArrayList contains_factor     = new ArrayList();
 	ArrayList not_contains_factor = new ArrayList();
-	for (i = 0; i < _alPropOrder.size(); i++) {
+
+	// Vars still to be processed (every var in the live factors)
+	HashSet remaining = new HashSet();
+	for (j = 0; j < factors.size(); j++) {
+	    remaining.addAll(((Factor)factors.get(j))._hsVars);
+	}
+	_alElimOrder = new ArrayList();
+	while (!remaining.isEmpty()) {
 
 	    // A little inefficient to use Strings, but probably
 	    // nothing compared to the DD operations.
-	    String var = (String)_alPropOrder.get(i);
+	    String var = nextElimVar(factors, remaining, operations);
+	    remaining.remove(var);
+	    _alElimOrder.add(var);
 
 	    // Separate out factors into those containing and not
 	    // containing var.
@@ -627,9 +883,52 @@ public class BN
 	    if (contains_factor.isEmpty()) {
 		continue;
 	    }
+
+	    // Reuse this bucket if an earlier query of the batch already
+	    // eliminated var from the same factors
+	    String bucket_key = null;
+	    if (do_calc && _hmBucketCache != null) {
+		bucket_key = bucketKey(var, contains_factor, operations);
+		Factor cached = (Factor)_hmBucketCache.get(bucket_key);
+		if (cached != null) {
+		    _nBucketCacheHits++;
+		    boolean query = false;
+		    int cnt = getVarCount(var);
+		    for (k = 0; k < cnt; k++) {
+			Var bvar = getVar(var, k);
+			if (operations.get(bvar) == QUERY) {
+			    query = true;
+			    query_vars.add(bvar);
+			}
+		    }
+		    int width = cached._hsVars.size() + (query ? 0 : 1);
+		    if (width > max_var_width) {
+			max_var_width = width;
+		    }
+		    System.out.println("- Reusing factor for " + var + "..." + 
+				       cached.getNodeCount() + " nodes");
+		    not_contains_factor.add(cached);
+		    factors = (ArrayList)not_contains_factor.clone();
+		    continue;
+		}
+	    }
 	    
+	    BNEvents.Bucket event = new BNEvents.Bucket();
+	    event.begin();
 	    System.out.print("- Initial factor for " + var + "...");
 	    
+	    // If all bin vars of var are summed out, the last product is
+	    // fused with the sum out (for an ADD the full product is never built)
+	    int cnt = getVarCount(var);
+	    HashSet sum_gids = new HashSet();
+	    for (k = 0; k < cnt; k++) {
+		Var bvar = getVar(var, k);
+		if (operations.get(bvar) == SUM_OUT) {
+		    sum_gids.add(new Integer(bvar._nID));
+		}
+	    }
+	    boolean fused = do_calc && contains_factor.size() > 1 && sum_gids.size() == cnt;
+
 	    // Multiply all factors with var -> dd
 	    Factor f1 = (Factor)contains_factor.get(0);
 	    Object dd = f1._dd;
@@ -637,7 +936,9 @@ public class BN
 	    for (k = 1; k < contains_factor.size(); k++) {
 		Factor f2 = (Factor)contains_factor.get(k);
 		new_vars.addAll(f2._hsVars);
-		if (do_calc) {
+		if (fused && k == contains_factor.size() - 1) {
+		    dd = _context.applyAndSumOut(dd, f2._dd, sum_gids); // calc
+		} else if (do_calc) {
 		    dd = _context.applyInt(dd, f2._dd, DD.ARITH_PROD); // calc
 		}
 
@@ -656,8 +957,12 @@ public class BN
 			       _context.getGIDs(dd).size() + " bin vars / " +
 			       new_vars.size() + " prop vars, " + MemDisplay());
 
+	    // Sum out all bin vars of var at once (if not already fused above)
+	    if (do_calc && !fused && !sum_gids.isEmpty()) {
+		dd = _context.opOut(dd, sum_gids, DD.ARITH_SUM); // Calc
+	    }
+
 	    // Perform any required operations on this var (i.e. restrict/sum out)
-	    int cnt = getVarCount(var);
 	    boolean query = false;
 	    for (k = 0; k < cnt; k++) {
 		Var bvar = getVar(var, k);
@@ -665,7 +970,7 @@ public class BN
 		System.out.print("- Performing " + bvar + "->" + op);
 		if (do_calc) {
 		    if (op == SUM_OUT) {
-			dd = _context.opOut(dd, bvar._nID, DD.ARITH_SUM); // Calc
+			// Already summed out above
 		    } else if (op == RESTRICT_TRUE) {
 			dd = _context.restrict(dd, bvar._nID, DD.RESTRICT_HIGH); // Calc
 		    } else if (op == RESTRICT_FALSE) {
@@ -725,12 +1030,35 @@ public class BN
 	    }
 
 	    // Add the resulting factor back in
-	    not_contains_factor.add(new Factor(dd, new_vars));
+	    Factor new_factor = new Factor(dd, new_vars);
+	    not_contains_factor.add(new_factor);
 	    factors = (ArrayList)not_contains_factor.clone();
+	    if (bucket_key != null) {
+		if (_hmBucketCache.size() >= BUCKET_CACHE_SIZE) {
+		    _hmBucketCache.clear();
+		}
+		_hmBucketCache.put(bucket_key, new_factor);
+	    }
+
+	    event.end();
+	    event.commit(_context, var, contains_factor.size(), new_vars.size(), dd);
+
+	    // Metrics snapshot for this elimination step
+	    if (_context._context._metrics._reporter != null) {
+		HashMap fields = new LinkedHashMap();
+		fields.put("var", var);
+		fields.put("factor_nodes", new Long(_context.countExactNodes(dd)));
+		fields.put("prop_vars", new Integer(new_vars.size()));
+		fields.put("factors", new Integer(factors.size()));
+		_context.reportMetrics("bn.eliminate", fields);
+	    }
 	    //System.out.println("Interm factors: " + factors);
 	}
 
 	//System.out.println("Result factors: " + factors);
+	_nPeakFactorWidth = max_var_width;
+	System.out.println("Elimination order (" + ORDER_NAMES[ELIM_ORDER] + "): " +
+			   _alElimOrder + "\nPeak factor width: " + max_var_width + " prop vars");
 
 	// Multiply out any remaining factors
 	Object dd = ((Factor)factors.get(0))._dd;
@@ -757,19 +1085,19 @@ public class BN
 	double norm_const = 1d;
 
 	// Determine sum vars
-	Object sum_dd = dd;
+	HashSet query_gids = new HashSet();
 	Iterator sum_vars = query_vars.iterator();
 	while (sum_vars.hasNext()) {
-	    Var bvar = (Var)sum_vars.next();
-	    sum_dd = _context.opOut(sum_dd, bvar._nID, DD.ARITH_SUM);	
-
-	    // Cache maintenance
-	    int ref1 = addSaveNode(dd);
-	    int ref2 = addSaveNode(sum_dd);
-	    flushCaches();
-	    removeSaveNode(ref2);
-	    removeSaveNode(ref1);	
+	    query_gids.add(new Integer(((Var)sum_vars.next())._nID));
 	}
+	Object sum_dd = _context.opOut(dd, query_gids, DD.ARITH_SUM);
+
+	// Cache maintenance
+	int ref1 = addSaveNode(dd);
+	int ref2 = addSaveNode(sum_dd);
+	flushCaches();
+	removeSaveNode(ref2);
+	removeSaveNode(ref1);
 	if (_context.countExactNodes(sum_dd) != 1) {
 	    System.out.println("Sum did not yield a constant!\n" + sum_dd);
 	    System.exit(1);
@@ -822,15 +1150,134 @@ public class BN
 	return dd;
     }
 
+    /** Chooses the next var to process in varElim().  ORDER_GLOBAL follows
+     *  _alPropOrder; otherwise the var of least elimCost() in the current
+     *  factors is chosen (ties go to the earlier var in _alPropOrder).
+     *  Query vars are kept to the end since they stay in their factor.
+     **/
+    public String nextElimVar(ArrayList factors, Set remaining, Map operations) {
+
+	String best_var = null;
+	double best_cost = Double.MAX_VALUE;
+	boolean best_query = true;
+	for (int i = 0; i < _alPropOrder.size(); i++) {
+	    String var = (String)_alPropOrder.get(i);
+	    if (!remaining.contains(var)) {
+		continue;
+	    } else if (ELIM_ORDER == ORDER_GLOBAL) {
+		return var;
+	    }
+
+	    boolean query = (operations.get(getVar(var, 0)) == QUERY);
+	    if (query && !best_query) {
+		continue;
+	    }
+	    double cost = elimCost(var, factors);
+	    if (best_var == null || (best_query && !query) || cost < best_cost) {
+		best_var   = var;
+		best_cost  = cost;
+		best_query = query;
+	    }
+	}
+	return best_var;
+    }
+
+    /** Greedy cost of processing var given the current factors:
+     *  - ORDER_MIN_DEGREE:        # of neighbors of var
+     *  - ORDER_MIN_FILL:          # of fill edges between neighbors of var
+     *  - ORDER_WEIGHTED_MIN_FILL: sum over fill edges of the product of
+     *                             the endpoint domain sizes
+     *  - ORDER_DD_SIZE:           log of the product of the DD sizes of the
+     *                             factors with var (bounds their product)
+     **/
+    public double elimCost(String var, ArrayList factors) {
+
+	ArrayList var_factors = new ArrayList();
+	HashSet nbrs = new HashSet();
+	for (int j = 0; j < factors.size(); j++) {
+	    Factor f = (Factor)factors.get(j);
+	    if (f._hsVars.contains(var)) {
+		var_factors.add(f);
+		nbrs.addAll(f._hsVars);
+	    }
+	}
+	nbrs.remove(var);
+
+	switch (ELIM_ORDER) {
+	case ORDER_MIN_DEGREE:
+	    return nbrs.size();
+
+	case ORDER_DD_SIZE: {
+	    double cost = 0d;
+	    for (int j = 0; j < var_factors.size(); j++) {
+		cost += Math.log(((Factor)var_factors.get(j)).getNodeCount());
+	    }
+	    return cost;
+	}
+
+	case ORDER_MIN_FILL:
+	case ORDER_WEIGHTED_MIN_FILL: {
+
+	    // Neighbors of each neighbor of var
+	    HashMap adj = new HashMap();
+	    Iterator ni = nbrs.iterator();
+	    while (ni.hasNext()) {
+		adj.put(ni.next(), new HashSet());
+	    }
+	    for (int j = 0; j < factors.size(); j++) {
+		Factor f = (Factor)factors.get(j);
+		Iterator vi = f._hsVars.iterator();
+		while (vi.hasNext()) {
+		    HashSet a = (HashSet)adj.get(vi.next());
+		    if (a != null) {
+			a.addAll(f._hsVars);
+		    }
+		}
+	    }
+
+	    // Count (weighted) missing edges among the neighbors
+	    ArrayList nl = new ArrayList(nbrs);
+	    double cost = 0d;
+	    for (int a = 0; a < nl.size(); a++) {
+		String u = (String)nl.get(a);
+		HashSet u_adj = (HashSet)adj.get(u);
+		for (int b = a + 1; b < nl.size(); b++) {
+		    String w = (String)nl.get(b);
+		    if (u_adj.contains(w)) {
+			continue;
+		    }
+		    cost += (ELIM_ORDER == ORDER_MIN_FILL) ? 1d :
+			(double)((ArrayList)_hmVar2Values.get(u)).size() *
+			((ArrayList)_hmVar2Values.get(w)).size();
+		}
+	    }
+	    return cost;
+	}
+
+	default:
+	    System.out.println("Invalid elimination order: " + ELIM_ORDER);
+	    System.exit(1);
+	    return 0d;
+	}
+    }
+
     public class Factor {
 	public Object  _dd;
 	public HashSet _hsVars;
+	public long    _lNodes = -1; // Computed on first getNodeCount()
 	
 	public Factor(Object dd, Collection vars) {
 	    _dd     = dd;
 	    _hsVars = new HashSet(vars);
 	}
 
+	public long getNodeCount() {
+	    if (_lNodes < 0) {
+		_lNodes = _context.countExactNodes(_dd);
+	    }
+	    return _lNodes;
+	}
+
 	public String toString() {
 	    return " " + _hsVars + "::" + _context.getGIDs(_dd) + " ";
 	}
@@ -880,7 +1327,8 @@ public class BN
 	sb.append("\n  CPT type................. " + ((DD_TYPE == DD.TYPE_ADD) ? "ADD" : 
 						  ((DD_TYPE == DD.TYPE_AADD) ? "AADD" :
 						  ((DD_TYPE == DD.TYPE_TABLE) ? "TABLE" :
-						   "Unknown"))));
+						  ((DD_TYPE == DD.TYPE_CADD) ? "CADD" :
+						   "Unknown")))));
 	sb.append("\n  Compression percentage... " + 
 		  _df.format(100d*accum/(double)entry_count) + "% [" +
 		  _df.format(min*100d) + "%, " + _df.format(max*100d) + "%]");
@@ -911,103 +1359,72 @@ public class BN
      *  crucial for determining D-Sep and node sizes which are crucial for d-sep.
      **/
 
-    /** Determine d-separation **/
+    /** Whether var is d-separated from all query_vars given evidence
+     *  (for an evidence var: whether observing it is irrelevant)
+     **/
     public boolean isDSeparated(String var, Set query_vars, Set evidence) {
-	
-	System.out.println("Need to ensure this works correctly... " + 
-			   "seems to have produced errors" + 
-			   "\nAlso, _graph.getLinkSet() may return null!!!");
-	System.exit(1);
-
-	//Set evidence2 = new HashSet(evidence);
-	//evidence2.remove(var);
-	boolean isdsep = true;
-	Iterator i = query_vars.iterator();
-	while (isdsep && i.hasNext()) {
-	    String qvar = (String)i.next();
-	    isdsep = isDSeparated(var, qvar, evidence);
-	}
-	return isdsep;
+	HashSet bottom  = new HashSet();
+	HashSet visited = new HashSet();
+	bayesBall(query_vars, evidence, new HashSet(), bottom, visited);
+	return evidence.contains(var) ? !visited.contains(var) : !bottom.contains(var);
     }
 
-    /** D-sep algorithm... similar to Bayes-ball algorithm of Schacter **/
     public boolean isDSeparated(String goal, String start, Set evidence) {
+	HashSet query_vars = new HashSet();
+	query_vars.add(start);
+	return isDSeparated(goal, query_vars, evidence);
+    }
+
+    /** Bayes-ball (Shachter, 1998) from query_vars given evidence.  Adds
+     *  to top the nodes whose CPTs are requisite for P(query|evidence),
+     *  to bottom the (unobserved) nodes not d-separated from the query,
+     *  and to visited every node the ball reaches (the requisite
+     *  evidence is evidence & visited).
+     **/
+    public void bayesBall(Collection query_vars, Set evidence, 
+			  Set top, Set bottom, Set visited) {
 
+	// Schedule of <node, visited from child?>
 	LinkedList nqueue = new LinkedList();
-	
-	/* For each evidence node, mark it's parents with a vmark */
-	HashSet vmark = new HashSet();
-	MarkUpwardAll(vmark, evidence);
-	
-	/* Perform a breadth first search from x to y */
-	HashSet activepar = new HashSet();
-	HashSet activecld = new HashSet();
-	activepar.add(start);
-	activecld.add(start);
-	nqueue.addLast(start);
+	LinkedList from_child = new LinkedList();
+	Iterator i = query_vars.iterator();
+	while (i.hasNext()) {
+	    nqueue.addLast(i.next());
+	    from_child.addLast(Boolean.TRUE);
+	}
 
 	while (!nqueue.isEmpty()) {
-	    
-	    String curnode = (String)nqueue.removeFirst();
 
-	    if (curnode.equals(goal)) {
-		return false; // Reached goal from start, not d-sep!
-	    }
-			
-	    /* Insert all children */
-	    Iterator i = _graph.getRevLinkSet(curnode).iterator();
-	    while (i.hasNext()) {
-		String cld = (String)i.next();
-		if (!activepar.contains(cld)) {
-		    nqueue.addLast(cld);
-		    activepar.add(cld);
-		}
-	    }
-	    
-	    /* Insert par if curnode active through cld */
-	    if (activecld.contains(curnode)) {
-		
-		/* Insert all parents */
-		i = _graph.getLinkSet(curnode).iterator();
-		while (i.hasNext()) {
-		    String par = (String)i.next();
-		    if (!activecld.contains(par) && !evidence.contains(par)) {
-			nqueue.addLast(par);
-			activecld.add(par);
+	    String curnode = (String)nqueue.removeFirst();
+	    boolean child = ((Boolean)from_child.removeFirst()).booleanValue();
+	    visited.add(curnode);
+	    boolean observed = evidence.contains(curnode);
+
+	    // Pass up to the parents: unobserved nodes from a child, observed
+	    // nodes bounce a ball from a parent (v-structure)
+	    if ((child ? !observed : observed) && top.add(curnode)) {
+		Set s = _graph.getLinkSet(curnode);
+		if (s != null) {
+		    Iterator j = s.iterator();
+		    while (j.hasNext()) {
+			nqueue.addLast(j.next());
+			from_child.addLast(Boolean.TRUE);
 		    }
 		}
 	    }
-		    
-	    /* If node or descendant is evidence */
-	    if (vmark.contains(curnode)) {
-
-		/* Check all parents */
-		i = _graph.getLinkSet(curnode).iterator();
-		while (i.hasNext()) {
-		    String par = (String)i.next();
-		    if (!activecld.contains(par)) {
-			
-			/* par not currently active through cld so see if
-			 * it should be due to a vstruct */
-			Iterator j = _graph.getLinkSet(curnode).iterator();
-			while (j.hasNext()) {
-			    String par2 = (String)j.next();
-			    if (!par.equals(par2) 
-				&& (activecld.contains(par2) || activepar.contains(par2))) {
-				
-				nqueue.addLast(par);
-				activecld.add(par);
-				break;
-			    }
-			}
+
+	    // Pass down to the children: only unobserved nodes
+	    if (!observed && bottom.add(curnode)) {
+		Set s = _graph.getRevLinkSet(curnode);
+		if (s != null) {
+		    Iterator j = s.iterator();
+		    while (j.hasNext()) {
+			nqueue.addLast(j.next());
+			from_child.addLast(Boolean.FALSE);
 		    }
 		}
 	    }
 	}
-
-	/* Went though entire queue and never reached goal from start 
-	   so must be d-sep */
-	return true;
     }
     
     public void MarkUpward(Set markset, String start)
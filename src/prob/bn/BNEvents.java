@@ -0,0 +1,41 @@
+//////////////////////////////////////////////////////////////////////
+//
+// Java Flight Recorder events for BN inference (see also
+// logic.add.DDEvents for the underlying DD operations)
+//
+//////////////////////////////////////////////////////////////////////
+
+package prob.bn;
+
+import jdk.jfr.*;
+
+import logic.add.*;
+
+public class BNEvents {
+
+	@Name("prob.bn.Bucket")
+	@Label("BN Bucket")
+	@Category({ "Decision Diagrams", "BN" })
+	@Description("Elimination of one variable in BN.varElim()")
+	@StackTrace(false)
+	public static class Bucket extends Event {
+		@Label("DD Type") public String type;
+		@Label("Variable") public String var;
+		@Label("Factors") public int factors;
+		@Label("Prop Vars") public int propVars;
+		@Label("Result Nodes") public long resultNodes;
+
+		public void commit(FBR context, String var_name, int num_factors,
+				int prop_vars, Object result) {
+			if (!shouldCommit()) {
+				return;
+			}
+			type = context._context.getClass().getSimpleName();
+			var = var_name;
+			factors = num_factors;
+			propVars = prop_vars;
+			resultNodes = context.countExactNodes(result);
+			commit();
+		}
+	}
+}
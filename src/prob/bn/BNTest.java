@@ -39,11 +39,96 @@ import prob.bn.parser.*;
 public class BNTest
 {
     
+    // Receives a metrics snapshot after each elimination step (null = none)
+    public static Metrics.Reporter REPORTER = null;
+
+    // Also compute all marginals with a JunctionTree for each query's
+    // evidence and check them against BN.query() (-jt)
+    public static boolean JUNCTION_TREE = false;
+
+    // Arithmetic circuit file: loaded if it exists, else compiled from
+    // the BN and saved there; its marginals are checked like -jt (-ac)
+    public static String AC_FILE = null;
+
+    // Run the random queries through one BN.queryBatch() and check each
+    // result against its own BN.query() (-batch)
+    public static boolean BATCH = false;
+
+    // Max difference allowed between a checked marginal and BN.query()
+    // (CPT rows in the .bif files sum to 1 only up to their printed
+    // precision, and each engine normalizes at a different point)
+    public static double CHECK_TOLERANCE = 1e-5d;
+
     public static void main(String args[]) {
 	
+	// Optional JSON lines metrics file
+	ArrayList arg_list = new ArrayList(Arrays.asList(args));
+	int m = arg_list.indexOf("-metrics");
+	if (m >= 0 && m + 1 < arg_list.size()) {
+	    REPORTER = new Metrics.JSONLinesReporter((String)arg_list.get(m + 1));
+	    arg_list.remove(m + 1);
+	    arg_list.remove(m);
+	    args = (String[])arg_list.toArray(new String[arg_list.size()]);
+	}
+
+	// Optional elimination order (see BN.ORDER_NAMES)
+	int o = arg_list.indexOf("-order");
+	if (o >= 0 && o + 1 < arg_list.size()) {
+	    BN.ELIM_ORDER = Arrays.asList(BN.ORDER_NAMES).indexOf(arg_list.get(o + 1));
+	    if (BN.ELIM_ORDER < 0) {
+		System.out.println("Unknown order '" + arg_list.get(o + 1) + "', must be one of " +
+				   Arrays.asList(BN.ORDER_NAMES));
+		System.exit(1);
+	    }
+	    arg_list.remove(o + 1);
+	    arg_list.remove(o);
+	    args = (String[])arg_list.toArray(new String[arg_list.size()]);
+	}
+
+	// Optional all-marginals check
+	int j = arg_list.indexOf("-jt");
+	if (j >= 0) {
+	    JUNCTION_TREE = true;
+	    arg_list.remove(j);
+	    args = (String[])arg_list.toArray(new String[arg_list.size()]);
+	}
+
+	// Optional arithmetic circuit check
+	int a = arg_list.indexOf("-ac");
+	if (a >= 0 && a + 1 < arg_list.size()) {
+	    AC_FILE = (String)arg_list.get(a + 1);
+	    arg_list.remove(a + 1);
+	    arg_list.remove(a);
+	    args = (String[])arg_list.toArray(new String[arg_list.size()]);
+	}
+
+	// Optional fork depth for the parallel apply of CADD
+	int f = arg_list.indexOf("-fork");
+	if (f >= 0 && f + 1 < arg_list.size()) {
+	    try {
+		ConcurrentADD.APPLY_FORK_DEPTH = Integer.parseInt((String)arg_list.get(f + 1));
+	    } catch (NumberFormatException nfe) {
+		System.out.println("\nIllegal fork depth\n");
+		System.exit(1);
+	    }
+	    arg_list.remove(f + 1);
+	    arg_list.remove(f);
+	    args = (String[])arg_list.toArray(new String[arg_list.size()]);
+	}
+
+	// Optional batched queries
+	int b = arg_list.indexOf("-batch");
+	if (b >= 0) {
+	    BATCH = true;
+	    arg_list.remove(b);
+	    args = (String[])arg_list.toArray(new String[arg_list.size()]);
+	}
+
 	if (args.length < 6 || args.length > 7) {
-	    System.out.println("\nMust enter: filename, random_seed, {Table|ADD|AADD}, iter, " + 
-			       "prune-prec, type<none,low,high,min,max,avg,range> [max-TW]\n");
+	    System.out.println("\nMust enter: filename, random_seed, {Table|ADD|AADD|CADD}, iter, " + 
+			       "prune-prec, type<none,low,high,min,max,avg,range> [max-TW]" +
+			       " [-metrics json-file] [-order " + Arrays.asList(BN.ORDER_NAMES) + "]" +
+			       " [-jt] [-ac circuit-file] [-batch] [-fork depth]\n");
 	    System.exit(1);
 	}
 
@@ -57,6 +142,8 @@ public class BNTest
 	    dd_type = DD.TYPE_AADD;
 	} else if (ddt.equalsIgnoreCase("TABLE")) {
 	    dd_type = DD.TYPE_TABLE;
+	} else if (ddt.equalsIgnoreCase("CADD")) {
+	    dd_type = DD.TYPE_CADD;
 	} else {
 	    System.out.println("\nIllegal dd_type: " + ddt);
 	    System.exit(1);
@@ -112,6 +199,7 @@ public class BNTest
 	
 	Random r = new Random(seed);
 	BN bn = new BN(filename);
+	bn._context._context._metrics._reporter = REPORTER;
 	
 	System.out.println("\n\n");
 
@@ -119,6 +207,14 @@ public class BNTest
 	int var_sz = vars.size();
 
 	long total_time = 0;
+	long jt_time = 0;
+	JunctionTree jt = JUNCTION_TREE ? new JunctionTree(bn) : null;
+	if (jt != null) {
+	    System.out.println(jt);
+	}
+	ArrayList batch = new ArrayList();
+	long ac_time = 0;
+	ArithmeticCircuit ac = (AC_FILE == null) ? null : GetCircuit(bn, AC_FILE);
 
 	// Generate a query on every iteration
 	for (int i = 0; i < iter; i++) {
@@ -147,19 +243,141 @@ public class BNTest
 		    continue;
 		}
 	    }
-	    DD.ResetTimer();
-	    System.out.println("Running query: " + query_var + " | " + assignment + " ->");
-	    Object cpt = bn.query(query_var, assignment);
-	    long time = DD.GetElapsedTime();
-	    total_time += time;
-	    System.out.println("--> Query time " + time + " ms ");
+	    long time;
+	    if (BATCH) {
+		batch.add(new BN.Query(query_var, assignment));
+	    } else {
+		DD.ResetTimer();
+		System.out.println("Running query: " + query_var + " | " + assignment + " ->");
+		Object cpt = bn.query(query_var, assignment);
+		time = DD.GetElapsedTime();
+		total_time += time;
+		System.out.println("--> Query time " + time + " ms ");
+	    }
+
+	    if (jt != null) {
+		DD.ResetTimer();
+		HashMap marginals = jt.marginals(assignment);
+		HashMap dists = new HashMap();
+		Iterator k = marginals.entrySet().iterator();
+		while (k.hasNext()) {
+		    Map.Entry me = (Map.Entry)k.next();
+		    String var = (String)me.getKey();
+		    dists.put(var, Distribution(bn, me.getValue(), var, assignment));
+		}
+		time = DD.GetElapsedTime();
+		jt_time += time;
+		System.out.println("--> Junction tree time " + time + " ms, max diff " +
+				   CheckMarginals(bn, "Junction tree", dists, assignment));
+	    }
+
+	    if (ac != null) {
+		DD.ResetTimer();
+		HashMap dists = ac.marginals(assignment);
+		time = DD.GetElapsedTime();
+		ac_time += time;
+		System.out.println("--> Circuit time " + time + " ms, max diff " +
+				   CheckMarginals(bn, "Circuit", dists, assignment));
+	    }
+	}
+	if (BATCH) {
+	    total_time = RunBatch(bn, batch);
+	}
+	if (jt != null) {
+	    System.out.println("\nTotal junction tree time:   " + jt_time + " ms");
+	}
+	if (ac != null) {
+	    System.out.println("\nTotal circuit time:   " + ac_time + " ms");
 	}
 
 	// Print out total time
 	System.out.println("\nTotal time <" + filename + ", " + iter + ", " + seed + ", " + 
 			   (BN.DD_TYPE == DD.TYPE_TABLE ? "Table" :
 			    (BN.DD_TYPE == DD.TYPE_ADD ? "ADD" :
-			     (BN.DD_TYPE == DD.TYPE_AADD ? "AADD" : "Unknown"))) +
+			     (BN.DD_TYPE == DD.TYPE_AADD ? "AADD" :
+			      (BN.DD_TYPE == DD.TYPE_CADD ? "CADD" : "Unknown")))) +
 			   ">:   " + total_time + " ms");
     }
+
+    // Runs the queries as one batch, then checks each result against a
+    // separate BN.query(), returns the batch time
+    public static long RunBatch(BN bn, ArrayList batch) {
+
+	DD.ResetTimer();
+	List results = bn.queryBatch(batch);
+	long batch_time = DD.GetElapsedTime();
+
+	// Read the results off before any later flush can release them
+	ArrayList dists = new ArrayList();
+	for (int i = 0; i < batch.size(); i++) {
+	    BN.Query q = (BN.Query)batch.get(i);
+	    String var = (String)q._hsQueryVars.iterator().next();
+	    dists.add(Distribution(bn, results.get(i), var, q._hmEvidence));
+	}
+
+	DD.ResetTimer();
+	double max_diff = 0d;
+	for (int i = 0; i < batch.size(); i++) {
+	    BN.Query q = (BN.Query)batch.get(i);
+	    HashMap dist = new HashMap();
+	    dist.put(q._hsQueryVars.iterator().next(), dists.get(i));
+	    max_diff = Math.max(max_diff, CheckMarginals(bn, "Batch", dist, q._hmEvidence));
+	}
+	System.out.println("\nBatch of " + batch.size() + " queries: " + batch_time + 
+			   " ms (one at a time " + DD.GetElapsedTime() + " ms), max diff " + max_diff);
+	return batch_time;
+    }
+
+    // Loads the circuit in filename, or compiles it from bn and saves it
+    // there first (then loads it back, so the file is what gets used)
+    public static ArithmeticCircuit GetCircuit(BN bn, String filename) {
+	if (!new File(filename).exists()) {
+	    DD.ResetTimer();
+	    ArithmeticCircuit ac = new ArithmeticCircuit(bn);
+	    System.out.println("Compiled circuit: " + ac._nNodes + " nodes, " + 
+			       ac._anEdges.length + " edges in " + DD.GetElapsedTime() + " ms");
+	    ac.save(filename);
+	}
+	DD.ResetTimer();
+	ArithmeticCircuit ac = new ArithmeticCircuit(filename);
+	System.out.println("Loaded circuit " + filename + " in " + DD.GetElapsedTime() + " ms");
+	return ac;
+    }
+
+    // P(var = each value | evidence) read off dd (a DD over var given
+    // the evidence, e.g. a query() result), indexed like the var's values
+    public static double[] Distribution(BN bn, Object dd, String var, Map evidence) {
+	ArrayList values = bn.getValues(var);
+	double[] dist = new double[values.size()];
+	for (int i = 0; i < dist.length; i++) {
+	    HashMap assign = new HashMap(evidence);
+	    assign.put(var, values.get(i));
+	    dist[i] = bn._context.evaluate(dd, bn.assign2EvalSetting(assign));
+	}
+	return dist;
+    }
+
+    // Compares var -> double[] marginals against one BN.query() per var,
+    // returns the max difference (exits if above CHECK_TOLERANCE)
+    public static double CheckMarginals(BN bn, String name, Map dists, Map evidence) {
+	double max_diff = 0d;
+	Iterator i = dists.entrySet().iterator();
+	while (i.hasNext()) {
+	    Map.Entry me = (Map.Entry)i.next();
+	    String var = (String)me.getKey();
+	    double[] dist = (double[])me.getValue();
+	    HashSet query_var = new HashSet();
+	    query_var.add(var);
+	    double[] ref = Distribution(bn, bn.query(query_var, new HashMap(evidence)), var, evidence);
+	    for (int k = 0; k < ref.length; k++) {
+		max_diff = Math.max(max_diff, Math.abs(ref[k] - dist[k]));
+	    }
+	    if (!(max_diff <= CHECK_TOLERANCE)) {
+		System.out.println("\n" + name + " marginal of " + var + " " + Arrays.toString(dist) +
+				   " differs from query() " + Arrays.toString(ref));
+		System.exit(1);
+	    }
+	}
+	return max_diff;
+    }
 }
@@ -0,0 +1,354 @@
+//////////////////////////////////////////////////////////////////////
+//
+// File:     JunctionTree.java (Clique tree inference over BN DD factors)
+//
+// Description:
+// ------------
+//   Shafer-Shenoy propagation on a clique tree whose potentials are
+//   the (evidence restricted) CPT DDs of a BN.  The tree is built once
+//   from the BN's global elimination order (_alPropOrder, computed by
+//   Graph.greedyTWSort); marginals() then absorbs an evidence set and
+//   returns the posterior of every other variable after one collect
+//   and one distribute pass, so only the evidence changes per call.
+//
+// Notes:
+// ------
+// - Evidence is absorbed by restricting the CPTs (reusing BN's
+//   restricted CPT cache); evidence vars are never summed out since
+//   the restricted DDs no longer depend on them.
+// - Shafer-Shenoy needs no division, so it works for any DD type.
+//
+//////////////////////////////////////////////////////////////////////
+
+package prob.bn;
+
+import java.util.*;
+
+import logic.add.*;
+
+public class JunctionTree
+{
+    /* The network and its DD context */
+    public BN  _bn;
+    public FBR _context;
+
+    /* Clique i: its prop vars, the clique above it (-1 for a root),
+     * the cliques below it, and the vars whose CPTs it holds */
+    public ArrayList _alCliques  = new ArrayList(); // HashSet of var names
+    public int[]     _anParent;
+    public ArrayList _alChildren = new ArrayList(); // ArrayList of Integer
+    public ArrayList _alCPTs     = new ArrayList(); // ArrayList of var names
+
+    /* Cliques with every parent before its children */
+    public int[] _anPreorder;
+
+    /* Var -> smallest clique containing it */
+    public HashMap _hmVar2Clique = new HashMap();
+
+    /* Largest clique (prop vars) */
+    public int _nMaxCliqueSize = 0;
+
+    /** Builds the clique tree for bn
+     **/
+    public JunctionTree(BN bn) {
+	_bn      = bn;
+	_context = bn._context;
+
+	// Simulate elimination in the global order on the CPT families:
+	// eliminating v merges the sets holding v into the clique of v,
+	// which then passes its separator (clique minus v) on to the
+	// clique of the next var eliminated from it.
+	ArrayList order  = bn._alPropOrder;
+	ArrayList sets   = new ArrayList(); // HashSet of var names
+	ArrayList owners = new ArrayList(); // CPT var (String) or clique (Integer)
+	Iterator it = bn._hmVar2CPT.values().iterator();
+	while (it.hasNext()) {
+	    BN.CPT cpt = (BN.CPT)it.next();
+	    HashSet fam = new HashSet(cpt._alParents);
+	    fam.add(cpt._sHead);
+	    sets.add(fam);
+	    owners.add(cpt._sHead);
+	}
+
+	int n = order.size();
+	ArrayList cliques = new ArrayList();
+	ArrayList cpts    = new ArrayList();
+	int[] parent = new int[n];
+	Arrays.fill(parent, -1);
+	for (int v = 0; v < n; v++) {
+	    String var = (String)order.get(v);
+	    HashSet clique = new HashSet();
+	    ArrayList clique_cpts = new ArrayList();
+	    clique.add(var);
+	    for (int j = sets.size() - 1; j >= 0; j--) {
+		HashSet s = (HashSet)sets.get(j);
+		if (!s.contains(var)) {
+		    continue;
+		}
+		clique.addAll(s);
+		Object owner = owners.get(j);
+		if (owner instanceof Integer) {
+		    parent[((Integer)owner).intValue()] = v;
+		} else {
+		    clique_cpts.add(owner);
+		}
+		sets.remove(j);
+		owners.remove(j);
+	    }
+	    cliques.add(clique);
+	    cpts.add(clique_cpts);
+
+	    HashSet sep = (HashSet)clique.clone();
+	    sep.remove(var);
+	    if (!sep.isEmpty()) {
+		sets.add(sep);
+		owners.add(new Integer(v));
+	    }
+	}
+
+	// A clique contained in one of its children is not maximal: fold
+	// it into that child (children always precede their parents in
+	// the order)
+	boolean[] removed = new boolean[n];
+	for (int u = 0; u < n; u++) {
+	    HashSet cu = (HashSet)cliques.get(u);
+	    int child = -1;
+	    for (int v = 0; v < u && child < 0; v++) {
+		if (!removed[v] && parent[v] == u &&
+		    ((HashSet)cliques.get(v)).containsAll(cu)) {
+		    child = v;
+		}
+	    }
+	    if (child < 0) {
+		continue;
+	    }
+	    removed[u] = true;
+	    for (int v = 0; v < u; v++) {
+		if (!removed[v] && parent[v] == u && v != child) {
+		    parent[v] = child;
+		}
+	    }
+	    parent[child] = parent[u];
+	    ((ArrayList)cpts.get(child)).addAll((ArrayList)cpts.get(u));
+	}
+
+	// Compact the remaining cliques
+	int[] index = new int[n];
+	for (int v = 0; v < n; v++) {
+	    if (removed[v]) {
+		continue;
+	    }
+	    index[v] = _alCliques.size();
+	    _alCliques.add(cliques.get(v));
+	    _alCPTs.add(cpts.get(v));
+	    _alChildren.add(new ArrayList());
+	}
+	_anParent = new int[_alCliques.size()];
+	for (int v = 0; v < n; v++) {
+	    if (removed[v]) {
+		continue;
+	    }
+	    int p = (parent[v] < 0) ? -1 : index[parent[v]];
+	    _anParent[index[v]] = p;
+	    if (p >= 0) {
+		((ArrayList)_alChildren.get(p)).add(new Integer(index[v]));
+	    }
+	}
+
+	// Parents before children
+	_anPreorder = new int[_alCliques.size()];
+	int next = 0;
+	Stack stack = new Stack();
+	for (int c = 0; c < _alCliques.size(); c++) {
+	    if (_anParent[c] < 0) {
+		stack.push(new Integer(c));
+	    }
+	}
+	while (!stack.isEmpty()) {
+	    Integer c = (Integer)stack.pop();
+	    _anPreorder[next++] = c.intValue();
+	    stack.addAll((ArrayList)_alChildren.get(c.intValue()));
+	}
+
+	// Home clique of each var and the width
+	for (int c = 0; c < _alCliques.size(); c++) {
+	    HashSet clique = (HashSet)_alCliques.get(c);
+	    if (clique.size() > _nMaxCliqueSize) {
+		_nMaxCliqueSize = clique.size();
+	    }
+	    it = clique.iterator();
+	    while (it.hasNext()) {
+		String var = (String)it.next();
+		Integer home = (Integer)_hmVar2Clique.get(var);
+		if (home == null ||
+		    ((HashSet)_alCliques.get(home.intValue())).size() > clique.size()) {
+		    _hmVar2Clique.put(var, new Integer(c));
+		}
+	    }
+	}
+	System.out.println("Junction tree: " + _alCliques.size() + " cliques, max clique size " +
+			   _nMaxCliqueSize + " prop vars");
+    }
+
+    /** Posterior marginal P(X|evidence) of every non-evidence var X given
+     *  evidence (var -> value), as a map var -> DD over the bin vars of X
+     *  (normalized like BN.query())
+     **/
+    public HashMap marginals(Map assign_vars) {
+
+	int save_mark = _bn._alSaveNodes.size();
+	HashMap operations = new HashMap();
+	_bn.addRestrictOps(operations, assign_vars.keySet(), assign_vars);
+	int nc = _alCliques.size();
+
+	// Clique potentials: products of their (restricted) CPTs
+	Object[] pot = new Object[nc];
+	for (int c = 0; c < nc; c++) {
+	    pot[c] = _context.getConstantNode(1d);
+	    Iterator i = ((ArrayList)_alCPTs.get(c)).iterator();
+	    while (i.hasNext()) {
+		String var = (String)i.next();
+		BN.CPT cpt = (BN.CPT)_bn._hmVar2CPT.get(var);
+		TreeMap evidence = new TreeMap();
+		if (assign_vars.containsKey(cpt._sHead)) {
+		    evidence.put(cpt._sHead, assign_vars.get(cpt._sHead));
+		}
+		Iterator pi = cpt._alParents.iterator();
+		while (pi.hasNext()) {
+		    String par = (String)pi.next();
+		    if (assign_vars.containsKey(par)) {
+			evidence.put(par, assign_vars.get(par));
+		    }
+		}
+		Object dd = evidence.isEmpty() ? cpt._dd :
+		    _bn.getRestrictedCPT(var, evidence, operations);
+		pot[c] = _context.applyInt(pot[c], dd, DD.ARITH_PROD);
+	    }
+	    _bn.addSaveNode(pot[c]);
+	    _bn.flushCaches();
+	}
+
+	// Collect (children before parents), then distribute (parents
+	// before children)
+	Object[] up   = new Object[nc]; // c -> parent(c)
+	Object[] down = new Object[nc]; // parent(c) -> c
+	for (int k = nc - 1; k >= 0; k--) {
+	    int c = _anPreorder[k];
+	    if (_anParent[c] >= 0) {
+		up[c] = message(c, _anParent[c], pot, up, down, assign_vars);
+	    }
+	}
+	for (int k = 0; k < nc; k++) {
+	    int c = _anPreorder[k];
+	    Iterator i = ((ArrayList)_alChildren.get(c)).iterator();
+	    while (i.hasNext()) {
+		int child = ((Integer)i.next()).intValue();
+		down[child] = message(c, child, pot, up, down, assign_vars);
+	    }
+	}
+
+	// Marginals from the clique beliefs (each computed once)
+	HashMap marginals = new HashMap();
+	Object[] belief = new Object[nc];
+	Iterator i = _hmVar2Clique.entrySet().iterator();
+	while (i.hasNext()) {
+	    Map.Entry me = (Map.Entry)i.next();
+	    String var = (String)me.getKey();
+	    if (assign_vars.containsKey(var)) {
+		continue;
+	    }
+	    int c = ((Integer)me.getValue()).intValue();
+	    if (belief[c] == null) {
+		belief[c] = collect(c, -1, pot, up, down);
+		_bn.addSaveNode(belief[c]);
+	    }
+
+	    HashSet others = new HashSet((HashSet)_alCliques.get(c));
+	    others.remove(var);
+	    others.removeAll(assign_vars.keySet());
+	    Object dd = _context.opOut(belief[c], getGIDs(others), DD.ARITH_SUM);
+	    dd = normalize(dd, var);
+	    marginals.put(var, dd);
+	    _bn.addSaveNode(dd);
+	    _bn.flushCaches();
+	}
+
+	// Release the potentials and messages (the results are not
+	// protected from later flushes, as with BN.query())
+	_bn._alSaveNodes.subList(save_mark, _bn._alSaveNodes.size()).clear();
+	return marginals;
+    }
+
+    /** Message from clique 'from' to its neighbor 'to': the potential of
+     *  'from' times all messages into it except the one from 'to', with
+     *  the non-evidence vars not in the separator summed out
+     **/
+    public Object message(int from, int to, Object[] pot, Object[] up, Object[] down,
+			  Map assign_vars) {
+	Object dd = collect(from, to, pot, up, down);
+	HashSet out = new HashSet((HashSet)_alCliques.get(from));
+	out.removeAll((HashSet)_alCliques.get(to));
+	out.removeAll(assign_vars.keySet());
+	if (!out.isEmpty()) {
+	    dd = _context.opOut(dd, getGIDs(out), DD.ARITH_SUM);
+	}
+	_bn.addSaveNode(dd);
+	_bn.flushCaches();
+	return dd;
+    }
+
+    /** Potential of clique c times all messages into it except the one
+     *  from clique 'except' (-1 for none)
+     **/
+    public Object collect(int c, int except, Object[] pot, Object[] up, Object[] down) {
+	Object dd = pot[c];
+	Iterator i = ((ArrayList)_alChildren.get(c)).iterator();
+	while (i.hasNext()) {
+	    int child = ((Integer)i.next()).intValue();
+	    if (child != except) {
+		dd = _context.applyInt(dd, up[child], DD.ARITH_PROD);
+	    }
+	}
+	if (_anParent[c] >= 0 && _anParent[c] != except) {
+	    dd = _context.applyInt(dd, down[c], DD.ARITH_PROD);
+	}
+	return dd;
+    }
+
+    /** Bin var IDs of a set of prop vars
+     **/
+    public HashSet getGIDs(Set vars) {
+	HashSet gids = new HashSet();
+	Iterator i = vars.iterator();
+	while (i.hasNext()) {
+	    String var = (String)i.next();
+	    int cnt = _bn.getVarCount(var);
+	    for (int k = 0; k < cnt; k++) {
+		gids.add(new Integer(_bn.getVar(var, k)._nID));
+	    }
+	}
+	return gids;
+    }
+
+    /** Divides a DD over var by its sum over var
+     **/
+    public Object normalize(Object dd, String var) {
+	HashSet var_set = new HashSet();
+	var_set.add(var);
+	Object sum_dd = _context.opOut(dd, getGIDs(var_set), DD.ARITH_SUM);
+	double sum = _context.getMaxValue(sum_dd);
+	if (sum == 0d) {
+	    return _context.getConstantNode(0d);
+	}
+	return _context.scalarMultiply(dd, 1d/sum);
+    }
+
+    public String toString() {
+	StringBuffer sb = new StringBuffer();
+	for (int c = 0; c < _alCliques.size(); c++) {
+	    sb.append(c + ": " + _alCliques.get(c) + " -> " + _anParent[c] +
+		      ", CPTs " + _alCPTs.get(c) + "\n");
+	}
+	return sb.toString();
+    }
+}
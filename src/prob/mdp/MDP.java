@@ -21,9 +21,12 @@ import graph.Graph;
 
 import java.io.*;
 import java.math.*;
+import java.nio.*;
+import java.nio.file.*;
 import java.text.*;
 import java.util.regex.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 // DD & FBR interfaces
 import logic.add.*;
@@ -51,9 +54,16 @@ public class MDP {
 	public final static int VERBOSE_LEVEL = 0; // Determines how much output is
 												// displayed
 	public final static boolean ALWAYS_FLUSH = false; // Always flush DD caches?
-	public final static double FLUSH_PERCENT_MINIMUM = 0.3d; // Won't flush
+	public static double FLUSH_PERCENT_MINIMUM = 0.3d; // Won't flush
 																// until < this
 																// amt
+	public static int NUM_THREADS = 1; // > 1 regresses actions in parallel,
+										// each thread in its own DD context
+	public final static int NO_BOUND = 0; // Initial value function kinds
+	public final static int LOWER_BOUND = 1; // for solve() warm starts
+	public final static int UPPER_BOUND = 2;
+	public final static int CKPT_MAGIC = 0x44444350; // "DDCP"
+	public final static int CKPT_VERSION = 1;
 
 	/* For printing */
 	public static DecimalFormat _df = new DecimalFormat("#.###");
@@ -79,6 +89,7 @@ public class MDP {
 							// been solved
 	public Object _maxDD;
 	public Object _prevDD;
+	public Policy _policy; // Greedy policy for _valueDD (see buildPolicy())
 	public BigDecimal _bdDiscount; // Discount (gamma) for MDP
 	public BigDecimal _bdTolerance; // Tolerance (gamma) for MDP
 	public int _nDDType; // Type of DD to use
@@ -88,6 +99,12 @@ public class MDP {
 	public double _dRewardRange;
 	public String _sRegrAction;
 	public ArrayList _alSaveNodes; // Nodes to save during cache flushing
+	public ArrayList _alWorkers; // Worker contexts for parallel regression
+	public ExecutorService _executor;
+	public String _sCheckpointFile; // Checkpoint file for solve() (null = none)
+	public int _nCheckpointIters; // Checkpoint every n iterations
+	public ExecutorService _ckptWriter; // Writes checkpoints in the background
+	public Future _ckptPending; // Last checkpoint write
 
 	////////////////////////////////////////////////////////////////////////////
 	// /
@@ -138,6 +155,35 @@ public class MDP {
 	 * MDP inference methods
 	 **/
 	public int solve(double precision, int prune_type, double prune_strength /*decimal, max=1.0*/) {
+		return solve(precision, prune_type, prune_strength, false);
+	}
+
+	/**
+	 * As above, but if resume is set and _sCheckpointFile exists, continue
+	 * from the value function, iteration and convergence state saved there
+	 * (see setCheckpoint())
+	 **/
+	public int solve(double precision, int prune_type,
+			double prune_strength, boolean resume) {
+		return solve(precision, prune_type, prune_strength, null, NO_BOUND,
+				resume);
+	}
+
+	/**
+	 * Warm start from init_value (in _context, see importValue() and
+	 * loadValue()) instead of the reward.  If init_value is a LOWER_BOUND
+	 * (UPPER_BOUND) on the optimal value function, each iteration checks
+	 * that no value decreased (increased) by more than the prune strength.
+	 **/
+	public int solve(double precision, int prune_type,
+			double prune_strength, Object init_value, int bound) {
+		return solve(precision, prune_type, prune_strength, init_value,
+				bound, false);
+	}
+
+	public int solve(double precision, int prune_type,
+			double prune_strength, Object init_value, int bound,
+			boolean resume) {
 
 		// Result goes in _valueDD
 		int max_iter = 0;
@@ -149,9 +195,9 @@ public class MDP {
 
 
 		// ////////////////////////////////////////////////////////////
-		// Set value function equal to reward
+		// Set value function equal to reward (or the initial value)
 		// ////////////////////////////////////////////////////////////
-		_valueDD = _rewardDD;
+		_valueDD = (init_value == null) ? _rewardDD : init_value;
 		double cur_prune_strength = _bdDiscount.doubleValue() == 1.0 
 				? prune_strength * _dRewardRange : 0d;
 		
@@ -163,12 +209,33 @@ public class MDP {
 		System.out.println("Using discount:  " + _bdDiscount);
 		System.out.println("Using tolerance: " + tolerance + "\n");
 
+		// Warm start from the last checkpoint
+		Checkpoint ckpt = resume ? readCheckpoint() : null;
+		if (ckpt != null) {
+			if (ckpt._nPruneType != prune_type
+					|| ckpt._dPruneStrength != prune_strength) {
+				System.out.println("Warning: checkpoint pruning ("
+						+ ckpt._nPruneType + ", " + ckpt._dPruneStrength
+						+ ") differs from (" + prune_type + ", "
+						+ prune_strength + ")");
+			}
+			_valueDD = ckpt._valueDD;
+			iter = ckpt._nIter;
+			cur_prune_strength = ckpt._dCurPruneStrength;
+			max_diff = ckpt._dMaxDiff;
+			error_decreasing = ckpt._bErrorDecreasing;
+			System.out.println("Resuming from '" + _sCheckpointFile
+					+ "' after iteration #" + (iter - 1) + "\n");
+		}
+
 		// ////////////////////////////////////////////////////////////
 		// Iterate until convergence (or max iterations)
 		// ////////////////////////////////////////////////////////////
 		while ((max_diff >= tolerance) /* convergence */
 				&& (b_iter && (iter < max_iter)) /* iteration check */) {
 
+			MDPEvents.Iteration event = new MDPEvents.Iteration();
+			event.begin();
 			_nIter = iter;
 			cur_prune_strength = _bdDiscount.doubleValue() == 1.0 
 				? prune_strength * _dRewardRange
@@ -199,60 +266,64 @@ public class MDP {
 			// Iterate over each action
 			// ////////////////////////////////////////////////////////////
 			_maxDD = null;
-			Iterator i = _hmName2Action.entrySet().iterator();
 			_tmAct2Regr.clear();
-			while (i.hasNext()) {
-
-				Map.Entry me = (Map.Entry) i.next();
-				Action a = (Action) me.getValue();
-				_sRegrAction = (String) me.getKey();
-
-				// ////////////////////////////////////////////////////////////
-				// Regress the current value function through each action
-				// ////////////////////////////////////////////////////////////
-				Object regr = regress(_valueDD, a);
-
-				if (DISPLAY_QVAL) {
-					Graph g = _context.getGraph(regr);
-					g.addNodeLabel("_temp_", a._sName);
-					g.addNodeShape("_temp_", "square");
-					g.addNodeStyle("_temp_", "filled");
-					g.addNodeColor("_temp_", "lightblue");
-					g.addUniLink("_temp_", "_temp_");
-
-					// g.genDotFile(type + "value.dot");
-					g.launchViewer(1300, 770);
-				}
-
-				// Cache maintenance
-				clearSaveNodes();
-				saveNode(regr);
-				flushCaches();
-
-				// Screen output
-				if (VERBOSE_LEVEL >= 1) {
-					System.out.println("  - After regress '" + a._sName + "', "
-							+ _context.countExactNodes(regr) + " nodes / "
-							+ _context.getCacheSize() + " cache");
-				}
-
-				// In case comparing last regressions, uncomment the following
-				// _tmAct2Regr.put(a._sName, regr);
-
-				// ////////////////////////////////////////////////////////////
-				// Take the max over this action and the previous action
-				// ////////////////////////////////////////////////////////////
-				_maxDD = ((_maxDD == null) ? regr : _context.applyInt(_maxDD,
-						regr, DD.ARITH_MAX));
-
-				// Cache maintance
-				flushCaches();
-
-				// Screen output
-				if (VERBOSE_LEVEL >= 1) {
-					System.out.println("  - After max '" + a._sName + "', "
-							+ _context.countExactNodes(_maxDD) + " nodes / "
-							+ _context.getCacheSize() + " cache");
+			if (NUM_THREADS > 1) {
+				_maxDD = regressParallel(_valueDD);
+			} else {
+				Iterator i = _hmName2Action.entrySet().iterator();
+				while (i.hasNext()) {
+
+					Map.Entry me = (Map.Entry) i.next();
+					Action a = (Action) me.getValue();
+					_sRegrAction = (String) me.getKey();
+
+					// ////////////////////////////////////////////////////////////
+					// Regress the current value function through each action
+					// ////////////////////////////////////////////////////////////
+					Object regr = regress(_valueDD, a);
+
+					if (DISPLAY_QVAL) {
+						Graph g = _context.getGraph(regr);
+						g.addNodeLabel("_temp_", a._sName);
+						g.addNodeShape("_temp_", "square");
+						g.addNodeStyle("_temp_", "filled");
+						g.addNodeColor("_temp_", "lightblue");
+						g.addUniLink("_temp_", "_temp_");
+
+						// g.genDotFile(type + "value.dot");
+						g.launchViewer(1300, 770);
+					}
+
+					// Cache maintenance
+					clearSaveNodes();
+					saveNode(regr);
+					flushCaches();
+
+					// Screen output
+					if (VERBOSE_LEVEL >= 1) {
+						System.out.println("  - After regress '" + a._sName + "', "
+								+ _context.countExactNodes(regr) + " nodes / "
+								+ _context.getCacheSize() + " cache");
+					}
+
+					// In case comparing last regressions, uncomment the following
+					// _tmAct2Regr.put(a._sName, regr);
+
+					// ////////////////////////////////////////////////////////////
+					// Take the max over this action and the previous action
+					// ////////////////////////////////////////////////////////////
+					_maxDD = ((_maxDD == null) ? regr : _context.applyInt(_maxDD,
+							regr, DD.ARITH_MAX));
+
+					// Cache maintance
+					flushCaches();
+
+					// Screen output
+					if (VERBOSE_LEVEL >= 1) {
+						System.out.println("  - After max '" + a._sName + "', "
+								+ _context.countExactNodes(_maxDD) + " nodes / "
+								+ _context.getCacheSize() + " cache");
+					}
 				}
 			}
 
@@ -300,13 +371,22 @@ public class MDP {
 			// function
 			////////////////////////////////////////////////////////////////////
 			// /
-			Object diff = _context.applyInt(_valueDD, _prevDD, DD.ARITH_MINUS);
 			double max_diff_prev = max_diff;
-			double max_pos_diff = _context.getMaxValue(diff);
-			double max_neg_diff = _context.getMinValue(diff);
-			max_diff = Math.max(Math.abs(max_pos_diff), Math.abs(max_neg_diff));
+			max_diff = _context.maxAbsDifference(_valueDD, _prevDD);
 			error_decreasing = (max_diff < max_diff_prev);
 
+			// Iterates from a bound must move monotonically toward V*
+			if (bound != NO_BOUND) {
+				double violation = (bound == LOWER_BOUND) ? _context
+						.maxDifference(_prevDD, _valueDD) : _context
+						.maxDifference(_valueDD, _prevDD);
+				if (violation > cur_prune_strength + 1e-9) {
+					System.out.println("  - Iteration #" + iter + " not monotone"
+							+ " from " + ((bound == LOWER_BOUND) ? "lower" : "upper")
+							+ " bound by " + _df.format(violation));
+				}
+			}
+
 			// Screen output
 			if (VERBOSE_LEVEL >= 1) {
 				
@@ -321,8 +401,50 @@ public class MDP {
 						+ _df.format(max_diff));
 			}
 
+			event.end();
+			event.commit(_context, iter, max_diff, cur_prune_strength,
+					_valueDD);
+
+			// Metrics snapshot for this iteration
+			if (_context._context._metrics._reporter != null) {
+				HashMap fields = new LinkedHashMap();
+				fields.put("iter", new Integer(iter));
+				fields.put("max_diff", new Double(max_diff));
+				fields.put("value_nodes", new Long(_context
+						.countExactNodes(_valueDD)));
+				fields.put("max_regr_vars", new Integer(_nMaxRegrSz));
+				_context.reportMetrics("mdp.iteration", fields);
+			}
+
 			// Increment counter
 			iter++;
+
+			// Periodic checkpoint
+			if (_sCheckpointFile != null && _nCheckpointIters > 0
+					&& iter % _nCheckpointIters == 0) {
+				writeCheckpoint(new Checkpoint(iter, prune_type, prune_strength,
+						cur_prune_strength, max_diff, error_decreasing, _valueDD));
+			}
+		}
+
+		// Release worker contexts and threads
+		if (_executor != null) {
+			_executor.shutdown();
+			_executor = null;
+			_alWorkers = null;
+		}
+
+		// Final checkpoint (so resuming a finished run returns at once)
+		if (_sCheckpointFile != null && _nCheckpointIters > 0) {
+			if (iter % _nCheckpointIters != 0) {
+				writeCheckpoint(new Checkpoint(iter, prune_type, prune_strength,
+						cur_prune_strength, max_diff, error_decreasing, _valueDD));
+			}
+			waitForCheckpoint();
+			if (_ckptWriter != null) {
+				_ckptWriter.shutdown();
+				_ckptWriter = null;
+			}
 		}
 
 		// Flush caches and return number of iterations
@@ -330,6 +452,266 @@ public class MDP {
 		return iter;
 	}
 
+	////////////////////////////////////////////////////////////////////////////
+	// /
+	// Checkpointing
+	////////////////////////////////////////////////////////////////////////////
+	// /
+
+	/**
+	 * State of solve() after _nIter iterations
+	 **/
+	public static class Checkpoint {
+		public int _nIter;
+		public int _nPruneType;
+		public double _dPruneStrength;
+		public double _dCurPruneStrength;
+		public double _dMaxDiff;
+		public boolean _bErrorDecreasing;
+		public Object _valueDD;
+
+		public Checkpoint(int iter, int prune_type, double prune_strength,
+				double cur_prune_strength, double max_diff,
+				boolean error_decreasing, Object value) {
+			_nIter = iter;
+			_nPruneType = prune_type;
+			_dPruneStrength = prune_strength;
+			_dCurPruneStrength = cur_prune_strength;
+			_dMaxDiff = max_diff;
+			_bErrorDecreasing = error_decreasing;
+			_valueDD = value;
+		}
+	}
+
+	/**
+	 * Checkpoint solve() to filename every iters iterations
+	 **/
+	public void setCheckpoint(String filename, int iters) {
+		_sCheckpointFile = filename;
+		_nCheckpointIters = iters;
+	}
+
+	/**
+	 * Layout: int magic, int version, int DD type, int iteration, int prune
+	 * type, double prune strength, double current prune strength, double max
+	 * diff, boolean error decreasing, then the value function (see
+	 * DD.writeBinary(), as an ADD for DD types without a binary format).
+	 * 
+	 * The context is not thread safe so the checkpoint is serialized here
+	 * and only the file write is done in the background.
+	 **/
+	public void writeCheckpoint(Checkpoint ckpt) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream os = new DataOutputStream(bytes);
+			os.writeInt(CKPT_MAGIC);
+			os.writeInt(CKPT_VERSION);
+			os.writeInt(_nDDType);
+			os.writeInt(ckpt._nIter);
+			os.writeInt(ckpt._nPruneType);
+			os.writeDouble(ckpt._dPruneStrength);
+			os.writeDouble(ckpt._dCurPruneStrength);
+			os.writeDouble(ckpt._dMaxDiff);
+			os.writeBoolean(ckpt._bErrorDecreasing);
+			writeValue(ckpt._valueDD, os);
+			os.flush();
+		} catch (IOException e) {
+			System.out.println("Error writing checkpoint: " + e);
+			System.exit(1);
+		}
+
+		// At most one write in flight
+		waitForCheckpoint();
+		if (_ckptWriter == null) {
+			_ckptWriter = Executors.newSingleThreadExecutor();
+		}
+		final byte[] data = bytes.toByteArray();
+		final String filename = _sCheckpointFile;
+		_ckptPending = _ckptWriter.submit(new Runnable() {
+			public void run() {
+				WriteReplace(filename, data);
+			}
+		});
+	}
+
+	public void waitForCheckpoint() {
+		if (_ckptPending == null) {
+			return;
+		}
+		try {
+			_ckptPending.get();
+		} catch (Exception e) {
+			System.out.println("Error writing checkpoint: " + e);
+			System.exit(1);
+		}
+		_ckptPending = null;
+	}
+
+	/**
+	 * Writes data to filename + ".tmp" and renames it over filename so a
+	 * crash mid-write leaves the previous checkpoint intact
+	 **/
+	public static void WriteReplace(String filename, byte[] data) {
+		File tmp = new File(filename + ".tmp");
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			fos.write(data);
+			fos.getFD().sync();
+			fos.close();
+			Files.move(tmp.toPath(), new File(filename).toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Error writing checkpoint '" + filename + "': "
+					+ e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Returns the checkpoint in _sCheckpointFile with its value function
+	 * loaded into _context, or null if there is none
+	 **/
+	public Checkpoint readCheckpoint() {
+		if (_sCheckpointFile == null || !new File(_sCheckpointFile).exists()) {
+			System.out.println("No checkpoint to resume from, starting at "
+					+ "iteration #0\n");
+			return null;
+		}
+		ByteBuffer buf = DD.MapFile(_sCheckpointFile);
+		if (buf.getInt() != CKPT_MAGIC || buf.getInt() != CKPT_VERSION) {
+			System.out.println("'" + _sCheckpointFile + "' is not a version "
+					+ CKPT_VERSION + " checkpoint file");
+			System.exit(1);
+		}
+		int dd_type = buf.getInt();
+		if (dd_type != _nDDType) {
+			System.out.println("Checkpoint '" + _sCheckpointFile
+					+ "' has DD type " + dd_type + ", expected " + _nDDType);
+			System.exit(1);
+		}
+		int iter = buf.getInt();
+		int prune_type = buf.getInt();
+		double prune_strength = buf.getDouble();
+		double cur_prune_strength = buf.getDouble();
+		double max_diff = buf.getDouble();
+		boolean error_decreasing = (buf.get() != 0);
+
+		return new Checkpoint(iter, prune_type, prune_strength,
+				cur_prune_strength, max_diff, error_decreasing, readValue(buf,
+						_sCheckpointFile));
+	}
+
+	/**
+	 * Copies the value function of src (e.g. a perturbed version of this
+	 * MDP, any DD type) into _context, variables are matched by name
+	 **/
+	public Object importValue(MDP src) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream os = new DataOutputStream(bytes);
+			src.writeValue(src._valueDD, os);
+			os.flush();
+		} catch (IOException e) {
+			System.out.println("Error copying value function: " + e);
+			System.exit(1);
+		}
+		return readValue(ByteBuffer.wrap(bytes.toByteArray()), "MDP value");
+	}
+
+	/**
+	 * Loads a value function saved by main(): binary (DD.BIN_EXT) or text
+	 * ("variables (...)" followed by the tree), variables matched by name
+	 **/
+	public Object loadValue(String filename) {
+		if (filename.endsWith(DD.BIN_EXT)) {
+			return readValue(DD.MapFile(filename), filename);
+		}
+		ArrayList l = HierarchicalParser.ParseFile(filename);
+		if (l == null || l.size() < 3 || !(l.get(0) instanceof String)
+				|| !((String) l.get(0)).equalsIgnoreCase("variables")) {
+			System.out.println("Value file '" + filename
+					+ "' missing variable declarations");
+			System.exit(1);
+		}
+		return _context.buildDDFromUnorderedTree((ArrayList) l.get(2),
+				_tmVar2ID);
+	}
+
+	/**
+	 * Writes a DD of _context with variable names (see DD.writeBinary(), as
+	 * an ADD for DD types without a binary format)
+	 **/
+	public void writeValue(Object dd_id, DataOutputStream os)
+			throws IOException {
+		DD dd = _context._context;
+		int id = ((Integer) dd_id).intValue();
+		if (dd.getBinaryFormat() < 0) {
+			ADD add = new ADD(_alOrder);
+			id = add.copy(dd, id);
+			dd = add;
+		}
+		dd.writeBinary(id, os, _tmID2Var);
+	}
+
+	/**
+	 * Reads a DD written by writeValue() (possibly by another MDP, vars are
+	 * matched by name) into _context
+	 **/
+	public Object readValue(ByteBuffer buf, String filename) {
+		// The DD format (= DD type) is the third int of its header
+		DD dd = _context._context;
+		int format = buf.getInt(buf.position() + 8);
+		int id;
+		if (format == dd.getBinaryFormat()) {
+			id = dd.readBinary(buf, _tmVar2ID, filename);
+		} else {
+			DD src = new FBR(format, _alOrder)._context;
+			id = dd.copy(src, src.readBinary(buf, _tmVar2ID, filename));
+		}
+		return new Integer(id);
+	}
+
+	/**
+	 * Build the greedy policy diagram for _valueDD (call after solve()):
+	 * leaves are indices into the action names in _hmName2Action order
+	 **/
+	public Policy buildPolicy() {
+		Object prime_value = _context.remapGIDsInt(_valueDD, _hmPrimeRemap);
+		ArrayList actions = new ArrayList();
+		ArrayList qfuns = new ArrayList();
+
+		// prime_value and the Q-functions must survive a flush inside
+		// regress() (see flushPinned())
+		clearSaveNodes();
+		saveNode(prime_value);
+		Iterator i = _hmName2Action.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry me = (Map.Entry) i.next();
+			Object regr = regress(prime_value, (Action) me.getValue(), false);
+			Object qfun;
+			try {
+				qfun = qFunction(regr);
+			} catch (ConcurrentADD.CapacityException e) {
+				flushPinned(_context, regr);
+				qfun = qFunction(regr);
+			}
+			actions.add(me.getKey());
+			qfuns.add(qfun);
+			saveNode(qfun);
+		}
+		_policy = new Policy(_context._context, actions, qfuns);
+		clearSaveNodes();
+		flushCaches();
+		return _policy;
+	}
+
+	// R + discount * regr
+	public Object qFunction(Object regr) {
+		return _context.applyInt(_rewardDD, _context.scalarMultiply(regr,
+				_bdDiscount.doubleValue()), DD.ARITH_SUM);
+	}
+
 	/**
 	 * Regress a DD through an action
 	 **/
@@ -338,17 +720,29 @@ public class MDP {
 	}
 	
 	public Object regress(Object vfun, Action a, boolean flush_caches) {
+		return regress(_context, vfun, a._sName, a._tmID2DD, flush_caches);
+	}
+
+	/**
+	 * Regress a DD in context through the action named act_name, whose
+	 * DBN (head id -> DD) in context is dd_map; shared by the serial and
+	 * worker paths, context is _context or a Worker's context
+	 **/
+	public Object regress(FBR context, Object vfun, String act_name,
+			Map dd_map, boolean flush_caches) {
+
+		MDPEvents.Regress event = new MDPEvents.Regress();
+		event.begin();
 
 		// For every next-state var in Action, multiply by DD and sumOut var
-		long max = -1;
-		Iterator i = a._tmID2DD.entrySet().iterator();
+		Iterator i = dd_map.entrySet().iterator();
 		Object dd_ret = vfun;
 
 		// Find what gids are currently in vfun (probs cannot introduce new
 		// primed gids)
-		Set gids = _context.getGIDs(vfun);
+		Set gids = context.getGIDs(vfun);
 		if (VERBOSE_LEVEL >= 1) {
-			System.out.println("Regressing action: " + a._sName + "\nGIDs: "
+			System.out.println("Regressing action: " + act_name + "\nGIDs: "
 					+ gids);
 		}
 
@@ -379,36 +773,225 @@ public class MDP {
 
 			// /////////////////////////////////////////////////////////////////
 			// Multiply next state variable DBN into current value function
+			// and sum out next state variable (an ADD never builds the product)
 			// /////////////////////////////////////////////////////////////////
-			dd_ret = _context.applyInt(dd_ret, dd, DD.ARITH_PROD);
-			int regr_sz = _context.getGIDs(dd_ret).size();
-			if (regr_sz > _nMaxRegrSz) {
-				_nMaxRegrSz = regr_sz;
+			Set regr_gids = new HashSet(context.getGIDs(dd_ret));
+			regr_gids.addAll(context.getGIDs(dd));
+			synchronized (this) {
+				if (regr_gids.size() > _nMaxRegrSz) {
+					_nMaxRegrSz = regr_gids.size();
+				}
+			}
+			try {
+				dd_ret = context.applyAndSumOut(dd_ret, dd, head_id.intValue());
+			} catch (ConcurrentADD.CapacityException e) {
+				// Node store full: release dead nodes and redo this step
+				// (the caller's DDs on _alSaveNodes are kept)
+				flushPinned(context, dd_ret);
+				dd_ret = context.applyAndSumOut(dd_ret, dd, head_id.intValue());
 			}
-
-			// /////////////////////////////////////////////////////////////////
-			// Sum out next state variable
-			// /////////////////////////////////////////////////////////////////
-			dd_ret = _context.opOut(dd_ret, head_id.intValue(), DD.ARITH_SUM); // CHANGED
-																				// -
-																				// 11
-																				// -
-																				// 17
-																				// -
-																				// 04
 
 			// Cache maintenance
 			if (flush_caches) {
-				clearSaveNodes();
-				saveNode(dd_ret);
-				flushCaches();
+				flushCaches(context, dd_ret);
 			}
 		}
 
+		if (VERBOSE_LEVEL >= 1) {
+			System.out.println("  - After regress '" + act_name + "', "
+					+ context.countExactNodes(dd_ret) + " nodes / "
+					+ context.getCacheSize() + " cache");
+		}
+
 		// Return regressed value function (which is now in terms of prev state
 		// vars)
+		event.end();
+		event.commit(context, act_name, dd_ret);
 		return dd_ret;
 	}
+
+	/**
+	 * Flush context keeping dd and, for _context, everything already on
+	 * the save list (a Worker's flush keeps all of its live DDs)
+	 **/
+	public void flushPinned(FBR context, Object dd) {
+		if (context != _context) {
+			flushCaches(context, dd);
+			return;
+		}
+		saveNode(dd);
+		flushCaches();
+		_alSaveNodes.remove(_alSaveNodes.size() - 1);
+	}
+
+	/**
+	 * Flush context (_context or a Worker's) keeping dd
+	 **/
+	public void flushCaches(FBR context, Object dd) {
+		if (context == _context) {
+			clearSaveNodes();
+			saveNode(dd);
+			flushCaches();
+			return;
+		}
+		for (int w = 0; w < _alWorkers.size(); w++) {
+			Worker worker = (Worker) _alWorkers.get(w);
+			if (worker._context == context) {
+				worker.flushCaches(dd);
+				return;
+			}
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	// /
+	// Parallel Regression
+	////////////////////////////////////////////////////////////////////////////
+	// /
+
+	/**
+	 * Regress vfun through all actions on NUM_THREADS workers, each with
+	 * its own DD context, and return the max over the Q-functions in
+	 * _context
+	 **/
+	public Object regressParallel(Object vfun) {
+
+		// Workers copy the transition DDs once and are reused across
+		// iterations
+		if (_alWorkers == null) {
+			_alWorkers = new ArrayList();
+			for (int w = 0; w < NUM_THREADS; w++) {
+				_alWorkers.add(new Worker());
+			}
+			_executor = Executors.newFixedThreadPool(NUM_THREADS);
+		}
+
+		// Contexts are not thread-safe so copy vfun in before starting
+		ConcurrentLinkedQueue actions = new ConcurrentLinkedQueue(
+				_hmName2Action.values());
+		ArrayList futures = new ArrayList();
+		for (int w = 0; w < _alWorkers.size(); w++) {
+			Worker worker = (Worker) _alWorkers.get(w);
+			worker.setValue(vfun, actions);
+			futures.add(_executor.submit(worker));
+		}
+		for (int w = 0; w < futures.size(); w++) {
+			try {
+				((Future) futures.get(w)).get();
+			} catch (Exception e) {
+				System.out.println("Parallel regression failed: " + e);
+				e.printStackTrace(System.out);
+				System.exit(1);
+			}
+		}
+
+		// Merge each worker's max into the shared context and reduce
+		ArrayList q_funs = new ArrayList();
+		for (int w = 0; w < _alWorkers.size(); w++) {
+			Worker worker = (Worker) _alWorkers.get(w);
+			if (worker._maxDD != null) {
+				q_funs.add(_context.copy(worker._context, worker._maxDD));
+			}
+		}
+		return MaxReduce(_context, q_funs);
+	}
+
+	/**
+	 * Pairwise (tree-shaped) max over a list of DDs, list is modified
+	 **/
+	public static Object MaxReduce(FBR context, ArrayList dds) {
+		if (dds.isEmpty()) {
+			return null;
+		}
+		while (dds.size() > 1) {
+			ArrayList next = new ArrayList();
+			for (int j = 0; j + 1 < dds.size(); j += 2) {
+				next.add(context.applyInt(dds.get(j), dds.get(j + 1),
+						DD.ARITH_MAX));
+			}
+			if (dds.size() % 2 == 1) {
+				next.add(dds.get(dds.size() - 1));
+			}
+			dds = next;
+		}
+		return dds.get(0);
+	}
+
+	/**
+	 * Regresses actions taken from a shared queue in a private DD context
+	 **/
+	public class Worker implements Callable {
+
+		public FBR _context;
+		public HashMap _hmAct2DDs; // Action name -> (head id -> DD in _context)
+		public Object _valueDD; // Primed value function copied into _context
+		public Object _maxDD; // Max over the Q-functions of this worker
+		public ArrayList _alQFuns; // Q-functions regressed this iteration
+		public ConcurrentLinkedQueue _qActions;
+
+		public Worker() {
+			_context = new FBR(_nDDType, MDP.this._context._context._alOrder);
+			_hmAct2DDs = new HashMap();
+			_alQFuns = new ArrayList();
+			Iterator i = _hmName2Action.values().iterator();
+			while (i.hasNext()) {
+				Action a = (Action) i.next();
+				TreeMap id2dd = new TreeMap();
+				Iterator j = a._tmID2DD.entrySet().iterator();
+				while (j.hasNext()) {
+					Map.Entry me = (Map.Entry) j.next();
+					id2dd.put(me.getKey(), _context.copy(MDP.this._context,
+							me.getValue()));
+				}
+				_hmAct2DDs.put(a._sName, id2dd);
+			}
+		}
+
+		public void setValue(Object vfun, ConcurrentLinkedQueue actions) {
+			_valueDD = _context.copy(MDP.this._context, vfun);
+			_qActions = actions;
+			_maxDD = null;
+			_alQFuns.clear();
+		}
+
+		public Object call() {
+			Action a;
+			while ((a = (Action) _qActions.poll()) != null) {
+				_alQFuns.add(regress(_context, _valueDD, a._sName,
+						(Map) _hmAct2DDs.get(a._sName), true));
+				flushCaches(null);
+			}
+			_maxDD = MaxReduce(_context, new ArrayList(_alQFuns));
+			_alQFuns.clear();
+			flushCaches(null);
+			return _maxDD;
+		}
+
+		public void flushCaches(Object dd) {
+			if (!ALWAYS_FLUSH && !_context.needsFlush(FLUSH_PERCENT_MINIMUM)) {
+				return;
+			}
+
+			_context.clearSpecialNodes();
+			Iterator i = _hmAct2DDs.values().iterator();
+			while (i.hasNext()) {
+				Iterator j = ((TreeMap) i.next()).values().iterator();
+				while (j.hasNext()) {
+					_context.addSpecialNode(j.next());
+				}
+			}
+			_context.addSpecialNode(_valueDD);
+			if (_maxDD != null)
+				_context.addSpecialNode(_maxDD);
+			if (dd != null)
+				_context.addSpecialNode(dd);
+			Iterator j = _alQFuns.iterator();
+			while (j.hasNext()) {
+				_context.addSpecialNode(j.next());
+			}
+			_context.flushCaches(false);
+		}
+	}
 	
 	////////////////////////////////////////////////////////////////////////////
 	// /
@@ -434,10 +1017,8 @@ public class MDP {
 	 * Frees up memory... only do this if near limit?
 	 **/
 	public void flushCaches() {
-		if (!ALWAYS_FLUSH
-				&& ((double) RUNTIME.freeMemory() / (double) RUNTIME
-						.totalMemory()) > FLUSH_PERCENT_MINIMUM) {
-			return; // Still enough free mem to exceed minimum requirements
+		if (!ALWAYS_FLUSH && !_context.needsFlush(FLUSH_PERCENT_MINIMUM)) {
+			return; // Enough free mem and not enough dead nodes to collect
 		}
 
 		_context.clearSpecialNodes();
@@ -636,6 +1217,9 @@ public class MDP {
 		case DD.TYPE_AADD:
 			type = "AADD";
 			break;
+		case DD.TYPE_CADD:
+			type = "CADD";
+			break;
 		default:
 			sb.append("Unknown");
 			break;
@@ -762,11 +1346,87 @@ public class MDP {
 	 * Basic testing interface.
 	 **/
 	public static void main(String args[]) {
+
+		// Optional thread count for parallel regression
+		ArrayList arg_list = new ArrayList(Arrays.asList(args));
+		int t = arg_list.indexOf("-threads");
+		if (t >= 0 && t + 1 < arg_list.size()) {
+			try {
+				NUM_THREADS = Integer.parseInt((String) arg_list.get(t + 1));
+			} catch (NumberFormatException nfe) {
+				System.out.println("\nIllegal thread count\n");
+				System.exit(1);
+			}
+			arg_list.remove(t + 1);
+			arg_list.remove(t);
+		}
+
+		// Optional ConcurrentADD run (parallel apply down to the fork depth)
+		int iter_cadd = -1;
+		int a = arg_list.indexOf("-cadd");
+		if (a >= 0 && a + 1 < arg_list.size()) {
+			try {
+				iter_cadd = Integer.parseInt((String) arg_list.get(a + 1));
+			} catch (NumberFormatException nfe) {
+				System.out.println("\nIllegal iteration value\n");
+				System.exit(1);
+			}
+			arg_list.remove(a + 1);
+			arg_list.remove(a);
+		}
+		int f = arg_list.indexOf("-fork");
+		if (f >= 0 && f + 1 < arg_list.size()) {
+			try {
+				ConcurrentADD.APPLY_FORK_DEPTH = Integer.parseInt((String) arg_list.get(f + 1));
+			} catch (NumberFormatException nfe) {
+				System.out.println("\nIllegal fork depth\n");
+				System.exit(1);
+			}
+			arg_list.remove(f + 1);
+			arg_list.remove(f);
+		}
+
+		// Optional checkpointing every n iterations and resume
+		int ckpt_iters = 0;
+		int c = arg_list.indexOf("-checkpoint");
+		if (c >= 0 && c + 1 < arg_list.size()) {
+			try {
+				ckpt_iters = Integer.parseInt((String) arg_list.get(c + 1));
+			} catch (NumberFormatException nfe) {
+				System.out.println("\nIllegal checkpoint interval\n");
+				System.exit(1);
+			}
+			arg_list.remove(c + 1);
+			arg_list.remove(c);
+		}
+		boolean resume = arg_list.remove("-resume");
+
+		// Optional JSON lines metrics file (one line per iteration)
+		Metrics.Reporter reporter = null;
+		int r = arg_list.indexOf("-metrics");
+		if (r >= 0 && r + 1 < arg_list.size()) {
+			reporter = new Metrics.JSONLinesReporter((String) arg_list.get(r + 1));
+			arg_list.remove(r + 1);
+			arg_list.remove(r);
+		}
+
+		// Optional warm start from a saved value function
+		String init_file = null;
+		int v = arg_list.indexOf("-init");
+		if (v >= 0 && v + 1 < arg_list.size()) {
+			init_file = (String) arg_list.get(v + 1);
+			arg_list.remove(v + 1);
+			arg_list.remove(v);
+		}
+		args = (String[]) arg_list.toArray(new String[arg_list.size()]);
+
 		if (args.length < 6 || args.length > 7) {
 			System.out
 					.println("\nMust enter MDP-filename, "
 							+ "prune-prec (max=1.0), type<none,low,high,min,max,avg,range>"
-							+ "\n           iter-Tab iter-ADD iter-AADD [spudd-file]!\n");
+							+ "\n           iter-Tab iter-ADD iter-AADD [spudd-file] [-threads n]"
+							+ "\n           [-checkpoint n] [-resume] [-init value-file]"
+							+ "\n           [-metrics json-file] [-cadd iter-CADD [-fork depth]]!\n");
 			System.exit(1);
 		}
 
@@ -826,12 +1486,20 @@ public class MDP {
 		System.out.println("\nRunning with args '" + filename + "' "
 				+ prune_type + ":" + prune_prec + ", <tab: " + iter_tab
 				+ ", add:" + iter_add + ", aadd:" + iter_aadd + ">, "
-				+ ((spuddfile == null) ? "no spudd comp" : spuddfile) + "\n");
+				+ ((spuddfile == null) ? "no spudd comp" : spuddfile) + ", "
+				+ NUM_THREADS + " thread(s)"
+				+ ((iter_cadd < 0) ? "" : ", cadd:" + iter_cadd + " (fork depth "
+						+ ConcurrentADD.APPLY_FORK_DEPTH + ")") + "\n");
 
 		// Build a new TABLE-based MDP from file, display, solve
 		MDP mdp1 = new MDP(filename, DD.TYPE_TABLE);
+		if (ckpt_iters > 0)
+			mdp1.setCheckpoint(filename + ".tab.ckpt", ckpt_iters);
+		mdp1._context._context._metrics._reporter = reporter;
 		ResetTimer();
-		long iter1 = mdp1.solve(iter_tab, prune_type, prune_prec);
+		long iter1 = mdp1.solve(iter_tab, prune_type, prune_prec,
+				(init_file == null) ? null : mdp1.loadValue(init_file),
+				NO_BOUND, resume);
 		long time1 = GetElapsedTime();
 		long nodes1 = mdp1._context.countExactNodes(mdp1._valueDD);
 		long cache1 = mdp1._context.getCacheSize();
@@ -841,8 +1509,13 @@ public class MDP {
 
 		// Build a new ADD MDP from file, display, solve
 		MDP mdp2 = new MDP(filename, DD.TYPE_ADD);
+		if (ckpt_iters > 0)
+			mdp2.setCheckpoint(filename + ".add.ckpt", ckpt_iters);
+		mdp2._context._context._metrics._reporter = reporter;
 		ResetTimer();
-		long iter2 = mdp2.solve(iter_add, prune_type, prune_prec);
+		long iter2 = mdp2.solve(iter_add, prune_type, prune_prec,
+				(init_file == null) ? null : mdp2.loadValue(init_file),
+				NO_BOUND, resume);
 		long time2 = GetElapsedTime();
 		long nodes2 = mdp2._context.countExactNodes(mdp2._valueDD);
 		long cache2 = mdp2._context.getCacheSize();
@@ -865,11 +1538,21 @@ public class MDP {
 		} catch (Exception e) {
 			System.out.println("**Error exporting ADD value function to file.");
 		}
+		mdp2._context.saveBinary(mdp2._valueDD, filename + ".value." + prune_prec
+				+ DD.BIN_EXT, mdp2._tmID2Var);
+		mdp2.buildPolicy().save(filename + ".value." + prune_prec
+				+ Policy.POLICY_EXT, mdp2._tmID2Var);
+		System.out.println(mdp2._policy);
 		
 		// Build a new AADD MDP from file, display, solve
 		MDP mdp3 = new MDP(filename, DD.TYPE_AADD);
+		if (ckpt_iters > 0)
+			mdp3.setCheckpoint(filename + ".aadd.ckpt", ckpt_iters);
+		mdp3._context._context._metrics._reporter = reporter;
 		ResetTimer();
-		long iter3 = mdp3.solve(iter_aadd, prune_type, prune_prec);
+		long iter3 = mdp3.solve(iter_aadd, prune_type, prune_prec,
+				(init_file == null) ? null : mdp3.loadValue(init_file),
+				NO_BOUND, resume);
 		long time3 = GetElapsedTime();
 		long nodes3 = mdp3._context.countExactNodes(mdp3._valueDD);
 		long cache3 = mdp3._context.getCacheSize();
@@ -877,6 +1560,27 @@ public class MDP {
 		System.out.println();
 		System.out.println(mdp3.toString(DISPLAY_REW, DISPLAY_VAL));
 
+		// Build a new ConcurrentADD MDP from file, display, solve
+		MDP mdp4 = null;
+		long iter4 = 0, time4 = 0, nodes4 = 0, cache4 = 0;
+		double max_val4 = 0d;
+		if (iter_cadd >= 0) {
+			mdp4 = new MDP(filename, DD.TYPE_CADD);
+			if (ckpt_iters > 0)
+				mdp4.setCheckpoint(filename + ".cadd.ckpt", ckpt_iters);
+			mdp4._context._context._metrics._reporter = reporter;
+			ResetTimer();
+			iter4 = mdp4.solve(iter_cadd, prune_type, prune_prec,
+					(init_file == null) ? null : mdp4.loadValue(init_file),
+					NO_BOUND, resume);
+			time4 = GetElapsedTime();
+			nodes4 = mdp4._context.countExactNodes(mdp4._valueDD);
+			cache4 = mdp4._context.getCacheSize();
+			max_val4 = mdp4._context.getMaxValue(mdp4._valueDD);
+			System.out.println();
+			System.out.println(mdp4.toString(DISPLAY_REW, DISPLAY_VAL));
+		}
+
 		// Compare representations
 		// CompareRep(mdp1, mdp2);
 		// CompareRep(mdp3, mdp2);
@@ -910,6 +1614,12 @@ public class MDP {
 				+ DD._df.format(max_val3) /*
 										 * + " [-" + _df.format(range3) + "]"
 										 */);
+		if (mdp4 != null) {
+			System.out.println("   CADD MDP:  " + iter4 + " iterations, ("
+					+ mdp4._nMaxRegrSz + "), " + time4 + " ms, " + nodes4
+					+ " nodes, " + cache4 + " cache, max_val: "
+					+ DD._df.format(max_val4));
+		}
 
 		// Compare to SPUDD result if provided
 		// Build the SPUDD ADD if appropriate
@@ -949,6 +1659,11 @@ public class MDP {
 			System.out.println("   Max diff ADD/AADD   = "
 					+ _df.format(FBR.CompareEnum(mdp2._context, mdp2._valueDD,
 							mdp3._context, mdp3._valueDD)));
+			if (mdp4 != null) {
+				System.out.println("   Max diff ADD/CADD   = "
+						+ _df.format(FBR.CompareEnum(mdp2._context, mdp2._valueDD,
+								mdp4._context, mdp4._valueDD)));
+			}
 		}
 		
 		try {
@@ -977,5 +1692,8 @@ public class MDP {
 		mdp1._context.pruneReport();
 		mdp2._context.pruneReport();
 		mdp3._context.pruneReport();
+		if (mdp4 != null) {
+			mdp4._context.pruneReport();
+		}
 	}
 }
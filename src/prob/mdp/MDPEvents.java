@@ -0,0 +1,62 @@
+//////////////////////////////////////////////////////////////////////
+//
+// Java Flight Recorder events for MDP value iteration (see also
+// logic.add.DDEvents for the underlying DD operations)
+//
+//////////////////////////////////////////////////////////////////////
+
+package prob.mdp;
+
+import jdk.jfr.*;
+
+import logic.add.*;
+
+public class MDPEvents {
+
+	@Name("prob.mdp.Iteration")
+	@Label("MDP Iteration")
+	@Category({ "Decision Diagrams", "MDP" })
+	@Description("One Bellman backup of MDP.solve()")
+	@StackTrace(false)
+	public static class Iteration extends Event {
+		@Label("DD Type") public String type;
+		@Label("Iteration") public int iter;
+		@Label("Max Diff") public double maxDiff;
+		@Label("Prune Strength") public double pruneStrength;
+		@Label("Value Nodes") public long valueNodes;
+
+		public void commit(FBR context, int n, double max_diff,
+				double prune_strength, Object value) {
+			if (!shouldCommit()) {
+				return;
+			}
+			type = context._context.getClass().getSimpleName();
+			iter = n;
+			maxDiff = max_diff;
+			pruneStrength = prune_strength;
+			valueNodes = context.countExactNodes(value);
+			commit();
+		}
+	}
+
+	@Name("prob.mdp.Regress")
+	@Label("MDP Regress")
+	@Category({ "Decision Diagrams", "MDP" })
+	@Description("Regression of the value function through one action")
+	@StackTrace(false)
+	public static class Regress extends Event {
+		@Label("DD Type") public String type;
+		@Label("Action") public String action;
+		@Label("Result Nodes") public long resultNodes;
+
+		public void commit(FBR context, String action_name, Object result) {
+			if (!shouldCommit()) {
+				return;
+			}
+			type = context._context.getClass().getSimpleName();
+			action = action_name;
+			resultNodes = context.countExactNodes(result);
+			commit();
+		}
+	}
+}
@@ -54,8 +54,12 @@ public class MDPSim
 	if (_bUseBasis) {
 	    _mdp._valueDD = null;
 	} else {
-	    _mdp._valueDD = _mdp._context.buildDDFromUnorderedTree(MDPConverter.ADDFileToTree(vfun_file), 
-								   _mdp._tmVar2ID);
+	    if (vfun_file.endsWith(DD.BIN_EXT)) {
+		_mdp._valueDD = _mdp._context.loadBinary(vfun_file, _mdp._tmVar2ID);
+	    } else {
+		_mdp._valueDD = _mdp._context.buildDDFromUnorderedTree(MDPConverter.ADDFileToTree(vfun_file), 
+								       _mdp._tmVar2ID);
+	    }
 	
 	    _qfuns = new HashMap();
 	    Iterator i = _mdp._hmName2Action.entrySet().iterator();
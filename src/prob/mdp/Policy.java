@@ -0,0 +1,133 @@
+//////////////////////////////////////////////////////////////////////
+//
+// File:     Policy.java
+//
+// Description:
+//
+//   Greedy policy diagram for an MDP: an ADD whose leaves are action
+//   indices (argmax over the Q-functions) together with the ADD of
+//   the maximal Q-value.  Both are compiled (see logic.add.CompiledDD)
+//   so that selecting an action is a single root-to-leaf walk, and
+//   the policy can be saved and loaded without the MDP.
+//
+//////////////////////////////////////////////////////////////////////
+
+// Package definition
+package prob.mdp;
+
+// Packages to import
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import logic.add.*;
+
+/**
+ * Greedy policy diagram
+ **/
+public class Policy
+{
+    /* Local constants */
+    public static final int    POLICY_MAGIC   = 0x44445046; // "DDPF"
+    public static final int    POLICY_VERSION = 1;
+    public static final String POLICY_EXT     = ".policy.ddb";
+
+    /* Local vars */
+    public ADD        _context;   // Holds the policy and value ADDs
+    public int        _nPolicy;   // Leaves are indices into _alActions
+    public int        _nValue;    // Value of the greedy action
+    public ArrayList  _alActions; // Action names by index
+    public CompiledDD _cPolicy;
+    public CompiledDD _cValue;
+
+    /** Builds the policy for the Q-functions qfuns (ids in src, one
+     *  per action name in actions).  Ties go to the first action.
+     **/
+    public Policy(DD src, ArrayList actions, ArrayList qfuns) {
+	_context   = new ADD(src._alOrder);
+	_alActions = new ArrayList(actions);
+	ArrayList copies = new ArrayList();
+	for (int a = 0; a < qfuns.size(); a++) {
+	    int q = ((Integer)qfuns.get(a)).intValue();
+	    copies.add(new Integer(_context.copy(src, q)));
+	}
+	int[] max_index = _context.argMax(copies);
+	_nValue  = max_index[0];
+	_nPolicy = max_index[1];
+	compile();
+    }
+
+    public Policy(ADD context, ArrayList actions, int policy, int value) {
+	_context   = context;
+	_alActions = actions;
+	_nPolicy   = policy;
+	_nValue    = value;
+	compile();
+    }
+
+    public void compile() {
+	_cPolicy = CompiledDD.Compile(_context, _nPolicy);
+	_cValue  = CompiledDD.Compile(_context, _nValue);
+    }
+
+    /** Lookups for a bitset state (see CompiledDD), thread safe
+     **/
+    public int getActionIndex(long[] state) {
+	return (int)_cPolicy.evaluate(state);
+    }
+
+    public String getAction(long[] state) {
+	return (String)_alActions.get(getActionIndex(state));
+    }
+
+    public double getValue(long[] state) {
+	return _cValue.evaluate(state);
+    }
+
+    /** Layout: int magic, int version, int #actions, UTF action names,
+     *  then the policy and value DDs (see DD.writeBinary())
+     **/
+    public void save(String filename, Map id2var) {
+	try {
+	    DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+		    new FileOutputStream(filename), 1 << 16));
+	    os.writeInt(POLICY_MAGIC);
+	    os.writeInt(POLICY_VERSION);
+	    os.writeInt(_alActions.size());
+	    for (int a = 0; a < _alActions.size(); a++) {
+		os.writeUTF((String)_alActions.get(a));
+	    }
+	    _context.writeBinary(_nPolicy, os, id2var);
+	    _context.writeBinary(_nValue, os, id2var);
+	    os.close();
+	} catch (IOException e) {
+	    System.out.println("Error writing policy file '" + filename + "': " + e);
+	    System.exit(1);
+	}
+    }
+
+    /** Loads a policy over the variable order (gids) given, vars are
+     *  matched by name if var2id is non-null
+     **/
+    public static Policy Load(String filename, ArrayList order, Map var2id) {
+	ByteBuffer buf = DD.MapFile(filename);
+	if (buf.getInt() != POLICY_MAGIC || buf.getInt() != POLICY_VERSION) {
+	    System.out.println("'" + filename + "' is not a version " +
+			       POLICY_VERSION + " policy file");
+	    System.exit(1);
+	}
+	ArrayList actions = new ArrayList();
+	int nactions = buf.getInt();
+	for (int a = 0; a < nactions; a++) {
+	    actions.add(DD.GetUTF(buf));
+	}
+	ADD context = new ADD(order);
+	int policy = context.readBinary(buf, var2id, filename);
+	int value  = context.readBinary(buf, var2id, filename);
+	return new Policy(context, actions, policy, value);
+    }
+
+    public String toString() {
+	return "Policy: " + _alActions + ", " + _cPolicy.size() + " policy nodes, "
+	    + _cValue.size() + " value nodes";
+    }
+}
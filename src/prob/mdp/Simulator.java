@@ -5,6 +5,7 @@ import graph.Graph;
 import java.math.*;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 import logic.add.*;
 
@@ -18,6 +19,9 @@ public class Simulator {
 	public ADD _context = null;
 	public Object _value = null;
 	public Map<String,Integer> _act2qvalue = new HashMap<String,Integer>(); // Regress Q-functions for policy evaluation
+	public Map<String,CompiledDD> _act2cqvalue = new HashMap<String,CompiledDD>(); // Compiled Q-functions
+	public Policy _policy; // Greedy policy over _act2qvalue
+	public Map<Integer,CompiledDD> _id2compiled = new HashMap<Integer,CompiledDD>(); // Compiled transition/reward DDs
 	public Map<String,Integer> _var2id = new HashMap<String,Integer>();
 	public Map<Integer,String> _id2var = new HashMap<Integer,String>();
 	public Map<Integer,Integer> _primeRemap = new HashMap<Integer,Integer>();
@@ -26,25 +30,40 @@ public class Simulator {
 	public ArrayList<Integer> _varIDList = new ArrayList<Integer>();
 	public ArrayList _internalState = new ArrayList();
 	
-	public Random _rand = new Random(5071978);
+	public static long    SEED        = 5071978L;
+	public static int     NUM_THREADS = 1;    // Threads used by simulate()
+	public static boolean SHOW_TRIALS = true; // Print each trajectory
 	
 	public Simulator(String mdp_file, String value_fun_file) {
 		_mdp = new MDP(HierarchicalParser.ParseFile(mdp_file), DD.TYPE_ADD);
 		_context = (ADD)_mdp._context._context;
 		
-		ArrayList policy_list = HierarchicalParser.ParseFile(value_fun_file);
+		// A binary value function (see DD.saveBinary()) uses the
+		// variables of the MDP, otherwise parse the text policy file
+		boolean binary = value_fun_file.endsWith(DD.BIN_EXT);
+		Iterator i = null;
+		if (binary) {
+			_varNameList = new ArrayList<String>();
+			for (Object gid : _mdp._alOrder) {
+				String var = (String)_mdp._tmID2Var.get(gid);
+				if (!var.endsWith("'"))
+					_varNameList.add(var);
+			}
+		} else {
+			ArrayList policy_list = HierarchicalParser.ParseFile(value_fun_file);
 		
-		// Parse the variable list and create all necessary maps
-		Iterator i = policy_list.iterator();
-		Object o = i.next();
-		if (!(o instanceof String)
-				|| !((String) o).equalsIgnoreCase("variables")) {
-			System.out.println("Policy file missing variable declarations: " + o);
-			System.exit(1);
+			// Parse the variable list and create all necessary maps
+			i = policy_list.iterator();
+			Object o = i.next();
+			if (!(o instanceof String)
+					|| !((String) o).equalsIgnoreCase("variables")) {
+				System.out.println("Policy file missing variable declarations: " + o);
+				System.exit(1);
+			}
+			o = i.next();
+			_varNameList = (ArrayList) ((ArrayList) o).clone();
 		}
-		o = i.next();
 		int id_count = 1;
-		_varNameList = (ArrayList) ((ArrayList) o).clone();
 		Iterator vars = _varNameList.iterator();
 		while (vars.hasNext()) {
 			String vname = ((String) vars.next()) + "'";
@@ -83,9 +102,13 @@ public class Simulator {
 			}
 		}
 		
-		// Parse the value function
-	    _value =_context.buildDDFromUnorderedTree((ArrayList)i.next(), 
+		// Parse (or load) the value function
+		if (binary) {
+			_value = _context.loadBinary(value_fun_file, _var2id);
+		} else {
+			_value =_context.buildDDFromUnorderedTree((ArrayList)i.next(), 
 			       _var2id);
+		}
 		//Graph g = _context.getGraph((Integer)_value, _id2var);
 		//g.launchViewer(1300, 770);
 		
@@ -101,7 +124,22 @@ public class Simulator {
 			String action_name = (String) me.getKey();
 			Object regr = _mdp.regress(prime_value, a, false);
 			_act2qvalue.put(action_name, (Integer)regr);
-		}	
+			_act2cqvalue.put(action_name, CompiledDD.Compile(_context, (Integer)regr));
+		}
+
+		// Greedy policy diagram (ties go to the first action in
+		// _act2qvalue order)
+		_policy = new Policy(_context, new ArrayList(_act2qvalue.keySet()),
+				new ArrayList(_act2qvalue.values()));
+
+		// Compile all transition and reward DDs now so that simulate()
+		// only reads frozen CompiledDDs (shared by all threads)
+		for (Object o : _mdp._hmName2Action.values()) {
+			for (Object dd : ((Action)o)._tmID2DD.values()) {
+				getCompiled((Integer)dd);
+			}
+		}
+		getCompiled((Integer)_mdp._rewardDD);	
 		
 		//Integer dia1 = _act2qvalue.get("stay");
 		//Integer dia2 = _act2qvalue.get("change");
@@ -130,6 +168,27 @@ public class Simulator {
 
 	}
 	
+	// Unprimed vars of state -> bits (primed vars are all false)
+	public void convertMapState2Bits(HashMap<String,Boolean> state, long[] bits) {
+		Arrays.fill(bits, 0L);
+		int nvars = _varNameList.size();
+		for (int i = 0; i < nvars; i++) {
+			if (state.get(_varNameList.get(i))) {
+				CompiledDD.SetVar(bits, _varIDList.get(nvars + i), true);
+			}
+		}
+	}
+
+	// Compiled version of dd (compiled on first use, not thread safe)
+	public CompiledDD getCompiled(Integer dd) {
+		CompiledDD c = _id2compiled.get(dd);
+		if (c == null) {
+			c = CompiledDD.Compile(_context, dd);
+			_id2compiled.put(dd, c);
+		}
+		return c;
+	}
+
 	public void augmentStateList(ArrayList state, Integer id, boolean value) {
 		// id = 4
 		// state: [true false]
@@ -142,42 +201,37 @@ public class Simulator {
 		state.set(id - 1, value);
 	}
 	
-	public String getBestAction(HashMap<String,Boolean> state) {
-		String best_action = null;
-		double best_value = Double.NEGATIVE_INFINITY;
-		for (Map.Entry<String,Integer> me : _act2qvalue.entrySet()) {
-			String action  = me.getKey();
-			Integer qvalue = me.getValue();
-			
-			// Construct state assignment
-			convertMapState2List(state, _internalState);
-			double value = _context.evaluate(qvalue, _internalState);
-			System.out.print(", " + action + " = " + _df.format(value));
-			
-			if (value > best_value /*|| (value == best_value && _rand.nextBoolean())*/) {
-				best_value = value;
-				best_action = action;
-			} 
+	// Thread safe given per-thread bits (scratch state) and log
+	public String getBestAction(HashMap<String,Boolean> state, long[] bits,
+			StringBuilder log) {
+		convertMapState2Bits(state, bits);
+		if (log != null) {
+			for (Map.Entry<String,Integer> me : _act2qvalue.entrySet()) {
+				String action = me.getKey();
+				double value = _act2cqvalue.get(action).evaluate(bits);
+				log.append(", " + action + " = " + Format(value));
+			}
 		}
-		//System.out.println("Best action:" + best_action);
-		return best_action;
+		return _policy.getAction(bits);
 	}
 	
-	public HashMap<String,Boolean> sampleInitialState() {
+	public HashMap<String,Boolean> sampleInitialState(SplittableRandom rng) {
 		HashMap<String,Boolean> state = new HashMap<String,Boolean>();
 		for (int i = 0; i < _varNameList.size(); i++) {
 			String var_name = _varNameList.get(i);
-			state.put(var_name, _rand.nextBoolean());
+			state.put(var_name, rng.nextBoolean());
 		}
 		return state;
 	}
 	
 	public HashMap<String,Boolean> sampleNextState(
-			HashMap<String,Boolean> cur_state, String action) {
+			HashMap<String,Boolean> cur_state, String action, long[] bits,
+			SplittableRandom rng) {
 		
 		HashMap<String,Boolean> next_state = new HashMap<String,Boolean>();
 		
 		Action a = (Action)_mdp._hmName2Action.get(action);
+		convertMapState2Bits(cur_state, bits);
 		Iterator i = a._tmID2DD.entrySet().iterator();
 		while (i.hasNext()) {
 
@@ -191,16 +245,16 @@ public class Simulator {
 			Integer next_state_id = _primeUnmap.get(head_id);
 			
 			// Need to find probability it is true, given state
-			convertMapState2List(cur_state, _internalState);
-			augmentStateList(_internalState, head_id, true);
-			double prob = _context.evaluate((Integer)dd, _internalState);
+			CompiledDD.SetVar(bits, head_id, true);
+			double prob = _id2compiled.get(dd).evaluate(bits);
+			CompiledDD.SetVar(bits, head_id, false);
 			
 			//Graph g = _context.getGraph((Integer)dd, _id2var);
 			//g.launchViewer(1300, 770);
 			
 			// Then sample from probability and make assignment in next_state
 			//System.out.println(_id2var.get(head_id) + "[" + _df.format(prob) + "] = eval: " + cur_state);
-			next_state.put(_id2var.get(next_state_id), _rand.nextDouble() < prob);
+			next_state.put(_id2var.get(next_state_id), rng.nextDouble() < prob);
 		}		
 		return next_state;
 	}
@@ -240,40 +294,55 @@ public class Simulator {
 		}
 	}
 	
-	public SimResult simulate(int num_samples, int traj_length) {
+	// Trials are independent: trial i uses the i-th stream split from
+	// SEED, so results do not depend on NUM_THREADS.  Trajectory logs
+	// (if SHOW_TRIALS) are buffered per trial and printed in order.
+	public SimResult simulate(int num_samples, final int traj_length) {
+		
+		SplittableRandom master = new SplittableRandom(SEED);
+		final SplittableRandom[] rngs = new SplittableRandom[num_samples];
+		for (int i = 0; i < num_samples; i++) {
+			rngs[i] = master.split();
+		}
+		final double[] samples = new double[num_samples];
+		final StringBuilder[] logs = new StringBuilder[num_samples];
 		
-		double[] samples = new double[num_samples]; 
-		double[] values  = new double[traj_length + 1];
+		if (NUM_THREADS > 1) {
+			ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+			ArrayList<Future> futures = new ArrayList<Future>();
+			for (int i = 0; i < num_samples; i++) {
+				final int trial = i;
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						logs[trial] = SHOW_TRIALS ? new StringBuilder() : null;
+						samples[trial] = simulateTrial(trial, traj_length, 
+								rngs[trial], logs[trial]);
+					}
+				}));
+			}
+			try {
+				for (Future f : futures) {
+					f.get();
+				}
+			} catch (Exception e) {
+				System.out.println("Simulation failed: " + e);
+				e.printStackTrace(System.out);
+				System.exit(1);
+			}
+			executor.shutdown();
+		}
+		
+		// Reduce (and run trials here if single threaded)
 		double accum = 0d;
-		HashMap<String,Boolean> cur_state;
 		for (int i = 0; i < num_samples; i++) {
-			
-			System.out.println("============ [ Begin Trial #" + (i+1) /*+ "/" + num_samples*/ + " ] ============\n");
-			
-			cur_state = sampleInitialState();
-			convertMapState2List(cur_state, _internalState);
-			values[0] = _context.evaluate((Integer)_mdp._rewardDD, _internalState);
-			
-			System.out.println("   -->          <--");
-			System.out.print(getTrafficString(cur_state) + "  [" + 
-					_df.format(values[0]) + "] ");
-			
-			for (int j = 1; j <= traj_length; j++) {
-				
-				String best_action = getBestAction(cur_state);
-				cur_state          = sampleNextState(cur_state, best_action);
-				
-				convertMapState2List(cur_state, _internalState);
-				values[j] = _context.evaluate((Integer)_mdp._rewardDD, _internalState);
-				
-				System.out.println(" -> " + best_action);
-				System.out.print(getTrafficString(cur_state) + "  [" + 
-						_df.format(values[j]) + "] ");
+			if (NUM_THREADS <= 1) {
+				logs[i] = SHOW_TRIALS ? new StringBuilder() : null;
+				samples[i] = simulateTrial(i, traj_length, rngs[i], logs[i]);
+			}
+			if (logs[i] != null) {
+				System.out.print(logs[i]);
+				logs[i] = null;
 			}
-
-			System.out.println("\n\n============= [ End Trial #" + i + " ] =============");
-			
-			samples[i] = computeEDR(values, _mdp._bdDiscount.doubleValue());
 			accum += samples[i];
 		}
 		
@@ -283,6 +352,51 @@ public class Simulator {
 		return new SimResult(mean, std, std_error);
 	}
 	
+	// Returns the discounted reward of one trajectory (log may be null)
+	public double simulateTrial(int trial, int traj_length, SplittableRandom rng,
+			StringBuilder log) {
+		
+		double[] values = new double[traj_length + 1];
+		long[] bits = CompiledDD.NewState(_varIDList.size());
+		CompiledDD reward = _id2compiled.get(_mdp._rewardDD);
+		
+		if (log != null)
+			log.append("============ [ Begin Trial #" + (trial+1) /*+ "/" + num_samples*/ + " ] ============\n\n");
+		
+		HashMap<String,Boolean> cur_state = sampleInitialState(rng);
+		convertMapState2Bits(cur_state, bits);
+		values[0] = reward.evaluate(bits);
+		
+		if (log != null)
+			log.append("   -->          <--\n" + getTrafficString(cur_state) + "  [" + 
+					Format(values[0]) + "] ");
+		
+		for (int j = 1; j <= traj_length; j++) {
+			
+			String best_action = getBestAction(cur_state, bits, log);
+			cur_state          = sampleNextState(cur_state, best_action, bits, rng);
+			
+			convertMapState2Bits(cur_state, bits);
+			values[j] = reward.evaluate(bits);
+			
+			if (log != null)
+				log.append(" -> " + best_action + "\n" + getTrafficString(cur_state) + "  [" + 
+						Format(values[j]) + "] ");
+		}
+		
+		if (log != null)
+			log.append("\n\n============= [ End Trial #" + trial + " ] =============\n");
+		
+		return computeEDR(values, _mdp._bdDiscount.doubleValue());
+	}
+	
+	// DecimalFormat is not thread safe
+	public static String Format(double val) {
+		synchronized (_df) {
+			return _df.format(val);
+		}
+	}
+	
 	public double computeStd(double[] values, double mean) {
 		double accum = 0d;
 		for (int i = 0; i < values.length; i++) {
@@ -306,9 +420,24 @@ public class Simulator {
 	 * Basic testing interface.
 	 **/
 	public static void main(String args[]) {
+		// Optional thread count for parallel simulation
+		ArrayList arg_list = new ArrayList(Arrays.asList(args));
+		int t = arg_list.indexOf("-threads");
+		if (t >= 0 && t + 1 < arg_list.size()) {
+			try {
+				NUM_THREADS = Integer.parseInt((String) arg_list.get(t + 1));
+			} catch (NumberFormatException nfe) {
+				System.out.println("\nIllegal thread count\n");
+				System.exit(1);
+			}
+			arg_list.remove(t + 1);
+			arg_list.remove(t);
+			args = (String[]) arg_list.toArray(new String[arg_list.size()]);
+		}
+
 		if (args.length != 4) {
 			System.out.println("\nMust enter MDP-filename, "
-							+ "policy_dd, num_samples, traj_length\n");
+							+ "policy_dd, num_samples, traj_length [-threads n]\n");
 			System.exit(1);
 		}
 
@@ -300,11 +300,8 @@ public class MDP_Gen {
 			// function
 			////////////////////////////////////////////////////////////////////
 			// /
-			Object diff = _context.applyInt(_valueDD, _prevDD, DD.ARITH_MINUS);
 			double max_diff_prev = max_diff;
-			double max_pos_diff = _context.getMaxValue(diff);
-			double max_neg_diff = _context.getMinValue(diff);
-			max_diff = Math.max(Math.abs(max_pos_diff), Math.abs(max_neg_diff));
+			max_diff = _context.maxAbsDifference(_valueDD, _prevDD);
 			error_decreasing = (max_diff < max_diff_prev);
 
 			// Screen output